@@ -0,0 +1,157 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.kpis.AggResponse;
+import com.darion.kpi.kpis.HourlyCountDTO;
+import com.darion.kpi.kpis.HourlyDurationStatsDTO;
+import com.darion.kpi.kpis.HourlyErrorRateDTO;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Parsing Elasticsearch search responses into KPI DTOs.
+//   tree*:      mapper.readTree, then walking the JsonNode buckets (the previous EsKpiQueryClient)
+//   streaming*: AggResponse.read, then walking its typed buckets
+// minute*: THROUGHPUT_PER_MINUTE over 30 days (43,200 buckets, ~3.5 MB).
+// hourly*: the fused hourly search over 30 days (720 buckets with errors, avg, p95, by_type).
+// Responses are generated in the exact shape Elasticsearch 8 returns. Run with -prof gc;
+// gc.alloc.rate.norm is bytes per response.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggParseBenchmark {
+
+    private static final DateTimeFormatter KEY = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final long START = Instant.parse("2026-01-01T00:00:00Z").toEpochMilli();
+    private static final String[] TYPES = {"PICK", "PACK", "PUTAWAY", "SCAN", "LOAD"};
+
+    private ObjectMapper mapper;
+    private byte[] minute;
+    private byte[] hourly;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper();
+        minute = minuteResponse();
+        hourly = hourlyResponse();
+    }
+
+    @Benchmark
+    public List<HourlyCountDTO> minuteTree() throws IOException {
+        JsonNode root = mapper.readTree(minute);
+        List<HourlyCountDTO> out = new ArrayList<>();
+        for (JsonNode b : root.path("aggregations").path("per_minute").path("buckets")) {
+            String t = b.path("key_as_string").asText(null);
+            if (t != null) out.add(new HourlyCountDTO(t, b.path("doc_count").asLong(0)));
+        }
+        return out;
+    }
+
+    @Benchmark
+    public List<HourlyCountDTO> minuteStreaming() throws IOException {
+        AggResponse r = read(minute);
+        List<HourlyCountDTO> out = new ArrayList<>();
+        for (AggResponse.Agg b : r.agg("per_minute").buckets()) {
+            if (b.keyAsString() != null) out.add(new HourlyCountDTO(b.keyAsString(), b.docCount()));
+        }
+        return out;
+    }
+
+    @Benchmark
+    public Object hourlyTree() throws IOException {
+        JsonNode root = mapper.readTree(hourly);
+        List<HourlyErrorRateDTO> errors = new ArrayList<>();
+        List<HourlyDurationStatsDTO> durations = new ArrayList<>();
+        for (JsonNode b : root.path("aggregations").path("per_hour").path("buckets")) {
+            String hour = b.path("key_as_string").asText(null);
+            long total = b.path("doc_count").asLong(0);
+            long failed = b.path("errors_only").path("doc_count").asLong(0);
+            errors.add(new HourlyErrorRateDTO(hour, total, failed, total == 0 ? 0.0 : failed * 100.0 / total));
+            JsonNode p95 = b.path("p95_duration").path("values").path("95.0");
+            double p95Ms = p95.isMissingNode() || p95.isNull() ? 0.0 : p95.asDouble(0.0);
+            durations.add(new HourlyDurationStatsDTO(hour, b.path("avg_duration").path("value").asDouble(0.0), p95Ms,
+                    Map.of("95.0", p95Ms)));
+        }
+        return List.of(errors, durations);
+    }
+
+    @Benchmark
+    public Object hourlyStreaming() throws IOException {
+        AggResponse r = read(hourly);
+        List<HourlyErrorRateDTO> errors = new ArrayList<>();
+        List<HourlyDurationStatsDTO> durations = new ArrayList<>();
+        for (AggResponse.Agg b : r.agg("per_hour").buckets()) {
+            String hour = b.keyAsString();
+            long total = b.docCount();
+            long failed = b.agg("errors_only").docCount();
+            errors.add(new HourlyErrorRateDTO(hour, total, failed, total == 0 ? 0.0 : failed * 100.0 / total));
+            double p95Ms = b.agg("p95_duration").percentile("95.0", 0.0);
+            durations.add(new HourlyDurationStatsDTO(hour, b.agg("avg_duration").value(0.0), p95Ms, Map.of("95.0", p95Ms)));
+        }
+        return List.of(errors, durations);
+    }
+
+    private AggResponse read(byte[] body) throws IOException {
+        // the client reads from the HTTP entity stream, so do the same here
+        try (InputStream is = new ByteArrayInputStream(body); JsonParser p = mapper.createParser(is)) {
+            return AggResponse.read(p);
+        }
+    }
+
+    private static byte[] minuteResponse() {
+        StringBuilder sb = header();
+        sb.append("\"aggregations\":{\"per_minute\":{\"buckets\":[");
+        for (int i = 0; i < 30 * 24 * 60; i++) {
+            long key = START + i * 60_000L;
+            if (i > 0) sb.append(',');
+            sb.append("{\"key_as_string\":\"").append(KEY.format(Instant.ofEpochMilli(key)))
+                    .append("\",\"key\":").append(key).append(",\"doc_count\":").append(40 + i % 17).append('}');
+        }
+        sb.append("]}}}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] hourlyResponse() {
+        StringBuilder sb = header();
+        sb.append("\"aggregations\":{\"per_hour\":{\"buckets\":[");
+        for (int i = 0; i < 30 * 24; i++) {
+            long key = START + i * 3_600_000L;
+            long count = 2400 + i % 97;
+            if (i > 0) sb.append(',');
+            sb.append("{\"key_as_string\":\"").append(KEY.format(Instant.ofEpochMilli(key)))
+                    .append("\",\"key\":").append(key).append(",\"doc_count\":").append(count)
+                    .append(",\"errors_only\":{\"doc_count\":").append(count / 20).append('}')
+                    .append(",\"avg_duration\":{\"value\":").append(850.25 + i % 13).append('}')
+                    .append(",\"p95_duration\":{\"values\":{\"95.0\":").append(2100.5 + i % 29).append("}}")
+                    .append(",\"by_type\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,\"buckets\":[");
+            for (int t = 0; t < TYPES.length; t++) {
+                if (t > 0) sb.append(',');
+                sb.append("{\"key\":\"").append(TYPES[t]).append("\",\"doc_count\":").append(count / (t + 2)).append('}');
+            }
+            sb.append("]}}");
+        }
+        sb.append("]}}}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static StringBuilder header() {
+        return new StringBuilder("{\"took\":41,\"timed_out\":false,"
+                + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+                + "\"hits\":{\"total\":{\"value\":10000,\"relation\":\"gte\"},\"max_score\":null,\"hits\":[]},");
+    }
+}
@@ -0,0 +1,86 @@
+package com.darion.kpi.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compares a JMH JSON result (-rf json) with a committed baseline, benchmark by benchmark and
+// parameter by parameter:
+//   java -cp target/benchmarks.jar com.darion.kpi.bench.BaselineCheck baseline/kpi-hot-paths.json jmh-result.json [time-tolerance]
+// Bytes per operation (gc.alloc.rate.norm) barely depend on the machine: more than 5% (and 64 bytes)
+// over the baseline fails. Time only compares on the machine that recorded the baseline: more than
+// time-tolerance over it (default 0.25) fails. Exits 1 on any regression.
+public final class BaselineCheck {
+
+    private static final String ALLOC = "gc.alloc.rate.norm";
+    private static final double ALLOC_TOLERANCE = 0.05;
+    private static final double ALLOC_SLACK_BYTES = 64;
+
+    private BaselineCheck() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <baseline.json> <result.json> [time-tolerance]");
+            System.exit(2);
+        }
+        double timeTolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, JsonNode> baseline = index(mapper.readTree(new File(args[0])));
+        Map<String, JsonNode> current = index(mapper.readTree(new File(args[1])));
+
+        int regressions = 0;
+        System.out.printf("%-70s %12s %12s %7s %12s %12s %7s%n", "benchmark", "base", "now", "time", "base B/op", "now B/op", "alloc");
+        for (Map.Entry<String, JsonNode> e : current.entrySet()) {
+            JsonNode base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.printf("%-70s (not in baseline)%n", e.getKey());
+                continue;
+            }
+            double t0 = base.path("primaryMetric").path("score").asDouble();
+            double t1 = e.getValue().path("primaryMetric").path("score").asDouble();
+            double a0 = base.path("secondaryMetrics").path(ALLOC).path("score").asDouble(Double.NaN);
+            double a1 = e.getValue().path("secondaryMetrics").path(ALLOC).path("score").asDouble(Double.NaN);
+
+            boolean slower = t1 > t0 * (1 + timeTolerance);
+            boolean fatter = !Double.isNaN(a0) && !Double.isNaN(a1)
+                    && a1 > a0 * (1 + ALLOC_TOLERANCE) && a1 - a0 > ALLOC_SLACK_BYTES;
+            if (slower || fatter) regressions++;
+            System.out.printf("%-70s %12.3f %12.3f %+6.0f%% %12.0f %12.0f %+6.0f%%%s%n", e.getKey(), t0, t1,
+                    change(t0, t1), a0, a1, change(a0, a1), slower || fatter ? "  REGRESSION" : "");
+        }
+        for (String missing : baseline.keySet()) {
+            if (!current.containsKey(missing)) System.out.printf("%-70s (not run)%n", missing);
+        }
+
+        System.out.println(regressions == 0 ? "No regressions" : regressions + " regression(s)");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    // "ClassName.method kpi=X range=Y" -> result entry
+    private static Map<String, JsonNode> index(JsonNode results) {
+        Map<String, JsonNode> out = new LinkedHashMap<>();
+        for (JsonNode r : results) {
+            String name = r.path("benchmark").asText();
+            StringBuilder key = new StringBuilder(name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1));
+            Map<String, String> params = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> it = r.path("params").fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> p = it.next();
+                params.put(p.getKey(), p.getValue().asText());
+            }
+            params.forEach((k, v) -> key.append(' ').append(k).append('=').append(v));
+            out.put(key.toString(), r);
+        }
+        return out;
+    }
+
+    private static double change(double before, double after) {
+        return before == 0 || Double.isNaN(before) ? 0 : (after - before) * 100 / before;
+    }
+}
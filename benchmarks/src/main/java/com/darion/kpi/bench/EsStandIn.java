@@ -0,0 +1,231 @@
+package com.darion.kpi.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+// A local stand-in for Elasticsearch, enough for the service to start, ingest and answer every KPI:
+//   java -cp target/benchmarks.jar com.darion.kpi.bench.EsStandIn [--port 9200] [--latency lognormal:30:250] [--recorded dir]
+// _search and each _msearch entry are answered with SearchResponses generated from the search body,
+// or with dir/<first aggregation name>.json when --recorded has one (e.g. top_actors.json). _bulk
+// acknowledges every item. Every request waits for a delay drawn from --latency:
+//   none | fixed:MS | uniform:MIN_MS:MAX_MS | lognormal:P50_MS:P99_MS
+public final class EsStandIn {
+
+    private static final byte[] ACK = "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Latency latency;
+    private final Map<String, byte[]> recorded;
+    private final AtomicLong ids = new AtomicLong();
+    // generated responses by search body; a 30-day per-minute response is ~3.5 MB
+    private final Cache<String, byte[]> responses = Caffeine.newBuilder()
+            .maximumWeight(512L << 20)
+            .<String, byte[]>weigher((body, response) -> body.length() + response.length)
+            .build();
+
+    EsStandIn(Latency latency, Map<String, byte[]> recorded) {
+        this.latency = latency;
+        this.recorded = recorded;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 9200;
+        Latency latency = Latency.parse("none");
+        Map<String, byte[]> recorded = Map.of();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--latency" -> latency = Latency.parse(args[++i]);
+                case "--recorded" -> recorded = recorded(Path.of(args[++i]));
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        HttpServer server = new EsStandIn(latency, recorded).start(port);
+        System.out.println("Elasticsearch stand-in on :" + server.getAddress().getPort() + ", latency " + latency
+                + ", " + recorded.size() + " recorded responses");
+    }
+
+    HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 4096);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } catch (Exception e) {
+                send(exchange, 500, ("{\"error\":{\"type\":\"stand_in_exception\",\"reason\":\""
+                        + String.valueOf(e.getMessage()).replace('"', '\'') + "\"},\"status\":500}").getBytes(StandardCharsets.UTF_8));
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException, InterruptedException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        byte[] body = body(exchange);
+        latency.await();
+
+        if (method.equals("GET") && path.equals("/")) {
+            send(exchange, 200, "{\"name\":\"stand-in\",\"cluster_name\":\"stand-in\",\"version\":{\"number\":\"8.13.4\"},\"tagline\":\"You Know, for Search\"}"
+                    .getBytes(StandardCharsets.UTF_8));
+        } else if (path.endsWith("/_msearch")) {
+            send(exchange, 200, multiSearch(body));
+        } else if (path.endsWith("/_search")) {
+            send(exchange, 200, search(mapper.readTree(body)));
+        } else if (path.endsWith("/_bulk")) {
+            send(exchange, 200, bulk(body));
+        } else if (path.contains("/_doc")) {
+            String index = path.substring(1, path.indexOf('/', 1));
+            send(exchange, 201, ("{\"_index\":\"" + index + "\",\"_id\":\"" + ids.incrementAndGet() + "\",\"_version\":1,"
+                    + "\"result\":\"created\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},\"_seq_no\":0,\"_primary_term\":1}")
+                    .getBytes(StandardCharsets.UTF_8));
+        } else if (method.equals("GET") && path.endsWith("/_mapping")) {
+            String index = path.substring(1, path.indexOf('/', 1));
+            send(exchange, 200, ("{\"" + index + "\":{\"mappings\":{}}}").getBytes(StandardCharsets.UTF_8));
+        } else {
+            // index exists, create, mapping and template updates, refresh, ...
+            send(exchange, 200, method.equals("HEAD") ? new byte[0] : ACK);
+        }
+    }
+
+    private byte[] search(JsonNode query) {
+        byte[] r = recorded.get(firstAggregation(query));
+        if (r != null) return r;
+        return responses.get(query.toString(), key -> SearchResponses.answer(mapper, query));
+    }
+
+    // header and body line pairs; each response gets its "status" like Elasticsearch's
+    private byte[] multiSearch(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("{\"took\":1,\"responses\":[".getBytes(StandardCharsets.UTF_8));
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        boolean first = true;
+        for (int i = 1; i < lines.length; i += 2) {
+            byte[] r = search(mapper.readTree(lines[i]));
+            if (!first) out.write(',');
+            first = false;
+            out.write(r, 0, r.length - 1);
+            out.writeBytes(",\"status\":200}".getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeBytes("]}".getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private byte[] bulk(byte[] body) throws IOException {
+        StringBuilder items = new StringBuilder();
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].isBlank()) continue;
+            Map.Entry<String, JsonNode> action = mapper.readTree(lines[i]).fields().next();
+            if (!action.getKey().equals("delete")) i++; // the source line
+            String id = action.getValue().path("_id").asText(Long.toString(ids.incrementAndGet()));
+            if (!items.isEmpty()) items.append(',');
+            items.append("{\"").append(action.getKey()).append("\":{\"_index\":\"")
+                    .append(action.getValue().path("_index").asText()).append("\",\"_id\":\"").append(id)
+                    .append("\",\"_version\":1,\"result\":\"created\",\"status\":201}}");
+        }
+        return ("{\"took\":1,\"errors\":false,\"items\":[" + items + "]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String firstAggregation(JsonNode query) {
+        Iterator<String> names = query.path("aggs").fieldNames();
+        return names.hasNext() ? names.next() : null;
+    }
+
+    private static byte[] body(HttpExchange exchange) throws IOException {
+        boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream in = gzip ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("X-Elastic-Product", "Elasticsearch");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, byte[]> recorded(Path dir) throws IOException {
+        Map<String, byte[]> out = new HashMap<>();
+        try (var files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                String name = f.getFileName().toString();
+                if (name.endsWith(".json")) out.put(name.substring(0, name.length() - 5), Files.readAllBytes(f));
+            }
+        }
+        return out;
+    }
+
+    // delay before each response, in milliseconds
+    record Latency(String kind, double a, double b) {
+
+        static Latency parse(String spec) {
+            String[] p = spec.split(":");
+            return switch (p[0]) {
+                case "none" -> new Latency("none", 0, 0);
+                case "fixed" -> new Latency("fixed", Double.parseDouble(p[1]), 0);
+                case "uniform" -> new Latency("uniform", Double.parseDouble(p[1]), Double.parseDouble(p[2]));
+                // p99 = p50 * e^(2.326 sigma)
+                case "lognormal" -> new Latency("lognormal", Double.parseDouble(p[1]),
+                        Math.log(Double.parseDouble(p[2]) / Double.parseDouble(p[1])) / 2.326);
+                default -> throw new IllegalArgumentException("Unknown latency " + spec
+                        + ", expected none, fixed:MS, uniform:MIN:MAX or lognormal:P50:P99");
+            };
+        }
+
+        long nextMillis() {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            return Math.round(switch (kind) {
+                case "fixed" -> a;
+                case "uniform" -> a + r.nextDouble() * (b - a);
+                case "lognormal" -> a * Math.exp(b * r.nextGaussian());
+                default -> 0;
+            });
+        }
+
+        void await() throws InterruptedException {
+            long ms = nextMillis();
+            if (ms > 0) Thread.sleep(ms);
+        }
+
+        @Override
+        public String toString() {
+            return switch (kind) {
+                case "fixed" -> "fixed " + a + " ms";
+                case "uniform" -> "uniform " + a + "-" + b + " ms";
+                case "lognormal" -> String.format("lognormal p50 %.0f ms, sigma %.2f", a, b);
+                default -> "none";
+            };
+        }
+    }
+}
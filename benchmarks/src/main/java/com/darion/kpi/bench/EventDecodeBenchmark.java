@@ -0,0 +1,85 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.events.EventDecoder;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.WarehouseEvent;
+import com.darion.kpi.events.WarehouseEventRequest;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+// Decoding 1,000 NDJSON events into something a _bulk request can be built from.
+//   beanPath:      Jackson -> WarehouseEventRequest -> Instant.parse -> WarehouseEvent -> JSON again
+//   streamingPath: EventDecoder writing the bulk body straight into an IngestBatch
+// Run with -prof gc; gc.alloc.rate.norm is bytes per event.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(EventDecodeBenchmark.EVENTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventDecodeBenchmark {
+
+    static final int EVENTS = 1000;
+
+    private static final String[] TYPES = {"PICK", "PACK", "PUTAWAY", "SCAN", "LOAD"};
+
+    private byte[] ndjson;
+    private ObjectMapper mapper;
+    private ObjectReader reader;
+    private EventDecoder decoder;
+    private IngestBatch batch;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        Instant t = Instant.parse("2026-01-15T16:00:00Z");
+        for (int i = 0; i < EVENTS; i++) {
+            sb.append("{\"timestamp\":\"").append(t.plusMillis(i * 731L)).append('"')
+                    .append(",\"eventType\":\"").append(TYPES[i % TYPES.length]).append('"')
+                    .append(",\"sessionId\":\"sess-").append(1000 + i / 20).append('"')
+                    .append(",\"actorId\":\"user-").append(i % 40).append('"')
+                    .append(",\"siteId\":\"PHL").append(i % 3).append('"')
+                    .append(",\"durationMs\":").append(200 + (i * 37) % 4000)
+                    .append(",\"success\":").append(i % 17 != 0)
+                    .append("}\n");
+        }
+        ndjson = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        mapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        reader = mapper.readerFor(WarehouseEventRequest.class);
+        decoder = new EventDecoder(mapper);
+        batch = new IngestBatch();
+    }
+
+    @Benchmark
+    public void beanPath(Blackhole bh) throws IOException {
+        try (MappingIterator<WarehouseEventRequest> it = reader.readValues(ndjson)) {
+            while (it.hasNextValue()) {
+                WarehouseEvent event = it.nextValue().toEvent();
+                bh.consume(mapper.writeValueAsBytes(event));
+            }
+        }
+    }
+
+    @Benchmark
+    public int streamingPath() throws IOException {
+        batch.clear();
+        try (EventDecoder.Reader r = decoder.open(new ByteArrayInputStream(ndjson))) {
+            while (r.next(batch)) { }
+        }
+        return batch.bodySize();
+    }
+}
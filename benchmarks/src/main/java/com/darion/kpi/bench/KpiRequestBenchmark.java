@@ -0,0 +1,54 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.kpis.EsKpiQueryClient;
+import com.darion.kpi.kpis.KpiId;
+import com.darion.kpi.kpis.KpiRequest;
+import com.darion.kpi.kpis.KpiRequestNormalizer;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Every KPI's request path, for 30 days of one site:
+//   normalize: KpiRequestNormalizer on the raw controller request
+//   build:     the search body EsKpiQueryClient sends, up to the HTTP entity
+// Run with -prof gc; gc.alloc.rate.norm is bytes per request.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KpiRequestBenchmark {
+
+    @Param
+    public KpiId kpi;
+
+    private KpiRequestNormalizer normalizer;
+    private EsKpiQueryClient client;
+    private List<KpiId> ids;
+    private KpiRequest raw;
+    private KpiRequest req;
+
+    @Setup
+    public void setup() {
+        normalizer = Kpis.normalizer();
+        client = Kpis.client(Kpis.mapper());
+        ids = List.of(kpi);
+        raw = new KpiRequest(Instant.parse("2026-01-30T00:00:00Z"), Kpis.TO, " PHL1 ", null, 20, null, null, null);
+        req = normalizer.normalize(ids, raw);
+    }
+
+    @Benchmark
+    public KpiRequest normalize() {
+        return normalizer.normalize(ids, raw);
+    }
+
+    @Benchmark
+    public HttpEntity build() {
+        return client.query(kpi, req).toEntity(ContentType.APPLICATION_JSON);
+    }
+}
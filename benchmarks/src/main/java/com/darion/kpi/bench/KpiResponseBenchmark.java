@@ -0,0 +1,63 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.kpis.AggResponse;
+import com.darion.kpi.kpis.EsKpiQueryClient;
+import com.darion.kpi.kpis.KpiId;
+import com.darion.kpi.kpis.KpiInterval;
+import com.darion.kpi.kpis.KpiRequest;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+// Every KPI's response path over 24h, 7d and 30d, on responses generated from the KPI's own search
+// body (see SearchResponses):
+//   parse:     AggResponse.read from the entity stream, then EsKpiQueryClient.parse into the DTOs
+//   serialize: the DTOs to JSON with Boot's ObjectMapper settings
+// Run with -prof gc; gc.alloc.rate.norm is bytes per response.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KpiResponseBenchmark {
+
+    @Param
+    public KpiId kpi;
+
+    @Param({"24h", "7d", "30d"})
+    public String range;
+
+    private ObjectMapper mapper;
+    private EsKpiQueryClient client;
+    private KpiRequest req;
+    private byte[] response;
+    private Object result;
+
+    @Setup
+    public void setup() throws IOException {
+        mapper = Kpis.mapper();
+        client = Kpis.client(mapper);
+        // the KPI's own interval at every range (1m for THROUGHPUT_PER_MINUTE): the worst case, not auto
+        req = Kpis.request(range, KpiInterval.defaultFor(kpi));
+        response = SearchResponses.answer(mapper, client.query(kpi, req).toByteArray(), req.from(), req.to());
+        result = parse();
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        try (InputStream is = new ByteArrayInputStream(response); JsonParser p = mapper.createParser(is)) {
+            return client.parse(kpi, AggResponse.read(p), req);
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return mapper.writeValueAsBytes(result);
+    }
+}
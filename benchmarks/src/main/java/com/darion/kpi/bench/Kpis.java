@@ -0,0 +1,76 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.events.EventIndexProperties;
+import com.darion.kpi.events.EventIndices;
+import com.darion.kpi.kpis.EsKpiQueryClient;
+import com.darion.kpi.kpis.KpiInterval;
+import com.darion.kpi.kpis.KpiIntervals;
+import com.darion.kpi.kpis.KpiMetrics;
+import com.darion.kpi.kpis.KpiQueryProperties;
+import com.darion.kpi.kpis.KpiRequest;
+import com.darion.kpi.kpis.KpiRequestNormalizer;
+import com.darion.kpi.rollup.RollupIndexProperties;
+import com.darion.kpi.rollup.RollupIndexState;
+import com.darion.kpi.rollup.RollupProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.time.Duration;
+import java.time.Instant;
+
+// The service's KPI objects wired the way the application context does, minus Elasticsearch: the
+// client never sends a request here, it only builds bodies and parses responses.
+final class Kpis {
+
+    static final Instant TO = Instant.parse("2026-03-01T00:00:00Z");
+
+    private Kpis() {}
+
+    static RollupIndexState rollupIndex() {
+        return new RollupIndexState(new RollupIndexProperties(true, Duration.ofMinutes(5), Duration.ofMinutes(10),
+                Duration.ofHours(24), Duration.ofDays(400), Duration.ofHours(24)));
+    }
+
+    static EsKpiQueryClient client(ObjectMapper mapper) {
+        EventIndices eventIndices = new EventIndices(new EventIndexProperties(1, null, Duration.ofHours(1), true), null, mapper,
+                new SimpleMeterRegistry());
+        return new EsKpiQueryClient(null, mapper, eventIndices, rollupIndex(), new KpiMetrics(new SimpleMeterRegistry()),
+                intervals(), new RollupProperties(true, Duration.ofDays(35), false, 14, 0.01));
+    }
+
+    static KpiRequestNormalizer normalizer() {
+        return new KpiRequestNormalizer(rollupIndex(), new RollupIndexProperties(true, Duration.ofMinutes(5),
+                Duration.ofMinutes(10), Duration.ofHours(24), Duration.ofDays(400), Duration.ofHours(24)), intervals());
+    }
+
+    // application.yml defaults
+    static KpiIntervals intervals() {
+        return new KpiIntervals(new KpiQueryProperties(
+                new KpiQueryProperties.Fusion(true, Duration.ZERO),
+                new KpiQueryProperties.Cache(true, 200_000, Duration.ofMinutes(10), Duration.ofHours(24),
+                        Duration.ofSeconds(15), Duration.ofSeconds(5)),
+                new KpiQueryProperties.Buckets(true, 1_000_000, Duration.ofDays(7)),
+                new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+                new KpiQueryProperties.SingleFlight(true),
+                new KpiQueryProperties.Interval(12, 1000)));
+    }
+
+    // Boot's ObjectMapper for the DTOs: java.time as ISO-8601 strings
+    static ObjectMapper mapper() {
+        return new ObjectMapper().findAndRegisterModules().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    // range: 24h, 7d or 30d ending at TO, for every site. interval (null = auto) is set after
+    // normalizing, so it may exceed kpi.query.interval.max-buckets like the fixed 1m histogram used to.
+    static KpiRequest request(String range, KpiInterval interval) {
+        Duration d = switch (range) {
+            case "24h" -> Duration.ofHours(24);
+            case "7d" -> Duration.ofDays(7);
+            case "30d" -> Duration.ofDays(30);
+            default -> throw new IllegalArgumentException("Unknown range " + range);
+        };
+        KpiRequest req = normalizer().normalize(new KpiRequest(TO.minus(d), TO, null, null, null, null, null, null));
+        return new KpiRequest(req.from(), req.to(), req.siteId(), req.topN(), req.limit(), interval, null, null);
+    }
+}
@@ -0,0 +1,174 @@
+package com.darion.kpi.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays a traffic file against the service and reports throughput, latency and errors per KPI:
+//   java -cp target/benchmarks.jar com.darion.kpi.bench.LoadReplay load/dashboard.jsonl
+//        [--target http://localhost:8080] [--rate REQ_PER_S | --speed X] [--repeat N] [--timeout 30s]
+// One JSON request per line, t being its offset in milliseconds from the start of the recording:
+//   {"t":0,"method":"GET","path":"/kpis/TOP_ACTORS?from=...&to=...&siteId=PHL1"}
+//   {"t":5,"method":"POST","path":"/events","body":{"timestamp":"...","eventType":"PICK",...}}
+//   {"t":9,"method":"POST","path":"/events/_bulk","body":"<NDJSON lines>"}
+// Requests are sent on schedule whether or not earlier ones have returned (open loop): at the
+// recorded offsets divided by --speed, or --rate per second in file order. Latency is measured
+// from the scheduled time, so a saturated service shows up as latency instead of a slower sender.
+public final class LoadReplay {
+
+    private record Entry(long t, String method, String path, String body, String label) {}
+
+    private static final class Stats {
+        private long[] latencies = new long[256];
+        private int count;
+        private int errors;
+        private final Map<String, Integer> codes = new TreeMap<>();
+
+        synchronized void record(long nanos, String failure) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+            if (failure != null) {
+                errors++;
+                codes.merge(failure, 1, Integer::sum);
+            }
+        }
+    }
+
+    private LoadReplay() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadReplay <traffic.jsonl> [--target URL] [--rate N | --speed X] [--repeat N] [--timeout 30s]");
+            System.exit(2);
+        }
+        String target = "http://localhost:8080";
+        double rate = 0;
+        double speed = 1;
+        int repeat = 1;
+        Duration timeout = Duration.ofSeconds(30);
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--target" -> target = args[++i];
+                case "--rate" -> rate = Double.parseDouble(args[++i]);
+                case "--speed" -> speed = Double.parseDouble(args[++i]);
+                case "--repeat" -> repeat = Integer.parseInt(args[++i]);
+                case "--timeout" -> timeout = Duration.parse("PT" + args[++i].toUpperCase());
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<Entry> traffic = read(Path.of(args[0]));
+        long span = traffic.isEmpty() ? 0 : traffic.get(traffic.size() - 1).t() + 1;
+        int total = traffic.size() * repeat;
+        long[] schedule = new long[total];
+        for (int i = 0; i < total; i++) {
+            Entry e = traffic.get(i % traffic.size());
+            schedule[i] = rate > 0
+                    ? Math.round(i * 1e9 / rate)
+                    : Math.round(((i / traffic.size()) * span + e.t()) * 1e6 / speed);
+        }
+        System.out.printf("Replaying %d requests against %s%n", total, target);
+
+        HttpClient client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        Map<String, Stats> stats = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(total);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            Entry e = traffic.get(i % traffic.size());
+            long due = start + schedule[i];
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+
+            HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(target + e.path())).timeout(timeout);
+            if (e.body() == null) {
+                req.method(e.method(), HttpRequest.BodyPublishers.noBody());
+            } else {
+                req.header("Content-Type", e.path().endsWith("/_bulk") ? "application/x-ndjson" : "application/json")
+                        .method(e.method(), HttpRequest.BodyPublishers.ofString(e.body()));
+            }
+            Stats s = stats.computeIfAbsent(e.label(), k -> new Stats());
+            client.sendAsync(req.build(), HttpResponse.BodyHandlers.discarding()).whenComplete((resp, err) -> {
+                String failure = err != null ? err.getClass().getSimpleName()
+                        : resp.statusCode() >= 400 ? Integer.toString(resp.statusCode()) : null;
+                s.record(System.nanoTime() - due, failure);
+                done.countDown();
+            });
+        }
+        done.await();
+        report(new TreeMap<>(stats), (System.nanoTime() - start) / 1e9);
+        System.exit(0);
+    }
+
+    private static List<Entry> read(Path file) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<Entry> out = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank()) continue;
+            JsonNode n = mapper.readTree(line);
+            JsonNode body = n.get("body");
+            String path = n.path("path").asText();
+            out.add(new Entry(n.path("t").asLong(0), n.path("method").asText("GET"), path,
+                    body == null || body.isNull() ? null : body.isTextual() ? body.asText() : body.toString(), label(path)));
+        }
+        out.sort((a, b) -> Long.compare(a.t(), b.t()));
+        return out;
+    }
+
+    // KpiId for /kpis/{id}, BATCH, EVENTS or EVENTS_BULK
+    private static String label(String path) {
+        String p = path.contains("?") ? path.substring(0, path.indexOf('?')) : path;
+        if (p.equals("/kpis/_batch")) return "BATCH";
+        if (p.startsWith("/kpis/")) return p.substring("/kpis/".length());
+        if (p.equals("/events/_bulk")) return "EVENTS_BULK";
+        if (p.equals("/events")) return "EVENTS";
+        return p;
+    }
+
+    private static void report(Map<String, Stats> stats, double seconds) {
+        System.out.printf("%n%-36s %8s %8s %7s %9s %9s %9s  %s%n", "endpoint", "count", "req/s", "err%", "p50 ms", "p99 ms", "p999 ms", "errors");
+        Stats all = new Stats();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            line(e.getKey(), e.getValue(), seconds);
+            Stats s = e.getValue();
+            for (int i = 0; i < s.count; i++) all.record(s.latencies[i], null);
+            all.errors += s.errors;
+            s.codes.forEach((k, v) -> all.codes.merge(k, v, Integer::sum));
+        }
+        line("TOTAL", all, seconds);
+        System.out.printf("%n%.1f s%n", seconds);
+    }
+
+    private static void line(String name, Stats s, double seconds) {
+        long[] sorted = Arrays.copyOf(s.latencies, s.count);
+        Arrays.sort(sorted);
+        System.out.printf("%-36s %8d %8.1f %6.2f%% %9.1f %9.1f %9.1f  %s%n", name, s.count, s.count / seconds,
+                s.count == 0 ? 0 : s.errors * 100.0 / s.count,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                s.codes.isEmpty() ? "" : s.codes.toString());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+}
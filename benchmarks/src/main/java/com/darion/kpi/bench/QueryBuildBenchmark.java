@@ -0,0 +1,129 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.kpis.JsonBytes;
+import com.darion.kpi.kpis.KpiId;
+import com.darion.kpi.kpis.KpiQueryTemplates;
+import com.darion.kpi.kpis.QueryTemplate;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Building KPI search bodies up to the HTTP entity.
+//   builder*:  the previous EsKpiQueryClient builders (StringBuilder, escapeJson via String.replace),
+//              then Request.setJsonEntity's NStringEntity
+//   template*: KpiQueryTemplates rendered into JsonBytes, handed to the entity as is
+// topActors: TOP_ACTORS with a siteId. hourly: all six hourly KPIs fused into one histogram search.
+// Run with -prof gc; gc.alloc.rate.norm is bytes per body.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBuildBenchmark {
+
+    private static final List<KpiId> HOURLY = List.of(KpiId.EVENTS_PER_HOUR, KpiId.EVENTS_PER_HOUR_BY_TYPE,
+            KpiId.ERROR_RATE_PER_HOUR, KpiId.DURATION_STATS_PER_HOUR, KpiId.UNIQUE_ACTORS_PER_HOUR,
+            KpiId.UNIQUE_SESSIONS_PER_HOUR);
+    // the default p95 with application.yml's duration accuracy
+    private static final String PERCENTS = "\"percents\":[95.0],\"hdr\":{\"number_of_significant_value_digits\":2}";
+
+    private String filter;
+    private String siteId;
+
+    @Setup
+    public void setup() {
+        filter = "{\"range\":{\"timestamp\":{\"gte\":\"" + Instant.parse("2026-01-01T00:00:00Z")
+                + "\",\"lte\":\"" + Instant.parse("2026-01-31T00:00:00Z") + "\"}}}";
+        siteId = "PHL1";
+    }
+
+    @Benchmark
+    public HttpEntity topActorsBuilder() {
+        return new NStringEntity(buildTopActorsQuery(filter, siteId, 10), ContentType.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public HttpEntity topActorsTemplate() {
+        QueryTemplate t = KpiQueryTemplates.of(KpiId.TOP_ACTORS);
+        JsonBytes out = new JsonBytes(t.sizeHint(filter.length()));
+        t.render(out, filter, siteId, 10, "durationMs", "1h", null, PERCENTS);
+        return out.toEntity(ContentType.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public HttpEntity hourlyBuilder() {
+        return new NStringEntity(buildHourlyQuery(filter, siteId, "durationMs"), ContentType.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public HttpEntity hourlyTemplate() {
+        QueryTemplate t = KpiQueryTemplates.hourly(HOURLY);
+        JsonBytes out = new JsonBytes(t.sizeHint(filter.length()));
+        t.render(out, filter, siteId, 0, "durationMs", "1h", null, PERCENTS);
+        return out.toEntity(ContentType.APPLICATION_JSON);
+    }
+
+    // ---------------- previous builders, verbatim ----------------
+
+    private static String buildTopActorsQuery(String filter, String siteId, int limit) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":0,");
+        sb.append("\"query\":{\"bool\":{\"filter\":[");
+        sb.append(filter);
+        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
+        sb.append("]}},");
+        sb.append("\"aggs\":{\"top_actors\":{\"terms\":{\"field\":\"actorId\",\"size\":").append(limit).append(",\"order\":{\"_count\":\"desc\"}}}}}");
+        return sb.toString();
+    }
+
+    private static String buildHourlyQuery(String filter, String siteId, String durationSketch) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":0,");
+        sb.append("\"query\":{\"bool\":{\"filter\":[");
+        sb.append(filter);
+        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
+        sb.append("]}},");
+        sb.append("\"aggs\":{\"per_hour\":{");
+        sb.append("\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0}");
+
+        StringBuilder sub = new StringBuilder();
+        for (KpiId id : HOURLY) {
+            String aggs = switch (id) {
+                case EVENTS_PER_HOUR -> null; // doc_count only
+                case EVENTS_PER_HOUR_BY_TYPE ->
+                        "\"by_type\":{\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}}}";
+                case ERROR_RATE_PER_HOUR -> "\"errors_only\":{\"filter\":{\"term\":{\"success\":false}}}";
+                case DURATION_STATS_PER_HOUR -> "\"avg_duration\":{\"avg\":{\"field\":\"durationMs\"}},"
+                        + "\"p95_duration\":{\"percentiles\":{\"field\":\"" + durationSketch + "\",\"percents\":[95]}}";
+                case UNIQUE_ACTORS_PER_HOUR -> "\"unique_actors\":{\"cardinality\":{\"field\":\"actorId\"}}";
+                case UNIQUE_SESSIONS_PER_HOUR -> "\"unique_sessions\":{\"cardinality\":{\"field\":\"sessionId\"}}";
+                default -> throw new IllegalArgumentException(id + " is not an hourly KPI");
+            };
+            if (aggs == null) continue;
+            if (!sub.isEmpty()) sub.append(',');
+            sub.append(aggs);
+        }
+        if (!sub.isEmpty()) sb.append(",\"aggs\":{").append(sub).append('}');
+
+        sb.append("}}}");
+        return sb.toString();
+    }
+
+    private static boolean hasText(String s) {
+        return s != null && !s.isBlank();
+    }
+
+    private static String term(String field, String value) {
+        return "{\"term\":{\"" + field + "\":\"" + escapeJson(value) + "\"}}";
+    }
+
+    private static String escapeJson(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
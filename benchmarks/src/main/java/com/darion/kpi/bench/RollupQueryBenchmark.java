@@ -0,0 +1,81 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.WarehouseEvent;
+import com.darion.kpi.kpis.KpiId;
+import com.darion.kpi.kpis.KpiRequest;
+import com.darion.kpi.kpis.RollupKpis;
+import com.darion.kpi.rollup.HourlyRollup;
+import com.darion.kpi.rollup.RollupProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// EVENTS_PER_HOUR_BY_TYPE over 30 days answered from the hourly rollup: 720 hours x 10 sites x
+// 20 event types, all sites and a single site. SampleTime reports p99 next to the mean.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RollupQueryBenchmark {
+
+    private static final int HOURS = 720;
+    private static final int SITES = 10;
+    private static final int TYPES = 20;
+
+    private RollupKpis kpis;
+    private KpiRequest allSites;
+    private KpiRequest oneSite;
+
+    @Setup
+    public void setup() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        HourlyRollup rollup = new HourlyRollup(new RollupProperties(true, Duration.ofDays(60), false, 14, 0.01), null, registry);
+        rollup.start();
+        kpis = new RollupKpis(rollup, registry);
+
+        // without a bootstrap the rollup covers everything from the next full hour on
+        Instant from = rollup.coveredFrom();
+        IngestBatch batch = new IngestBatch();
+        List<BulkItemResultDTO> results = new ArrayList<>();
+        for (int h = 0; h < HOURS; h++) {
+            for (int s = 0; s < SITES; s++) {
+                for (int t = 0; t < TYPES; t++) {
+                    WarehouseEvent e = new WarehouseEvent();
+                    e.setTimestamp(from.plusSeconds(h * 3600L + s * 60L + t));
+                    e.setEventType("TYPE_" + t);
+                    e.setSiteId("SITE_" + s);
+                    e.setDurationMs(100L + t);
+                    e.setSuccess(t % 7 != 0);
+                    batch.add(e, results.size());
+                    results.add(new BulkItemResultDTO(results.size(), null, 201, null));
+                }
+            }
+            rollup.onIndexed(batch, results);
+            batch.clear();
+            results.clear();
+        }
+
+        Instant to = from.plus(Duration.ofHours(HOURS)).minusMillis(1);
+        allSites = new KpiRequest(from, to, null, 5, null, null, null, null);
+        oneSite = new KpiRequest(from, to, "SITE_3", 5, null, null, null, null);
+    }
+
+    @Benchmark
+    public Object eventsPerHourByTypeAllSites() {
+        return kpis.getKpi(KpiId.EVENTS_PER_HOUR_BY_TYPE, allSites);
+    }
+
+    @Benchmark
+    public Object eventsPerHourByTypeOneSite() {
+        return kpis.getKpi(KpiId.EVENTS_PER_HOUR_BY_TYPE, oneSite);
+    }
+}
@@ -0,0 +1,289 @@
+package com.darion.kpi.bench;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+// Search responses in the exact shape Elasticsearch 8 returns, generated from the query they answer:
+// every aggregation of the body gets its buckets, doc counts and values, nested as requested.
+// Sizes follow production: 25 event types, 50 sites, ~120k events an hour, date histograms with a
+// bucket per hour/minute of the range. Seeded, so every run parses the same bytes.
+final class SearchResponses {
+
+    static final int EVENT_TYPES = 25;
+    static final int SITES = 50;
+    private static final int ACTORS = 4_000;
+    private static final int SESSIONS = 60_000;
+    private static final long EVENTS_PER_MINUTE = 2_000;
+
+    private static final DateTimeFormatter KEY = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final String[] TYPES = new String[EVENT_TYPES];
+
+    static {
+        String[] base = {"PICK", "PACK", "PUTAWAY", "SCAN", "LOAD"};
+        for (int i = 0; i < EVENT_TYPES; i++) TYPES[i] = base[i % base.length] + (i < base.length ? "" : "_" + i / base.length);
+    }
+
+    private final ObjectMapper mapper;
+    private final Random random = new Random(42);
+    private final Instant from;
+    private final Instant to;
+
+    private SearchResponses(ObjectMapper mapper, Instant from, Instant to) {
+        this.mapper = mapper;
+        this.from = from;
+        this.to = to;
+    }
+
+    // response to the given search body over [from, to]
+    static byte[] answer(ObjectMapper mapper, byte[] query, Instant from, Instant to) {
+        try {
+            return new SearchResponses(mapper, from, to).write(mapper.readTree(query));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // response to the given search body over the timestamp ranges it filters on (the last day
+    // when it has none)
+    static byte[] answer(ObjectMapper mapper, JsonNode query) {
+        Instant[] range = {null, null};
+        timestampRange(query.path("query"), range);
+        Instant to = range[1] == null ? Instant.now() : range[1];
+        Instant from = range[0] == null ? to.minusSeconds(86_400) : range[0];
+        try {
+            return new SearchResponses(mapper, from, to).write(query);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // earliest lower and latest upper bound of every range filter on timestamp
+    private static void timestampRange(JsonNode node, Instant[] range) {
+        JsonNode ts = node.path("range").path("timestamp");
+        if (ts.isObject()) {
+            for (String op : new String[]{"gte", "gt"}) {
+                if (ts.hasNonNull(op)) range[0] = min(range[0], Instant.parse(ts.get(op).asText()));
+            }
+            for (String op : new String[]{"lte", "lt"}) {
+                if (ts.hasNonNull(op)) range[1] = max(range[1], Instant.parse(ts.get(op).asText()));
+            }
+        }
+        for (JsonNode child : node) timestampRange(child, range);
+    }
+
+    private static Instant min(Instant a, Instant b) {
+        return a == null || b.isBefore(a) ? b : a;
+    }
+
+    private static Instant max(Instant a, Instant b) {
+        return a == null || b.isAfter(a) ? b : a;
+    }
+
+    private byte[] write(JsonNode query) throws IOException {
+        long total = EVENTS_PER_MINUTE * Math.max(1, (to.toEpochMilli() - from.toEpochMilli()) / 60_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator g = mapper.createGenerator(out)) {
+            g.writeStartObject();
+            g.writeNumberField("took", 20 + random.nextInt(200));
+            g.writeBooleanField("timed_out", false);
+            g.writeFieldName("_shards");
+            g.writeStartObject();
+            g.writeNumberField("total", 1);
+            g.writeNumberField("successful", 1);
+            g.writeNumberField("skipped", 0);
+            g.writeNumberField("failed", 0);
+            g.writeEndObject();
+
+            g.writeFieldName("hits");
+            g.writeStartObject();
+            g.writeFieldName("total");
+            g.writeStartObject();
+            g.writeNumberField("value", Math.min(total, 10_000));
+            g.writeStringField("relation", total > 10_000 ? "gte" : "eq");
+            g.writeEndObject();
+            g.writeNullField("max_score");
+            g.writeFieldName("hits");
+            g.writeStartArray();
+            for (int i = 0; i < query.path("size").asInt(0); i++) hit(g, i);
+            g.writeEndArray();
+            g.writeEndObject();
+
+            if (query.has("aggs")) {
+                g.writeFieldName("aggregations");
+                g.writeStartObject();
+                aggs(g, query.get("aggs"), total);
+                g.writeEndObject();
+            }
+            g.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    // top hits sorted by durationMs desc
+    private void hit(JsonGenerator g, int i) throws IOException {
+        long duration = 600_000 - i * 1_000L - random.nextInt(1_000);
+        g.writeStartObject();
+        g.writeStringField("_index", "warehouse_events");
+        g.writeStringField("_id", "evt-" + Long.toHexString(random.nextLong()));
+        g.writeNullField("_score");
+        g.writeFieldName("_source");
+        g.writeStartObject();
+        g.writeStringField("timestamp", Instant.ofEpochMilli(from.toEpochMilli()
+                + (long) (random.nextDouble() * (to.toEpochMilli() - from.toEpochMilli()))).toString());
+        g.writeStringField("eventType", TYPES[random.nextInt(EVENT_TYPES)]);
+        g.writeStringField("sessionId", "session-" + random.nextInt(SESSIONS));
+        g.writeStringField("actorId", "actor-" + random.nextInt(ACTORS));
+        g.writeStringField("siteId", site(random.nextInt(SITES)));
+        g.writeNumberField("durationMs", duration);
+        g.writeBooleanField("success", random.nextInt(20) != 0);
+        g.writeEndObject();
+        g.writeFieldName("sort");
+        g.writeStartArray();
+        g.writeNumber(duration);
+        g.writeEndArray();
+        g.writeEndObject();
+    }
+
+    private void aggs(JsonGenerator g, JsonNode aggs, long docCount) throws IOException {
+        Iterator<Map.Entry<String, JsonNode>> it = aggs.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> agg = it.next();
+            g.writeFieldName(agg.getKey());
+            g.writeStartObject();
+            agg(g, agg.getValue(), docCount);
+            g.writeEndObject();
+        }
+    }
+
+    // 1m, 15m, 1h, 6h, 1d, ...
+    private static long millis(String interval) {
+        long n = Long.parseLong(interval.substring(0, interval.length() - 1));
+        return switch (interval.charAt(interval.length() - 1)) {
+            case 's' -> n * 1_000;
+            case 'm' -> n * 60_000;
+            case 'h' -> n * 3_600_000;
+            case 'd' -> n * 86_400_000;
+            default -> throw new IllegalArgumentException("Unsupported fixed_interval " + interval);
+        };
+    }
+
+    private void agg(JsonGenerator g, JsonNode def, long docCount) throws IOException {
+        JsonNode sub = def.get("aggs");
+        if (def.has("date_histogram")) {
+            JsonNode h = def.get("date_histogram");
+            long step = millis(h.path("fixed_interval").asText());
+            long first = from.toEpochMilli() / step * step;
+            int n = (int) ((to.toEpochMilli() - first) / step) + 1;
+            long[] counts = counts(n, docCount, false);
+            Integer[] order = order(counts, h.path("order").has("_count"));
+            g.writeFieldName("buckets");
+            g.writeStartArray();
+            for (int i : order) {
+                long key = first + i * step;
+                g.writeStartObject();
+                g.writeStringField("key_as_string", KEY.format(Instant.ofEpochMilli(key)));
+                g.writeNumberField("key", key);
+                g.writeNumberField("doc_count", counts[i]);
+                if (sub != null) aggs(g, sub, counts[i]);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+        } else if (def.has("terms")) {
+            JsonNode t = def.get("terms");
+            String field = t.path("field").asText();
+            int cardinality = switch (field) {
+                case "eventType" -> EVENT_TYPES;
+                case "siteId" -> SITES;
+                case "actorId" -> ACTORS;
+                default -> SESSIONS;
+            };
+            int n = Math.min(t.path("size").asInt(10), cardinality);
+            long[] counts = counts(cardinality, docCount, true);
+            long shown = 0;
+            for (int i = 0; i < n; i++) shown += counts[i];
+            g.writeNumberField("doc_count_error_upper_bound", 0);
+            g.writeNumberField("sum_other_doc_count", docCount - shown);
+            g.writeFieldName("buckets");
+            g.writeStartArray();
+            for (int i = 0; i < n; i++) {
+                g.writeStartObject();
+                g.writeStringField("key", switch (field) {
+                    case "eventType" -> TYPES[i];
+                    case "siteId" -> site(i);
+                    case "actorId" -> "actor-" + i;
+                    default -> "session-" + i;
+                });
+                g.writeNumberField("doc_count", counts[i]);
+                if (sub != null) aggs(g, sub, counts[i]);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+        } else if (def.has("filter")) {
+            JsonNode success = def.get("filter").path("term").path("success");
+            long count = success.isMissingNode() ? docCount
+                    : success.asBoolean() ? docCount - docCount / 20 : docCount / 20;
+            g.writeNumberField("doc_count", count);
+            if (sub != null) aggs(g, sub, count);
+        } else if (def.has("percentiles")) {
+            g.writeFieldName("values");
+            g.writeStartObject();
+            for (JsonNode p : def.get("percentiles").path("percents")) {
+                String key = Double.toString(p.asDouble()); // as Elasticsearch keys them
+                if (docCount == 0) g.writeNullField(key);
+                else g.writeNumberField(key, 2_000 + random.nextDouble() * 800);
+            }
+            g.writeEndObject();
+        } else if (def.has("avg")) {
+            if (docCount == 0) g.writeNullField("value");
+            else g.writeNumberField("value", 800 + random.nextDouble() * 200);
+        } else if (def.has("min") || def.has("max")) {
+            // the rollup jobs ask for the first and last event time
+            if (docCount == 0) g.writeNullField("value");
+            else g.writeNumberField("value", (def.has("min") ? from : to).toEpochMilli());
+        } else if (def.has("composite")) {
+            // rollup jobs page through composite buckets: an empty page ends them
+            g.writeFieldName("buckets");
+            g.writeStartArray();
+            g.writeEndArray();
+        } else if (def.has("cardinality")) {
+            String field = def.get("cardinality").path("field").asText();
+            g.writeNumberField("value", Math.min(docCount, (field.equals("actorId") ? ACTORS : SESSIONS) / (1 + random.nextInt(4))));
+        }
+    }
+
+    // n counts summing to about total: flat with noise, or falling off (descending) like a terms aggregation
+    private long[] counts(int n, long total, boolean skewed) {
+        long[] out = new long[n];
+        double norm = 0;
+        double[] w = new double[n];
+        for (int i = 0; i < n; i++) {
+            w[i] = skewed ? 1.0 / (i + 1) : 0.75 + random.nextDouble() * 0.5;
+            norm += w[i];
+        }
+        for (int i = 0; i < n; i++) out[i] = Math.round(total * w[i] / norm);
+        return out;
+    }
+
+    private static Integer[] order(long[] counts, boolean byCountDesc) {
+        Integer[] order = new Integer[counts.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        if (byCountDesc) Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+        return order;
+    }
+
+    private static String site(int i) {
+        return String.format("%s%d", new String[]{"PHL", "BOS", "ATL", "DFW", "SEA"}[i % 5], i / 5 + 1);
+    }
+}
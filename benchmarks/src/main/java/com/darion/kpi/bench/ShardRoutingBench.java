@@ -0,0 +1,259 @@
+package com.darion.kpi.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Site-filtered KPI searches with and without siteId routing, against a real Elasticsearch (the
+// stand-in has no shards):
+//   java -cp target/benchmarks.jar com.darion.kpi.bench.ShardRoutingBench
+//        [--target http://localhost:9200] [--shards 8] [--sites 50] [--events 1000000]
+//        [--queries 5000] [--concurrency 8] [--keep]
+// The same events go into two indices of the same shard count: one routed by siteId the way ingest
+// does it, one routed by _id as before. Then EVENTS_PER_HOUR searches for one site over 24h (the
+// dashboard's most common search) run against both, interleaved, from --concurrency clients:
+// without routing as before, against the routed index with routing=siteId as EsKpiQueryClient
+// sends it. Reported per mode: shards searched, Elasticsearch's took and client latency. A
+// cross-site search (SITE_VOLUME_AND_SUCCESS) checks that the routed index still answers for every
+// site through full fan-out, and the routed index's shard sizes show how the sites spread.
+public final class ShardRoutingBench {
+
+    private static final String UNROUTED = "routing_bench-unrouted";
+    private static final String ROUTED = "routing_bench-routed";
+    private static final String MAPPING = "{\"properties\":{"
+            + "\"timestamp\":{\"type\":\"date\"},"
+            + "\"eventType\":{\"type\":\"keyword\"},"
+            + "\"sessionId\":{\"type\":\"keyword\"},"
+            + "\"actorId\":{\"type\":\"keyword\"},"
+            + "\"siteId\":{\"type\":\"keyword\"},"
+            + "\"durationMs\":{\"type\":\"long\"},"
+            + "\"success\":{\"type\":\"boolean\"}}}";
+    private static final String[] EVENT_TYPES = {"PICK", "PACK", "LOAD", "SCAN", "MOVE", "COUNT", "RECEIVE", "SHIP"};
+    private static final int BULK = 5000;
+
+    private record Sample(long nanos, int shards, long took, long hits) {}
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String target;
+
+    private ShardRoutingBench(String target) {
+        this.target = target;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String target = "http://localhost:9200";
+        int shards = 8;
+        int sites = 50;
+        int events = 1_000_000;
+        int queries = 5000;
+        int concurrency = 8;
+        boolean keep = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--target" -> target = args[++i];
+                case "--shards" -> shards = Integer.parseInt(args[++i]);
+                case "--sites" -> sites = Integer.parseInt(args[++i]);
+                case "--events" -> events = Integer.parseInt(args[++i]);
+                case "--queries" -> queries = Integer.parseInt(args[++i]);
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--keep" -> keep = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        ShardRoutingBench bench = new ShardRoutingBench(target);
+        Instant to = Instant.now().truncatedTo(ChronoUnit.HOURS);
+        try {
+            bench.load(shards, sites, events, to);
+            bench.run(sites, queries, concurrency, to);
+            bench.crossSite(sites, events, to);
+            bench.shardSizes();
+        } finally {
+            if (!keep) bench.send("DELETE", "/" + UNROUTED + "," + ROUTED + "?ignore_unavailable=true", null);
+        }
+        System.exit(0);
+    }
+
+    // ---------------- data ----------------
+
+    private void load(int shards, int sites, int events, Instant to) throws IOException, InterruptedException {
+        for (String index : new String[]{UNROUTED, ROUTED}) {
+            send("DELETE", "/" + index + "?ignore_unavailable=true", null);
+            send("PUT", "/" + index, "{\"settings\":{\"number_of_shards\":" + shards + ",\"number_of_replicas\":0,"
+                    + "\"refresh_interval\":\"-1\"},\"mappings\":" + MAPPING + "}");
+        }
+        System.out.printf("Loading %,d events of %d sites over 7 days into %d shards per index%n", events, sites, shards);
+
+        Random random = new Random(42);
+        long fromMs = to.minus(Duration.ofDays(7)).toEpochMilli();
+        long spanMs = to.toEpochMilli() - fromMs;
+        StringBuilder unrouted = new StringBuilder();
+        StringBuilder routed = new StringBuilder();
+        for (int i = 0; i < events; i++) {
+            String site = site(random.nextInt(sites));
+            String source = "{\"timestamp\":\"" + Instant.ofEpochMilli(fromMs + (long) (random.nextDouble() * spanMs))
+                    + "\",\"eventType\":\"" + EVENT_TYPES[random.nextInt(EVENT_TYPES.length)]
+                    + "\",\"sessionId\":\"s" + random.nextInt(20_000) + "\",\"actorId\":\"a" + random.nextInt(2_000)
+                    + "\",\"siteId\":\"" + site + "\",\"durationMs\":" + (50 + random.nextInt(5_000))
+                    + ",\"success\":" + (random.nextInt(20) != 0) + "}\n";
+            unrouted.append("{\"index\":{\"_index\":\"").append(UNROUTED).append("\"}}\n").append(source);
+            routed.append("{\"index\":{\"_index\":\"").append(ROUTED).append("\",\"routing\":\"").append(site).append("\"}}\n")
+                    .append(source);
+            if ((i + 1) % BULK == 0 || i == events - 1) {
+                bulk(unrouted);
+                bulk(routed);
+            }
+        }
+        for (String index : new String[]{UNROUTED, ROUTED}) {
+            send("PUT", "/" + index + "/_settings", "{\"index\":{\"refresh_interval\":\"1s\"}}");
+            send("POST", "/" + index + "/_refresh", null);
+            send("POST", "/" + index + "/_forcemerge?max_num_segments=1", null);
+        }
+    }
+
+    private void bulk(StringBuilder body) throws IOException, InterruptedException {
+        JsonNode resp = send("POST", "/_bulk", body.toString());
+        if (resp.path("errors").asBoolean()) throw new IOException("Bulk failed: " + resp.path("items").path(0));
+        body.setLength(0);
+    }
+
+    private static String site(int i) {
+        return String.format("SITE%02d", i + 1);
+    }
+
+    // ---------------- searches ----------------
+
+    private void run(int sites, int queries, int concurrency, Instant to) throws Exception {
+        // warm up both indices' caches and the JIT before measuring
+        runMode(UNROUTED, false, sites, Math.min(500, queries), concurrency, to);
+        runMode(ROUTED, true, sites, Math.min(500, queries), concurrency, to);
+
+        List<Sample> before = new ArrayList<>();
+        List<Sample> after = new ArrayList<>();
+        long beforeNanos = 0;
+        long afterNanos = 0;
+        // alternate in rounds so both modes see the same cluster conditions
+        int rounds = 5;
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            before.addAll(runMode(UNROUTED, false, sites, queries / rounds, concurrency, to));
+            beforeNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            after.addAll(runMode(ROUTED, true, sites, queries / rounds, concurrency, to));
+            afterNanos += System.nanoTime() - start;
+        }
+
+        System.out.printf("%nEVENTS_PER_HOUR, one site, 24h, %d clients%n", concurrency);
+        System.out.printf("%-22s %8s %10s %9s %9s %9s %9s %10s%n", "mode", "count", "shards", "took p50", "took p99",
+                "p50 ms", "p99 ms", "req/s");
+        report("before (fan-out)", before, beforeNanos);
+        report("after (routing)", after, afterNanos);
+        long mismatched = 0;
+        for (int i = 0; i < Math.min(before.size(), after.size()); i++) {
+            if (before.get(i).hits() != after.get(i).hits()) mismatched++;
+        }
+        System.out.println(mismatched == 0 ? "Both modes returned the same counts" : mismatched + " searches returned different counts");
+    }
+
+    // queries searches for sites in turn, spread over concurrency clients
+    private List<Sample> runMode(String index, boolean routing, int sites, int queries, int concurrency, Instant to)
+            throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        Sample[] samples = new Sample[queries];
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<?>> clients = new ArrayList<>();
+            for (int c = 0; c < concurrency; c++) {
+                clients.add(pool.submit(() -> {
+                    for (int i; (i = next.getAndIncrement()) < queries; ) {
+                        String site = site(i % sites);
+                        String path = "/" + index + "/_search" + (routing ? "?routing=" + site : "");
+                        long start = System.nanoTime();
+                        JsonNode resp = send("POST", path, eventsPerHour(site, to));
+                        long nanos = System.nanoTime() - start;
+                        samples[i] = new Sample(nanos, resp.path("_shards").path("total").asInt(),
+                                resp.path("took").asLong(), resp.path("hits").path("total").path("value").asLong());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : clients) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        return Arrays.asList(samples);
+    }
+
+    // KpiQueryTemplates' EVENTS_PER_HOUR with a siteId
+    private static String eventsPerHour(String site, Instant to) {
+        return "{\"size\":0,\"track_total_hits\":true,\"query\":{\"bool\":{\"filter\":["
+                + "{\"range\":{\"timestamp\":{\"gte\":\"" + to.minus(Duration.ofHours(24)) + "\",\"lte\":\"" + to + "\"}}},"
+                + "{\"term\":{\"siteId\":\"" + site + "\"}}]}},"
+                + "\"aggs\":{\"events_per_hour\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\","
+                + "\"min_doc_count\":0}}}}";
+    }
+
+    // SITE_VOLUME_AND_SUCCESS over the routed index, without routing: every shard, every site
+    private void crossSite(int sites, int events, Instant to) throws IOException, InterruptedException {
+        JsonNode resp = send("POST", "/" + ROUTED + "/_search", "{\"size\":0,\"query\":{\"range\":{\"timestamp\":{\"gte\":\""
+                + to.minus(Duration.ofDays(8)) + "\",\"lte\":\"" + to + "\"}}},"
+                + "\"aggs\":{\"by_site\":{\"terms\":{\"field\":\"siteId\",\"size\":" + sites + "},"
+                + "\"aggs\":{\"ok\":{\"filter\":{\"term\":{\"success\":true}}}}}}}");
+        long total = 0;
+        JsonNode buckets = resp.path("aggregations").path("by_site").path("buckets");
+        for (JsonNode b : buckets) total += b.path("doc_count").asLong();
+        System.out.printf("%nSITE_VOLUME_AND_SUCCESS on the routed index: %d shards searched, %d sites, %,d of %,d events%n",
+                resp.path("_shards").path("total").asInt(), buckets.size(), total, events);
+    }
+
+    private void shardSizes() throws IOException, InterruptedException {
+        JsonNode shards = send("GET", "/" + ROUTED + "/_stats/docs?level=shards", null)
+                .path("indices").path(ROUTED).path("shards");
+        List<Long> docs = new ArrayList<>();
+        for (Map.Entry<String, JsonNode> e : shards.properties()) docs.add(e.getValue().path(0).path("docs").path("count").asLong());
+        long min = docs.stream().mapToLong(Long::longValue).min().orElse(0);
+        long max = docs.stream().mapToLong(Long::longValue).max().orElse(0);
+        System.out.printf("Routed index documents per shard: min %,d, max %,d %s%n", min, max, docs);
+    }
+
+    private static void report(String mode, List<Sample> samples, long wallNanos) {
+        long[] nanos = samples.stream().mapToLong(Sample::nanos).sorted().toArray();
+        long[] took = samples.stream().mapToLong(Sample::took).sorted().toArray();
+        double shards = samples.stream().mapToInt(Sample::shards).average().orElse(0);
+        System.out.printf("%-22s %8d %10.1f %9d %9d %9.2f %9.2f %10.1f%n", mode, samples.size(), shards,
+                took[took.length / 2], took[Math.max(0, (int) Math.ceil(took.length * 0.99) - 1)],
+                nanos[nanos.length / 2] / 1e6, nanos[Math.max(0, (int) Math.ceil(nanos.length * 0.99) - 1)] / 1e6,
+                samples.size() / (wallNanos / 1e9));
+    }
+
+    private JsonNode send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(target + path)).timeout(Duration.ofMinutes(5));
+        if (body == null) {
+            req.method(method, HttpRequest.BodyPublishers.noBody());
+        } else {
+            req.header("Content-Type", path.endsWith("/_bulk") ? "application/x-ndjson" : "application/json")
+                    .method(method, HttpRequest.BodyPublishers.ofString(body));
+        }
+        HttpResponse<String> resp = http.send(req.build(), HttpResponse.BodyHandlers.ofString());
+        if (resp.statusCode() >= 400) throw new IOException(method + " " + path + " -> " + resp.statusCode() + ": " + resp.body());
+        return resp.body().isEmpty() ? mapper.createObjectNode() : mapper.readTree(resp.body());
+    }
+}
@@ -0,0 +1,129 @@
+package com.darion.kpi.bench;
+
+import com.darion.kpi.events.WarehouseEvent;
+import com.darion.kpi.events.wal.IngestWal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Appends events to a fresh ingest WAL, then reopens it and reads every event back, as the flusher
+// does after a restart with nothing acknowledged:
+//   java -cp target/benchmarks.jar com.darion.kpi.bench.WalBench
+//        [--events 10000000] [--segment-mb 64] [--sync] [--dir PATH] [--keep]
+// Reports append throughput and per-append latency percentiles, the time to reopen the log (segment
+// scan and CRC check of the active segment) and the time to read all events back. Without --dir
+// the log goes to a temporary directory, deleted afterwards unless --keep.
+public final class WalBench {
+
+    private static final String[] TYPES = {"PICK", "PACK", "PUTAWAY", "RECEIVE", "SHIP", "COUNT", "REPLENISH", "LOAD"};
+    private static final int READ_BATCH = 5000;
+
+    private WalBench() {}
+
+    public static void main(String[] args) throws IOException {
+        int events = 10_000_000;
+        int segmentMb = 64;
+        boolean sync = false;
+        boolean keep = false;
+        Path dir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--events" -> events = Integer.parseInt(args[++i]);
+                case "--segment-mb" -> segmentMb = Integer.parseInt(args[++i]);
+                case "--sync" -> sync = true;
+                case "--dir" -> dir = Path.of(args[++i]);
+                case "--keep" -> keep = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (dir == null) dir = Files.createTempDirectory("wal-bench");
+        else if (Files.exists(dir)) throw new IllegalArgumentException(dir + " already exists; the bench needs an empty log");
+        int segmentSize = segmentMb << 20;
+
+        WarehouseEvent[] sample = sample(4096);
+        System.out.printf("Appending %,d events to %s (%d MB segments%s)%n", events, dir, segmentMb, sync ? ", sync on append" : "");
+
+        long[] latencies = new long[events];
+        long start;
+        long appendNanos;
+        long bytes;
+        int segments;
+        try (IngestWal wal = IngestWal.open(dir, segmentSize, Long.MAX_VALUE, sync)) {
+            start = System.nanoTime();
+            for (int i = 0; i < events; i++) {
+                WarehouseEvent e = sample[i & (sample.length - 1)];
+                long t0 = System.nanoTime();
+                if (!wal.append(e)) throw new IllegalStateException("WAL refused event " + i);
+                latencies[i] = System.nanoTime() - t0;
+            }
+            appendNanos = System.nanoTime() - start;
+            bytes = wal.outstandingBytes();
+            segments = wal.segmentCount();
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("append:  %,.0f events/s, %,d MB in %d segments, p50 %s, p99 %s, p99.9 %s, max %s%n",
+                events / (appendNanos / 1e9), bytes >> 20, segments,
+                micros(latencies, 0.50), micros(latencies, 0.99), micros(latencies, 0.999), micros(latencies, 1.0));
+        latencies = null;
+
+        start = System.nanoTime();
+        IngestWal reopened = IngestWal.open(dir, segmentSize, Long.MAX_VALUE, sync);
+        long openNanos = System.nanoTime() - start;
+
+        List<WarehouseEvent> out = new ArrayList<>(READ_BATCH);
+        long read = 0;
+        start = System.nanoTime();
+        int n;
+        while ((n = reopened.read(READ_BATCH, out)) > 0) {
+            read += n;
+            out.clear();
+        }
+        long readNanos = System.nanoTime() - start;
+        reopened.close();
+
+        System.out.printf("recover: reopen %.1f ms, read back %,d events in %.2f s (%,.0f events/s)%n",
+                openNanos / 1e6, read, readNanos / 1e9, read / (readNanos / 1e9));
+        if (read != events) System.out.printf("MISMATCH: appended %,d events, read back %,d%n", events, read);
+
+        if (!keep) delete(dir);
+    }
+
+    // events shaped like production traffic, reused round-robin so generating them is not measured
+    private static WarehouseEvent[] sample(int count) {
+        Random random = new Random(42);
+        Instant base = Instant.parse("2026-01-15T00:00:00Z");
+        WarehouseEvent[] out = new WarehouseEvent[count];
+        for (int i = 0; i < count; i++) {
+            WarehouseEvent e = new WarehouseEvent();
+            e.setTimestamp(base.plusMillis(random.nextLong(86_400_000L)));
+            e.setEventType(TYPES[random.nextInt(TYPES.length)]);
+            e.setSiteId("SITE" + random.nextInt(50));
+            e.setActorId("actor-" + random.nextInt(2000));
+            e.setSessionId("session-" + Long.toHexString(random.nextLong()));
+            if (random.nextInt(10) > 0) e.setDurationMs(random.nextLong(50, 120_000));
+            e.setSuccess(random.nextInt(20) > 0);
+            out[i] = e;
+        }
+        return out;
+    }
+
+    private static String micros(long[] sorted, double q) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1);
+        return String.format("%.2fus", sorted[Math.max(i, 0)] / 1e3);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+}
@@ -4,17 +4,62 @@ import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
-import org.apache.http.HttpHost;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.springframework.boot.autoconfigure.elasticsearch.ElasticsearchProperties;
+import org.springframework.boot.autoconfigure.elasticsearch.RestClientBuilderCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+// One RestClient, and so one connection pool, for everything that talks to Elasticsearch: KPI
+// queries, bulk ingest, the rollup jobs and (through the transport below) the Spring Data repository.
 @Configuration
 public class ElasticsearchConfig {
 
+    // built by Spring Boot from spring.elasticsearch (uris, timeouts, credentials) plus the customizer below
     @Bean
-    public RestClient restClient() {
-        return RestClient.builder(HttpHost.create("http://localhost:9200")).build();
+    public RestClient restClient(RestClientBuilder builder) {
+        return builder.build();
+    }
+
+    @Bean
+    public RestClientBuilderCustomizer pooledTransport(EsTransportProperties props, ElasticsearchProperties es,
+                                                       MeterRegistry registry) {
+        return new RestClientBuilderCustomizer() {
+            @Override
+            public void customize(RestClientBuilder builder) {
+                // gzip request bodies and ask for gzip responses
+                builder.setCompressionEnabled(props.compression());
+            }
+
+            @Override
+            public void customize(HttpAsyncClientBuilder builder) {
+                MeteredConnectionManager pool = new MeteredConnectionManager(reactor(es), registry);
+                pool.setDefaultMaxPerRoute(props.maxConnectionsPerRoute());
+                pool.setMaxTotal(props.maxConnections());
+                builder.setConnectionManager(pool)
+                        // Elasticsearch sends no Keep-Alive header: without this idle connections are kept forever
+                        .setKeepAliveStrategy((response, context) -> props.keepAlive().toMillis());
+            }
+        };
+    }
+
+    // a custom connection manager brings its own reactor, so spring.elasticsearch socket settings go here
+    private static DefaultConnectingIOReactor reactor(ElasticsearchProperties es) {
+        try {
+            return new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setConnectTimeout((int) es.getConnectionTimeout().toMillis())
+                    .setSoTimeout((int) es.getSocketTimeout().toMillis())
+                    .setSoKeepAlive(es.isSocketKeepAlive())
+                    .build());
+        } catch (IOReactorException e) {
+            throw new RuntimeException("Failed to create Elasticsearch I/O reactor", e);
+        }
     }
 
     @Bean
@@ -0,0 +1,16 @@
+package com.darion.kpi.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+// Connection pool of the RestClient every Elasticsearch call shares. Hosts, timeouts and
+// credentials stay under spring.elasticsearch.
+@ConfigurationProperties(prefix = "kpi.elasticsearch")
+public record EsTransportProperties(
+        @DefaultValue("50") int maxConnectionsPerRoute,
+        @DefaultValue("200") int maxConnections,
+        @DefaultValue("60s") Duration keepAlive,
+        @DefaultValue("false") boolean compression
+) {}
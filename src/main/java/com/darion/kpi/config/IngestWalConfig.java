@@ -0,0 +1,25 @@
+package com.darion.kpi.config;
+
+import com.darion.kpi.events.IngestProperties;
+import com.darion.kpi.events.wal.IngestWal;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+@Configuration
+@ConditionalOnProperty(prefix = "kpi.ingest.wal", name = "enabled", havingValue = "true")
+public class IngestWalConfig {
+
+    @Bean(destroyMethod = "close")
+    public IngestWal ingestWal(IngestProperties props) {
+        IngestProperties.Wal wal = props.wal();
+        return IngestWal.open(
+                Path.of(wal.dir()),
+                (int) Math.min(Integer.MAX_VALUE, wal.segmentSize().toBytes()),
+                wal.maxSize().toBytes(),
+                wal.syncOnAppend()
+        );
+    }
+}
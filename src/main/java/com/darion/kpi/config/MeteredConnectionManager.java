@@ -0,0 +1,84 @@
+package com.darion.kpi.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.pool.PoolStats;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+// Pooled connections to Elasticsearch, metered per node: connections by state (leased, available,
+// pending = requests waiting for one) and how long requests wait to lease a connection (including
+// opening it). Pending requests and lease wait growing while Elasticsearch latency stays flat mean
+// the pool, not Elasticsearch, is the bottleneck.
+class MeteredConnectionManager extends PoolingNHttpClientConnectionManager {
+
+    private final MeterRegistry registry;
+    private final Map<HttpRoute, Timer> leaseWait = new ConcurrentHashMap<>();
+
+    MeteredConnectionManager(ConnectingIOReactor reactor, MeterRegistry registry) {
+        super(reactor);
+        this.registry = registry;
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout,
+                                                           long leaseTimeout, TimeUnit unit,
+                                                           FutureCallback<NHttpClientConnection> callback) {
+        Timer timer = leaseWait.computeIfAbsent(route, this::register);
+        long start = System.nanoTime();
+        return super.requestConnection(route, state, connectTimeout, leaseTimeout, unit, new FutureCallback<>() {
+            @Override
+            public void completed(NHttpClientConnection conn) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (callback != null) callback.completed(conn);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (callback != null) callback.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                if (callback != null) callback.cancelled();
+            }
+        });
+    }
+
+    // meters for a node, registered when the first request is routed to it
+    private Timer register(HttpRoute route) {
+        String host = route.getTargetHost().toHostString();
+        gauge(route, host, "leased", PoolStats::getLeased);
+        gauge(route, host, "available", PoolStats::getAvailable);
+        gauge(route, host, "pending", PoolStats::getPending);
+        Gauge.builder("kpi.es.pool.utilization", this, m -> {
+                    PoolStats s = m.getStats(route);
+                    return s.getMax() == 0 ? 0 : (double) s.getLeased() / s.getMax();
+                })
+                .description("Leased connections / max connections per route")
+                .tag("host", host)
+                .register(registry);
+        return Timer.builder("kpi.es.pool.lease.wait")
+                .description("Time a request waits to lease a pooled Elasticsearch connection")
+                .tag("host", host)
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+    }
+
+    private void gauge(HttpRoute route, String host, String state, ToIntFunction<PoolStats> stat) {
+        Gauge.builder("kpi.es.pool.connections", this, m -> stat.applyAsInt(m.getStats(route)))
+                .description("Pooled Elasticsearch connections by state")
+                .tags("host", host, "state", state)
+                .register(registry);
+    }
+}
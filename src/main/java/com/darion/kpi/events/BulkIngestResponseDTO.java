@@ -0,0 +1,11 @@
+package com.darion.kpi.events;
+
+import java.util.List;
+
+public record BulkIngestResponseDTO(
+        int total,
+        int indexed,
+        int failed,
+        boolean errors,
+        List<BulkItemResultDTO> items
+) {}
@@ -0,0 +1,63 @@
+package com.darion.kpi.events;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@Service
+public class BulkIngestService {
+
+    private final EsBulkWriter writer;
+    private final EventDecoder decoder;
+    private final int maxActions;
+    private final long maxBytes;
+
+    public BulkIngestService(EsBulkWriter writer, EventDecoder decoder, IngestProperties props) {
+        this.writer = writer;
+        this.decoder = decoder;
+        this.maxActions = Math.max(1, props.bulk().maxActions());
+        this.maxBytes = Math.max(1, props.bulk().maxBytes().toBytes());
+    }
+
+    // Streams NDJSON or a JSON array from the body and ships it in _bulk chunks of at most
+    // maxActions events, cut as soon as the body reaches maxBytes. Items that cannot be decoded
+    // are reported with status 400.
+    public BulkIngestResponseDTO ingest(InputStream body) {
+        List<BulkItemResultDTO> results = new ArrayList<>();
+        IngestBatch batch = new IngestBatch();
+        int read = 0;
+
+        try (EventDecoder.Reader reader = decoder.open(body)) {
+            while (reader.next(batch)) {
+                read = reader.position() + 1;
+                if (reader.error() != null) {
+                    results.add(new BulkItemResultDTO(reader.position(), null, 400, reader.error()));
+                    continue;
+                }
+                if (batch.size() >= maxActions || batch.bodySize() >= maxBytes) flush(batch, results);
+            }
+        } catch (IOException | RuntimeException e) {
+            // malformed payload: keep what was already read, report the break point and stop
+            results.add(new BulkItemResultDTO(read, null, 400, "Unreadable payload: " + e.getMessage()));
+        }
+
+        flush(batch, results);
+
+        results.sort((a, b) -> Integer.compare(a.position(), b.position()));
+        int indexed = 0;
+        for (BulkItemResultDTO r : results) {
+            if (r.status() >= 200 && r.status() < 300) indexed++;
+        }
+        int failed = results.size() - indexed;
+        return new BulkIngestResponseDTO(results.size(), indexed, failed, failed > 0, results);
+    }
+
+    private void flush(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (batch.isEmpty()) return;
+        results.addAll(writer.write(batch));
+        batch.clear();
+    }
+}
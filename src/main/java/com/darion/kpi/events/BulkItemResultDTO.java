@@ -0,0 +1,4 @@
+package com.darion.kpi.events;
+
+// position = 0-based index of the event in the submitted payload
+public record BulkItemResultDTO(int position, String id, int status, String error) {}
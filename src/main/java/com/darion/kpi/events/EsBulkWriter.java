@@ -0,0 +1,83 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+public class EsBulkWriter {
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+    private final RestClient restClient;
+    private final EventIndices indices;
+    private final ObjectMapper mapper;
+    private final IngestNotifier notifier;
+
+    public EsBulkWriter(RestClient restClient, EventIndices indices, ObjectMapper mapper, IngestNotifier notifier) {
+        this.restClient = restClient;
+        this.indices = indices;
+        this.mapper = mapper;
+        this.notifier = notifier;
+    }
+
+    // One _bulk round trip with the batch body as-is. Returns one result per event, in batch order,
+    // carrying the event's position from the batch.
+    public List<BulkItemResultDTO> write(IngestBatch batch) {
+        int count = batch.size();
+        if (count == 0) return List.of();
+
+        try {
+            indices.prepare();
+            Request req = new Request("POST", "/_bulk");
+            req.setEntity(new NByteArrayEntity(batch.bodyArray(), 0, batch.bodySize(), NDJSON));
+
+            Response resp = restClient.performRequest(req);
+
+            try (InputStream is = resp.getEntity().getContent()) {
+                JsonNode root = mapper.readTree(is);
+                JsonNode items = root.path("items");
+
+                List<BulkItemResultDTO> out = new ArrayList<>(count);
+                int i = 0;
+                if (items.isArray()) {
+                    for (JsonNode item : items) {
+                        if (i >= count) break;
+                        JsonNode action = item.path("index");
+                        String id = action.path("_id").asText(null);
+                        int status = action.path("status").asInt(500);
+                        JsonNode error = action.path("error");
+                        String reason = error.isMissingNode() ? null : error.path("reason").asText(error.toString());
+                        out.add(new BulkItemResultDTO(batch.position(i++), id, status, reason));
+                    }
+                }
+                // ES answers every action; anything missing is treated as failed so it gets retried
+                while (i < count) out.add(new BulkItemResultDTO(batch.position(i++), null, 500, "No result returned for item"));
+
+                notifier.indexed(batch, out);
+                return out;
+            }
+        } catch (ResponseException e) {
+            return failAll(batch, e.getResponse().getStatusLine().getStatusCode(), e.getMessage());
+        } catch (Exception e) {
+            return failAll(batch, 503, "Elasticsearch unavailable: " + e.getMessage());
+        }
+    }
+
+    private List<BulkItemResultDTO> failAll(IngestBatch batch, int status, String error) {
+        notifier.unknown(batch);
+        List<BulkItemResultDTO> out = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) out.add(new BulkItemResultDTO(batch.position(i), null, status, error));
+        return out;
+    }
+}
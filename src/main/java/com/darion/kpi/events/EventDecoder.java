@@ -0,0 +1,236 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+
+// Streaming decoder for the bulk / NDJSON ingest path. Events are read token by token and written
+// straight into an IngestBatch body: no WarehouseEventRequest, no WarehouseEvent, no second JSON
+// pass. Timestamps go through IsoInstants, eventType/siteId through shared interners.
+@Component
+public class EventDecoder {
+
+    private final JsonFactory factory;
+    private final KeywordInterner eventTypes = new KeywordInterner(256);
+    private final KeywordInterner siteIds = new KeywordInterner(1024);
+
+    public EventDecoder(ObjectMapper mapper) {
+        this.factory = mapper.getFactory();
+    }
+
+    public Reader open(InputStream in) throws IOException {
+        return new Reader(factory.createParser(in));
+    }
+
+    public final class Reader implements Closeable {
+
+        private final JsonParser p;
+        private boolean inArray;
+        private boolean started;
+        private int position = -1;
+        private String error;
+        private boolean objectClosed;
+
+        private Reader(JsonParser p) {
+            this.p = p;
+        }
+
+        // 0-based index of the event handled by the last next() call
+        public int position() {
+            return position;
+        }
+
+        // why the last event was rejected, null if it was added to the batch
+        public String error() {
+            return error;
+        }
+
+        // Decodes the next event into batch. Returns false at the end of input. A rejected event
+        // leaves the batch untouched and sets error(). Malformed JSON throws, also leaving the batch
+        // untouched.
+        public boolean next(IngestBatch batch) throws IOException {
+            JsonToken t = p.nextToken();
+            if (!started) {
+                started = true;
+                if (t == JsonToken.START_ARRAY) {
+                    inArray = true;
+                    t = p.nextToken();
+                }
+            }
+            if (t == null || (inArray && t == JsonToken.END_ARRAY)) return false;
+
+            position++;
+            error = null;
+            if (t != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                error = "Expected a JSON object";
+                return true;
+            }
+
+            batch.beginEvent(null);
+            objectClosed = false;
+            try {
+                readObject(batch);
+            } catch (IllegalArgumentException e) {
+                batch.abortEvent();
+                skipRestOfObject();
+                error = e.getMessage();
+            } catch (IOException | RuntimeException e) {
+                // malformed JSON: the half-written event must not reach _bulk with the events before it
+                batch.abortEvent();
+                throw e;
+            }
+            return true;
+        }
+
+        private void readObject(IngestBatch batch) throws IOException {
+            long timestamp = IsoInstants.NOT_FIXED_FORMAT;
+            String eventType = null;
+            String siteId = null;
+            byte success = IngestBatch.SUCCESS_NULL;
+            long durationMs = IngestBatch.NO_DURATION;
+            long actorHash = KeywordHash.NONE;
+            long sessionHash = KeywordHash.NONE;
+
+            String name;
+            while ((name = p.nextFieldName()) != null) {
+                JsonToken v = p.nextToken();
+                switch (name) {
+                    case "timestamp" -> timestamp = timestamp(batch, v);
+                    case "eventType" -> eventType = keyword(batch, IngestBatch.EVENT_TYPE, v, eventTypes);
+                    case "siteId" -> siteId = keyword(batch, IngestBatch.SITE_ID, v, siteIds);
+                    case "sessionId" -> sessionHash = text(batch, IngestBatch.SESSION_ID, v);
+                    case "actorId" -> actorHash = text(batch, IngestBatch.ACTOR_ID, v);
+                    case "durationMs" -> durationMs = durationMs(batch, v);
+                    case "success" -> success = success(batch, v);
+                    default -> p.skipChildren();
+                }
+            }
+            objectClosed = true;
+            if (timestamp == IsoInstants.NOT_FIXED_FORMAT) throw new IllegalArgumentException("'timestamp' is required");
+
+            batch.endEvent(position, timestamp, eventType, siteId, success, durationMs, actorHash, sessionHash);
+        }
+
+        private long timestamp(IngestBatch batch, JsonToken v) throws IOException {
+            if (v != JsonToken.VALUE_STRING) throw new IllegalArgumentException("'timestamp' must be an ISO-8601 string");
+
+            char[] c = p.getTextCharacters();
+            int off = p.getTextOffset();
+            int len = p.getTextLength();
+            long millis = IsoInstants.parseEpochMillis(c, off, len);
+            if (millis != IsoInstants.NOT_FIXED_FORMAT) {
+                batch.charsField(IngestBatch.TIMESTAMP, c, off, len);
+                return millis;
+            }
+
+            // uncommon formats (offsets etc.) take the slow path and are normalized to UTC
+            Instant parsed;
+            try {
+                parsed = Instant.parse(p.getText());
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Text '" + p.getText() + "' is not an ISO-8601 instant");
+            }
+            // daily index names have four-digit years
+            if (!EventIndices.inRange(parsed)) throw new IllegalArgumentException("'timestamp' must be within years 0000-9999");
+            batch.stringField(IngestBatch.TIMESTAMP, parsed.toString());
+            return parsed.toEpochMilli();
+        }
+
+        private String keyword(IngestBatch batch, byte[] field, JsonToken v, KeywordInterner interner) throws IOException {
+            if (v == JsonToken.VALUE_NULL) {
+                batch.nullField(field);
+                return null;
+            }
+            if (!v.isScalarValue()) throw new IllegalArgumentException("Expected a string for " + p.currentName());
+
+            char[] c = p.getTextCharacters();
+            int off = p.getTextOffset();
+            int len = p.getTextLength();
+            batch.charsField(field, c, off, len);
+            return interner.intern(c, off, len);
+        }
+
+        // returns the value's KeywordHash
+        private long text(IngestBatch batch, byte[] field, JsonToken v) throws IOException {
+            if (v == JsonToken.VALUE_NULL) {
+                batch.nullField(field);
+                return KeywordHash.NONE;
+            }
+            if (!v.isScalarValue()) throw new IllegalArgumentException("Expected a string for " + p.currentName());
+            char[] c = p.getTextCharacters();
+            int off = p.getTextOffset();
+            int len = p.getTextLength();
+            batch.charsField(field, c, off, len);
+            return KeywordHash.of(c, off, len);
+        }
+
+        private long durationMs(IngestBatch batch, JsonToken v) throws IOException {
+            long d;
+            switch (v) {
+                case VALUE_NULL -> {
+                    batch.nullField(IngestBatch.DURATION_MS);
+                    return IngestBatch.NO_DURATION;
+                }
+                case VALUE_NUMBER_INT -> d = p.getLongValue();
+                case VALUE_NUMBER_FLOAT -> d = (long) p.getDoubleValue();
+                case VALUE_STRING -> {
+                    try {
+                        d = Long.parseLong(p.getText().trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("'durationMs' must be a number");
+                    }
+                }
+                default -> throw new IllegalArgumentException("'durationMs' must be a number");
+            }
+            batch.longField(IngestBatch.DURATION_MS, d);
+            return d;
+        }
+
+        private byte success(IngestBatch batch, JsonToken v) throws IOException {
+            boolean b;
+            switch (v) {
+                case VALUE_NULL -> {
+                    batch.nullField(IngestBatch.SUCCESS);
+                    return IngestBatch.SUCCESS_NULL;
+                }
+                case VALUE_TRUE -> b = true;
+                case VALUE_FALSE -> b = false;
+                case VALUE_STRING -> {
+                    String s = p.getText().trim();
+                    if ("true".equals(s)) b = true;
+                    else if ("false".equals(s)) b = false;
+                    else throw new IllegalArgumentException("'success' must be a boolean");
+                }
+                default -> throw new IllegalArgumentException("'success' must be a boolean");
+            }
+            batch.booleanField(IngestBatch.SUCCESS, b);
+            return b ? IngestBatch.SUCCESS_TRUE : IngestBatch.SUCCESS_FALSE;
+        }
+
+        // called after a field failed validation: consume tokens up to the end of the event
+        private void skipRestOfObject() throws IOException {
+            if (objectClosed) return;
+            p.skipChildren();
+            int depth = 1;
+            while (depth > 0) {
+                JsonToken t = p.nextToken();
+                if (t == null) return;
+                if (t.isStructStart()) depth++;
+                else if (t.isStructEnd()) depth--;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            p.close();
+        }
+    }
+}
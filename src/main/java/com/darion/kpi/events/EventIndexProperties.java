@@ -0,0 +1,14 @@
+package com.darion.kpi.events;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kpi.event-index")
+public record EventIndexProperties(
+        @DefaultValue("4") int shards,            // primary shards per daily index
+        Duration retention,                       // daily indices entirely older than this are deleted; null keeps all
+        @DefaultValue("1h") Duration retentionInterval,
+        @DefaultValue("true") boolean siteRouting // searches filtered by siteId only ask that site's shard
+) {}
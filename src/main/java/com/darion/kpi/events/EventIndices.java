@@ -0,0 +1,290 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Events live in one index per UTC day of their timestamp, warehouse_events-YYYY.MM.DD, created on
+// first write from the warehouse_events index template. Searches name the days their range
+// overlaps, so their cost follows the range rather than the total history, and retention deletes
+// whole days instead of deleting documents.
+//
+// Writes are routed by timestamp rather than through a write alias pointing at today's index: late
+// events land in the day they belong to, which keeps the range pruning exact.
+//
+// Events are routed by siteId (events without one by _id), so a search filtered by a siteId can
+// pass it as routing and only hit the shard holding that site. Searches across sites fan out.
+//
+// The single warehouse_events index used before is still read while it holds events of the range,
+// and deleted like a day once all of its events are past retention.
+@Component
+public class EventIndices implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(EventIndices.class);
+
+    public static final String PREFIX = "warehouse_events-";
+    public static final String PATTERN = PREFIX + "*";
+    static final String LEGACY = "warehouse_events";
+    static final String TEMPLATE = "warehouse_events";
+
+    private static final long DAY_MS = 86_400_000L;
+    private static final int MAX_LISTED = 100; // longer ranges search the pattern
+    private static final int DELETE_BATCH = 50;
+    private static final Instant FIRST = Instant.parse("0000-01-01T00:00:00Z");
+    private static final Instant LAST = Instant.parse("9999-12-31T23:59:59.999Z");
+
+    private final EventIndexProperties props;
+    private final RestClient restClient;
+    private final ObjectMapper mapper;
+    private final Counter deleted;
+
+    private volatile boolean prepared;
+    private volatile long legacyToMs = Long.MIN_VALUE; // newest event of the legacy index, MIN_VALUE when none
+    private volatile boolean running;
+    private ScheduledExecutorService scheduler;
+
+    public EventIndices(EventIndexProperties props, RestClient restClient, ObjectMapper mapper, MeterRegistry registry) {
+        if (props.shards() < 1) throw new IllegalArgumentException("kpi.event-index.shards must be at least 1");
+        this.props = props;
+        this.restClient = restClient;
+        this.mapper = mapper;
+        this.deleted = Counter.builder("kpi.event-index.deleted")
+                .description("Daily event indices deleted by retention")
+                .register(registry);
+    }
+
+    // ---------------- names ----------------
+
+    // the timestamps daily index names can hold
+    public static boolean inRange(Instant t) {
+        return !t.isBefore(FIRST) && !t.isAfter(LAST);
+    }
+
+    private static boolean inRange(long epochMs) {
+        return epochMs >= FIRST.toEpochMilli() && epochMs <= LAST.toEpochMilli();
+    }
+
+    public static String daily(long epochMs) {
+        byte[] name = new byte[PREFIX.length() + 10];
+        for (int i = 0; i < PREFIX.length(); i++) name[i] = (byte) PREFIX.charAt(i);
+        writeDay(name, PREFIX.length(), epochMs);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    // writes the yyyy.MM.dd of epochMs (UTC, years 0000-9999) into dst[off, off + 10)
+    static void writeDay(byte[] dst, int off, long epochMs) {
+        LocalDate d = LocalDate.ofEpochDay(Math.floorDiv(epochMs, DAY_MS));
+        int y = d.getYear();
+        dst[off] = (byte) ('0' + y / 1000);
+        dst[off + 1] = (byte) ('0' + y / 100 % 10);
+        dst[off + 2] = (byte) ('0' + y / 10 % 10);
+        dst[off + 3] = (byte) ('0' + y % 10);
+        dst[off + 4] = '.';
+        dst[off + 5] = (byte) ('0' + d.getMonthValue() / 10);
+        dst[off + 6] = (byte) ('0' + d.getMonthValue() % 10);
+        dst[off + 7] = '.';
+        dst[off + 8] = (byte) ('0' + d.getDayOfMonth() / 10);
+        dst[off + 9] = (byte) ('0' + d.getDayOfMonth() % 10);
+    }
+
+    // every index that may hold events
+    public String all() {
+        return legacyToMs == Long.MIN_VALUE ? PATTERN : PATTERN + "," + LEGACY;
+    }
+
+    // the indices holding events of [fromMs, toMs] (inclusive), to search with ignore_unavailable
+    public String of(long fromMs, long toMs) {
+        SortedSet<String> names = new TreeSet<>();
+        add(names, fromMs, toMs);
+        return join(names);
+    }
+
+    // adds the indices of [fromMs, toMs] to names, for searches over several ranges
+    public void add(SortedSet<String> names, long fromMs, long toMs) {
+        if (toMs < fromMs) return;
+        if (toMs - fromMs >= MAX_LISTED * DAY_MS || !inRange(fromMs) || !inRange(toMs)) {
+            names.add(PATTERN);
+        } else {
+            for (long day = Math.floorDiv(fromMs, DAY_MS); day <= Math.floorDiv(toMs, DAY_MS); day++) {
+                names.add(daily(day * DAY_MS));
+            }
+        }
+        if (fromMs <= legacyToMs) names.add(LEGACY);
+    }
+
+    public String join(SortedSet<String> names) {
+        if (names.isEmpty()) return PATTERN; // empty ranges: the time filter matches nothing anyway
+        if (names.contains(PATTERN) || names.size() > MAX_LISTED) {
+            return names.contains(LEGACY) ? PATTERN + "," + LEGACY : PATTERN;
+        }
+        return String.join(",", names);
+    }
+
+    // routing for a search filtered by siteId (null when not filtered): the shard ingest put the site on
+    public String routing(String siteId) {
+        return props.siteRouting() && siteId != null && !siteId.isBlank() ? siteId : null;
+    }
+
+    // start of the oldest day retention keeps, Long.MIN_VALUE without retention
+    public long retainedFrom() {
+        if (props.retention() == null) return Long.MIN_VALUE;
+        return Math.floorDiv(System.currentTimeMillis() - props.retention().toMillis(), DAY_MS) * DAY_MS;
+    }
+
+    // ---------------- template ----------------
+
+    // Installs the index template before the first write, so no daily index gets dynamic mappings.
+    // Writers call this before every write; it only talks to Elasticsearch until it has succeeded.
+    public void prepare() throws IOException {
+        if (prepared) return;
+        synchronized (this) {
+            if (prepared) return;
+            Request template = new Request("PUT", "/_index_template/" + TEMPLATE);
+            template.setJsonEntity(template());
+            restClient.performRequest(template);
+            findLegacy();
+            prepared = true;
+            log.info("Installed index template {} for {}", TEMPLATE, PATTERN);
+        }
+    }
+
+    // durationHistogram: percentiles over events and the rollup index read one field name (see RollupIndexJob)
+    private String template() {
+        return "{\"index_patterns\":[\"" + PATTERN + "\"],\"priority\":100,"
+                + "\"template\":{"
+                + "\"settings\":{\"number_of_shards\":" + props.shards() + "},"
+                + "\"mappings\":{\"properties\":{"
+                + "\"timestamp\":{\"type\":\"date\"},"
+                + "\"eventType\":{\"type\":\"keyword\"},"
+                + "\"sessionId\":{\"type\":\"keyword\"},"
+                + "\"actorId\":{\"type\":\"keyword\"},"
+                + "\"siteId\":{\"type\":\"keyword\"},"
+                + "\"durationMs\":{\"type\":\"long\"},"
+                + "\"success\":{\"type\":\"boolean\"},"
+                + "\"durationHistogram\":{\"type\":\"alias\",\"path\":\"durationMs\"}"
+                + "}}}}";
+    }
+
+    private void findLegacy() throws IOException {
+        // RestClient answers HEAD 404 instead of throwing
+        Response head = restClient.performRequest(new Request("HEAD", "/" + LEGACY));
+        if (head.getStatusLine().getStatusCode() != 200) return;
+
+        Request alias = new Request("PUT", "/" + LEGACY + "/_mapping");
+        alias.setJsonEntity("{\"properties\":{\"durationHistogram\":{\"type\":\"alias\",\"path\":\"durationMs\"}}}");
+        restClient.performRequest(alias);
+
+        Request newest = new Request("POST", "/" + LEGACY + "/_search");
+        newest.setJsonEntity("{\"size\":0,\"aggs\":{\"last\":{\"max\":{\"field\":\"timestamp\"}}}}");
+        JsonNode last = read(restClient.performRequest(newest)).path("aggregations").path("last").path("value");
+        // an empty legacy index still counts as holding the range until it is deleted
+        legacyToMs = last.isNumber() ? last.asLong() : Long.MAX_VALUE;
+        log.info("Also reading {} (events up to {})", LEGACY,
+                legacyToMs == Long.MAX_VALUE ? "unknown" : Instant.ofEpochMilli(legacyToMs));
+    }
+
+    // ---------------- retention ----------------
+
+    void deleteExpired() throws IOException {
+        prepare();
+        long keepFrom = retainedFrom();
+        if (keepFrom == Long.MIN_VALUE) return;
+
+        List<String> expired = new ArrayList<>();
+        Request list = new Request("GET", "/_cat/indices/" + PATTERN);
+        list.addParameter("h", "index");
+        list.addParameter("format", "json");
+        for (JsonNode row : read(restClient.performRequest(list))) {
+            String name = row.path("index").asText();
+            long day = dayOf(name);
+            if (day != Long.MIN_VALUE && day + DAY_MS <= keepFrom) expired.add(name);
+        }
+        if (legacyToMs != Long.MIN_VALUE && legacyToMs != Long.MAX_VALUE && legacyToMs < keepFrom) expired.add(LEGACY);
+
+        for (int i = 0; i < expired.size(); i += DELETE_BATCH) {
+            List<String> batch = expired.subList(i, Math.min(i + DELETE_BATCH, expired.size()));
+            StringJoiner names = new StringJoiner(",");
+            batch.forEach(names::add);
+            restClient.performRequest(new Request("DELETE", "/" + names));
+            deleted.increment(batch.size());
+            log.info("Deleted expired event indices {}", names);
+        }
+        if (expired.contains(LEGACY)) legacyToMs = Long.MIN_VALUE;
+    }
+
+    // start of the day a daily index holds, Long.MIN_VALUE for other names
+    static long dayOf(String name) {
+        if (!name.startsWith(PREFIX) || name.length() != PREFIX.length() + 10) return Long.MIN_VALUE;
+        try {
+            return LocalDate.parse(name.substring(PREFIX.length()).replace('.', '-')).toEpochDay() * DAY_MS;
+        } catch (RuntimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private JsonNode read(Response resp) throws IOException {
+        try (InputStream is = resp.getEntity().getContent()) {
+            return mapper.readTree(is);
+        }
+    }
+
+    private void runSafely() {
+        try {
+            deleteExpired();
+        } catch (Exception e) {
+            log.warn("Event index retention failed, retrying in {}: {}", props.retentionInterval(), e.toString());
+        }
+    }
+
+    @Override
+    public void start() {
+        if (running) return;
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "event-index");
+            t.setDaemon(true);
+            return t;
+        });
+        // the first run also installs the template and finds the legacy index before anything is read
+        scheduler.scheduleWithFixedDelay(this::runSafely, 0, props.retentionInterval().toSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        running = false;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
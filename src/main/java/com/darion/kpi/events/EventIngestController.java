@@ -1,28 +1,56 @@
 package com.darion.kpi.events;
 
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.time.Instant;
+import java.io.IOException;
+import java.io.InputStream;
 
 @RestController
 @RequestMapping("/events")
 public class EventIngestController {
-    private final WarehouseEventRepository repo;
+    private final ElasticsearchOperations operations;
+    private final EventIndices indices;
+    private final BulkIngestService bulk;
+    private final IngestPipeline pipeline;
+    private final IngestNotifier notifier;
 
-    public EventIngestController(WarehouseEventRepository repo) {
-        this.repo = repo;
+    public EventIngestController(ElasticsearchOperations operations, EventIndices indices, BulkIngestService bulk,
+                                 IngestPipeline pipeline, IngestNotifier notifier) {
+        this.operations = operations;
+        this.indices = indices;
+        this.bulk = bulk;
+        this.pipeline = pipeline;
+        this.notifier = notifier;
     }
+
+    // async mode: 202 once queued, 429 + Retry-After when the queue is full
     @PostMapping
-    public WarehouseEvent ingest(@RequestBody WarehouseEventRequest req) {
-        WarehouseEvent event = new WarehouseEvent();
-        event.setTimestamp(Instant.parse(req.timestamp())); // <-- key fix
-        event.setEventType(req.eventType());
-        event.setSessionId(req.sessionId());
-        event.setActorId(req.actorId());
-        event.setSiteId(req.siteId());
-        event.setDurationMs(req.durationMs());
-        event.setSuccess(req.success());
+    public ResponseEntity<?> ingest(@RequestBody WarehouseEventRequest req) throws IOException {
+        WarehouseEvent event = req.toEvent();
+
+        if (!pipeline.isEnabled()) {
+            indices.prepare();
+            IndexCoordinates day = IndexCoordinates.of(EventIndices.daily(event.getTimestamp().toEpochMilli()));
+            WarehouseEvent saved = operations.save(event, day);
+            notifier.indexed(saved);
+            return ResponseEntity.ok(saved);
+        }
+        if (pipeline.submit(event)) {
+            return ResponseEntity.accepted().build();
+        }
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(pipeline.retryAfterSeconds()))
+                .build();
+    }
 
-        return repo.save(event);
+    // NDJSON (one event per line) or a JSON array of events
+    @PostMapping(value = "/_bulk", consumes = {"application/x-ndjson", "application/json"})
+    public BulkIngestResponseDTO ingestBulk(InputStream body) {
+        return bulk.ingest(body);
     }
 }
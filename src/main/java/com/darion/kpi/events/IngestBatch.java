@@ -0,0 +1,300 @@
+package com.darion.kpi.events;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+// One _bulk request in the making: the NDJSON body is written straight from decoded fields,
+// alongside a few primitive columns describing each event. Reused across flushes via clear().
+// The action line names the event's daily index (see EventIndices) and routes it by siteId; both
+// are filled in by endEvent, once the fields have been read.
+public final class IngestBatch {
+
+    private static final byte[] ACTION_PREFIX = ("{\"index\":{\"_index\":\"" + EventIndices.PREFIX).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DAY_PLACEHOLDER = "0000.00.00\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACTION_SUFFIX = "}}\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID_FIELD = ",\"_id\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ROUTING_FIELD = ",\"routing\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    static final byte[] TIMESTAMP = field("timestamp");
+    static final byte[] EVENT_TYPE = field("eventType");
+    static final byte[] SESSION_ID = field("sessionId");
+    static final byte[] ACTOR_ID = field("actorId");
+    static final byte[] SITE_ID = field("siteId");
+    static final byte[] DURATION_MS = field("durationMs");
+    static final byte[] SUCCESS = field("success");
+
+    // success column values
+    public static final byte SUCCESS_NULL = 0;
+    public static final byte SUCCESS_TRUE = 1;
+    public static final byte SUCCESS_FALSE = 2;
+    // durationMs column value for events without a duration
+    public static final long NO_DURATION = Long.MIN_VALUE;
+    // actorId / sessionId columns hold KeywordHash values, KeywordHash.NONE for null
+
+    private byte[] body = new byte[64 * 1024];
+    private int bodySize;
+
+    private int size;
+    private int[] positions = new int[256];
+    private long[] timestamps = new long[256];
+    private String[] eventTypes = new String[256];
+    private String[] siteIds = new String[256];
+    private byte[] successes = new byte[256];
+    private long[] durations = new long[256];
+    private long[] actorHashes = new long[256];
+    private long[] sessionHashes = new long[256];
+
+    // state of the event currently being written
+    private int eventStart;
+    private int dayOffset;
+    private int actionEnd;
+    private byte[] scratch = new byte[64];
+    private boolean firstField;
+
+    public int size() { return size; }
+    public int bodySize() { return bodySize; }
+    byte[] bodyArray() { return body; }
+
+    public int position(int i) { return positions[i]; }
+    public long timestampMillis(int i) { return timestamps[i]; }
+    public String eventType(int i) { return eventTypes[i]; }
+    public String siteId(int i) { return siteIds[i]; }
+    public byte success(int i) { return successes[i]; }
+    public long durationMs(int i) { return durations[i]; }
+    public long actorHash(int i) { return actorHashes[i]; }
+    public long sessionHash(int i) { return sessionHashes[i]; }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+        bodySize = 0;
+    }
+
+    // ---------------- bean path (async queue / WAL) ----------------
+
+    public void add(WarehouseEvent e, int position) {
+        beginEvent(e.getId());
+        Instant ts = e.getTimestamp();
+        if (ts == null) {
+            nullField(TIMESTAMP);
+        } else {
+            beginField(TIMESTAMP);
+            writeString(ts.toString());
+        }
+        stringField(EVENT_TYPE, e.getEventType());
+        stringField(SESSION_ID, e.getSessionId());
+        stringField(ACTOR_ID, e.getActorId());
+        stringField(SITE_ID, e.getSiteId());
+        if (e.getDurationMs() == null) nullField(DURATION_MS);
+        else longField(DURATION_MS, e.getDurationMs());
+        if (e.getSuccess() == null) nullField(SUCCESS);
+        else booleanField(SUCCESS, e.getSuccess());
+        endEvent(position, ts == null ? 0 : ts.toEpochMilli(), e.getEventType(), e.getSiteId(),
+                e.getSuccess() == null ? SUCCESS_NULL : e.getSuccess() ? SUCCESS_TRUE : SUCCESS_FALSE,
+                e.getDurationMs() == null ? NO_DURATION : e.getDurationMs(),
+                KeywordHash.of(e.getActorId()), KeywordHash.of(e.getSessionId()));
+    }
+
+    // ---------------- streaming path (EventDecoder) ----------------
+
+    void beginEvent(String id) {
+        eventStart = bodySize;
+        write(ACTION_PREFIX);
+        dayOffset = bodySize;
+        write(DAY_PLACEHOLDER);
+        if (id != null) {
+            write(ID_FIELD);
+            writeString(id);
+        }
+        actionEnd = bodySize;
+        write(ACTION_SUFFIX);
+        writeByte('{');
+        firstField = true;
+    }
+
+    void endEvent(int position, long timestampMillis, String eventType, String siteId, byte success, long durationMs,
+                  long actorHash, long sessionHash) {
+        writeByte('}');
+        writeByte('\n');
+        EventIndices.writeDay(body, dayOffset, timestampMillis);
+        if (siteId != null && !siteId.isEmpty()) insertRouting(siteId);
+        ensureColumns();
+        positions[size] = position;
+        timestamps[size] = timestampMillis;
+        eventTypes[size] = eventType;
+        siteIds[size] = siteId;
+        successes[size] = success;
+        durations[size] = durationMs;
+        actorHashes[size] = actorHash;
+        sessionHashes[size] = sessionHash;
+        size++;
+    }
+
+    // appends ,"routing":<siteId> and moves it into the action line, ahead of its closing }}
+    private void insertRouting(String siteId) {
+        int mark = bodySize;
+        write(ROUTING_FIELD);
+        writeString(siteId);
+        int len = bodySize - mark;
+        if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+        System.arraycopy(body, mark, scratch, 0, len);
+        System.arraycopy(body, actionEnd, body, actionEnd + len, mark - actionEnd);
+        System.arraycopy(scratch, 0, body, actionEnd, len);
+    }
+
+    // drops everything written since beginEvent
+    void abortEvent() {
+        bodySize = eventStart;
+    }
+
+    void beginField(byte[] quotedName) {
+        if (!firstField) writeByte(',');
+        firstField = false;
+        write(quotedName);
+    }
+
+    void nullField(byte[] name) {
+        beginField(name);
+        write(NULL);
+    }
+
+    void longField(byte[] name, long v) {
+        beginField(name);
+        writeLong(v);
+    }
+
+    void booleanField(byte[] name, boolean v) {
+        beginField(name);
+        write(v ? TRUE : FALSE);
+    }
+
+    void stringField(byte[] name, String s) {
+        beginField(name);
+        if (s == null) write(NULL);
+        else writeString(s);
+    }
+
+    void charsField(byte[] name, char[] c, int off, int len) {
+        beginField(name);
+        writeString(c, off, len);
+    }
+
+    // ---------------- encoding ----------------
+
+    private void writeString(String s) {
+        ensure(s.length() * 6 + 2);
+        writeByte('"');
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char ch = s.charAt(i);
+            if (ch >= 0x20 && ch < 0x80 && ch != '"' && ch != '\\') body[bodySize++] = (byte) ch;
+            else i = writeSpecial(ch, i + 1 < n ? s.charAt(i + 1) : 0, i);
+        }
+        writeByte('"');
+    }
+
+    private void writeString(char[] c, int off, int len) {
+        ensure(len * 6 + 2);
+        writeByte('"');
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            char ch = c[i];
+            if (ch >= 0x20 && ch < 0x80 && ch != '"' && ch != '\\') body[bodySize++] = (byte) ch;
+            else i = writeSpecial(c[i], i + 1 < end ? c[i + 1] : 0, i);
+        }
+        writeByte('"');
+    }
+
+    // escapes or UTF-8 encodes one char; returns the index of the last char consumed
+    private int writeSpecial(char ch, char next, int i) {
+        if (ch == '"' || ch == '\\') {
+            body[bodySize++] = '\\';
+            body[bodySize++] = (byte) ch;
+        } else if (ch < 0x20) {
+            body[bodySize++] = '\\';
+            body[bodySize++] = 'u';
+            body[bodySize++] = '0';
+            body[bodySize++] = '0';
+            body[bodySize++] = HEX[ch >> 4];
+            body[bodySize++] = HEX[ch & 0xF];
+        } else if (ch < 0x800) {
+            body[bodySize++] = (byte) (0xC0 | (ch >> 6));
+            body[bodySize++] = (byte) (0x80 | (ch & 0x3F));
+        } else if (Character.isHighSurrogate(ch) && Character.isLowSurrogate(next)) {
+            int cp = Character.toCodePoint(ch, next);
+            body[bodySize++] = (byte) (0xF0 | (cp >> 18));
+            body[bodySize++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            body[bodySize++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            body[bodySize++] = (byte) (0x80 | (cp & 0x3F));
+            return i + 1;
+        } else {
+            body[bodySize++] = (byte) (0xE0 | (ch >> 12));
+            body[bodySize++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+            body[bodySize++] = (byte) (0x80 | (ch & 0x3F));
+        }
+        return i;
+    }
+
+    private void writeLong(long v) {
+        ensure(20);
+        if (v == Long.MIN_VALUE) {
+            write(Long.toString(v).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (v < 0) {
+            body[bodySize++] = '-';
+            v = -v;
+        }
+        int start = bodySize;
+        do {
+            body[bodySize++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits were written least significant first
+        for (int i = start, j = bodySize - 1; i < j; i++, j--) {
+            byte t = body[i];
+            body[i] = body[j];
+            body[j] = t;
+        }
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, body, bodySize, bytes.length);
+        bodySize += bytes.length;
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        body[bodySize++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (bodySize + extra > body.length) body = Arrays.copyOf(body, Math.max(body.length * 2, bodySize + extra));
+    }
+
+    private void ensureColumns() {
+        if (size < positions.length) return;
+        int n = positions.length * 2;
+        positions = Arrays.copyOf(positions, n);
+        timestamps = Arrays.copyOf(timestamps, n);
+        eventTypes = Arrays.copyOf(eventTypes, n);
+        siteIds = Arrays.copyOf(siteIds, n);
+        successes = Arrays.copyOf(successes, n);
+        durations = Arrays.copyOf(durations, n);
+        actorHashes = Arrays.copyOf(actorHashes, n);
+        sessionHashes = Arrays.copyOf(sessionHashes, n);
+    }
+
+    private static byte[] field(String name) {
+        return ("\"" + name + "\":").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,17 @@
+package com.darion.kpi.events;
+
+import java.util.List;
+
+// Told about every batch that was written to Elasticsearch, e.g. to invalidate cached KPI results.
+// results holds one item per batch event, in batch order: 201 = new document, 200 = existing
+// document overwritten (e.g. re-shipped from the WAL), anything else = not written.
+// Called on the ingest thread before the batch is reused, so implementations must be quick and
+// must not keep a reference to the batch.
+public interface IngestListener {
+
+    void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results);
+
+    // The _bulk request of batch failed as a whole (e.g. a timeout), so Elasticsearch may or may
+    // not have written its events. A resend of those events then answers 200, not 201.
+    default void onUnknown(IngestBatch batch) {}
+}
@@ -0,0 +1,51 @@
+package com.darion.kpi.events;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+// Fans written batches out to every IngestListener. A failing listener never fails ingest.
+@Component
+public class IngestNotifier {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestNotifier.class);
+
+    private final List<IngestListener> listeners;
+
+    public IngestNotifier(ObjectProvider<IngestListener> listeners) {
+        this.listeners = listeners.orderedStream().toList();
+    }
+
+    public void indexed(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (batch.isEmpty()) return;
+        for (IngestListener l : listeners) {
+            try {
+                l.onIndexed(batch, results);
+            } catch (RuntimeException e) {
+                log.warn("Ingest listener {} failed", l.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    public void unknown(IngestBatch batch) {
+        if (batch.isEmpty()) return;
+        for (IngestListener l : listeners) {
+            try {
+                l.onUnknown(batch);
+            } catch (RuntimeException e) {
+                log.warn("Ingest listener {} failed", l.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    // single new event saved through ElasticsearchOperations (synchronous ingest)
+    public void indexed(WarehouseEvent event) {
+        if (listeners.isEmpty()) return;
+        IngestBatch batch = new IngestBatch();
+        batch.add(event, 0);
+        indexed(batch, List.of(new BulkItemResultDTO(0, event.getId(), 201, null)));
+    }
+}
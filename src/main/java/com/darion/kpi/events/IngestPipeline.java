@@ -0,0 +1,290 @@
+package com.darion.kpi.events;
+
+import com.darion.kpi.events.wal.IngestWal;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded in-process ingest stage: callers enqueue and return, one flusher thread drains
+// the buffer into _bulk writes by count (maxBatch) or time (flushInterval).
+//
+// The buffer is either an in-memory queue or, when kpi.ingest.wal.enabled=true, the on-disk
+// IngestWal. With the WAL, events are durable before they are acknowledged, failed flushes are
+// retried from the last committed position and anything outstanding is replayed after a restart.
+//
+// With the queue, events Elasticsearch pushes back on (429, 5xx) are retried with the same capped
+// backoff. The flusher stops draining meanwhile, so the queue fills and callers get 429s instead
+// of events being dropped. Each event gets a document id when it is submitted, so resending a
+// _bulk that Elasticsearch applied but whose response was lost overwrites instead of duplicating. Events are lost when the process stops (whatever is still queued or
+// failing after one last attempt) and when Elasticsearch rejects them for good (other 4xx); both
+// count in kpi.ingest.dropped.
+@Component
+public class IngestPipeline implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private static final long MAX_RETRY_BACKOFF_MS = 30_000;
+
+    private final EsBulkWriter writer;
+    private final IngestProperties.Async props;
+    private final IngestWal wal;
+    private final BlockingQueue<WarehouseEvent> queue;
+    private final long flushIntervalNanos;
+    private final IngestBatch body = new IngestBatch(); // flusher thread only
+    private final long instanceId = new SecureRandom().nextLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Counter rejected;
+    private final Counter failed;
+    private final Counter dropped;
+    private final DistributionSummary batchSize;
+    private final Timer flushLatency;
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    public IngestPipeline(EsBulkWriter writer, IngestProperties props, ObjectProvider<IngestWal> wal, MeterRegistry registry) {
+        this.writer = writer;
+        this.props = props.async();
+        this.wal = wal.getIfAvailable();
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, this.props.queueCapacity()));
+        this.flushIntervalNanos = this.props.flushInterval().toNanos();
+
+        Gauge.builder("kpi.ingest.queue.depth", queue, BlockingQueue::size)
+                .description("Events waiting to be flushed to Elasticsearch")
+                .register(registry);
+        this.rejected = Counter.builder("kpi.ingest.rejected")
+                .description("Events rejected because the ingest buffer was full")
+                .register(registry);
+        this.failed = Counter.builder("kpi.ingest.failed")
+                .description("Events Elasticsearch did not accept during a flush")
+                .register(registry);
+        this.dropped = Counter.builder("kpi.ingest.dropped")
+                .description("Events given up on: rejected for good by Elasticsearch, or still failing at shutdown")
+                .register(registry);
+        this.batchSize = DistributionSummary.builder("kpi.ingest.batch.size")
+                .description("Events per _bulk flush")
+                .register(registry);
+        this.flushLatency = Timer.builder("kpi.ingest.flush.latency")
+                .description("Duration of a _bulk flush")
+                .register(registry);
+
+        if (this.wal != null) {
+            Gauge.builder("kpi.ingest.wal.outstanding.bytes", this.wal, IngestWal::outstandingBytes)
+                    .description("WAL bytes not yet acknowledged by Elasticsearch")
+                    .register(registry);
+            Gauge.builder("kpi.ingest.wal.segments", this.wal, IngestWal::segmentCount)
+                    .description("WAL segment files on disk")
+                    .register(registry);
+        }
+    }
+
+    public boolean isEnabled() {
+        return props.enabled() || wal != null;
+    }
+
+    public long retryAfterSeconds() {
+        return Math.max(1, props.retryAfter().toSeconds());
+    }
+
+    // false = buffer full, caller should back off
+    public boolean submit(WarehouseEvent event) {
+        // a resend after a timed-out _bulk that Elasticsearch did apply overwrites instead of duplicating
+        if (wal == null && event.getId() == null) event.setId(documentId(sequence.getAndIncrement()));
+        boolean accepted = wal != null ? wal.append(event) : queue.offer(event);
+        if (!accepted) rejected.increment();
+        return accepted;
+    }
+
+    // ---------------- in-memory queue ----------------
+
+    // like IngestWal.documentId, with the submit sequence in place of the log position
+    private String documentId(long seq) {
+        ByteBuffer id = ByteBuffer.allocate(16).putLong(instanceId).putLong(seq);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id.array());
+    }
+
+    // Retried events are resent on their own: nothing is taken from the queue until they have gone
+    // through, so a cluster pushing back fills the queue. After stop, every batch gets one attempt.
+    private void runQueueFlusher() {
+        List<WarehouseEvent> batch = new ArrayList<>(props.maxBatch());
+        List<WarehouseEvent> retry = new ArrayList<>();
+        long backoffMs = 0;
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                backoff(backoffMs);
+                if (batch.isEmpty()) fill(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (batch.isEmpty()) continue;
+
+            retry.clear();
+            if (flush(batch, retry) || !running) {
+                if (!retry.isEmpty()) {
+                    dropped.increment(retry.size());
+                    log.warn("Dropping {} events Elasticsearch did not accept before shutdown", retry.size());
+                }
+                backoffMs = 0;
+                batch.clear();
+            } else {
+                backoffMs = backoffMs == 0 ? 100 : Math.min(backoffMs * 2, MAX_RETRY_BACKOFF_MS);
+                log.warn("Bulk flush failed, retrying {} events in {} ms", retry.size(), backoffMs);
+                batch.clear();
+                batch.addAll(retry);
+            }
+        }
+    }
+
+    private void fill(List<WarehouseEvent> batch) throws InterruptedException {
+        WarehouseEvent first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+        if (first == null) return;
+        batch.add(first);
+
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        int max = props.maxBatch();
+        while (batch.size() < max) {
+            queue.drainTo(batch, max - batch.size());
+            if (batch.size() >= max) break;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) break;
+
+            WarehouseEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+        }
+    }
+
+    // ---------------- write-ahead log ----------------
+
+    // Anything still in the WAL at shutdown is shipped on the next start, so this loop does not drain.
+    private void runWalFlusher() {
+        List<WarehouseEvent> batch = new ArrayList<>(props.maxBatch());
+        long backoffMs = 0;
+        while (running) {
+            try {
+                backoff(backoffMs);
+                fillFromWal(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (batch.isEmpty()) continue;
+
+            if (flush(batch, null)) {
+                wal.commit(wal.readPosition());
+                backoffMs = 0;
+            } else {
+                wal.rewind();
+                backoffMs = backoffMs == 0 ? 100 : Math.min(backoffMs * 2, MAX_RETRY_BACKOFF_MS);
+                log.warn("Bulk flush from WAL failed, retrying {} events in {} ms", batch.size(), backoffMs);
+            }
+            batch.clear();
+            wal.sync();
+        }
+    }
+
+    private void fillFromWal(List<WarehouseEvent> batch) throws InterruptedException {
+        if (!wal.awaitData(flushIntervalNanos, TimeUnit.NANOSECONDS)) return;
+
+        long deadline = System.nanoTime() + flushIntervalNanos;
+        int max = props.maxBatch();
+        while (batch.size() < max) {
+            wal.read(max - batch.size(), batch);
+            if (batch.size() >= max) break;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) break;
+            if (!wal.awaitData(remaining, TimeUnit.NANOSECONDS)) break;
+        }
+    }
+
+    // ---------------- flush ----------------
+
+    // sleeps in short steps so stop() does not wait out a long backoff
+    private void backoff(long ms) throws InterruptedException {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        long left;
+        while (running && (left = until - System.nanoTime()) > 0) {
+            Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(left) + 1, 100));
+        }
+    }
+
+    // false = at least one item failed with a retryable status (429 or 5xx); those events are added
+    // to retry when given. Items failing with other statuses are dropped.
+    private boolean flush(List<WarehouseEvent> batch, List<WarehouseEvent> retry) {
+        body.clear();
+        for (int i = 0; i < batch.size(); i++) body.add(batch.get(i), i);
+
+        batchSize.record(batch.size());
+        List<BulkItemResultDTO> results = flushLatency.record(() -> writer.write(body));
+
+        int errors = 0;
+        int permanent = 0;
+        boolean retryable = false;
+        String firstError = null;
+        for (BulkItemResultDTO r : results) {
+            if (r.status() >= 200 && r.status() < 300) continue;
+            errors++;
+            if (r.status() == 429 || r.status() >= 500) {
+                retryable = true;
+                if (retry != null) retry.add(batch.get(r.position()));
+            } else {
+                permanent++;
+            }
+            if (firstError == null) firstError = r.error();
+        }
+        // a rewound WAL batch ships its rejected items again, they are only dropped once it goes through
+        if (permanent > 0 && (retry != null || !retryable)) dropped.increment(permanent);
+        if (errors > 0) {
+            failed.increment(errors);
+            log.warn("Bulk flush of {} events had {} failures, first error: {}", batch.size(), errors, firstError);
+        }
+        return !retryable;
+    }
+
+    @Override
+    public void start() {
+        if (!isEnabled() || running) return;
+        running = true;
+        flusher = new Thread(wal != null ? this::runWalFlusher : this::runQueueFlusher, "ingest-flusher");
+        flusher.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        // the flusher polls with flushInterval timeouts, so it notices this quickly
+        running = false;
+        try {
+            // let the flusher drain what was already acknowledged
+            flusher.join(props.flushInterval().toMillis() + 30_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
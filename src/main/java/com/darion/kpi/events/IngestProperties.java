@@ -0,0 +1,32 @@
+package com.darion.kpi.events;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kpi.ingest")
+public record IngestProperties(@DefaultValue Bulk bulk, @DefaultValue Async async, @DefaultValue Wal wal) {
+
+    public record Bulk(
+            @DefaultValue("1000") int maxActions,
+            @DefaultValue("5MB") DataSize maxBytes
+    ) {}
+
+    public record Async(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("50000") int queueCapacity,
+            @DefaultValue("5000") int maxBatch,
+            @DefaultValue("200ms") Duration flushInterval,
+            @DefaultValue("1s") Duration retryAfter
+    ) {}
+
+    public record Wal(
+            @DefaultValue("false") boolean enabled,
+            @DefaultValue("data/wal") String dir,
+            @DefaultValue("64MB") DataSize segmentSize,
+            @DefaultValue("4GB") DataSize maxSize,
+            @DefaultValue("false") boolean syncOnAppend
+    ) {}
+}
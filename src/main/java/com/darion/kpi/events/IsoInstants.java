@@ -0,0 +1,72 @@
+package com.darion.kpi.events;
+
+// Allocation-free parser for the fixed UTC format scanners send: yyyy-MM-ddTHH:mm:ss[.fraction]Z.
+// Anything else (offsets, leap seconds, odd widths) returns NOT_FIXED_FORMAT so callers can fall
+// back to Instant.parse.
+public final class IsoInstants {
+
+    public static final long NOT_FIXED_FORMAT = Long.MIN_VALUE;
+
+    private IsoInstants() {}
+
+    public static long parseEpochMillis(char[] c, int off, int len) {
+        if (len < 20 || len > 30 || c[off + len - 1] != 'Z') return NOT_FIXED_FORMAT;
+        if (c[off + 4] != '-' || c[off + 7] != '-' || c[off + 10] != 'T'
+                || c[off + 13] != ':' || c[off + 16] != ':') return NOT_FIXED_FORMAT;
+
+        int year = digits(c, off, 4);
+        int month = digits(c, off + 5, 2);
+        int day = digits(c, off + 8, 2);
+        int hour = digits(c, off + 11, 2);
+        int minute = digits(c, off + 14, 2);
+        int second = digits(c, off + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return NOT_FIXED_FORMAT;
+        }
+
+        int millis = 0;
+        int fracLen = len - 20;
+        if (fracLen > 0) {
+            if (fracLen < 2 || fracLen > 10 || c[off + 19] != '.') return NOT_FIXED_FORMAT;
+            // keep millisecond precision, but every fraction digit must be valid
+            for (int i = 0; i < fracLen - 1; i++) {
+                int d = c[off + 20 + i] - '0';
+                if (d < 0 || d > 9) return NOT_FIXED_FORMAT;
+                if (i < 3) millis = millis * 10 + d;
+            }
+            for (int i = fracLen - 1; i < 3; i++) millis *= 10;
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+    }
+
+    private static int digits(char[] c, int off, int n) {
+        int v = 0;
+        for (int i = 0; i < n; i++) {
+            int d = c[off + i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        return switch (month) {
+            case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+
+    // days since 1970-01-01 for a proleptic Gregorian date (H. Hinnant's days_from_civil)
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return (long) era * 146097 + doe - 719468;
+    }
+}
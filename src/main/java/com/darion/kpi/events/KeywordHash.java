@@ -0,0 +1,35 @@
+package com.darion.kpi.events;
+
+// 64-bit hash of a keyword value (actorId, sessionId) for the unique-count sketches. The parser's
+// char buffer and a String with the same chars hash alike, and the result is stable across
+// restarts, so sketches built at ingest, from Elasticsearch and from stored sketches can be merged.
+public final class KeywordHash {
+
+    // no value (null); a value that hashes to NONE is moved to 1
+    public static final long NONE = 0;
+
+    private KeywordHash() {}
+
+    public static long of(String s) {
+        if (s == null) return NONE;
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        return finish(h);
+    }
+
+    public static long of(char[] c, int off, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = off; i < off + len; i++) h = (h ^ c[i]) * 0x100000001b3L;
+        return finish(h);
+    }
+
+    // FNV-1a spreads poorly into the high bits the sketches index by: finish with MurmurHash3's fmix64
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == NONE ? 1 : h;
+    }
+}
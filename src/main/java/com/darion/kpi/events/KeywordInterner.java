@@ -0,0 +1,48 @@
+package com.darion.kpi.events;
+
+// Canonical Strings for small keyword domains (eventType, siteId) looked up straight from the
+// parser's char buffer, so repeated values cost no allocation. The table is fixed-size and
+// shared; races only ever lose a cache slot, never return a wrong value. Once full, unseen
+// values are returned as fresh Strings instead of being cached.
+public final class KeywordInterner {
+
+    private static final int MAX_KEYWORD_LENGTH = 64;
+
+    private final String[] table;
+    private final int mask;
+
+    public KeywordInterner(int capacity) {
+        int size = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+        this.table = new String[size];
+        this.mask = size - 1;
+    }
+
+    public String intern(char[] c, int off, int len) {
+        if (len > MAX_KEYWORD_LENGTH) return new String(c, off, len);
+
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + c[off + i];
+        int slot = (h ^ (h >>> 16)) & mask;
+
+        // linear probing, bounded so a full table degrades to plain allocation
+        for (int probe = 0; probe < 8; probe++) {
+            String s = table[slot];
+            if (s == null) {
+                s = new String(c, off, len);
+                table[slot] = s;
+                return s;
+            }
+            if (s.hashCode() == h && equals(s, c, off, len)) return s;
+            slot = (slot + 1) & mask;
+        }
+        return new String(c, off, len);
+    }
+
+    private static boolean equals(String s, char[] c, int off, int len) {
+        if (s.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != c[off + i]) return false;
+        }
+        return true;
+    }
+}
@@ -4,10 +4,13 @@ import org.springframework.data.annotation.Id;
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
+import org.springframework.data.elasticsearch.annotations.Routing;
 
 import java.time.Instant;
 
-@Document(indexName = "warehouse_events")
+// stored in daily indices (see EventIndices), which the index template creates
+@Document(indexName = EventIndices.PATTERN, createIndex = false)
+@Routing("siteId")
 public class WarehouseEvent {
     @Id
     private String id;
@@ -1,5 +1,7 @@
 package com.darion.kpi.events;
 
+import java.time.Instant;
+
 public record WarehouseEventRequest(
         String timestamp,
         String eventType,
@@ -8,4 +10,19 @@ public record WarehouseEventRequest(
         String siteId,
         Long durationMs,
         Boolean success
-) {}
+) {
+
+    public WarehouseEvent toEvent() {
+        WarehouseEvent event = new WarehouseEvent();
+        Instant ts = Instant.parse(timestamp);
+        if (!EventIndices.inRange(ts)) throw new IllegalArgumentException("'timestamp' must be within years 0000-9999");
+        event.setTimestamp(ts);
+        event.setEventType(eventType);
+        event.setSessionId(sessionId);
+        event.setActorId(actorId);
+        event.setSiteId(siteId);
+        event.setDurationMs(durationMs);
+        event.setSuccess(success);
+        return event;
+    }
+}
@@ -0,0 +1,276 @@
+package com.darion.kpi.events.wal;
+
+import com.darion.kpi.events.WarehouseEvent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Write-ahead log for accepted events, stored as fixed-size memory-mapped segments.
+//
+// Record layout: length:int  crc32c:int  payload (see WalCodec). A length of 0 marks the end of
+// written data, -1 marks the unused tail of a segment that was rolled.
+//
+// One writer (append, under lock) and one reader (the ingest flusher). The reader never reads past
+// the published writePosition. Everything up to the committed position has been acknowledged by
+// Elasticsearch; segments entirely below it are deleted. On open, reading restarts at the
+// committed position, so outstanding events are replayed after a restart.
+public final class IngestWal implements Closeable {
+
+    private static final int HEADER = 8;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long maxOutstandingBytes;
+    private final boolean syncOnAppend;
+    private final long walId;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final ConcurrentSkipListMap<Long, WalSegment> segments = new ConcurrentSkipListMap<>();
+    private final CRC32C crc = new CRC32C();
+    private final FileChannel commitFile;
+    private final ByteBuffer commitBuf = ByteBuffer.allocate(8);
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    private volatile WalSegment active;
+    private volatile long writePosition;
+    private volatile long committed;
+    private long readPosition;
+
+    private IngestWal(Path dir, int segmentSize, long maxOutstandingBytes, boolean syncOnAppend) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        this.syncOnAppend = syncOnAppend;
+
+        Files.createDirectories(dir);
+        this.walId = loadOrCreateId(dir.resolve("wal.id"));
+        this.commitFile = FileChannel.open(dir.resolve("committed.offset"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    public static IngestWal open(Path dir, int segmentSize, long maxOutstandingBytes, boolean syncOnAppend) {
+        try {
+            return new IngestWal(dir, segmentSize, maxOutstandingBytes, syncOnAppend);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open ingest WAL in " + dir, e);
+        }
+    }
+
+    // ---------------- writer ----------------
+
+    // false = too much unacknowledged data on disk, caller should back off
+    public boolean append(WarehouseEvent event) {
+        lock.lock();
+        try {
+            int max = WalCodec.maxEncodedSize(event);
+            if (scratch.capacity() < max) scratch = ByteBuffer.allocate(Math.max(max, scratch.capacity() * 2));
+            scratch.clear();
+            WalCodec.encode(event, scratch);
+            scratch.flip();
+
+            int len = scratch.remaining();
+            int need = HEADER + len;
+            if (need > segmentSize) throw new IllegalArgumentException("Event too large for WAL segment: " + need + " bytes");
+            if (writePosition + need - committed > maxOutstandingBytes) return false;
+
+            int off = (int) (writePosition - active.base);
+            if (off + need > active.capacity) {
+                if (off + 4 <= active.capacity) active.buf.putInt(off, END_OF_SEGMENT);
+                roll();
+                off = 0;
+            }
+
+            crc.reset();
+            crc.update(scratch.duplicate());
+            active.buf.put(off + HEADER, scratch, 0, len);
+            active.buf.putInt(off + 4, (int) crc.getValue());
+            active.buf.putInt(off, len);
+            if (syncOnAppend) active.buf.force(off, need);
+
+            writePosition = active.base + off + need;
+            appended.signal();
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll ingest WAL segment", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void roll() throws IOException {
+        long base = active.end();
+        active.buf.force();
+        active = WalSegment.create(dir, base, segmentSize);
+        segments.put(base, active);
+        writePosition = base;
+    }
+
+    // flush dirty pages of the active segment to disk
+    public void sync() {
+        WalSegment s = active;
+        s.buf.force();
+    }
+
+    // ---------------- reader (single flusher thread) ----------------
+
+    public boolean awaitData(long timeout, TimeUnit unit) throws InterruptedException {
+        if (readPosition < writePosition) return true;
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (readPosition >= writePosition && nanos > 0) {
+                nanos = appended.awaitNanos(nanos);
+            }
+            return readPosition < writePosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Appends up to max events after the read cursor to out. Each event gets a document id derived
+    // from its log position, so re-shipping after a failure overwrites instead of duplicating.
+    public int read(int max, List<WarehouseEvent> out) {
+        long limit = writePosition;
+        int n = 0;
+        while (n < max && readPosition < limit) {
+            WalSegment seg = segmentAt(readPosition);
+            int off = (int) (readPosition - seg.base);
+            int len = off + 4 <= seg.capacity ? seg.buf.getInt(off) : END_OF_SEGMENT;
+            if (len <= 0) {
+                readPosition = seg.end();
+                continue;
+            }
+            WarehouseEvent event = WalCodec.decode(seg.buf, off + HEADER);
+            event.setId(documentId(readPosition));
+            out.add(event);
+            readPosition += HEADER + len;
+            n++;
+        }
+        return n;
+    }
+
+    public long readPosition() {
+        return readPosition;
+    }
+
+    // go back to the last acknowledged position so the same events are shipped again
+    public void rewind() {
+        readPosition = committed;
+    }
+
+    public void commit(long position) {
+        try {
+            commitBuf.clear();
+            commitBuf.putLong(position).flip();
+            commitFile.write(commitBuf, 0);
+            commitFile.force(false);
+            committed = position;
+
+            for (WalSegment s : new ArrayList<>(segments.values())) {
+                if (s != active && s.end() <= position) {
+                    segments.remove(s.base);
+                    s.delete();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to commit ingest WAL offset", e);
+        }
+    }
+
+    public long outstandingBytes() {
+        return writePosition - committed;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    // ---------------- recovery ----------------
+
+    private void recover() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        long storedCommit = commitFile.read(b, 0) == 8 ? b.flip().getLong() : -1;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.filter(p -> p.getFileName().toString().endsWith(WalSegment.SUFFIX)).toList()) {
+                WalSegment s = WalSegment.open(p);
+                if (storedCommit >= 0 && s.end() <= storedCommit) s.delete();
+                else segments.put(s.base, s);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            long base = Math.max(storedCommit, 0);
+            active = WalSegment.create(dir, base, segmentSize);
+            segments.put(base, active);
+            writePosition = base;
+        } else {
+            active = segments.lastEntry().getValue();
+            writePosition = active.base + scanEnd(active);
+        }
+
+        long first = segments.firstKey();
+        committed = Math.min(Math.max(storedCommit, first), writePosition);
+        readPosition = committed;
+    }
+
+    // offset of the first byte after the last intact record
+    private int scanEnd(WalSegment s) {
+        int off = 0;
+        while (off + HEADER <= s.capacity) {
+            int len = s.buf.getInt(off);
+            if (len <= 0 || off + HEADER + len > s.capacity) break;
+            crc.reset();
+            crc.update(s.buf.slice(off + HEADER, len));
+            if ((int) crc.getValue() != s.buf.getInt(off + 4)) break; // torn write
+            off += HEADER + len;
+        }
+        return off;
+    }
+
+    private WalSegment segmentAt(long position) {
+        return segments.floorEntry(position).getValue();
+    }
+
+    private String documentId(long position) {
+        ByteBuffer id = ByteBuffer.allocate(16).putLong(walId).putLong(position);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id.array());
+    }
+
+    private static long loadOrCreateId(Path file) throws IOException {
+        if (Files.exists(file)) return ByteBuffer.wrap(Files.readAllBytes(file)).getLong();
+        long id = new SecureRandom().nextLong();
+        Files.write(file, ByteBuffer.allocate(8).putLong(id).array());
+        return id;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            active.buf.force();
+            commitFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
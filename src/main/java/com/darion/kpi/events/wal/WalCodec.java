@@ -0,0 +1,98 @@
+package com.darion.kpi.events.wal;
+
+import com.darion.kpi.events.WarehouseEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+// Compact binary layout of one event:
+//   flags:byte  epochSecond:long  nanos:int  [durationMs:long]  4 x (len:short, utf8 bytes)
+// flags bit 0 = durationMs present, bit 1 = success present, bit 2 = success value, bit 3 = timestamp present.
+// A string length of -1 encodes null.
+final class WalCodec {
+
+    private static final int HAS_DURATION = 1;
+    private static final int HAS_SUCCESS = 1 << 1;
+    private static final int SUCCESS = 1 << 2;
+    private static final int HAS_TIMESTAMP = 1 << 3;
+
+    private WalCodec() {}
+
+    static int maxEncodedSize(WarehouseEvent e) {
+        return 1 + 8 + 4 + 8
+                + maxStringSize(e.getEventType())
+                + maxStringSize(e.getSessionId())
+                + maxStringSize(e.getActorId())
+                + maxStringSize(e.getSiteId());
+    }
+
+    static void encode(WarehouseEvent e, ByteBuffer out) {
+        int flags = 0;
+        if (e.getDurationMs() != null) flags |= HAS_DURATION;
+        if (e.getSuccess() != null) {
+            flags |= HAS_SUCCESS;
+            if (e.getSuccess()) flags |= SUCCESS;
+        }
+        if (e.getTimestamp() != null) flags |= HAS_TIMESTAMP;
+
+        out.put((byte) flags);
+        Instant ts = e.getTimestamp();
+        out.putLong(ts == null ? 0 : ts.getEpochSecond());
+        out.putInt(ts == null ? 0 : ts.getNano());
+        if (e.getDurationMs() != null) out.putLong(e.getDurationMs());
+        putString(out, e.getEventType());
+        putString(out, e.getSessionId());
+        putString(out, e.getActorId());
+        putString(out, e.getSiteId());
+    }
+
+    static WarehouseEvent decode(ByteBuffer in, int offset) {
+        int p = offset;
+        int flags = in.get(p);
+        p += 1;
+        long seconds = in.getLong(p);
+        int nanos = in.getInt(p + 8);
+        p += 12;
+
+        WarehouseEvent e = new WarehouseEvent();
+        if ((flags & HAS_TIMESTAMP) != 0) e.setTimestamp(Instant.ofEpochSecond(seconds, nanos));
+        if ((flags & HAS_DURATION) != 0) {
+            e.setDurationMs(in.getLong(p));
+            p += 8;
+        }
+        if ((flags & HAS_SUCCESS) != 0) e.setSuccess((flags & SUCCESS) != 0);
+
+        String[] strings = new String[4];
+        for (int i = 0; i < strings.length; i++) {
+            short len = in.getShort(p);
+            p += 2;
+            if (len >= 0) {
+                byte[] bytes = new byte[len];
+                in.get(p, bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                p += len;
+            }
+        }
+        e.setEventType(strings[0]);
+        e.setSessionId(strings[1]);
+        e.setActorId(strings[2]);
+        e.setSiteId(strings[3]);
+        return e;
+    }
+
+    private static int maxStringSize(String s) {
+        return 2 + (s == null ? 0 : s.length() * 3);
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) throw new IllegalArgumentException("Field too long for WAL: " + bytes.length + " bytes");
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+}
@@ -0,0 +1,55 @@
+package com.darion.kpi.events.wal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// One fixed-size, memory-mapped log file. base = global log position of byte 0.
+final class WalSegment {
+
+    static final String SUFFIX = ".seg";
+
+    final long base;
+    final int capacity;
+    final Path path;
+    final MappedByteBuffer buf;
+
+    private WalSegment(long base, Path path, MappedByteBuffer buf) {
+        this.base = base;
+        this.capacity = buf.capacity();
+        this.path = path;
+        this.buf = buf;
+    }
+
+    static WalSegment create(Path dir, long base, int capacity) throws IOException {
+        Path path = dir.resolve(fileName(base));
+        try (FileChannel ch = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new WalSegment(base, path, ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    static WalSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new WalSegment(base, path, ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size()));
+        }
+    }
+
+    long end() {
+        return base + capacity;
+    }
+
+    // the mapping is released once the buffer is collected; unlinking a mapped file is fine on Linux
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    static String fileName(long base) {
+        return String.format("%020d%s", base, SUFFIX);
+    }
+}
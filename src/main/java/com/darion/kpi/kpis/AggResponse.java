@@ -0,0 +1,289 @@
+package com.darion.kpi.kpis;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Typed view of an Elasticsearch search response, read in a single streaming pass. Only what the
+// KPI parsers look at is kept: hits.total, hits.hits as events and the aggregations as doc_count,
+// value, percentiles and buckets. Bucket keys and counts go straight into fields; no JsonNode tree
+// is built for the response.
+public final class AggResponse {
+
+    private long total;
+    private long took = -1;
+    private String error;
+    private List<LongestEventDTO> hits = List.of();
+    private Agg aggregations = Agg.EMPTY;
+
+    // hits.total.value
+    public long total() {
+        return total;
+    }
+
+    // milliseconds Elasticsearch spent on the search, -1 when not reported
+    public long took() {
+        return took;
+    }
+
+    // reason of a failed _msearch sub-search, null otherwise
+    public String error() {
+        return error;
+    }
+
+    public List<LongestEventDTO> hits() {
+        return hits;
+    }
+
+    // top-level aggregation by name, Agg.EMPTY when absent
+    public Agg agg(String name) {
+        return aggregations.agg(name);
+    }
+
+    // same response with the given top-level aggregations
+    AggResponse withAggs(Map<String, Agg> aggs) {
+        AggResponse r = new AggResponse();
+        r.total = total;
+        r.took = took;
+        r.error = error;
+        r.hits = hits;
+        r.aggregations = new Agg();
+        r.aggregations.aggs = aggs;
+        return r;
+    }
+
+    // An aggregation or one of its buckets: both carry doc_count and named sub-aggregations.
+    public static final class Agg {
+
+        static final Agg EMPTY = new Agg();
+
+        private String key;
+        private long keyMillis;
+        private String keyAsString;
+        private long docCount;
+        private double value = Double.NaN;
+        private Map<String, Double> percentiles;
+        private List<Agg> buckets;
+        private Map<String, Agg> aggs;
+
+        // string key of a terms bucket, null for numeric keys
+        public String key() {
+            return key;
+        }
+
+        // numeric key, e.g. the start of a date_histogram bucket
+        public long keyMillis() {
+            return keyMillis;
+        }
+
+        public String keyAsString() {
+            return keyAsString;
+        }
+
+        public long docCount() {
+            return docCount;
+        }
+
+        // metric value (avg, cardinality, ...), def when absent or null
+        public double value(double def) {
+            return Double.isNaN(value) ? def : value;
+        }
+
+        // percentiles value for a key like "95.0", def when absent or null
+        public double percentile(String percent, double def) {
+            Double v = percentiles == null ? null : percentiles.get(percent);
+            return v == null || v.isNaN() ? def : v;
+        }
+
+        public List<Agg> buckets() {
+            return buckets == null ? List.of() : buckets;
+        }
+
+        public Agg agg(String name) {
+            Agg a = aggs == null ? null : aggs.get(name);
+            return a == null ? EMPTY : a;
+        }
+    }
+
+    // ---------------- streaming reader ----------------
+
+    // Reads one search response; the parser is positioned on or just before its START_OBJECT.
+    public static AggResponse read(JsonParser p) throws IOException {
+        expect(p, p.currentToken() == JsonToken.START_OBJECT ? JsonToken.START_OBJECT : p.nextToken(), JsonToken.START_OBJECT);
+
+        AggResponse r = new AggResponse();
+        String name;
+        while ((name = p.nextFieldName()) != null) {
+            JsonToken t = p.nextToken();
+            switch (name) {
+                case "took" -> r.took = p.getValueAsLong(-1);
+                case "hits" -> {
+                    if (t == JsonToken.START_OBJECT) readHits(p, r);
+                    else p.skipChildren();
+                }
+                case "aggregations" -> {
+                    if (t == JsonToken.START_OBJECT) r.aggregations = readAgg(p, new Agg());
+                    else p.skipChildren();
+                }
+                case "error" -> {
+                    // rare and small: the only part read as a tree
+                    JsonNode e = p.readValueAsTree();
+                    r.error = e.path("reason").asText(e.toString());
+                }
+                default -> p.skipChildren();
+            }
+        }
+        return r;
+    }
+
+    // Reads an _msearch response: one AggResponse per entry of "responses", in order.
+    public static List<AggResponse> readMulti(JsonParser p) throws IOException {
+        expect(p, p.nextToken(), JsonToken.START_OBJECT);
+
+        List<AggResponse> out = new ArrayList<>();
+        String name;
+        while ((name = p.nextFieldName()) != null) {
+            JsonToken t = p.nextToken();
+            if (!name.equals("responses") || t != JsonToken.START_ARRAY) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() == JsonToken.START_OBJECT) out.add(read(p));
+        }
+        return out;
+    }
+
+    private static void readHits(JsonParser p, AggResponse r) throws IOException {
+        String name;
+        while ((name = p.nextFieldName()) != null) {
+            JsonToken t = p.nextToken();
+            switch (name) {
+                case "total" -> {
+                    if (t == JsonToken.START_OBJECT) {
+                        String f;
+                        while ((f = p.nextFieldName()) != null) {
+                            p.nextToken();
+                            if (f.equals("value")) r.total = p.getValueAsLong(0);
+                        }
+                    } else {
+                        r.total = p.getValueAsLong(0);
+                    }
+                }
+                case "hits" -> {
+                    if (t != JsonToken.START_ARRAY) {
+                        p.skipChildren();
+                        continue;
+                    }
+                    List<LongestEventDTO> hits = new ArrayList<>();
+                    while (p.nextToken() == JsonToken.START_OBJECT) hits.add(readHit(p));
+                    r.hits = hits;
+                }
+                default -> p.skipChildren();
+            }
+        }
+    }
+
+    private static LongestEventDTO readHit(JsonParser p) throws IOException {
+        String id = null, timestamp = null, eventType = null, sessionId = null, actorId = null, siteId = null;
+        long durationMs = 0;
+        boolean success = false;
+
+        String name;
+        while ((name = p.nextFieldName()) != null) {
+            JsonToken t = p.nextToken();
+            if (name.equals("_id")) {
+                id = text(p, t);
+                continue;
+            }
+            if (!name.equals("_source") || t != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            String f;
+            while ((f = p.nextFieldName()) != null) {
+                JsonToken v = p.nextToken();
+                switch (f) {
+                    case "timestamp" -> timestamp = text(p, v);
+                    case "eventType" -> eventType = text(p, v);
+                    case "sessionId" -> sessionId = text(p, v);
+                    case "actorId" -> actorId = text(p, v);
+                    case "siteId" -> siteId = text(p, v);
+                    case "durationMs" -> durationMs = p.getValueAsLong(0);
+                    case "success" -> success = p.getValueAsBoolean(false);
+                    default -> p.skipChildren();
+                }
+            }
+        }
+        return new LongestEventDTO(id, timestamp, eventType, sessionId, actorId, siteId, durationMs, success);
+    }
+
+    // fills agg from the object the parser is on; unknown object fields are sub-aggregations
+    private static Agg readAgg(JsonParser p, Agg agg) throws IOException {
+        String name;
+        while ((name = p.nextFieldName()) != null) {
+            JsonToken t = p.nextToken();
+            switch (name) {
+                case "key" -> {
+                    if (t == JsonToken.VALUE_STRING) agg.key = p.getText();
+                    else if (t.isNumeric()) agg.keyMillis = p.getLongValue();
+                    else p.skipChildren();
+                }
+                case "key_as_string" -> agg.keyAsString = text(p, t);
+                case "doc_count" -> agg.docCount = p.getValueAsLong(0);
+                case "value" -> agg.value = t.isNumeric() ? p.getDoubleValue() : Double.NaN;
+                case "values" -> {
+                    if (t == JsonToken.START_OBJECT) agg.percentiles = readPercentiles(p);
+                    else p.skipChildren();
+                }
+                case "buckets" -> {
+                    if (t != JsonToken.START_ARRAY) {
+                        p.skipChildren(); // keyed buckets are not used by any KPI
+                        continue;
+                    }
+                    List<Agg> buckets = new ArrayList<>();
+                    while (p.nextToken() == JsonToken.START_OBJECT) buckets.add(readAgg(p, new Agg()));
+                    agg.buckets = buckets;
+                }
+                case "after_key", "meta" -> p.skipChildren();
+                default -> {
+                    if (t != JsonToken.START_OBJECT) {
+                        p.skipChildren();
+                        continue;
+                    }
+                    if (agg.aggs == null) agg.aggs = new HashMap<>(4);
+                    agg.aggs.put(name, readAgg(p, new Agg()));
+                }
+            }
+        }
+        return agg;
+    }
+
+    private static Map<String, Double> readPercentiles(JsonParser p) throws IOException {
+        Map<String, Double> out = new HashMap<>(4);
+        String name;
+        while ((name = p.nextFieldName()) != null) {
+            JsonToken t = p.nextToken();
+            if (t.isNumeric()) out.put(name, p.getDoubleValue());
+            else p.skipChildren();
+        }
+        return out;
+    }
+
+    private static String text(JsonParser p, JsonToken t) throws IOException {
+        if (t == JsonToken.VALUE_NULL) return null;
+        if (t.isScalarValue()) return p.getText();
+        p.skipChildren();
+        return null;
+    }
+
+    private static void expect(JsonParser p, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) throw new JsonParseException(p, "Expected " + expected + " but got " + actual);
+    }
+}
@@ -0,0 +1,191 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.IngestListener;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+// Per-bucket cache for the hour- and minute-bucketed KPIs (see EsKpiQueryClient.isBucketed).
+//
+// Every full, settled histogram bucket is cached on its own, per KPI, site and interval. A request looks up
+// the buckets it covers, asks Elasticsearch only for the missing ones plus the partial edge buckets
+// and the live tail, and stitches everything back into the KPI's DTO list. Refreshing a sliding
+// 24h window therefore re-aggregates the newly elapsed time, not the whole day.
+//
+// The stitched list matches what one query over the whole range returns: buckets from the first to
+// the last non-empty one, empty buckets in between included.
+@Component
+public class BucketedKpiCache implements IngestListener {
+
+    private static final KpiBucket EMPTY = new KpiBucket(0, 0, null);
+
+    private final boolean enabled;
+    private final SettledWatermark settled;
+    private final Cache<Key, KpiBucket> cache;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final DistributionSummary fetchedRanges;
+
+    public BucketedKpiCache(KpiQueryProperties props, SettledWatermark settled, MeterRegistry registry) {
+        this.enabled = props.buckets().enabled();
+        this.settled = settled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(props.buckets().maxBuckets())
+                .expireAfterWrite(props.buckets().ttl())
+                .build();
+
+        this.hits = Counter.builder("kpi.cache.buckets").tag("result", "hit")
+                .description("Bucket cache lookups").register(registry);
+        this.misses = Counter.builder("kpi.cache.buckets").tag("result", "miss")
+                .description("Bucket cache lookups").register(registry);
+        this.fetchedRanges = DistributionSummary.builder("kpi.cache.buckets.fetched.ranges")
+                .description("Sub-ranges queried from Elasticsearch per bucketed KPI request")
+                .register(registry);
+        Gauge.builder("kpi.cache.buckets.entries", cache, Cache::estimatedSize)
+                .description("Histogram buckets currently cached")
+                .register(registry);
+    }
+
+    public boolean handles(KpiId id) {
+        return enabled && EsKpiQueryClient.isBucketed(id);
+    }
+
+    // req carries the resolved interval (see KpiIntervals); fetch runs the KPI's histogram at that
+    // interval over the given ranges and returns its buckets
+    public List<?> get(KpiId id, KpiRequest req, Function<List<TimeRange>, List<KpiBucket>> fetch) {
+        KpiInterval interval = req.interval();
+        long size = interval.millis();
+        long fromMs = ceilMillis(req.from());
+        long toMs = req.to().toEpochMilli();
+
+        long first = Math.floorDiv(fromMs, size) * size;                // bucket holding 'from'
+        long last = Math.floorDiv(toMs, size) * size;                   // bucket holding 'to'
+        long cacheFrom = first == fromMs ? first : first + size;        // first full bucket
+        long cacheTo = Math.min(last, Math.floorDiv(settled.watermark(), size) * size); // exclusive
+
+        int n = (int) ((last - first) / size) + 1;
+        KpiBucket[] slots = new KpiBucket[n];
+        boolean[] store = new boolean[n]; // cacheable buckets that were not in the cache
+        Object variant = switch (id) {
+            case EVENTS_PER_HOUR_BY_TYPE -> req.topN();
+            case UNIQUE_ACTORS_PER_HOUR, UNIQUE_SESSIONS_PER_HOUR -> req.precision();
+            case DURATION_STATS_PER_HOUR -> req.percentiles();
+            default -> null;
+        };
+
+        // look up full settled buckets, collect everything else as ranges to fetch
+        List<TimeRange> ranges = new ArrayList<>();
+        long missingFrom = -1;
+        for (long b = first; b <= last; b += size) {
+            int i = (int) ((b - first) / size);
+            boolean full = b >= cacheFrom && b < cacheTo && settled.isSettled(b, b + size - 1);
+            KpiBucket hit = null;
+            if (full) {
+                hit = cache.getIfPresent(new Key(id, req.siteId(), variant, interval, b));
+                (hit == null ? misses : hits).increment();
+                store[i] = hit == null;
+            }
+            if (hit != null) {
+                slots[i] = hit;
+                if (missingFrom >= 0) {
+                    ranges.add(range(missingFrom, b, req));
+                    missingFrom = -1;
+                }
+            } else if (missingFrom < 0) {
+                missingFrom = b;
+            }
+        }
+        if (missingFrom >= 0) ranges.add(range(missingFrom, last + size, req));
+        fetchedRanges.record(ranges.size());
+
+        if (!ranges.isEmpty()) {
+            for (KpiBucket fetched : fetch.apply(ranges)) {
+                long b = fetched.start();
+                if (b < first || b > last) continue;
+                int i = (int) ((b - first) / size);
+                // buckets between fetched ranges come back as zero fillers, the cached value wins
+                if (slots[i] != null) continue;
+                slots[i] = fetched;
+            }
+            for (int i = 0; i < n; i++) {
+                if (!store[i]) continue;
+                // not returned by ES = no documents in that bucket
+                cache.put(new Key(id, req.siteId(), variant, interval, first + i * size), slots[i] == null ? EMPTY : slots[i]);
+            }
+        }
+
+        return stitch(id, req, slots, first, size);
+    }
+
+    private List<Object> stitch(KpiId id, KpiRequest req, KpiBucket[] slots, long first, long size) {
+        int lo = 0;
+        int hi = slots.length - 1;
+        while (lo <= hi && isEmpty(slots[lo])) lo++;
+        while (hi >= lo && isEmpty(slots[hi])) hi--;
+
+        List<Object> out = new ArrayList<>(Math.max(0, hi - lo + 1));
+        for (int i = lo; i <= hi; i++) {
+            KpiBucket s = slots[i];
+            out.add(s != null && s.value() != null ? s.value() : emptyValue(id, EsKpiQueryClient.KEY_FORMAT.format(Instant.ofEpochMilli(first + i * size)), req));
+        }
+        return out;
+    }
+
+    private static boolean isEmpty(KpiBucket b) {
+        return b == null || b.docCount() == 0;
+    }
+
+    // what the KPI's parser produces for a bucket without documents
+    private static Object emptyValue(KpiId id, String key, KpiRequest req) {
+        return switch (id) {
+            case EVENTS_PER_HOUR, THROUGHPUT_PER_MINUTE -> new HourlyCountDTO(key, 0);
+            case EVENTS_PER_HOUR_BY_TYPE -> new HourlyStackedDTO(key, 0, List.of());
+            case ERROR_RATE_PER_HOUR -> new HourlyErrorRateDTO(key, 0, 0, 0.0);
+            case DURATION_STATS_PER_HOUR -> new HourlyDurationStatsDTO(key, 0.0, 0.0, KpiPercentiles.zeros(req.percentiles()));
+            case UNIQUE_ACTORS_PER_HOUR -> new HourlyUniqueCountDTO(key, 0);
+            case UNIQUE_SESSIONS_PER_HOUR -> new HourlyUniqueSessionsDTO(key, 0);
+            default -> throw new IllegalArgumentException(id + " is not a bucketed KPI");
+        };
+    }
+
+    // [startMs, endMs) clipped to the request; the end is inclusive in ES, so an event exactly on
+    // endMs lands in a bucket that is either fetched as well or overridden by the cached value
+    private static TimeRange range(long startMs, long endMs, KpiRequest req) {
+        Instant from = startMs <= req.from().toEpochMilli() ? req.from() : Instant.ofEpochMilli(startMs);
+        Instant to = endMs > req.to().toEpochMilli() ? req.to() : Instant.ofEpochMilli(endMs);
+        return new TimeRange(from, to);
+    }
+
+    private static long ceilMillis(Instant t) {
+        long ms = t.toEpochMilli();
+        return t.getNano() % 1_000_000 == 0 ? ms : ms + 1;
+    }
+
+    // ---------------- ingest invalidation ----------------
+
+    @Override
+    public void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (!enabled) return;
+        Map<Long, Set<String>> late = settled.lateWrites(batch);
+        if (late == null) return;
+
+        cache.asMap().keySet().removeIf(k -> SettledWatermark.touches(late,
+                k.start(), k.start() + k.interval().millis() - 1, k.siteId()));
+    }
+
+    private record Key(KpiId id, String siteId, Object variant, KpiInterval interval, long start) {}
+}
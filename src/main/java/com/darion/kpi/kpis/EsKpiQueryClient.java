@@ -1,939 +1,1073 @@
 package com.darion.kpi.kpis;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.darion.kpi.events.EventIndices;
+import com.darion.kpi.kpis.AggResponse.Agg;
+import com.darion.kpi.rollup.RollupIndexState;
+import com.darion.kpi.rollup.RollupProperties;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.springframework.stereotype.Component;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 @Component
 public class EsKpiQueryClient {
 
+    // key_as_string of the date_histogram buckets
+    static final DateTimeFormatter KEY_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+    private static final byte[] MSEARCH_INDEX = "{\"index\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MSEARCH_ROUTING = "\",\"routing\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MSEARCH_HEADER_END = "\",\"ignore_unavailable\":true}\n".getBytes(StandardCharsets.UTF_8);
+
     private final RestClient restClient;
     private final ObjectMapper mapper;
-
-    public EsKpiQueryClient(RestClient restClient, ObjectMapper mapper) {
+    private final EventIndices eventIndices;
+    private final RollupIndexState rollupIndex;
+    private final KpiMetrics metrics;
+    private final KpiIntervals intervals;
+    private final String percentilesMethod;
+    private final Executor parsers = Executors.newVirtualThreadPerTaskExecutor();
+
+    public EsKpiQueryClient(RestClient restClient, ObjectMapper mapper, EventIndices eventIndices,
+                            RollupIndexState rollupIndex, KpiMetrics metrics, KpiIntervals intervals,
+                            RollupProperties rollupProps) {
         this.restClient = restClient;
         this.mapper = mapper;
+        this.eventIndices = eventIndices;
+        this.rollupIndex = rollupIndex;
+        this.metrics = metrics;
+        this.intervals = intervals;
+        this.percentilesMethod = percentilesMethod(rollupProps.durationAccuracy());
     }
 
-    // ---------------- KPI: Event Type Breakdown (donut) ----------------
+    // ---------------- Multi-KPI (single _msearch round trip) ----------------
 
-    public List<DonutSliceDTO> eventTypeBreakdown(Instant from, Instant to, String siteId) {
+    // Sends every KPI query in one _msearch and parses each sub-response with the KPI's own parser.
+    // Hourly KPIs are fused into a single search (see KpiQueryTemplates.hourly). A failing
+    // sub-search only fails the KPIs it was serving.
+    public Map<KpiId, KpiBatchResultDTO> multiSearch(List<KpiId> ids, KpiRequest req) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildEventTypeBreakdownQuery(from, to, siteId));
+            List<List<KpiId>> plan = plan(ids);
+            Response resp = await(KpiMetrics.BATCH, multiSearchRequest(plan, req));
+            return multiSearchResults(plan, resp, req);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed KPI batch " + ids, e);
+        }
+    }
 
-            Response resp = restClient.performRequest(req);
+    // multiSearch without blocking the caller: parsing runs on a virtual thread, not on the HTTP
+    // client's I/O thread
+    public CompletableFuture<Map<KpiId, KpiBatchResultDTO>> multiSearchAsync(List<KpiId> ids, KpiRequest req) {
+        List<List<KpiId>> plan = plan(ids);
+        return send(KpiMetrics.BATCH, multiSearchRequest(plan, req), resp -> multiSearchResults(plan, resp, req),
+                "Failed KPI batch " + ids);
+    }
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("by_event_type").path("buckets");
+    private Request multiSearchRequest(List<List<KpiId>> plan, KpiRequest req) {
+        long start = System.nanoTime();
+        JsonBytes body = new JsonBytes(1024 * plan.size());
+        for (List<KpiId> group : plan) {
+            // the KPIs of a fused group share their default interval, so they also resolve alike
+            Scope scope = scope(group, List.of(TimeRange.of(req)), intervals.of(group.get(0), req), req.precision(),
+                    req.percentiles());
+            QueryTemplate template = group.size() == 1
+                    ? KpiQueryTemplates.of(group.get(0))
+                    : KpiQueryTemplates.hourly(group);
+            body.write(MSEARCH_INDEX).writeAscii(scope.indices());
+            String routing = routing(template, req.siteId());
+            if (routing != null) body.write(MSEARCH_ROUTING).writeEscaped(routing);
+            body.write(MSEARCH_HEADER_END);
+            template.render(body, scope.filter(), req.siteId(), limit(req), scope.durationSketch(), scope.interval(),
+                    scope.precision(), scope.percents());
+            body.write('\n');
+        }
 
-                List<DonutSliceDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String key = b.path("key").asText(null);
-                        long count = b.path("doc_count").asLong(0);
-                        if (key != null) out.add(new DonutSliceDTO(key, count));
+        Request request = new Request("POST", "/_msearch");
+        request.setEntity(body.toEntity(NDJSON));
+        metrics.phase(KpiMetrics.BATCH, "build", start);
+        return request;
+    }
+
+    private Map<KpiId, KpiBatchResultDTO> multiSearchResults(List<List<KpiId>> plan, Response resp, KpiRequest req)
+            throws IOException {
+        long start = System.nanoTime();
+        try (CountingInputStream is = new CountingInputStream(resp.getEntity().getContent());
+             JsonParser p = mapper.createParser(is)) {
+            List<AggResponse> responses = AggResponse.readMulti(p);
+            metrics.phase(KpiMetrics.BATCH, "parse", start);
+            metrics.esResponseBytes(KpiMetrics.BATCH, is.count());
+
+            Map<KpiId, KpiBatchResultDTO> out = new EnumMap<>(KpiId.class);
+            for (int i = 0; i < plan.size(); i++) {
+                List<KpiId> group = plan.get(i);
+                if (i >= responses.size()) {
+                    for (KpiId id : group) out.put(id, KpiBatchResultDTO.error("No response returned for KPI"));
+                    continue;
+                }
+                AggResponse r = responses.get(i);
+                metrics.took(group.size() > 1 ? KpiMetrics.FUSED : group.get(0).name(), r.took());
+                if (r.error() != null) {
+                    for (KpiId id : group) out.put(id, KpiBatchResultDTO.error(r.error()));
+                    continue;
+                }
+                if (group.size() > 1) r = hourlyView(r);
+                for (KpiId id : group) {
+                    try {
+                        out.put(id, KpiBatchResultDTO.ok(parse(id, r, req)));
+                    } catch (RuntimeException e) {
+                        out.put(id, KpiBatchResultDTO.error("Failed " + id + " KPI: " + e.getMessage()));
                     }
                 }
-                return out;
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed EVENT_TYPE_BREAKDOWN KPI", e);
+            return out;
         }
     }
 
-    // ---------------- KPI: Events Per Hour ----------------
+    // one search per KPI, except that two or more hourly KPIs share a single fused search
+    private List<List<KpiId>> plan(List<KpiId> ids) {
+        List<KpiId> hourly = new ArrayList<>();
+        for (KpiId id : ids) if (isHourly(id)) hourly.add(id);
 
-    public List<HourlyCountDTO> eventsPerHour(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildEventsPerHourQuery(from, to, siteId));
+        List<List<KpiId>> plan = new ArrayList<>();
+        if (hourly.size() > 1) plan.add(hourly);
+        for (KpiId id : ids) {
+            if (hourly.size() > 1 && isHourly(id)) continue;
+            plan.add(List.of(id));
+        }
+        return plan;
+    }
 
-            Response resp = restClient.performRequest(req);
+    // ---------------- Single KPI without blocking ----------------
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("events_per_hour").path("buckets");
+    // One KPI over the request's range with RestClient.performRequestAsync: no thread waits for
+    // Elasticsearch. Same query and parser as the blocking per-KPI methods.
+    public CompletableFuture<Object> kpiAsync(KpiId id, KpiRequest req) {
+        Scope scope = scope(List.of(id), List.of(TimeRange.of(req)), intervals.of(id, req), req.precision(),
+                req.percentiles());
+        Request request = searchRequest(id.name(), scope, KpiQueryTemplates.of(id), req.siteId(), limit(req));
+        return send(id.name(), request, resp -> parse(id, read(id.name(), resp), req), "Failed " + id + " KPI");
+    }
 
-                List<HourlyCountDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String hour = b.path("key_as_string").asText(null);
-                        long count = b.path("doc_count").asLong(0);
-                        if (hour != null) out.add(new HourlyCountDTO(hour, count));
-                    }
+    // the search body kpiAsync sends for a KPI
+    public JsonBytes query(KpiId id, KpiRequest req) {
+        Scope scope = scope(List.of(id), List.of(TimeRange.of(req)), intervals.of(id, req), req.precision(),
+                req.percentiles());
+        return render(KpiQueryTemplates.of(id), scope, req.siteId(), limit(req));
+    }
+
+    private interface ResponseHandler<T> {
+        T handle(Response resp) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> send(String kpi, Request request, ResponseHandler<T> handler, String failure) {
+        CompletableFuture<T> out = new CompletableFuture<>();
+        CompletableFuture<Response> performed = perform(kpi, request);
+        performed.whenComplete((resp, e) -> {
+            if (out.isDone()) return;
+            if (e != null) {
+                out.completeExceptionally(new RuntimeException(failure, e));
+                return;
+            }
+            // keep the I/O reactor free: parse on a virtual thread
+            parsers.execute(() -> {
+                try {
+                    out.complete(handler.handle(resp));
+                } catch (Exception ex) {
+                    out.completeExceptionally(new RuntimeException(failure, ex));
                 }
-                return out;
+            });
+        });
+        // a caller giving up aborts the HTTP request
+        out.whenComplete((r, e) -> {
+            if (out.isCancelled()) performed.cancel(true);
+        });
+        return out;
+    }
+
+    private CompletableFuture<Response> perform(String kpi, Request request) {
+        long start = System.nanoTime();
+        CompletableFuture<Response> out = new CompletableFuture<>();
+        Cancellable call = restClient.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response resp) {
+                metrics.phase(kpi, "roundtrip", start);
+                out.complete(resp);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                out.completeExceptionally(e);
             }
+        });
+        out.whenComplete((r, e) -> {
+            if (out.isCancelled()) call.cancel();
+        });
+        return out;
+    }
+
+    // Blocking paths wait here rather than in RestClient.performRequest: that waits in a synchronized
+    // Object.wait, which pins the carrier of a virtual thread (JDK 21), while join() just parks it.
+    private Response await(String kpi, Request request) throws IOException {
+        try {
+            return perform(kpi, request).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw e;
+        }
+    }
+
+    // ---------------- Hourly aggregation fusion ----------------
+
+    // KPIs built on the same date_histogram (1h by default) over the same filter. Their sub-aggregations have
+    // distinct names, so any subset can be answered by one histogram carrying all of them.
+    static final Set<KpiId> HOURLY = EnumSet.of(
+            KpiId.EVENTS_PER_HOUR,
+            KpiId.EVENTS_PER_HOUR_BY_TYPE,
+            KpiId.ERROR_RATE_PER_HOUR,
+            KpiId.DURATION_STATS_PER_HOUR,
+            KpiId.UNIQUE_ACTORS_PER_HOUR,
+            KpiId.UNIQUE_SESSIONS_PER_HOUR
+    );
+
+    static boolean isHourly(KpiId id) {
+        return HOURLY.contains(id);
+    }
+
+    // Runs one fused search for the given hourly KPIs; pick each result out with parseHourly.
+    public AggResponse hourlySearch(Collection<KpiId> ids, List<TimeRange> ranges, String siteId, KpiInterval interval,
+                                    Integer precision, List<Double> percentiles) {
+        try {
+            Scope scope = scope(ids, ranges, interval, precision, percentiles);
+            String kpi = ids.size() > 1 ? KpiMetrics.FUSED : ids.iterator().next().name();
+            return hourlyView(search(kpi, scope, KpiQueryTemplates.hourly(ids), siteId, 0));
         } catch (Exception e) {
-            throw new RuntimeException("Failed EVENTS_PER_HOUR KPI", e);
+            throw new RuntimeException("Failed hourly KPIs " + ids, e);
         }
     }
 
-    // ---------------- KPI: Stacked Events Per Hour by Type (topN + OTHER) ----------------
+    public Object parseHourly(KpiId id, AggResponse fused, KpiRequest req) {
+        if (!isHourly(id)) throw new IllegalArgumentException(id + " is not an hourly KPI");
+        return parse(id, fused, req);
+    }
+
+    // Exposes the fused per_hour histogram under every name the single-KPI parsers look for,
+    // so the existing parsers split the fused response without changes.
+    AggResponse hourlyView(AggResponse r) {
+        Agg perHour = r.agg("per_hour");
+        return r.withAggs(Map.of(
+                "per_hour", perHour,
+                "events_per_hour", perHour,
+                "errors_per_hour", perHour,
+                "duration_per_hour", perHour));
+    }
+
+    // ---------------- Bucketed KPIs (incremental bucket cache) ----------------
+
+    // KPIs whose result is one DTO per date_histogram bucket, so buckets can be cached on their own
+    static boolean isBucketed(KpiId id) {
+        return isHourly(id) || id == KpiId.THROUGHPUT_PER_MINUTE;
+    }
 
-    public List<HourlyStackedDTO> eventsPerHourByType(Instant from, Instant to, String siteId, int topN) {
+    public AggResponse throughputSearch(List<TimeRange> ranges, String siteId, KpiInterval interval) {
         try {
-            if (topN < 1) topN = 1;
+            Scope scope = scope(List.of(KpiId.THROUGHPUT_PER_MINUTE), ranges, interval, null, null);
+            return search(KpiId.THROUGHPUT_PER_MINUTE, scope, siteId, 0);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed THROUGHPUT_PER_MINUTE KPI", e);
+        }
+    }
 
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildEventsPerHourByTypeQuery(from, to, siteId));
+    // Pairs every histogram bucket of a bucketed KPI response (hourlySearch or throughputSearch) with
+    // its start and doc_count.
+    public List<KpiBucket> buckets(KpiId id, AggResponse r, KpiRequest req) {
+        if (!isBucketed(id)) throw new IllegalArgumentException(id + " is not a bucketed KPI");
 
-            Response resp = restClient.performRequest(req);
+        String agg = id == KpiId.THROUGHPUT_PER_MINUTE ? "per_minute" : "per_hour";
+        List<Agg> raw = r.agg(agg).buckets();
+        List<?> dtos = (List<?>) parse(id, r, req);
+        if (dtos.size() != raw.size()) {
+            throw new IllegalStateException("Expected " + raw.size() + " buckets for " + id + " but parsed " + dtos.size());
+        }
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode hourBuckets = root.path("aggregations").path("events_per_hour").path("buckets");
+        List<KpiBucket> out = new ArrayList<>(dtos.size());
+        for (int i = 0; i < dtos.size(); i++) {
+            Agg b = raw.get(i);
+            out.add(new KpiBucket(b.keyMillis(), b.docCount(), dtos.get(i)));
+        }
+        return out;
+    }
 
-                List<HourlyStackedDTO> out = new ArrayList<>();
+    // ---------------- Unique counts ----------------
 
-                if (hourBuckets.isArray()) {
-                    for (JsonNode hb : hourBuckets) {
-                        String hour = hb.path("key_as_string").asText(null);
-                        long total = hb.path("doc_count").asLong(0);
+    // KPIs built on cardinality aggregations, the only ones a request precision applies to
+    static final Set<KpiId> UNIQUE_COUNTS = EnumSet.of(
+            KpiId.UNIQUE_ACTORS_PER_HOUR,
+            KpiId.UNIQUE_SESSIONS_PER_HOUR,
+            KpiId.ACTOR_ACTIVITY_SUMMARY
+    );
 
-                        List<DonutSliceDTO> byType = new ArrayList<>();
-                        JsonNode typeBuckets = hb.path("by_type").path("buckets");
+    static boolean countsUnique(KpiId id) {
+        return UNIQUE_COUNTS.contains(id);
+    }
 
-                        if (typeBuckets.isArray()) {
-                            for (JsonNode tb : typeBuckets) {
-                                String label = tb.path("key").asText(null);
-                                long count = tb.path("doc_count").asLong(0);
-                                if (label != null) byType.add(new DonutSliceDTO(label, count));
-                            }
-                        }
+    // ---------------- Duration percentiles ----------------
 
-                        // sort desc
-                        byType.sort((a, b) -> Long.compare(b.value(), a.value()));
+    // KPIs reporting duration percentiles, the only ones request percentiles apply to
+    static final Set<KpiId> PERCENTILE_KPIS = EnumSet.of(
+            KpiId.DURATION_STATS_PER_HOUR,
+            KpiId.DURATION_STATS_BY_EVENT_TYPE
+    );
 
-                        List<DonutSliceDTO> trimmed = new ArrayList<>();
-                        long other = 0;
+    static boolean usesPercentiles(KpiId id) {
+        return PERCENTILE_KPIS.contains(id);
+    }
 
-                        for (int i = 0; i < byType.size(); i++) {
-                            DonutSliceDTO slice = byType.get(i);
-                            if (i < topN) trimmed.add(slice);
-                            else other += slice.value();
-                        }
+    // HDR histograms with enough significant digits to keep percentiles within the configured accuracy,
+    // the bound the rollups' duration histograms give (see DurationBuckets)
+    static String percentilesMethod(double accuracy) {
+        int digits = (int) Math.min(5, Math.max(1, Math.ceil(-Math.log10(accuracy))));
+        return "\"hdr\":{\"number_of_significant_value_digits\":" + digits + "}";
+    }
 
-                        if (other > 0) trimmed.add(new DonutSliceDTO("OTHER", other));
+    // p95 is always computed: p95DurationMs stays in every response
+    private String percents(List<Double> percentiles) {
+        StringJoiner sj = new StringJoiner(",", "\"percents\":[", "],");
+        TreeSet<Double> all = new TreeSet<>(percentiles == null ? KpiPercentiles.DEFAULT : percentiles);
+        all.add(95.0);
+        for (Double p : all) sj.add(p.toString());
+        return sj + percentilesMethod;
+    }
 
-                        if (hour != null) out.add(new HourlyStackedDTO(hour, total, trimmed));
-                    }
-                }
+    // percent -> duration (ms, two decimals) for the requested percentiles, 0.0 when missing
+    private static Map<String, Double> percentiles(Agg agg, List<Double> percentiles) {
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (double p : percentiles == null ? KpiPercentiles.DEFAULT : percentiles) {
+            String key = KpiPercentiles.key(p);
+            out.put(key, Math.round(agg.percentile(key, 0.0) * 100.0) / 100.0);
+        }
+        return out;
+    }
+
+    // ---------------- Rollup index routing ----------------
+
+    // KPIs that only need counts, success, eventType, siteId, the hour and duration avg/percentiles:
+    // warehouse_events_hourly (see RollupIndexJob) answers them for whole materialized hours
+    static final Set<KpiId> ROLLUP_ELIGIBLE = EnumSet.of(
+            KpiId.EVENT_TYPE_BREAKDOWN,
+            KpiId.EVENTS_PER_HOUR,
+            KpiId.EVENTS_PER_HOUR_BY_TYPE,
+            KpiId.ERROR_RATE_PER_HOUR,
+            KpiId.DURATION_STATS_PER_HOUR,
+            KpiId.SUCCESS_RATE,
+            KpiId.SITE_VOLUME_AND_SUCCESS,
+            KpiId.SUCCESS_RATE_BY_EVENT_TYPE,
+            KpiId.DURATION_STATS_BY_EVENT_TYPE,
+            KpiId.TOP_EVENT_TYPES,
+            KpiId.ERROR_TYPES_BREAKDOWN,
+            KpiId.PEAK_HOUR,
+            KpiId.LOWEST_SUCCESS_EVENT_TYPE,
+            KpiId.EVENT_TYPE_PERCENTAGE_DISTRIBUTION
+    );
+
+    // Where a search runs: the indices (only the daily event indices the ranges overlap), the time
+    // filter, the field percentiles read, the histogram interval of time-series KPIs, the cardinality
+    // precision_threshold (null when not set) and the percents and method of percentiles aggregations.
+    // Rollup documents carry _doc_count, so aggregations count them as the events they stand for.
+    record Scope(String indices, String filter, String durationSketch, String interval, Integer precision,
+                 String percents) {}
+
+    private Scope scope(KpiId id, Instant from, Instant to) {
+        return scope(id, from, to, null, null);
+    }
+
+    private Scope scope(KpiId id, Instant from, Instant to, Integer precision, List<Double> percentiles) {
+        return scope(List.of(id), List.of(new TimeRange(from, to)), KpiInterval.defaultFor(id), precision, percentiles);
+    }
 
-                return out;
+    // Closed hours come from the rollup index, the open edges and dirty hours from raw events.
+    // Rollup documents are stamped with their hour, so sub-hour histograms always read raw events.
+    private Scope scope(Collection<KpiId> ids, List<TimeRange> ranges, KpiInterval interval, Integer precision,
+                        List<Double> percentiles) {
+        String histogram = interval == null ? null : interval.text();
+        String percents = percents(percentiles);
+        SortedSet<String> days = new TreeSet<>();
+        for (TimeRange r : ranges) eventIndices.add(days, r.from().toEpochMilli(), r.to().toEpochMilli());
+        Scope raw = new Scope(eventIndices.join(days), rangeTimestamp(ranges), "durationMs", histogram, precision, percents);
+        if (!rollupIndex.isAvailable() || !ROLLUP_ELIGIBLE.containsAll(ids)) return raw;
+        if (interval != null && interval.millis() < KpiInterval.H1.millis()) return raw;
+
+        List<String> rolled = new ArrayList<>();
+        List<String> rest = new ArrayList<>();
+        SortedSet<String> restDays = new TreeSet<>();
+        for (TimeRange r : ranges) {
+            // a sub-millisecond from is after its millisecond: don't let its hour start a span
+            long fromMs = r.from().toEpochMilli() + (r.from().getNano() % 1_000_000 == 0 ? 0 : 1);
+            List<RollupIndexState.Span> spans = rollupIndex.materialized(fromMs, r.to().toEpochMilli());
+            if (spans.isEmpty()) {
+                rest.add(rangeTimestamp(r.from(), r.to()));
+                eventIndices.add(restDays, r.from().toEpochMilli(), r.to().toEpochMilli());
+                continue;
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed EVENTS_PER_HOUR_BY_TYPE KPI", e);
+
+            Instant edge = r.from();
+            for (RollupIndexState.Span span : spans) {
+                Instant start = Instant.ofEpochMilli(span.fromMs());
+                if (edge.isBefore(start)) {
+                    rest.add(rangeTimestamp(edge, start, "lt"));
+                    eventIndices.add(restDays, edge.toEpochMilli(), span.fromMs() - 1);
+                }
+                rolled.add(rangeTimestamp(start, Instant.ofEpochMilli(span.toMs()), "lt"));
+                edge = Instant.ofEpochMilli(span.toMs());
+            }
+            if (!edge.isAfter(r.to())) {
+                rest.add(rangeTimestamp(edge, r.to()));
+                eventIndices.add(restDays, edge.toEpochMilli(), r.to().toEpochMilli());
+            }
+        }
+        if (rolled.isEmpty()) return raw;
+
+        StringBuilder sb = new StringBuilder("{\"bool\":{\"should\":[");
+        sb.append("{\"bool\":{\"filter\":[").append(term("_index", RollupIndexState.INDEX)).append(',')
+                .append(anyOf(rolled)).append("]}}");
+        String indices = RollupIndexState.INDEX;
+        if (!rest.isEmpty()) {
+            sb.append(",{\"bool\":{\"must_not\":").append(term("_index", RollupIndexState.INDEX))
+                    .append(",\"filter\":[").append(anyOf(rest)).append("]}}");
+            indices = eventIndices.join(restDays) + "," + indices;
         }
+        sb.append("],\"minimum_should_match\":1}}");
+        return new Scope(indices, sb.toString(), "durationHistogram", histogram, precision, percents);
     }
 
-    // ---------------- KPI: Error Rate Per Hour ----------------
+    // the KPI's result from a response to its own search body
+    public Object parse(KpiId id, AggResponse r, KpiRequest req) {
+        return switch (id) {
+            case EVENT_TYPE_BREAKDOWN -> parseEventTypeBreakdown(r);
+            case EVENTS_PER_HOUR -> parseEventsPerHour(r);
+            case EVENTS_PER_HOUR_BY_TYPE -> parseEventsPerHourByType(r, topN(req));
+            case ERROR_RATE_PER_HOUR -> parseErrorRatePerHour(r);
+            case DURATION_STATS_PER_HOUR -> parseDurationStatsPerHour(r, req.percentiles());
+            case SUCCESS_RATE -> parseSuccessRate(r);
+            case TOP_ACTORS -> parseTopActors(r);
+            case SITE_VOLUME_AND_SUCCESS -> parseSiteVolumeAndSuccess(r);
+            case UNIQUE_ACTORS_PER_HOUR -> parseUniqueActorsPerHour(r);
+            case UNIQUE_SESSIONS_PER_HOUR -> parseUniqueSessionsPerHour(r);
+            case SUCCESS_RATE_BY_EVENT_TYPE -> parseSuccessRateByEventType(r);
+            case DURATION_STATS_BY_EVENT_TYPE -> parseDurationStatsByEventType(r, req.percentiles());
+            case TOP_SESSIONS_BY_EVENT_COUNT -> parseTopSessionsByEventCount(r);
+            case TOP_EVENT_TYPES -> parseTopEventTypes(r);
+            case THROUGHPUT_PER_MINUTE -> parseThroughputPerMinute(r);
+            case ERROR_TYPES_BREAKDOWN -> parseErrorTypesBreakdown(r);
+            case TOP_LONGEST_EVENTS -> parseTopLongestEvents(r);
+            case ACTOR_ACTIVITY_SUMMARY -> parseActorActivitySummary(r);
+            case PEAK_HOUR -> parsePeakHour(r);
+            case LOWEST_SUCCESS_EVENT_TYPE -> parseLowestSuccessEventType(r);
+            case EVENT_TYPE_PERCENTAGE_DISTRIBUTION -> parseEventTypePercentageDistribution(r);
+        };
+    }
 
-    public List<HourlyErrorRateDTO> errorRatePerHour(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildErrorRatePerHourQuery(from, to, siteId));
+    private AggResponse search(KpiId id, Scope scope, String siteId, int size) throws IOException {
+        return search(id.name(), scope, KpiQueryTemplates.of(id), siteId, size);
+    }
 
-            Response resp = restClient.performRequest(req);
+    // size only matters to the KPIs with a limit; the others' templates have no {{SIZE}} slot
+    private AggResponse search(String kpi, Scope scope, QueryTemplate template, String siteId, int size) throws IOException {
+        return read(kpi, await(kpi, searchRequest(kpi, scope, template, siteId, size)));
+    }
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode hourBuckets = root.path("aggregations").path("errors_per_hour").path("buckets");
+    private Request searchRequest(String kpi, Scope scope, QueryTemplate template, String siteId, int size) {
+        long start = System.nanoTime();
+        Request req = new Request("POST", "/" + scope.indices() + "/_search");
+        req.addParameter("ignore_unavailable", "true"); // days without events have no index
+        String routing = routing(template, siteId);
+        if (routing != null) req.addParameter("routing", routing);
+        req.setEntity(render(template, scope, siteId, size).toEntity(ContentType.APPLICATION_JSON));
+        metrics.phase(kpi, "build", start);
+        return req;
+    }
 
-                List<HourlyErrorRateDTO> out = new ArrayList<>();
+    // Events are routed by siteId (see EventIndices), so a search that only matches one site only
+    // needs that site's shard. Rollup documents are routed the same way.
+    private String routing(QueryTemplate template, String siteId) {
+        return template.filtersSite() ? eventIndices.routing(siteId) : null;
+    }
 
-                if (hourBuckets.isArray()) {
-                    for (JsonNode hb : hourBuckets) {
-                        String hour = hb.path("key_as_string").asText(null);
-                        long total = hb.path("doc_count").asLong(0);
-                        long errors = hb.path("errors_only").path("doc_count").asLong(0);
+    private static JsonBytes render(QueryTemplate template, Scope scope, String siteId, int size) {
+        JsonBytes body = new JsonBytes(template.sizeHint(scope.filter().length()));
+        template.render(body, scope.filter(), siteId, size, scope.durationSketch(), scope.interval(), scope.precision(),
+                scope.percents());
+        return body;
+    }
 
-                        double rate = total == 0 ? 0.0 : (errors * 100.0) / total;
-                        rate = Math.round(rate * 100.0) / 100.0;
+    private AggResponse read(String kpi, Response resp) throws IOException {
+        long start = System.nanoTime();
+        try (CountingInputStream is = new CountingInputStream(resp.getEntity().getContent());
+             JsonParser p = mapper.createParser(is)) {
+            AggResponse r = AggResponse.read(p);
+            metrics.phase(kpi, "parse", start);
+            metrics.took(kpi, r.took());
+            metrics.esResponseBytes(kpi, is.count());
+            return r;
+        }
+    }
 
-                        if (hour != null) out.add(new HourlyErrorRateDTO(hour, total, errors, rate));
-                    }
-                }
+    private int topN(KpiRequest req) {
+        return req.topN() == null ? 5 : Math.max(1, req.topN());
+    }
 
-                return out;
-            }
+    private int limit(KpiRequest req) {
+        return req.limit() == null ? 10 : Math.max(1, req.limit());
+    }
+
+    // ---------------- KPI: Event Type Breakdown (donut) ----------------
+
+    public List<DonutSliceDTO> eventTypeBreakdown(Instant from, Instant to, String siteId) {
+        try {
+            Scope scope = scope(KpiId.EVENT_TYPE_BREAKDOWN, from, to);
+            return parseEventTypeBreakdown(search(KpiId.EVENT_TYPE_BREAKDOWN, scope, siteId, 0));
         } catch (Exception e) {
-            throw new RuntimeException("Failed ERROR_RATE_PER_HOUR KPI", e);
+            throw new RuntimeException("Failed EVENT_TYPE_BREAKDOWN KPI", e);
         }
     }
 
-    // ---------------- KPI: Duration Stats Per Hour (avg + p95) ----------------
+    private List<DonutSliceDTO> parseEventTypeBreakdown(AggResponse r) {
+        List<Agg> buckets = r.agg("by_event_type").buckets();
 
-    public List<HourlyDurationStatsDTO> durationStatsPerHour(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildDurationStatsPerHourQuery(from, to, siteId));
+        List<DonutSliceDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String key = b.key();
+            long count = b.docCount();
+            if (key != null) out.add(new DonutSliceDTO(key, count));
+        }
+        return out;
+    }
 
-            Response resp = restClient.performRequest(req);
+    // ---------------- KPI: Events Per Hour ----------------
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode hourBuckets = root.path("aggregations").path("duration_per_hour").path("buckets");
+    private List<HourlyCountDTO> parseEventsPerHour(AggResponse r) {
+        List<Agg> buckets = r.agg("events_per_hour").buckets();
 
-                List<HourlyDurationStatsDTO> out = new ArrayList<>();
+        List<HourlyCountDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String hour = b.keyAsString();
+            long count = b.docCount();
+            if (hour != null) out.add(new HourlyCountDTO(hour, count));
+        }
+        return out;
+    }
 
-                if (hourBuckets.isArray()) {
-                    for (JsonNode hb : hourBuckets) {
-                        String hour = hb.path("key_as_string").asText(null);
+    // ---------------- KPI: Stacked Events Per Hour by Type (topN + OTHER) ----------------
 
-                        double avg = hb.path("avg_duration").path("value").asDouble(0.0);
+    private List<HourlyStackedDTO> parseEventsPerHourByType(AggResponse r, int topN) {
+        List<Agg> hourBuckets = r.agg("events_per_hour").buckets();
 
-                        JsonNode p95Node = hb.path("p95_duration").path("values").path("95.0");
-                        double p95 = (p95Node.isMissingNode() || p95Node.isNull()) ? 0.0 : p95Node.asDouble(0.0);
+        List<HourlyStackedDTO> out = new ArrayList<>();
 
-                        avg = Math.round(avg * 100.0) / 100.0;
-                        p95 = Math.round(p95 * 100.0) / 100.0;
+        for (Agg hb : hourBuckets) {
+            String hour = hb.keyAsString();
+            long total = hb.docCount();
 
-                        if (hour != null) out.add(new HourlyDurationStatsDTO(hour, avg, p95));
-                    }
-                }
+            List<DonutSliceDTO> byType = new ArrayList<>();
+            List<Agg> typeBuckets = hb.agg("by_type").buckets();
 
-                return out;
+            for (Agg tb : typeBuckets) {
+                String label = tb.key();
+                long count = tb.docCount();
+                if (label != null) byType.add(new DonutSliceDTO(label, count));
             }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed DURATION_STATS_PER_HOUR KPI", e);
+
+            // sort desc
+            byType.sort((a, b) -> Long.compare(b.value(), a.value()));
+
+            List<DonutSliceDTO> trimmed = new ArrayList<>();
+            long other = 0;
+
+            for (int i = 0; i < byType.size(); i++) {
+                DonutSliceDTO slice = byType.get(i);
+                if (i < topN) trimmed.add(slice);
+                else other += slice.value();
+            }
+
+            if (other > 0) trimmed.add(new DonutSliceDTO("OTHER", other));
+
+            if (hour != null) out.add(new HourlyStackedDTO(hour, total, trimmed));
         }
+
+        return out;
     }
 
-    // ---------------- KPI: Success Rate (overall) ----------------
+    // ---------------- KPI: Error Rate Per Hour ----------------
 
-    public SuccessRateDTO successRate(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildSuccessRateQuery(from, to, siteId));
+    private List<HourlyErrorRateDTO> parseErrorRatePerHour(AggResponse r) {
+        List<Agg> hourBuckets = r.agg("errors_per_hour").buckets();
+
+        List<HourlyErrorRateDTO> out = new ArrayList<>();
+
+        for (Agg hb : hourBuckets) {
+            String hour = hb.keyAsString();
+            long total = hb.docCount();
+            long errors = hb.agg("errors_only").docCount();
+
+            double rate = total == 0 ? 0.0 : (errors * 100.0) / total;
+            rate = Math.round(rate * 100.0) / 100.0;
+
+            if (hour != null) out.add(new HourlyErrorRateDTO(hour, total, errors, rate));
+        }
+
+        return out;
+    }
 
-            Response resp = restClient.performRequest(req);
+    // ---------------- KPI: Duration Stats Per Hour (avg + percentiles) ----------------
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
+    private List<HourlyDurationStatsDTO> parseDurationStatsPerHour(AggResponse r, List<Double> percentiles) {
+        List<Agg> hourBuckets = r.agg("duration_per_hour").buckets();
 
-                long total = root.path("hits").path("total").path("value").asLong(0);
-                long success = root.path("aggregations").path("successful_events").path("doc_count").asLong(0);
+        List<HourlyDurationStatsDTO> out = new ArrayList<>();
 
-                double rate = total == 0 ? 0.0 : (success * 100.0) / total;
-                rate = Math.round(rate * 100.0) / 100.0;
+        for (Agg hb : hourBuckets) {
+            String hour = hb.keyAsString();
 
-                return new SuccessRateDTO(total, success, rate);
+            double avg = hb.agg("avg_duration").value(0.0);
+
+            double p95 = hb.agg("duration_percentiles").percentile("95.0", 0.0);
+
+            avg = Math.round(avg * 100.0) / 100.0;
+            p95 = Math.round(p95 * 100.0) / 100.0;
+
+            if (hour != null) {
+                out.add(new HourlyDurationStatsDTO(hour, avg, p95, percentiles(hb.agg("duration_percentiles"), percentiles)));
             }
+        }
+
+        return out;
+    }
+
+    // ---------------- KPI: Success Rate (overall) ----------------
+
+    public SuccessRateDTO successRate(Instant from, Instant to, String siteId) {
+        try {
+            Scope scope = scope(KpiId.SUCCESS_RATE, from, to);
+            return parseSuccessRate(search(KpiId.SUCCESS_RATE, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed SUCCESS_RATE KPI", e);
         }
     }
 
+    private SuccessRateDTO parseSuccessRate(AggResponse r) {
+        long total = r.agg("all_events").docCount();
+        long success = r.agg("successful_events").docCount();
+
+        double rate = total == 0 ? 0.0 : (success * 100.0) / total;
+        rate = Math.round(rate * 100.0) / 100.0;
+
+        return new SuccessRateDTO(total, success, rate);
+    }
+
     // ---------------- KPI: Top Actors ----------------
 
     public List<LeaderboardEntryDTO> topActors(Instant from, Instant to, String siteId, int limit) {
         try {
+            Scope scope = scope(KpiId.TOP_ACTORS, from, to);
             if (limit < 1) limit = 1;
-
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildTopActorsQuery(from, to, siteId, limit));
-
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("top_actors").path("buckets");
-
-                List<LeaderboardEntryDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String actorId = b.path("key").asText(null);
-                        long count = b.path("doc_count").asLong(0);
-                        if (actorId != null) out.add(new LeaderboardEntryDTO(actorId, count));
-                    }
-                }
-                return out;
-            }
+            return parseTopActors(search(KpiId.TOP_ACTORS, scope, siteId, limit));
         } catch (Exception e) {
             throw new RuntimeException("Failed TOP_ACTORS KPI", e);
         }
     }
 
+    private List<LeaderboardEntryDTO> parseTopActors(AggResponse r) {
+        List<Agg> buckets = r.agg("top_actors").buckets();
+
+        List<LeaderboardEntryDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String actorId = b.key();
+            long count = b.docCount();
+            if (actorId != null) out.add(new LeaderboardEntryDTO(actorId, count));
+        }
+        return out;
+    }
+
     public List<SiteVolumeSuccessDTO> siteVolumeAndSuccess(Instant from, Instant to, String siteId) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildSiteVolumeAndSuccessQuery(from, to, siteId));
-
-            Response resp = restClient.performRequest(req);
+            Scope scope = scope(KpiId.SITE_VOLUME_AND_SUCCESS, from, to);
+            return parseSiteVolumeAndSuccess(search(KpiId.SITE_VOLUME_AND_SUCCESS, scope, siteId, 0));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed SITE_VOLUME_AND_SUCCESS KPI", e);
+        }
+    }
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("by_site").path("buckets");
+    private List<SiteVolumeSuccessDTO> parseSiteVolumeAndSuccess(AggResponse r) {
+        List<Agg> buckets = r.agg("by_site").buckets();
 
-                List<SiteVolumeSuccessDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String s = b.path("key").asText(null);
-                        long total = b.path("doc_count").asLong(0);
-                        long success = b.path("success_only").path("doc_count").asLong(0);
+        List<SiteVolumeSuccessDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String s = b.key();
+            long total = b.docCount();
+            long success = b.agg("success_only").docCount();
 
-                        double rate = total == 0 ? 0.0 : (success * 100.0) / total;
-                        rate = Math.round(rate * 100.0) / 100.0;
+            double rate = total == 0 ? 0.0 : (success * 100.0) / total;
+            rate = Math.round(rate * 100.0) / 100.0;
 
-                        if (s != null) out.add(new SiteVolumeSuccessDTO(s, total, success, rate));
-                    }
-                }
-                return out;
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed SITE_VOLUME_AND_SUCCESS KPI", e);
+            if (s != null) out.add(new SiteVolumeSuccessDTO(s, total, success, rate));
         }
-
+        return out;
     }
-    public List<HourlyUniqueCountDTO> uniqueActorsPerHour(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildUniqueActorsPerHourQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("per_hour").path("buckets");
-
-                List<HourlyUniqueCountDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String hour = b.path("key_as_string").asText(null);
-                        long unique = b.path("unique_actors").path("value").asLong(0);
-                        if (hour != null) out.add(new HourlyUniqueCountDTO(hour, unique));
-                    }
-                }
-                return out;
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed UNIQUE_ACTORS_PER_HOUR KPI", e);
+    private List<HourlyUniqueCountDTO> parseUniqueActorsPerHour(AggResponse r) {
+        List<Agg> buckets = r.agg("per_hour").buckets();
+
+        List<HourlyUniqueCountDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String hour = b.keyAsString();
+            long unique = (long) b.agg("unique_actors").value(0);
+            if (hour != null) out.add(new HourlyUniqueCountDTO(hour, unique));
         }
+        return out;
     }
-    public List<HourlyUniqueSessionsDTO> uniqueSessionsPerHour(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildUniqueSessionsPerHourQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("per_hour").path("buckets");
-
-                List<HourlyUniqueSessionsDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String hour = b.path("key_as_string").asText(null);
-                        long unique = b.path("unique_sessions").path("value").asLong(0);
-                        if (hour != null) out.add(new HourlyUniqueSessionsDTO(hour, unique));
-                    }
-                }
-                return out;
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed UNIQUE_SESSIONS_PER_HOUR KPI", e);
+    private List<HourlyUniqueSessionsDTO> parseUniqueSessionsPerHour(AggResponse r) {
+        List<Agg> buckets = r.agg("per_hour").buckets();
+
+        List<HourlyUniqueSessionsDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String hour = b.keyAsString();
+            long unique = (long) b.agg("unique_sessions").value(0);
+            if (hour != null) out.add(new HourlyUniqueSessionsDTO(hour, unique));
         }
+        return out;
     }
     public List<EventTypeSuccessDTO> successRateByEventType(Instant from, Instant to, String siteId) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildSuccessRateByEventTypeQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("by_type").path("buckets");
-
-                List<EventTypeSuccessDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String type = b.path("key").asText(null);
-                        long total = b.path("doc_count").asLong(0);
-                        long success = b.path("success_only").path("doc_count").asLong(0);
-                        double rate = total == 0 ? 0.0 : (success * 100.0) / total;
-                        rate = Math.round(rate * 100.0) / 100.0;
-                        if (type != null) out.add(new EventTypeSuccessDTO(type, total, success, rate));
-                    }
-                }
-                return out;
-            }
+            Scope scope = scope(KpiId.SUCCESS_RATE_BY_EVENT_TYPE, from, to);
+            return parseSuccessRateByEventType(search(KpiId.SUCCESS_RATE_BY_EVENT_TYPE, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed SUCCESS_RATE_BY_EVENT_TYPE KPI", e);
         }
     }
+
+    private List<EventTypeSuccessDTO> parseSuccessRateByEventType(AggResponse r) {
+        List<Agg> buckets = r.agg("by_type").buckets();
+
+        List<EventTypeSuccessDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String type = b.key();
+            long total = b.docCount();
+            long success = b.agg("success_only").docCount();
+            double rate = total == 0 ? 0.0 : (success * 100.0) / total;
+            rate = Math.round(rate * 100.0) / 100.0;
+            if (type != null) out.add(new EventTypeSuccessDTO(type, total, success, rate));
+        }
+        return out;
+    }
     public List<SessionCountDTO> topSessionsByEventCount(Instant from, Instant to, String siteId, int limit) {
         try {
+            Scope scope = scope(KpiId.TOP_SESSIONS_BY_EVENT_COUNT, from, to);
             if (limit < 1) limit = 1;
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildTopSessionsByEventCountQuery(from, to, siteId, limit));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("top_sessions").path("buckets");
-
-                List<SessionCountDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String s = b.path("key").asText(null);
-                        long c = b.path("doc_count").asLong(0);
-                        if (s != null) out.add(new SessionCountDTO(s, c));
-                    }
-                }
-                return out;
-            }
+            return parseTopSessionsByEventCount(search(KpiId.TOP_SESSIONS_BY_EVENT_COUNT, scope, siteId, limit));
         } catch (Exception e) {
             throw new RuntimeException("Failed TOP_SESSIONS_BY_EVENT_COUNT KPI", e);
         }
     }
 
-    private String buildTopSessionsByEventCountQuery(Instant from, Instant to, String siteId, int limit) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"top_sessions\":{\"terms\":{\"field\":\"sessionId\",\"size\":")
-                .append(limit).append(",\"order\":{\"_count\":\"desc\"}}}}}");
-        return sb.toString();
+    private List<SessionCountDTO> parseTopSessionsByEventCount(AggResponse r) {
+        List<Agg> buckets = r.agg("top_sessions").buckets();
+
+        List<SessionCountDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String s = b.key();
+            long c = b.docCount();
+            if (s != null) out.add(new SessionCountDTO(s, c));
+        }
+        return out;
     }
-    public List<EventTypeDurationStatsDTO> durationStatsByEventType(Instant from, Instant to, String siteId) {
+
+    public List<EventTypeDurationStatsDTO> durationStatsByEventType(Instant from, Instant to, String siteId,
+                                                                    List<Double> percentiles) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildDurationStatsByEventTypeQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("by_type").path("buckets");
-
-                List<EventTypeDurationStatsDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String type = b.path("key").asText(null);
-                        double avg = b.path("avg_duration").path("value").asDouble(0.0);
-                        JsonNode p95Node = b.path("p95_duration").path("values").path("95.0");
-                        double p95 = (p95Node.isMissingNode() || p95Node.isNull()) ? 0.0 : p95Node.asDouble(0.0);
-                        avg = Math.round(avg * 100.0) / 100.0;
-                        p95 = Math.round(p95 * 100.0) / 100.0;
-                        if (type != null) out.add(new EventTypeDurationStatsDTO(type, avg, p95));
-                    }
-                }
-                return out;
-            }
+            Scope scope = scope(KpiId.DURATION_STATS_BY_EVENT_TYPE, from, to, null, percentiles);
+            return parseDurationStatsByEventType(search(KpiId.DURATION_STATS_BY_EVENT_TYPE, scope, siteId, 0), percentiles);
         } catch (Exception e) {
             throw new RuntimeException("Failed DURATION_STATS_BY_EVENT_TYPE KPI", e);
         }
     }
+
+    private List<EventTypeDurationStatsDTO> parseDurationStatsByEventType(AggResponse r, List<Double> percentiles) {
+        List<Agg> buckets = r.agg("by_type").buckets();
+
+        List<EventTypeDurationStatsDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String type = b.key();
+            double avg = b.agg("avg_duration").value(0.0);
+            double p95 = b.agg("duration_percentiles").percentile("95.0", 0.0);
+            avg = Math.round(avg * 100.0) / 100.0;
+            p95 = Math.round(p95 * 100.0) / 100.0;
+            if (type != null) {
+                out.add(new EventTypeDurationStatsDTO(type, avg, p95, percentiles(b.agg("duration_percentiles"), percentiles)));
+            }
+        }
+        return out;
+    }
     public List<DonutSliceDTO> topEventTypes(Instant from, Instant to, String siteId, int limit) {
         try {
+            Scope scope = scope(KpiId.TOP_EVENT_TYPES, from, to);
             if (limit < 1) limit = 1;
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildTopEventTypesQuery(from, to, siteId, limit));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("top_types").path("buckets");
-
-                List<DonutSliceDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String k = b.path("key").asText(null);
-                        long c = b.path("doc_count").asLong(0);
-                        if (k != null) out.add(new DonutSliceDTO(k, c));
-                    }
-                }
-                return out;
-            }
+            return parseTopEventTypes(search(KpiId.TOP_EVENT_TYPES, scope, siteId, limit));
         } catch (Exception e) {
             throw new RuntimeException("Failed TOP_EVENT_TYPES KPI", e);
         }
     }
-    public List<HourlyCountDTO> throughputPerMinute(Instant from, Instant to, String siteId) {
+
+    private List<DonutSliceDTO> parseTopEventTypes(AggResponse r) {
+        List<Agg> buckets = r.agg("top_types").buckets();
+
+        List<DonutSliceDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String k = b.key();
+            long c = b.docCount();
+            if (k != null) out.add(new DonutSliceDTO(k, c));
+        }
+        return out;
+    }
+    public List<HourlyCountDTO> throughputPerMinute(Instant from, Instant to, String siteId, KpiInterval interval) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildThroughputPerMinuteQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("per_minute").path("buckets");
-
-                List<HourlyCountDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String t = b.path("key_as_string").asText(null);
-                        long c = b.path("doc_count").asLong(0);
-                        if (t != null) out.add(new HourlyCountDTO(t, c));
-                    }
-                }
-                return out;
-            }
+            Scope scope = scope(List.of(KpiId.THROUGHPUT_PER_MINUTE), List.of(new TimeRange(from, to)), interval, null, null);
+            return parseThroughputPerMinute(search(KpiId.THROUGHPUT_PER_MINUTE, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed THROUGHPUT_PER_MINUTE KPI", e);
         }
     }
+
+    private List<HourlyCountDTO> parseThroughputPerMinute(AggResponse r) {
+        List<Agg> buckets = r.agg("per_minute").buckets();
+
+        List<HourlyCountDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String t = b.keyAsString();
+            long c = b.docCount();
+            if (t != null) out.add(new HourlyCountDTO(t, c));
+        }
+        return out;
+    }
     public List<DonutSliceDTO> errorTypesBreakdown(Instant from, Instant to, String siteId) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildErrorTypesBreakdownQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("by_type").path("buckets");
-
-                List<DonutSliceDTO> out = new ArrayList<>();
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String k = b.path("key").asText(null);
-                        long c = b.path("doc_count").asLong(0);
-                        if (k != null) out.add(new DonutSliceDTO(k, c));
-                    }
-                }
-                return out;
-            }
+            Scope scope = scope(KpiId.ERROR_TYPES_BREAKDOWN, from, to);
+            return parseErrorTypesBreakdown(search(KpiId.ERROR_TYPES_BREAKDOWN, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed ERROR_TYPES_BREAKDOWN KPI", e);
         }
     }
-    public ActivitySummaryDTO actorActivitySummary(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildActorActivitySummaryQuery(from, to, siteId));
 
-            Response resp = restClient.performRequest(req);
+    private List<DonutSliceDTO> parseErrorTypesBreakdown(AggResponse r) {
+        List<Agg> buckets = r.agg("by_type").buckets();
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                long total = root.path("hits").path("total").path("value").asLong(0);
-                long actors = root.path("aggregations").path("unique_actors").path("value").asLong(0);
-                long sessions = root.path("aggregations").path("unique_sessions").path("value").asLong(0);
-                return new ActivitySummaryDTO(total, actors, sessions);
-            }
+        List<DonutSliceDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String k = b.key();
+            long c = b.docCount();
+            if (k != null) out.add(new DonutSliceDTO(k, c));
+        }
+        return out;
+    }
+    public ActivitySummaryDTO actorActivitySummary(Instant from, Instant to, String siteId, Integer precision) {
+        try {
+            Scope scope = scope(KpiId.ACTOR_ACTIVITY_SUMMARY, from, to, precision, null);
+            return parseActorActivitySummary(search(KpiId.ACTOR_ACTIVITY_SUMMARY, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed ACTOR_ACTIVITY_SUMMARY KPI", e);
         }
     }
+
+    private ActivitySummaryDTO parseActorActivitySummary(AggResponse r) {
+        long total = r.agg("all_events").docCount();
+        long actors = (long) r.agg("unique_actors").value(0);
+        long sessions = (long) r.agg("unique_sessions").value(0);
+        return new ActivitySummaryDTO(total, actors, sessions);
+    }
     public List<LongestEventDTO> topLongestEvents(Instant from, Instant to, String siteId, int limit) {
         try {
+            Scope scope = scope(KpiId.TOP_LONGEST_EVENTS, from, to);
             if (limit < 1) limit = 1;
-
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildTopLongestEventsQuery(from, to, siteId, limit));
-
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode hits = root.path("hits").path("hits");
-
-                List<LongestEventDTO> out = new ArrayList<>();
-                if (hits.isArray()) {
-                    for (JsonNode h : hits) {
-                        String id = h.path("_id").asText(null);
-                        JsonNode src = h.path("_source");
-
-                        out.add(new LongestEventDTO(
-                                id,
-                                src.path("timestamp").asText(null),
-                                src.path("eventType").asText(null),
-                                src.path("sessionId").asText(null),
-                                src.path("actorId").asText(null),
-                                src.path("siteId").asText(null),
-                                src.path("durationMs").asLong(0),
-                                src.path("success").asBoolean(false)
-                        ));
-                    }
-                }
-                return out;
-            }
-
+            return parseTopLongestEvents(search(KpiId.TOP_LONGEST_EVENTS, scope, siteId, limit));
         } catch (Exception e) {
             throw new RuntimeException("Failed TOP_LONGEST_EVENTS KPI", e);
         }
     }
+
+    private List<LongestEventDTO> parseTopLongestEvents(AggResponse r) {
+        return r.hits();
+    }
     public PeakHourDTO peakHour(Instant from, Instant to, String siteId) {
         try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildPeakHourQuery(from, to, siteId));
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("per_hour").path("buckets");
-
-                if (buckets.isArray() && buckets.size() > 0) {
-                    JsonNode b = buckets.get(0);
-                    String hour = b.path("key_as_string").asText(null);
-                    long count = b.path("doc_count").asLong(0);
-                    return new PeakHourDTO(hour, count);
-                }
-                return new PeakHourDTO(null, 0);
-            }
+            Scope scope = scope(KpiId.PEAK_HOUR, from, to);
+            return parsePeakHour(search(KpiId.PEAK_HOUR, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed PEAK_HOUR KPI", e);
         }
     }
-    public EventTypeFailureDTO lowestSuccessEventType(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildLowestSuccessEventTypeQuery(from, to, siteId));
-
-            Response resp = restClient.performRequest(req);
-
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
-                JsonNode buckets = root.path("aggregations").path("by_type").path("buckets");
-
-                EventTypeFailureDTO worst = null;
-
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String type = b.path("key").asText(null);
-                        long total = b.path("doc_count").asLong(0);
-                        long success = b.path("success_only").path("doc_count").asLong(0);
 
-                        double rate = total == 0 ? 0.0 : (success * 100.0) / total;
-                        rate = Math.round(rate * 100.0) / 100.0;
+    private PeakHourDTO parsePeakHour(AggResponse r) {
+        List<Agg> buckets = r.agg("per_hour").buckets();
 
-                        if (type == null) continue;
-
-                        EventTypeFailureDTO current = new EventTypeFailureDTO(type, total, success, rate);
-                        if (worst == null || current.successRate() < worst.successRate()) {
-                            worst = current;
-                        }
-                    }
-                }
-
-                return worst == null ? new EventTypeFailureDTO(null, 0, 0, 0.0) : worst;
-            }
+        if (!buckets.isEmpty()) {
+            Agg b = buckets.get(0);
+            String hour = b.keyAsString();
+            long count = b.docCount();
+            return new PeakHourDTO(hour, count);
+        }
+        return new PeakHourDTO(null, 0);
+    }
+    public EventTypeFailureDTO lowestSuccessEventType(Instant from, Instant to, String siteId) {
+        try {
+            Scope scope = scope(KpiId.LOWEST_SUCCESS_EVENT_TYPE, from, to);
+            return parseLowestSuccessEventType(search(KpiId.LOWEST_SUCCESS_EVENT_TYPE, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed LOWEST_SUCCESS_EVENT_TYPE KPI", e);
         }
     }
-    public List<EventTypePercentageDTO> eventTypePercentageDistribution(Instant from, Instant to, String siteId) {
-        try {
-            Request req = new Request("POST", "/warehouse_events/_search");
-            req.setJsonEntity(buildEventTypePercentageDistributionQuery(from, to, siteId));
-
-            Response resp = restClient.performRequest(req);
 
-            try (InputStream is = resp.getEntity().getContent()) {
-                JsonNode root = mapper.readTree(is);
+    private EventTypeFailureDTO parseLowestSuccessEventType(AggResponse r) {
+        List<Agg> buckets = r.agg("by_type").buckets();
 
-                long total = root.path("hits").path("total").path("value").asLong(0);
-                JsonNode buckets = root.path("aggregations").path("by_type").path("buckets");
+        EventTypeFailureDTO worst = null;
 
-                List<EventTypePercentageDTO> out = new ArrayList<>();
+        for (Agg b : buckets) {
+            String type = b.key();
+            long total = b.docCount();
+            long success = b.agg("success_only").docCount();
 
-                if (buckets.isArray()) {
-                    for (JsonNode b : buckets) {
-                        String type = b.path("key").asText(null);
-                        long count = b.path("doc_count").asLong(0);
-                        if (type == null) continue;
+            double rate = total == 0 ? 0.0 : (success * 100.0) / total;
+            rate = Math.round(rate * 100.0) / 100.0;
 
-                        double pct = total == 0 ? 0.0 : (count * 100.0) / total;
-                        pct = Math.round(pct * 100.0) / 100.0;
+            if (type == null) continue;
 
-                        out.add(new EventTypePercentageDTO(type, pct));
-                    }
-                }
-
-                return out;
+            EventTypeFailureDTO current = new EventTypeFailureDTO(type, total, success, rate);
+            if (worst == null || current.successRate() < worst.successRate()) {
+                worst = current;
             }
+        }
+
+        return worst == null ? new EventTypeFailureDTO(null, 0, 0, 0.0) : worst;
+    }
+    public List<EventTypePercentageDTO> eventTypePercentageDistribution(Instant from, Instant to, String siteId) {
+        try {
+            Scope scope = scope(KpiId.EVENT_TYPE_PERCENTAGE_DISTRIBUTION, from, to);
+            return parseEventTypePercentageDistribution(search(KpiId.EVENT_TYPE_PERCENTAGE_DISTRIBUTION, scope, siteId, 0));
         } catch (Exception e) {
             throw new RuntimeException("Failed EVENT_TYPE_PERCENTAGE_DISTRIBUTION KPI", e);
         }
     }
 
-    private String buildEventTypePercentageDistributionQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"track_total_hits\":true,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_type\":{\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}}}}}");
-        return sb.toString();
-    }
-    private String buildLowestSuccessEventTypeQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_type\":{");
-        sb.append("\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}},");
-        sb.append("\"aggs\":{\"success_only\":{\"filter\":{\"term\":{\"success\":true}}}}");
-        sb.append("}}}");
-        return sb.toString();
-    }
-    private String buildPeakHourQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"per_hour\":{");
-        sb.append("\"date_histogram\":{");
-        sb.append("\"field\":\"timestamp\",");
-        sb.append("\"fixed_interval\":\"1h\",");
-        sb.append("\"min_doc_count\":0,");
-        sb.append("\"order\":{\"_count\":\"desc\"}");
-        sb.append("}}}}");
-        return sb.toString();
-    }
+    private List<EventTypePercentageDTO> parseEventTypePercentageDistribution(AggResponse r) {
+        long total = r.agg("all_events").docCount();
+        List<Agg> buckets = r.agg("by_type").buckets();
 
-    private String buildTopLongestEventsQuery(Instant from, Instant to, String siteId, int limit) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        sb.append("\"size\":").append(limit).append(",");
-        sb.append("\"sort\":[{\"durationMs\":{\"order\":\"desc\"}}],");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}}");
-        sb.append("}");
-        return sb.toString();
-    }
-    private String buildActorActivitySummaryQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{");
-        sb.append("\"unique_actors\":{\"cardinality\":{\"field\":\"actorId\"}},");
-        sb.append("\"unique_sessions\":{\"cardinality\":{\"field\":\"sessionId\"}}");
-        sb.append("}}");
-        return sb.toString();
-    }
-    private String buildErrorTypesBreakdownQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        sb.append(",{\"term\":{\"success\":false}}");
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_type\":{\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}}}}}");
-        return sb.toString();
-    }
-    private String buildThroughputPerMinuteQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"per_minute\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1m\",\"min_doc_count\":0}}}}");
-        return sb.toString();
-    }
+        List<EventTypePercentageDTO> out = new ArrayList<>();
 
-    private String buildTopEventTypesQuery(Instant from, Instant to, String siteId, int limit) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"top_types\":{\"terms\":{\"field\":\"eventType\",\"size\":")
-                .append(limit).append(",\"order\":{\"_count\":\"desc\"}}}}}");
-        return sb.toString();
-    }
-    private String buildDurationStatsByEventTypeQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_type\":{");
-        sb.append("\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}},");
-        sb.append("\"aggs\":{");
-        sb.append("\"avg_duration\":{\"avg\":{\"field\":\"durationMs\"}},");
-        sb.append("\"p95_duration\":{\"percentiles\":{\"field\":\"durationMs\",\"percents\":[95]}}");
-        sb.append("}}}}");
-        return sb.toString();
-    }
+        for (Agg b : buckets) {
+            String type = b.key();
+            long count = b.docCount();
+            if (type == null) continue;
 
+            double pct = total == 0 ? 0.0 : (count * 100.0) / total;
+            pct = Math.round(pct * 100.0) / 100.0;
 
-    private String buildSuccessRateByEventTypeQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_type\":{");
-        sb.append("\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}},");
-        sb.append("\"aggs\":{\"success_only\":{\"filter\":{\"term\":{\"success\":true}}}}");
-        sb.append("}}}");
-        return sb.toString();
-    }
+            out.add(new EventTypePercentageDTO(type, pct));
+        }
 
-    private String buildUniqueSessionsPerHourQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"per_hour\":{");
-        sb.append("\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0},");
-        sb.append("\"aggs\":{\"unique_sessions\":{\"cardinality\":{\"field\":\"sessionId\"}}}");
-        sb.append("}}}");
-        return sb.toString();
+        return out;
     }
 
-
-    private String buildUniqueActorsPerHourQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"per_hour\":{");
-        sb.append("\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0},");
-        sb.append("\"aggs\":{\"unique_actors\":{\"cardinality\":{\"field\":\"actorId\"}}}");
-        sb.append("}}}");
-        return sb.toString();
+    private String rangeTimestamp(Instant from, Instant to) {
+        return rangeTimestamp(from, to, "lte");
     }
 
-    private String buildSiteVolumeAndSuccessQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_site\":{");
-        sb.append("\"terms\":{\"field\":\"siteId\",\"size\":50,\"order\":{\"_count\":\"desc\"}},");
-        sb.append("\"aggs\":{\"success_only\":{\"filter\":{\"term\":{\"success\":true}}}}");
-        sb.append("}}}");
-        return sb.toString();
+    private String rangeTimestamp(Instant from, Instant to, String upper) {
+        return "{\"range\":{\"timestamp\":{\"gte\":\"" + from + "\",\"" + upper + "\":\"" + to + "\"}}}";
     }
 
-    private String buildEventTypeBreakdownQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"by_event_type\":{\"terms\":{\"field\":\"eventType\",\"size\":25}}}}");
-        return sb.toString();
+    // several disjoint ranges: match any of them
+    private String rangeTimestamp(List<TimeRange> ranges) {
+        List<String> clauses = new ArrayList<>(ranges.size());
+        for (TimeRange r : ranges) clauses.add(rangeTimestamp(r.from(), r.to()));
+        return anyOf(clauses);
     }
 
-    private String buildEventsPerHourQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"events_per_hour\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0}}}}");
-        return sb.toString();
-    }
+    private String anyOf(List<String> clauses) {
+        if (clauses.size() == 1) return clauses.get(0);
 
-    private String buildEventsPerHourByTypeQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"events_per_hour\":{");
-        sb.append("\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0},");
-        sb.append("\"aggs\":{\"by_type\":{\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}}}}");
-        sb.append("}}}");
+        StringBuilder sb = new StringBuilder("{\"bool\":{\"should\":[");
+        for (int i = 0; i < clauses.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(clauses.get(i));
+        }
+        sb.append("],\"minimum_should_match\":1}}");
         return sb.toString();
     }
 
-    private String buildErrorRatePerHourQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"errors_per_hour\":{");
-        sb.append("\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0},");
-        sb.append("\"aggs\":{\"errors_only\":{\"filter\":{\"term\":{\"success\":false}}}}");
-        sb.append("}}}");
-        return sb.toString();
+    // only used with index names; request values go through QueryTemplate, which escapes them
+    private String term(String field, String value) {
+        return "{\"term\":{\"" + field + "\":\"" + value + "\"}}";
     }
 
-    private String buildDurationStatsPerHourQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"duration_per_hour\":{");
-        sb.append("\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\",\"min_doc_count\":0},");
-        sb.append("\"aggs\":{");
-        sb.append("\"avg_duration\":{\"avg\":{\"field\":\"durationMs\"}},");
-        sb.append("\"p95_duration\":{\"percentiles\":{\"field\":\"durationMs\",\"percents\":[95]}}");
-        sb.append("}");
-        sb.append("}}}");
-        return sb.toString();
-    }
+    private static final class CountingInputStream extends FilterInputStream {
 
-    private String buildSuccessRateQuery(Instant from, Instant to, String siteId) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"successful_events\":{\"filter\":{\"term\":{\"success\":true}}}}}");
-        return sb.toString();
-    }
+        private long count;
 
-    private String buildTopActorsQuery(Instant from, Instant to, String siteId, int limit) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"size\":0,");
-        sb.append("\"query\":{\"bool\":{\"filter\":[");
-        sb.append(rangeTimestamp(from, to));
-        if (hasText(siteId)) sb.append(",").append(term("siteId", siteId));
-        sb.append("]}},");
-        sb.append("\"aggs\":{\"top_actors\":{\"terms\":{\"field\":\"actorId\",\"size\":").append(limit).append(",\"order\":{\"_count\":\"desc\"}}}}}");
-        return sb.toString();
-    }
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
 
-    private boolean hasText(String s) {
-        return s != null && !s.isBlank();
-    }
+        long count() {
+            return count;
+        }
 
-    private String rangeTimestamp(Instant from, Instant to) {
-        return "{\"range\":{\"timestamp\":{\"gte\":\"" + from + "\",\"lte\":\"" + to + "\"}}}";
-    }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
 
-    private String term(String field, String value) {
-        return "{\"term\":{\"" + field + "\":\"" + escapeJson(value) + "\"}}";
-    }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
 
-    private String escapeJson(String s) {
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
     }
 }
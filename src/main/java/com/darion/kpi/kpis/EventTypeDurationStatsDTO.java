@@ -1,3 +1,7 @@
 package com.darion.kpi.kpis;
 
-public record EventTypeDurationStatsDTO(String eventType, double avgDurationMs, double p95DurationMs) {}
+import java.util.Map;
+
+// percentiles: the requested percents ("50.0", "99.9") -> duration ms
+public record EventTypeDurationStatsDTO(String eventType, double avgDurationMs, double p95DurationMs,
+                                        Map<String, Double> percentiles) {}
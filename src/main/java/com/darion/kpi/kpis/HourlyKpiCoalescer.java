@@ -0,0 +1,127 @@
+package com.darion.kpi.kpis;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+// Fuses concurrent searches for hourly KPIs. Searches over the same ranges, site, interval, precision
+// and percentiles that arrive within a short window join one group; the first caller waits out the
+// window, runs one fused search for every KPI in the group and hands the response to all waiters,
+// which parse their own KPI out of it. The window is 0 by default, so the first caller searches at
+// once and only requests that arrive while it builds its search join it.
+@Component
+public class HourlyKpiCoalescer {
+
+    private final EsKpiQueryClient es;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final ConcurrentHashMap<Key, Group> pending = new ConcurrentHashMap<>();
+
+    private final DistributionSummary groupKpis;
+    private final DistributionSummary groupRequests;
+
+    public HourlyKpiCoalescer(EsKpiQueryClient es, KpiQueryProperties props, MeterRegistry registry) {
+        this.es = es;
+        this.enabled = props.fusion().enabled();
+        this.windowNanos = props.fusion().window().toNanos();
+
+        this.groupKpis = DistributionSummary.builder("kpi.query.fusion.kpis")
+                .description("Distinct hourly KPIs answered by one fused search")
+                .register(registry);
+        this.groupRequests = DistributionSummary.builder("kpi.query.fusion.requests")
+                .description("Requests answered by one fused search")
+                .register(registry);
+    }
+
+    public boolean handles(KpiId id) {
+        return EsKpiQueryClient.isHourly(id);
+    }
+
+    // req carries the resolved interval (see KpiIntervals)
+    public Object getKpi(KpiId id, KpiRequest req) {
+        AggResponse fused = search(id, List.of(TimeRange.of(req)), req.siteId(), req.interval(), req.precision(),
+                req.percentiles());
+        return es.parseHourly(id, fused, req);
+    }
+
+    // fused response (see EsKpiQueryClient.hourlySearch) containing at least id
+    public AggResponse search(KpiId id, List<TimeRange> ranges, String siteId, KpiInterval interval, Integer precision,
+                              List<Double> percentiles) {
+        if (!enabled) return es.hourlySearch(List.of(id), ranges, siteId, interval, precision, percentiles);
+
+        CompletableFuture<AggResponse> result = new CompletableFuture<>();
+        Key key = new Key(List.copyOf(ranges), siteId, interval, precision, percentiles);
+
+        while (true) {
+            Group fresh = new Group(key);
+            Group g = pending.putIfAbsent(key, fresh);
+            if (g == null) {
+                // leader: collect followers for one window, then search on this thread
+                fresh.join(id, result);
+                if (windowNanos > 0) LockSupport.parkNanos(windowNanos);
+                dispatch(fresh);
+                break;
+            }
+            if (g.join(id, result)) break;
+            // group was closed between lookup and join, start or join the next one
+            pending.remove(key, g);
+        }
+
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    private void dispatch(Group g) {
+        pending.remove(g.key, g);
+        g.close();
+
+        groupKpis.record(g.ids.size());
+        groupRequests.record(g.waiters.size());
+
+        try {
+            AggResponse fused = es.hourlySearch(g.ids, g.key.ranges(), g.key.siteId(), g.key.interval(), g.key.precision(),
+                    g.key.percentiles());
+            for (CompletableFuture<AggResponse> w : g.waiters) w.complete(fused);
+        } catch (RuntimeException e) {
+            for (CompletableFuture<AggResponse> w : g.waiters) w.completeExceptionally(e);
+        }
+    }
+
+    private record Key(List<TimeRange> ranges, String siteId, KpiInterval interval, Integer precision,
+                       List<Double> percentiles) {}
+
+    private static final class Group {
+        final Key key;
+        final EnumSet<KpiId> ids = EnumSet.noneOf(KpiId.class);
+        final List<CompletableFuture<AggResponse>> waiters = new ArrayList<>();
+        boolean closed;
+
+        Group(Key key) {
+            this.key = key;
+        }
+
+        synchronized boolean join(KpiId id, CompletableFuture<AggResponse> waiter) {
+            if (closed) return false;
+            ids.add(id);
+            waiters.add(waiter);
+            return true;
+        }
+
+        // after this ids and waiters no longer change
+        synchronized void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.darion.kpi.kpis;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Growable UTF-8 buffer a request body is written into; its array goes into the HTTP entity as is.
+public final class JsonBytes {
+
+    private byte[] buf;
+    private int len;
+
+    public JsonBytes(int capacity) {
+        buf = new byte[Math.max(16, capacity)];
+    }
+
+    public JsonBytes write(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, len, b.length);
+        len += b.length;
+        return this;
+    }
+
+    public JsonBytes write(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+        return this;
+    }
+
+    // for text known to be ASCII: timestamps, field and index names, built filters
+    public JsonBytes writeAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) buf[len++] = (byte) s.charAt(i);
+        return this;
+    }
+
+    public JsonBytes writeInt(int v) {
+        return writeAscii(Integer.toString(v));
+    }
+
+    // JSON string contents (no quotes) for arbitrary text such as a siteId
+    public JsonBytes writeEscaped(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c >= 0x7f || c == '"' || c == '\\') {
+                return write(JsonStringEncoder.getInstance().quoteAsUTF8(s));
+            }
+        }
+        return writeAscii(s);
+    }
+
+    public int length() {
+        return len;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    public HttpEntity toEntity(ContentType type) {
+        return new NByteArrayEntity(buf, 0, len, type);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+}
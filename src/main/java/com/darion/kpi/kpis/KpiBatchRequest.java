@@ -0,0 +1,16 @@
+package com.darion.kpi.kpis;
+
+import java.util.List;
+
+public record KpiBatchRequest(
+        List<KpiId> ids,
+        String from,
+        String to,
+        String siteId,
+        Integer topN,
+        Integer limit,
+        Integer maxPoints,
+        String interval,
+        Integer precision,
+        String percentiles // comma-separated, e.g. "50,90,99.9"
+) {}
@@ -0,0 +1,12 @@
+package com.darion.kpi.kpis;
+
+public record KpiBatchResultDTO(boolean ok, Object data, String error) {
+
+    static KpiBatchResultDTO ok(Object data) {
+        return new KpiBatchResultDTO(true, data, null);
+    }
+
+    static KpiBatchResultDTO error(String error) {
+        return new KpiBatchResultDTO(false, null, error);
+    }
+}
@@ -0,0 +1,5 @@
+package com.darion.kpi.kpis;
+
+// One date_histogram bucket of a bucketed KPI: start (epoch millis), doc_count and the KPI's DTO.
+// value is null for a bucket known to be empty that Elasticsearch did not return.
+public record KpiBucket(long start, long docCount, Object value) {}
@@ -0,0 +1,4 @@
+package com.darion.kpi.kpis;
+
+// req is always the normalized request, so equivalent requests share an entry
+public record KpiCacheKey(KpiId id, KpiRequest req) {}
@@ -1,42 +1,184 @@
 package com.darion.kpi.kpis;
 
+import com.darion.kpi.rollup.RollupProperties;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 @RestController
 @RequestMapping("/kpis")
 public class KpiController {
 
+    // the histogram interval time-series KPIs were computed at: "1h", or "ID=1h,ID=5m" for a batch
+    static final String INTERVAL_HEADER = "X-Kpi-Interval";
+    // relative error of the percentiles duration KPIs report, e.g. "0.01"
+    static final String PERCENTILE_ACCURACY_HEADER = "X-Kpi-Percentile-Accuracy";
+
     private final KpiService service;
     private final KpiRegistry registry;
     private final KpiRequestNormalizer normalizer;
+    private final KpiIntervals intervals;
+    private final KpiMetrics metrics;
+    private final String percentileAccuracy;
+    private final KpiStreams streams;
 
-    public KpiController(KpiService service, KpiRegistry registry, KpiRequestNormalizer normalizer) {
+    public KpiController(KpiService service, KpiRegistry registry, KpiRequestNormalizer normalizer, KpiIntervals intervals,
+                         KpiMetrics metrics, RollupProperties rollupProps, KpiStreams streams) {
         this.service = service;
         this.registry = registry;
         this.normalizer = normalizer;
+        this.intervals = intervals;
+        this.metrics = metrics;
+        this.percentileAccuracy = Double.toString(rollupProps.durationAccuracy());
+        this.streams = streams;
     }
 
     @GetMapping("/{id}")
-    public Object getKpi(
+    public DeferredResult<Object> getKpi(
             @PathVariable KpiId id,
             @RequestParam String from,
             @RequestParam String to,
             @RequestParam(required = false) String siteId,
             @RequestParam(required = false) Integer topN,
-            @RequestParam(required = false) Integer limit
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) Integer maxPoints,
+            @RequestParam(required = false) String interval,
+            @RequestParam(required = false) Integer precision,
+            @RequestParam(required = false) String percentiles,
+            HttpServletResponse response
     ) {
+        long start = System.nanoTime();
         KpiRequest req = new KpiRequest(
                 Instant.parse(from),
                 Instant.parse(to),
                 siteId,
                 topN,
-                limit
+                limit,
+                interval(interval),
+                precision,
+                KpiPercentiles.parse(percentiles)
         );
 
-        return service.getKpi(id, normalizer.normalize(req));
+        KpiRequest normalized = normalizer.normalize(List.of(id), req);
+        KpiInterval resolved = intervals.of(id, normalized);
+        if (resolved != null) response.setHeader(INTERVAL_HEADER, resolved.text());
+        if (EsKpiQueryClient.usesPercentiles(id)) response.setHeader(PERCENTILE_ACCURACY_HEADER, percentileAccuracy);
+        metrics.phase(id.name(), "normalize", start);
+        // downsampled per response, the cached result stays complete
+        return deferred(service.getKpiAsync(id, normalized), r -> KpiDownsampler.apply(id, r, maxPoints));
+    }
+
+    // Server-Sent Events over the last 'window' (e.g. 6h, default kpi.stream.default-window): a
+    // snapshot, then deltas as events are ingested (see KpiStreams)
+    @GetMapping(path = "/{id}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> stream(
+            @PathVariable KpiId id,
+            @RequestParam(required = false) String window,
+            @RequestParam(required = false) String siteId,
+            @RequestParam(required = false) Integer topN,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String interval,
+            @RequestParam(required = false) Integer precision,
+            @RequestParam(required = false) String percentiles,
+            HttpServletResponse response
+    ) {
+        KpiRequest params = new KpiRequest(null, null, siteId, topN, limit, interval(interval), precision,
+                KpiPercentiles.parse(percentiles));
+        if (EsKpiQueryClient.usesPercentiles(id)) response.setHeader(PERCENTILE_ACCURACY_HEADER, percentileAccuracy);
+        return streams.subscribe(id, window(window), params);
+    }
+
+    // Several KPIs over the same range/site in one Elasticsearch _msearch round trip
+    @PostMapping("/_batch")
+    public DeferredResult<Map<KpiId, KpiBatchResultDTO>> getKpis(@RequestBody KpiBatchRequest body,
+                                                                 HttpServletResponse response) {
+        long start = System.nanoTime();
+        if (body.ids() == null || body.ids().isEmpty()) {
+            throw new BadKpiRequestException("'ids' must list at least one KPI");
+        }
+        if (body.from() == null || body.to() == null) {
+            throw new BadKpiRequestException("'from' and 'to' are required ISO-8601 instants");
+        }
+
+        KpiRequest req = new KpiRequest(
+                Instant.parse(body.from()),
+                Instant.parse(body.to()),
+                body.siteId(),
+                body.topN(),
+                body.limit(),
+                interval(body.interval()),
+                body.precision(),
+                KpiPercentiles.parse(body.percentiles())
+        );
+
+        List<KpiId> ids = List.copyOf(new LinkedHashSet<>(body.ids()));
+        KpiRequest normalized = normalizer.normalize(ids, req);
+        StringJoiner resolved = new StringJoiner(",");
+        for (KpiId id : ids) {
+            KpiInterval i = intervals.of(id, normalized);
+            if (i != null) resolved.add(id + "=" + i.text());
+        }
+        if (resolved.length() > 0) response.setHeader(INTERVAL_HEADER, resolved.toString());
+        if (ids.stream().anyMatch(EsKpiQueryClient::usesPercentiles)) {
+            response.setHeader(PERCENTILE_ACCURACY_HEADER, percentileAccuracy);
+        }
+        metrics.phase(KpiMetrics.BATCH, "normalize", start);
+        return deferred(service.getKpisAsync(ids, normalized), results -> {
+            if (body.maxPoints() != null) {
+                results.replaceAll((id, r) -> r.ok() ? KpiBatchResultDTO.ok(KpiDownsampler.apply(id, r.data(), body.maxPoints())) : r);
+            }
+            return results;
+        });
+    }
+
+    // null (auto) when absent or "auto"
+    private static KpiInterval interval(String text) {
+        if (text == null || text.isBlank() || text.trim().equalsIgnoreCase("auto")) return null;
+        return KpiInterval.parse(text.trim());
+    }
+
+    private static Duration window(String text) {
+        if (text == null || text.isBlank()) return null;
+        try {
+            return DurationStyle.detectAndParse(text.trim());
+        } catch (IllegalArgumentException e) {
+            throw new BadKpiRequestException("Bad window '" + text + "', expected e.g. 15m, 6h or PT6H");
+        }
+    }
+
+    // Spring MVC does not cancel a returned CompletableFuture when the request times out or fails;
+    // cancelling it detaches this request from a shared query (see KpiSingleFlight). view shapes the
+    // result for this response only.
+    private static <T, R> DeferredResult<R> deferred(CompletableFuture<T> future, Function<T, R> view) {
+        DeferredResult<R> result = new DeferredResult<>();
+        result.onTimeout(() -> future.cancel(true));
+        result.onError(e -> future.cancel(true));
+        future.whenComplete((r, e) -> {
+            if (e != null) {
+                result.setErrorResult(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            try {
+                result.setResult(view.apply(r));
+            } catch (RuntimeException ex) {
+                result.setErrorResult(ex);
+            }
+        });
+        return result;
     }
 
     @GetMapping("/definitions")
@@ -0,0 +1,89 @@
+package com.darion.kpi.kpis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+// Downsamples time-series KPI results to at most maxPoints entries with Largest-Triangle-Three-Buckets:
+// it keeps the first and last bucket and, in between, the bucket of each slice that best preserves
+// the visual shape of the series, so peaks and dips survive where averaging would flatten them.
+// Entries are picked, never merged, which keeps rates, percentiles and unique counts truthful.
+// Results are never modified (they may be cached); a downsampled result is a new list.
+public final class KpiDownsampler {
+
+    // fewer points than this carry no shape
+    static final int MIN_POINTS = 3;
+
+    private KpiDownsampler() {}
+
+    @SuppressWarnings("unchecked")
+    public static Object apply(KpiId id, Object result, Integer maxPoints) {
+        if (maxPoints == null || !(result instanceof List<?> points)) return result;
+        int threshold = Math.max(maxPoints, MIN_POINTS);
+        if (points.size() <= threshold) return result;
+
+        // multi-value buckets are picked by their headline value
+        return switch (id) {
+            case EVENTS_PER_HOUR, THROUGHPUT_PER_MINUTE ->
+                    lttb((List<HourlyCountDTO>) points, threshold, HourlyCountDTO::count);
+            case EVENTS_PER_HOUR_BY_TYPE ->
+                    lttb((List<HourlyStackedDTO>) points, threshold, HourlyStackedDTO::total);
+            case ERROR_RATE_PER_HOUR ->
+                    lttb((List<HourlyErrorRateDTO>) points, threshold, HourlyErrorRateDTO::errorRate);
+            case DURATION_STATS_PER_HOUR ->
+                    lttb((List<HourlyDurationStatsDTO>) points, threshold, HourlyDurationStatsDTO::p95DurationMs);
+            case UNIQUE_ACTORS_PER_HOUR ->
+                    lttb((List<HourlyUniqueCountDTO>) points, threshold, HourlyUniqueCountDTO::uniqueCount);
+            case UNIQUE_SESSIONS_PER_HOUR ->
+                    lttb((List<HourlyUniqueSessionsDTO>) points, threshold, HourlyUniqueSessionsDTO::uniqueSessions);
+            default -> result;
+        };
+    }
+
+    // Histogram buckets are evenly spaced (min_doc_count 0), so a bucket's index is its x.
+    static <T> List<T> lttb(List<T> points, int threshold, ToDoubleFunction<T> value) {
+        int n = points.size();
+        if (threshold >= n || threshold < MIN_POINTS) return points;
+
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) y[i] = value.applyAsDouble(points.get(i));
+
+        List<T> out = new ArrayList<>(threshold);
+        out.add(points.get(0));
+        // the n - 2 inner points are split into threshold - 2 slices, one point picked per slice
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        for (int i = 0; i < threshold - 2; i++) {
+            boolean last = i == threshold - 3;
+            int start = (int) (i * every) + 1;
+            int end = last ? n - 1 : (int) ((i + 1) * every) + 1;
+
+            // the average of the next slice (the last point after the last slice) is the third corner
+            int nextStart = end;
+            int nextEnd = last ? n : Math.min((int) ((i + 2) * every) + 1, n - 1);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                avgX += j;
+                avgY += y[j];
+            }
+            avgX /= nextEnd - nextStart;
+            avgY /= nextEnd - nextStart;
+
+            double maxArea = -1;
+            int picked = start;
+            for (int j = start; j < end; j++) {
+                // twice the triangle area, which ranks the same
+                double area = Math.abs((a - avgX) * (y[j] - y[a]) - (a - j) * (avgY - y[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    picked = j;
+                }
+            }
+            out.add(points.get(picked));
+            a = picked;
+        }
+        out.add(points.get(n - 1));
+        return out;
+    }
+}
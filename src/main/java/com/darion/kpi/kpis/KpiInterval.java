@@ -0,0 +1,52 @@
+package com.darion.kpi.kpis;
+
+import java.time.Instant;
+
+// Histogram bucket widths of the time-series KPIs, as Elasticsearch fixed_interval values
+public enum KpiInterval {
+    M1("1m", 60_000L),
+    M5("5m", 300_000L),
+    M15("15m", 900_000L),
+    H1("1h", 3_600_000L),
+    H6("6h", 21_600_000L),
+    D1("1d", 86_400_000L);
+
+    private final String text;
+    private final long millis;
+
+    KpiInterval(String text, long millis) {
+        this.text = text;
+        this.millis = millis;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    public long millis() {
+        return millis;
+    }
+
+    // buckets a histogram over [from, to] can return at this interval (buckets start at the epoch)
+    public long buckets(Instant from, Instant to) {
+        return Math.floorDiv(to.toEpochMilli(), millis) - Math.floorDiv(from.toEpochMilli(), millis) + 1;
+    }
+
+    // the interval a time-series KPI is named after, null for the other KPIs
+    public static KpiInterval defaultFor(KpiId id) {
+        if (id == KpiId.THROUGHPUT_PER_MINUTE) return M1;
+        return EsKpiQueryClient.isHourly(id) ? H1 : null;
+    }
+
+    public static KpiInterval parse(String text) {
+        for (KpiInterval i : values()) {
+            if (i.text.equals(text)) return i;
+        }
+        throw new BadKpiRequestException("Unknown interval '" + text + "', expected auto, 1m, 5m, 15m, 1h, 6h or 1d");
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,60 @@
+package com.darion.kpi.kpis;
+
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+
+// Picks the histogram interval of the time-series KPIs (see KpiInterval.defaultFor). An explicit
+// interval is used as is. Auto (a null interval) keeps the KPI's own interval while the range gives
+// between min-buckets and max-buckets buckets at it, and otherwise moves to the nearest coarser or
+// finer interval that does. The usual dashboard ranges therefore stay on 1h, which the rollup,
+// the bucket cache and the rollup index are built around.
+@Component
+public class KpiIntervals {
+
+    private static final KpiInterval[] LADDER = KpiInterval.values();
+
+    private final int minBuckets;
+    private final int maxBuckets;
+
+    public KpiIntervals(KpiQueryProperties props) {
+        this.minBuckets = props.interval().minBuckets();
+        this.maxBuckets = props.interval().maxBuckets();
+    }
+
+    // null for KPIs that are not time series
+    public KpiInterval of(KpiId id, KpiRequest req) {
+        KpiInterval own = KpiInterval.defaultFor(id);
+        if (own == null) return null;
+        if (req.interval() != null) return req.interval();
+
+        if (own.buckets(req.from(), req.to()) > maxBuckets) {
+            for (int i = own.ordinal() + 1; i < LADDER.length; i++) {
+                if (LADDER[i].buckets(req.from(), req.to()) <= maxBuckets) return LADDER[i];
+            }
+            return LADDER[LADDER.length - 1];
+        }
+        if (own.buckets(req.from(), req.to()) < minBuckets) {
+            for (int i = own.ordinal() - 1; i >= 0; i--) {
+                if (LADDER[i].buckets(req.from(), req.to()) >= minBuckets) return LADDER[i];
+            }
+            return LADDER[0];
+        }
+        return own;
+    }
+
+    // req with the interval id is computed at, so equivalent requests share cache entries
+    public KpiRequest resolve(KpiId id, KpiRequest req) {
+        KpiInterval interval = of(id, req);
+        if (interval == req.interval()) return req;
+        return new KpiRequest(req.from(), req.to(), req.siteId(), req.topN(), req.limit(), interval, req.precision(), req.percentiles());
+    }
+
+    public void check(KpiInterval interval, Instant from, Instant to) {
+        long buckets = interval.buckets(from, to);
+        if (buckets > maxBuckets) {
+            throw new BadKpiRequestException("Interval " + interval + " gives " + buckets
+                    + " buckets over this range, the maximum is " + maxBuckets);
+        }
+    }
+}
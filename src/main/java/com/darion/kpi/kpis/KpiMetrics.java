@@ -0,0 +1,89 @@
+package com.darion.kpi.kpis;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Where the time of a KPI request goes, per KPI. Searches serving several KPIs are tagged
+// kpi=HOURLY_FUSED (fused hourly search) or kpi=BATCH (_msearch round trip, /kpis/_batch).
+//   kpi.request            whole request; tags kpi, site (true|false), range (1h|1d|7d|30d|long),
+//                          source (rollup|cache|query|batch)
+//   kpi.phase              tags kpi, phase: normalize | build | roundtrip | parse | serialize
+//   kpi.es.took            time Elasticsearch reports for the search
+//   kpi.es.response.bytes  search response size
+//   kpi.response.bytes     serialized HTTP response size
+//   kpi.result.rows        rows (buckets, slices, entries) in a result
+@Component
+public class KpiMetrics {
+
+    static final String FUSED = "HOURLY_FUSED";
+    static final String BATCH = "BATCH";
+
+    private final MeterRegistry registry;
+
+    public KpiMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void request(String kpi, KpiRequest req, String source, long startNanos) {
+        Timer.builder("kpi.request")
+                .description("KPI request latency")
+                .tags("kpi", kpi, "source", source, "range", rangeClass(req),
+                        "site", Boolean.toString(req.siteId() != null && !req.siteId().isBlank()))
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void phase(String kpi, String phase, long startNanos) {
+        Timer.builder("kpi.phase")
+                .description("KPI request phase latency")
+                .tags("kpi", kpi, "phase", phase)
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void took(String kpi, long tookMs) {
+        if (tookMs < 0) return;
+        Timer.builder("kpi.es.took")
+                .description("Search time reported by Elasticsearch")
+                .tag("kpi", kpi)
+                .register(registry)
+                .record(tookMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void esResponseBytes(String kpi, long bytes) {
+        summary("kpi.es.response.bytes", "Elasticsearch search response size", kpi).record(bytes);
+    }
+
+    public void responseBytes(String kpi, long bytes) {
+        summary("kpi.response.bytes", "Serialized KPI response size", kpi).record(bytes);
+    }
+
+    public void rows(KpiId id, Object result) {
+        int rows = result instanceof Collection<?> c ? c.size() : result instanceof Map<?, ?> m ? m.size() : 1;
+        summary("kpi.result.rows", "Rows in a KPI result", id.name()).record(rows);
+    }
+
+    private DistributionSummary summary(String name, String description, String kpi) {
+        return DistributionSummary.builder(name)
+                .description(description)
+                .baseUnit(name.endsWith("bytes") ? "bytes" : null)
+                .tag("kpi", kpi)
+                .register(registry);
+    }
+
+    static String rangeClass(KpiRequest req) {
+        Duration d = Duration.between(req.from(), req.to());
+        if (d.compareTo(Duration.ofHours(1)) <= 0) return "1h";
+        if (d.compareTo(Duration.ofDays(1)) <= 0) return "1d";
+        if (d.compareTo(Duration.ofDays(7)) <= 0) return "7d";
+        if (d.compareTo(Duration.ofDays(31)) <= 0) return "30d";
+        return "long";
+    }
+}
@@ -0,0 +1,54 @@
+package com.darion.kpi.kpis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// The percents duration KPIs report (percentiles=50,90,99,99.9), keyed in responses like
+// Elasticsearch's percentiles ("99.9", "95.0").
+public final class KpiPercentiles {
+
+    public static final List<Double> DEFAULT = List.of(95.0);
+    private static final int MAX = 10;
+
+    private KpiPercentiles() {}
+
+    // null when absent
+    public static List<Double> parse(String text) {
+        if (text == null || text.isBlank()) return null;
+        List<Double> out = new ArrayList<>();
+        for (String part : text.split(",")) {
+            try {
+                out.add(Double.parseDouble(part.trim()));
+            } catch (NumberFormatException e) {
+                throw new BadKpiRequestException("Bad percentile '" + part.trim() + "', expected numbers like 50,95,99.9");
+            }
+        }
+        return out;
+    }
+
+    // ascending without duplicates; DEFAULT when null
+    static List<Double> normalize(List<Double> percents) {
+        if (percents == null || percents.isEmpty()) return DEFAULT;
+        TreeSet<Double> sorted = new TreeSet<>();
+        for (Double p : percents) {
+            if (p == null || !(p >= 0 && p <= 100)) throw new BadKpiRequestException("Percentiles must be 0..100, was " + p);
+            sorted.add(p + 0.0); // -0.0 -> 0.0
+        }
+        if (sorted.size() > MAX) throw new BadKpiRequestException("At most " + MAX + " percentiles per request");
+        return List.copyOf(sorted);
+    }
+
+    public static String key(double percent) {
+        return Double.toString(percent);
+    }
+
+    // what duration KPIs report for no durations
+    static Map<String, Double> zeros(List<Double> percents) {
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (double p : percents == null ? DEFAULT : percents) out.put(key(p), 0.0);
+        return out;
+    }
+}
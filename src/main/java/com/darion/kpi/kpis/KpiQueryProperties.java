@@ -0,0 +1,50 @@
+package com.darion.kpi.kpis;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kpi.query")
+public record KpiQueryProperties(@DefaultValue Fusion fusion, @DefaultValue Cache cache, @DefaultValue Buckets buckets,
+                                 @DefaultValue Execution execution, @DefaultValue SingleFlight singleFlight,
+                                 @DefaultValue Interval interval) {
+
+    public record Fusion(
+            @DefaultValue("true") boolean enabled,
+            // opt-in: every single-KPI hourly request parks this long, even when nothing joins it
+            @DefaultValue("0ms") Duration window
+    ) {}
+
+    public record Cache(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("200000") long maxWeight,
+            @DefaultValue("10m") Duration settleAfter,
+            @DefaultValue("24h") Duration settledTtl,
+            @DefaultValue("15s") Duration liveTtl,
+            @DefaultValue("5s") Duration refreshGrace
+    ) {}
+
+    public record Buckets(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("1000000") long maxBuckets,
+            @DefaultValue("7d") Duration ttl
+    ) {}
+
+    // auto interval bounds (see KpiIntervals)
+    public record Interval(
+            @DefaultValue("12") int minBuckets,
+            @DefaultValue("1000") int maxBuckets
+    ) {}
+
+    public record SingleFlight(@DefaultValue("true") boolean enabled) {}
+
+    public record Execution(@DefaultValue("ASYNC") Mode mode) {
+
+        public enum Mode {
+            BLOCKING, // the request thread runs the KPI and waits for Elasticsearch
+            VIRTUAL,  // the KPI runs on a virtual thread, the request thread is released
+            ASYNC     // searches go through performRequestAsync, nothing waits on Elasticsearch
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.darion.kpi.kpis;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The search body of every KPI, compiled once (see QueryTemplate). Fused hourly bodies are compiled
+// on first use per combination of hourly KPIs.
+public final class KpiQueryTemplates {
+
+    private static final String FILTERED = "{\"size\":0,\"query\":{\"bool\":{\"filter\":[{{FILTER}}{{SITE}}]}},";
+    // fixed_interval is 1h unless the request asks for another interval (see KpiIntervals)
+    private static final String HOURLY_HISTOGRAM = "\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"{{INTERVAL}}\",\"min_doc_count\":0}";
+    private static final String BY_TYPE = "\"terms\":{\"field\":\"eventType\",\"size\":25,\"order\":{\"_count\":\"desc\"}}";
+    private static final String UNIQUE_ACTORS = "\"unique_actors\":{\"cardinality\":{\"field\":\"actorId\"{{PRECISION}}}}";
+    private static final String UNIQUE_SESSIONS = "\"unique_sessions\":{\"cardinality\":{\"field\":\"sessionId\"{{PRECISION}}}}";
+    private static final String DURATION = "\"avg_duration\":{\"avg\":{\"field\":\"durationMs\"}},"
+            + "\"duration_percentiles\":{\"percentiles\":{\"field\":\"{{SKETCH}}\",{{PERCENTS}}}}";
+
+    private static final Map<KpiId, QueryTemplate> TEMPLATES = new EnumMap<>(KpiId.class);
+    private static final Map<Set<KpiId>, QueryTemplate> FUSED = new ConcurrentHashMap<>();
+
+    static {
+        for (KpiId id : KpiId.values()) TEMPLATES.put(id, QueryTemplate.compile(text(id)));
+    }
+
+    private KpiQueryTemplates() {}
+
+    public static QueryTemplate of(KpiId id) {
+        return TEMPLATES.get(id);
+    }
+
+    // one date_histogram carrying the sub-aggregations of every given hourly KPI
+    public static QueryTemplate hourly(Collection<KpiId> ids) {
+        return FUSED.computeIfAbsent(EnumSet.copyOf(ids), set -> QueryTemplate.compile(hourlyText(set)));
+    }
+
+    private static String text(KpiId id) {
+        return switch (id) {
+            case EVENT_TYPE_BREAKDOWN ->
+                    FILTERED + "\"aggs\":{\"by_event_type\":{\"terms\":{\"field\":\"eventType\",\"size\":25}}}}";
+            case EVENTS_PER_HOUR -> FILTERED + "\"aggs\":{\"events_per_hour\":{" + HOURLY_HISTOGRAM + "}}}";
+            case EVENTS_PER_HOUR_BY_TYPE ->
+                    FILTERED + "\"aggs\":{\"events_per_hour\":{" + HOURLY_HISTOGRAM + ",\"aggs\":{\"by_type\":{" + BY_TYPE + "}}}}}";
+            case ERROR_RATE_PER_HOUR -> FILTERED + "\"aggs\":{\"errors_per_hour\":{" + HOURLY_HISTOGRAM
+                    + ",\"aggs\":{\"errors_only\":{\"filter\":{\"term\":{\"success\":false}}}}}}}";
+            case DURATION_STATS_PER_HOUR ->
+                    FILTERED + "\"aggs\":{\"duration_per_hour\":{" + HOURLY_HISTOGRAM + ",\"aggs\":{" + DURATION + "}}}}";
+            // hits.total counts rollup documents, not the events they stand for: count with a filter agg
+            case SUCCESS_RATE -> FILTERED + "\"aggs\":{\"all_events\":{\"filter\":{\"match_all\":{}}},"
+                    + "\"successful_events\":{\"filter\":{\"term\":{\"success\":true}}}}}";
+            case TOP_ACTORS -> FILTERED
+                    + "\"aggs\":{\"top_actors\":{\"terms\":{\"field\":\"actorId\",\"size\":{{SIZE}},\"order\":{\"_count\":\"desc\"}}}}}";
+            case SITE_VOLUME_AND_SUCCESS -> FILTERED + "\"aggs\":{\"by_site\":{"
+                    + "\"terms\":{\"field\":\"siteId\",\"size\":50,\"order\":{\"_count\":\"desc\"}},"
+                    + "\"aggs\":{\"success_only\":{\"filter\":{\"term\":{\"success\":true}}}}}}}";
+            case UNIQUE_ACTORS_PER_HOUR -> FILTERED + "\"aggs\":{\"per_hour\":{" + HOURLY_HISTOGRAM
+                    + ",\"aggs\":{" + UNIQUE_ACTORS + "}}}}";
+            case UNIQUE_SESSIONS_PER_HOUR -> FILTERED + "\"aggs\":{\"per_hour\":{" + HOURLY_HISTOGRAM
+                    + ",\"aggs\":{" + UNIQUE_SESSIONS + "}}}}";
+            case SUCCESS_RATE_BY_EVENT_TYPE, LOWEST_SUCCESS_EVENT_TYPE -> FILTERED + "\"aggs\":{\"by_type\":{" + BY_TYPE
+                    + ",\"aggs\":{\"success_only\":{\"filter\":{\"term\":{\"success\":true}}}}}}}";
+            case DURATION_STATS_BY_EVENT_TYPE ->
+                    FILTERED + "\"aggs\":{\"by_type\":{" + BY_TYPE + ",\"aggs\":{" + DURATION + "}}}}";
+            case TOP_SESSIONS_BY_EVENT_COUNT -> FILTERED
+                    + "\"aggs\":{\"top_sessions\":{\"terms\":{\"field\":\"sessionId\",\"size\":{{SIZE}},\"order\":{\"_count\":\"desc\"}}}}}";
+            case TOP_EVENT_TYPES -> FILTERED
+                    + "\"aggs\":{\"top_types\":{\"terms\":{\"field\":\"eventType\",\"size\":{{SIZE}},\"order\":{\"_count\":\"desc\"}}}}}";
+            case THROUGHPUT_PER_MINUTE -> FILTERED
+                    + "\"aggs\":{\"per_minute\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"{{INTERVAL}}\",\"min_doc_count\":0}}}}";
+            case ERROR_TYPES_BREAKDOWN -> "{\"size\":0,\"query\":{\"bool\":{\"filter\":[{{FILTER}},{\"term\":{\"success\":false}}{{SITE}}]}},"
+                    + "\"aggs\":{\"by_type\":{" + BY_TYPE + "}}}";
+            case TOP_LONGEST_EVENTS -> "{\"size\":{{SIZE}},\"sort\":[{\"durationMs\":{\"order\":\"desc\"}}],"
+                    + "\"query\":{\"bool\":{\"filter\":[{{FILTER}}{{SITE}}]}}}";
+            // hits.total stops at 10,000 unless tracked: count with a filter agg like SUCCESS_RATE
+            case ACTOR_ACTIVITY_SUMMARY -> FILTERED + "\"aggs\":{\"all_events\":{\"filter\":{\"match_all\":{}}},"
+                    + UNIQUE_ACTORS + "," + UNIQUE_SESSIONS + "}}";
+            case PEAK_HOUR -> FILTERED + "\"aggs\":{\"per_hour\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\","
+                    + "\"min_doc_count\":0,\"order\":{\"_count\":\"desc\"}}}}}";
+            case EVENT_TYPE_PERCENTAGE_DISTRIBUTION -> FILTERED + "\"aggs\":{\"all_events\":{\"filter\":{\"match_all\":{}}},"
+                    + "\"by_type\":{" + BY_TYPE + "}}}";
+        };
+    }
+
+    private static String hourlyText(Set<KpiId> ids) {
+        StringBuilder sub = new StringBuilder();
+        for (KpiId id : ids) {
+            String aggs = switch (id) {
+                case EVENTS_PER_HOUR -> null; // doc_count only
+                case EVENTS_PER_HOUR_BY_TYPE -> "\"by_type\":{" + BY_TYPE + "}";
+                case ERROR_RATE_PER_HOUR -> "\"errors_only\":{\"filter\":{\"term\":{\"success\":false}}}";
+                case DURATION_STATS_PER_HOUR -> DURATION;
+                case UNIQUE_ACTORS_PER_HOUR -> UNIQUE_ACTORS;
+                case UNIQUE_SESSIONS_PER_HOUR -> UNIQUE_SESSIONS;
+                default -> throw new IllegalArgumentException(id + " is not an hourly KPI");
+            };
+            if (aggs == null) continue;
+            if (!sub.isEmpty()) sub.append(',');
+            sub.append(aggs);
+        }
+        return FILTERED + "\"aggs\":{\"per_hour\":{" + HOURLY_HISTOGRAM
+                + (sub.isEmpty() ? "" : ",\"aggs\":{" + sub + "}") + "}}}";
+    }
+}
@@ -1,11 +1,15 @@
 package com.darion.kpi.kpis;
 
 import java.time.Instant;
+import java.util.List;
 
 public record KpiRequest(
         Instant from,
         Instant to,
         String siteId,
         Integer topN,
-        Integer limit
+        Integer limit,
+        KpiInterval interval, // time-series KPIs only; null = auto (see KpiIntervals)
+        Integer precision,    // unique counts only: cardinality precision_threshold; null = Elasticsearch's default
+        List<Double> percentiles // duration KPIs only: percents to report; null = KpiPercentiles.DEFAULT
 ) {}
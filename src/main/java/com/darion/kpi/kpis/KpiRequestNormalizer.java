@@ -1,9 +1,13 @@
 package com.darion.kpi.kpis;
 
+import com.darion.kpi.rollup.RollupIndexProperties;
+import com.darion.kpi.rollup.RollupIndexState;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 
 @Component
 public class KpiRequestNormalizer {
@@ -15,9 +19,26 @@ public class KpiRequestNormalizer {
     // guardrails
     private static final int MAX_TOP_N = 25;
     private static final int MAX_LIMIT = 50;
+    private static final int MAX_PRECISION = 40_000; // Elasticsearch's precision_threshold maximum
     private static final Duration MAX_RANGE = Duration.ofDays(30); // keep queries sane
 
+    private final RollupIndexState rollupIndex;
+    private final Duration maxRollupRange;
+    private final KpiIntervals intervals;
+
+    public KpiRequestNormalizer(RollupIndexState rollupIndex, RollupIndexProperties props, KpiIntervals intervals) {
+        this.rollupIndex = rollupIndex;
+        this.maxRollupRange = props.maxRange();
+        this.intervals = intervals;
+    }
+
     public KpiRequest normalize(KpiRequest req) {
+        return normalize(List.of(), req);
+    }
+
+    // KPIs the rollup index answers may span up to kpi.rollup-index.max-range, as long as the part
+    // after its watermark (read from raw events) stays within MAX_RANGE
+    public KpiRequest normalize(Collection<KpiId> ids, KpiRequest req) {
         if (req == null) throw new BadKpiRequestException("Request cannot be null");
 
         Instant from = req.from();
@@ -29,8 +50,9 @@ public class KpiRequestNormalizer {
         if (from.isAfter(to)) {
             throw new BadKpiRequestException("'from' must be before 'to'");
         }
-        if (Duration.between(from, to).compareTo(MAX_RANGE) > 0) {
-            throw new BadKpiRequestException("Time range too large. Max range is " + MAX_RANGE.toDays() + " days");
+        Duration maxRange = maxRange(ids, from, to);
+        if (Duration.between(from, to).compareTo(maxRange) > 0) {
+            throw new BadKpiRequestException("Time range too large. Max range is " + maxRange.toDays() + " days");
         }
 
         String siteId = (req.siteId() == null || req.siteId().isBlank()) ? null : req.siteId().trim();
@@ -45,6 +67,30 @@ public class KpiRequestNormalizer {
         if (limit < 1) limit = 1;
         if (limit > MAX_LIMIT) limit = MAX_LIMIT;
 
-        return new KpiRequest(from, to, siteId, topN, limit);
+        // only time series have an interval; auto (null) is resolved per KPI (see KpiIntervals)
+        KpiInterval interval = req.interval();
+        if (interval != null && !ids.isEmpty() && ids.stream().noneMatch(EsKpiQueryClient::isBucketed)) interval = null;
+        if (interval != null) intervals.check(interval, from, to);
+
+        // only unique counts have a precision
+        Integer precision = req.precision();
+        if (precision != null && !ids.isEmpty() && ids.stream().noneMatch(EsKpiQueryClient::countsUnique)) precision = null;
+        if (precision != null && precision < 0) precision = 0;
+        if (precision != null && precision > MAX_PRECISION) precision = MAX_PRECISION;
+
+        // only duration KPIs have percentiles
+        List<Double> percentiles = req.percentiles();
+        if (!ids.isEmpty() && ids.stream().noneMatch(EsKpiQueryClient::usesPercentiles)) percentiles = null;
+        else percentiles = KpiPercentiles.normalize(percentiles);
+
+        return new KpiRequest(from, to, siteId, topN, limit, interval, precision, percentiles);
+    }
+
+    private Duration maxRange(Collection<KpiId> ids, Instant from, Instant to) {
+        if (ids.isEmpty() || !EsKpiQueryClient.ROLLUP_ELIGIBLE.containsAll(ids) || !rollupIndex.isAvailable()) {
+            return MAX_RANGE;
+        }
+        Instant rawFrom = Instant.ofEpochMilli(Math.max(from.toEpochMilli(), rollupIndex.watermark()));
+        return Duration.between(rawFrom, to).compareTo(MAX_RANGE) > 0 ? MAX_RANGE : maxRollupRange;
     }
 }
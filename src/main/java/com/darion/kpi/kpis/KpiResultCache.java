@@ -0,0 +1,135 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.IngestListener;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// KPI results keyed by KPI id + normalized request.
+//
+// Ranges that SettledWatermark considers settled cover hours that no longer change and are kept
+// for settledTtl; anything newer gets the short liveTtl. A late event landing in a settled hour
+// invalidates the entries covering it.
+//
+// Bounded by weight: roughly one unit per result row, so a 720-bucket series costs more than a
+// single success rate.
+@Component
+public class KpiResultCache implements IngestListener {
+
+    private final boolean enabled;
+    private final SettledWatermark settled;
+    private final Duration settledTtl;
+    private final Duration liveTtl;
+    private final Cache<KpiCacheKey, Object> cache;
+
+    private final Map<KpiId, Counter> hits = new EnumMap<>(KpiId.class);
+    private final Map<KpiId, Counter> misses = new EnumMap<>(KpiId.class);
+
+    public KpiResultCache(KpiQueryProperties props, SettledWatermark settled, MeterRegistry registry) {
+        KpiQueryProperties.Cache p = props.cache();
+        this.enabled = p.enabled();
+        this.settled = settled;
+        this.settledTtl = p.settledTtl();
+        this.liveTtl = p.liveTtl();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(p.maxWeight())
+                .weigher((KpiCacheKey k, Object v) -> v instanceof Collection<?> c ? c.size() + 1 : 1)
+                .expireAfter(new Expiry<KpiCacheKey, Object>() {
+                    @Override
+                    public long expireAfterCreate(KpiCacheKey key, Object value, long currentTime) {
+                        return ttl(key).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(KpiCacheKey key, Object value, long currentTime, long currentDuration) {
+                        return ttl(key).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(KpiCacheKey key, Object value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .removalListener((KpiCacheKey k, Object v, RemovalCause cause) -> {
+                    if (k == null) return;
+                    if (cause.wasEvicted()) {
+                        registry.counter("kpi.cache.evictions", "kpi", k.id().name(), "cause", cause.name()).increment();
+                    } else if (cause == RemovalCause.EXPLICIT) {
+                        registry.counter("kpi.cache.invalidations", "kpi", k.id().name()).increment();
+                    }
+                })
+                .build();
+
+        for (KpiId id : KpiId.values()) {
+            hits.put(id, Counter.builder("kpi.cache.requests").tag("kpi", id.name()).tag("result", "hit")
+                    .description("KPI result cache lookups").register(registry));
+            misses.put(id, Counter.builder("kpi.cache.requests").tag("kpi", id.name()).tag("result", "miss")
+                    .description("KPI result cache lookups").register(registry));
+        }
+        Gauge.builder("kpi.cache.entries", cache, Cache::estimatedSize)
+                .description("KPI results currently cached")
+                .register(registry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // null on a miss
+    public Object get(KpiId id, KpiRequest req) {
+        if (!enabled) return null;
+        Object v = cache.getIfPresent(new KpiCacheKey(id, req));
+        (v == null ? misses : hits).get(id).increment();
+        return v;
+    }
+
+    public void put(KpiId id, KpiRequest req, Object result) {
+        if (!enabled || result == null) return;
+        cache.put(new KpiCacheKey(id, req), result);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    long size() {
+        cache.cleanUp();
+        return cache.estimatedSize();
+    }
+
+    boolean isSettled(KpiCacheKey key) {
+        return settled.isSettled(key.req().from().toEpochMilli(), key.req().to().toEpochMilli());
+    }
+
+    private Duration ttl(KpiCacheKey key) {
+        return isSettled(key) ? settledTtl : liveTtl;
+    }
+
+    // ---------------- ingest invalidation ----------------
+
+    // Only events older than the watermark can change a settled entry; everything newer is covered
+    // by the live TTL.
+    @Override
+    public void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (!enabled) return;
+        Map<Long, Set<String>> late = settled.lateWrites(batch);
+        if (late == null) return;
+
+        cache.asMap().keySet().removeIf(k -> SettledWatermark.touches(late,
+                k.req().from().toEpochMilli(), k.req().to().toEpochMilli(), k.req().siteId()));
+    }
+}
@@ -1,5 +1,16 @@
 package com.darion.kpi.kpis;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 public interface KpiService {
     Object getKpi(KpiId id, KpiRequest req);
+
+    Map<KpiId, KpiBatchResultDTO> getKpis(List<KpiId> ids, KpiRequest req);
+
+    // same results; how much of the work blocks a thread depends on kpi.query.execution.mode
+    CompletableFuture<Object> getKpiAsync(KpiId id, KpiRequest req);
+
+    CompletableFuture<Map<KpiId, KpiBatchResultDTO>> getKpisAsync(List<KpiId> ids, KpiRequest req);
 }
@@ -1,36 +1,138 @@
 package com.darion.kpi.kpis;
 
+import com.darion.kpi.kpis.KpiQueryProperties.Execution.Mode;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
 @Service
 public class KpiServiceImpl implements KpiService {
 
     private final EsKpiQueryClient es;
+    private final HourlyKpiCoalescer hourly;
+    private final KpiResultCache cache;
+    private final BucketedKpiCache buckets;
+    private final RollupKpis rollup;
+    private final KpiSingleFlight singleFlight;
+    private final KpiIntervals intervals;
+    private final KpiMetrics metrics;
+    private final Mode mode;
+    private final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
 
-    public KpiServiceImpl(EsKpiQueryClient es) {
+    public KpiServiceImpl(EsKpiQueryClient es, HourlyKpiCoalescer hourly, KpiResultCache cache, BucketedKpiCache buckets,
+                          RollupKpis rollup, KpiSingleFlight singleFlight, KpiIntervals intervals, KpiMetrics metrics,
+                          KpiQueryProperties props) {
         this.es = es;
+        this.hourly = hourly;
+        this.cache = cache;
+        this.buckets = buckets;
+        this.rollup = rollup;
+        this.singleFlight = singleFlight;
+        this.intervals = intervals;
+        this.metrics = metrics;
+        this.mode = props.execution().mode();
     }
 
     @Override
-    public Object getKpi(KpiId id, KpiRequest req) {
-        return switch (id) {
+    public Object getKpi(KpiId id, KpiRequest normalized) {
+        long start = System.nanoTime();
+        KpiRequest req = resolve(id, normalized);
+        // what the in-process rollup answers is always current, no need to cache it
+        Object rolledUp = rollup.getKpi(id, req);
+        if (rolledUp != null) return served(id, req, "rollup", start, rolledUp);
 
-            case EVENT_TYPE_BREAKDOWN ->
-                    es.eventTypeBreakdown(req.from(), req.to(), req.siteId());
+        Object cached = cache.get(id, req);
+        if (cached != null) return served(id, req, "cache", start, cached);
 
-            case EVENTS_PER_HOUR ->
-                    es.eventsPerHour(req.from(), req.to(), req.siteId());
+        try {
+            Object result = shared(id, req, () -> CompletableFuture.completedFuture(query(id, req))).join();
+            return served(id, req, "query", start, result);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
 
-            case EVENTS_PER_HOUR_BY_TYPE -> {
-                int topN = req.topN() == null ? 5 : req.topN();
-                yield es.eventsPerHourByType(req.from(), req.to(), req.siteId(), topN);
-            }
+    @Override
+    public CompletableFuture<Object> getKpiAsync(KpiId id, KpiRequest normalized) {
+        long start = System.nanoTime();
+        KpiRequest req = resolve(id, normalized);
+        Object rolledUp = rollup.getKpi(id, req);
+        if (rolledUp != null) return CompletableFuture.completedFuture(served(id, req, "rollup", start, rolledUp));
+
+        Object cached = cache.get(id, req);
+        if (cached != null) return CompletableFuture.completedFuture(served(id, req, "cache", start, cached));
+
+        CompletableFuture<Object> result = shared(id, req, () -> switch (mode) {
+            case BLOCKING -> CompletableFuture.completedFuture(query(id, req));
+            case VIRTUAL -> CompletableFuture.supplyAsync(() -> query(id, req), virtualThreads);
+            // the bucket cache and hourly fusion are blocking: those KPIs still take a virtual thread
+            case ASYNC -> buckets.handles(id) || hourly.handles(id)
+                    ? CompletableFuture.supplyAsync(() -> query(id, req), virtualThreads)
+                    : es.kpiAsync(id, req);
+        });
+        return cancels(result, result.thenApply(r -> served(id, req, "query", start, r)));
+    }
+
+    // req as id is computed, so equivalent requests share cache entries and queries: at its interval,
+    // with a precision only when id counts unique values and percentiles only when it reports them
+    private KpiRequest resolve(KpiId id, KpiRequest normalized) {
+        KpiRequest req = intervals.resolve(id, normalized);
+        Integer precision = EsKpiQueryClient.countsUnique(id) ? req.precision() : null;
+        List<Double> percentiles = EsKpiQueryClient.usesPercentiles(id) ? req.percentiles() : null;
+        if (precision == req.precision() && percentiles == req.percentiles()) return req;
+        return new KpiRequest(req.from(), req.to(), req.siteId(), req.topN(), req.limit(), req.interval(), precision, percentiles);
+    }
+
+    // Identical requests in flight share one query (see KpiSingleFlight). Only the request that
+    // started it runs query and caches the result.
+    private CompletableFuture<Object> shared(KpiId id, KpiRequest req, Supplier<CompletableFuture<Object>> query) {
+        return singleFlight.run(new KpiCacheKey(id, req), () -> {
+            CompletableFuture<Object> result = query.get();
+            return cancels(result, result.thenApply(r -> {
+                cache.put(id, req, r);
+                return r;
+            }));
+        });
+    }
+
+    // derived futures do not pass cancellation upstream on their own
+    private static <T> CompletableFuture<T> cancels(CompletableFuture<?> upstream, CompletableFuture<T> derived) {
+        derived.whenComplete((r, e) -> {
+            if (derived.isCancelled()) upstream.cancel(true);
+        });
+        return derived;
+    }
+
+    private Object served(KpiId id, KpiRequest req, String source, long start, Object result) {
+        metrics.request(id.name(), req, source, start);
+        metrics.rows(id, result);
+        return result;
+    }
+
+    private Object query(KpiId id, KpiRequest req) {
+        // hour/minute series: only buckets missing from the bucket cache are queried
+        if (buckets.handles(id)) return buckets.get(id, req, ranges -> fetchBuckets(id, req, ranges));
+
+        // hourly KPIs requested concurrently for the same range/site share one search
+        if (hourly.handles(id)) return hourly.getKpi(id, req);
+
+        return switch (id) {
 
-            case ERROR_RATE_PER_HOUR ->
-                    es.errorRatePerHour(req.from(), req.to(), req.siteId());
+            case EVENTS_PER_HOUR, EVENTS_PER_HOUR_BY_TYPE, ERROR_RATE_PER_HOUR, DURATION_STATS_PER_HOUR,
+                 UNIQUE_ACTORS_PER_HOUR, UNIQUE_SESSIONS_PER_HOUR ->
+                    throw new IllegalStateException(id + " is answered by the fused hourly search");
 
-            case DURATION_STATS_PER_HOUR ->
-                    es.durationStatsPerHour(req.from(), req.to(), req.siteId());
+            case EVENT_TYPE_BREAKDOWN ->
+                    es.eventTypeBreakdown(req.from(), req.to(), req.siteId());
 
             case SUCCESS_RATE ->
                     es.successRate(req.from(), req.to(), req.siteId());
@@ -43,19 +145,11 @@ public class KpiServiceImpl implements KpiService {
             case SITE_VOLUME_AND_SUCCESS ->
                 es.siteVolumeAndSuccess(req.from(), req.to(), req.siteId());
 
-
-            case UNIQUE_ACTORS_PER_HOUR ->
-                es.uniqueActorsPerHour(req.from(), req.to(), req.siteId());
-
-
-            case UNIQUE_SESSIONS_PER_HOUR ->
-                es.uniqueSessionsPerHour(req.from(), req.to(), req.siteId());
-
             case SUCCESS_RATE_BY_EVENT_TYPE ->
                     es.successRateByEventType(req.from(), req.to(), req.siteId());
 
             case DURATION_STATS_BY_EVENT_TYPE ->
-                    es.durationStatsByEventType(req.from(), req.to(), req.siteId());
+                    es.durationStatsByEventType(req.from(), req.to(), req.siteId(), req.percentiles());
 
             case TOP_SESSIONS_BY_EVENT_COUNT ->{
                 int limit = req.limit() == null ? 10 : req.limit();
@@ -66,13 +160,13 @@ public class KpiServiceImpl implements KpiService {
                 yield es.topEventTypes(req.from(), req.to(), req.siteId(), limit);
             }
             case THROUGHPUT_PER_MINUTE ->
-                    es.throughputPerMinute(req.from(), req.to(), req.siteId());
+                    es.throughputPerMinute(req.from(), req.to(), req.siteId(), req.interval());
 
             case ERROR_TYPES_BREAKDOWN ->
                     es.errorTypesBreakdown(req.from(), req.to(), req.siteId());
 
             case ACTOR_ACTIVITY_SUMMARY ->
-                    es.actorActivitySummary(req.from(), req.to(), req.siteId());
+                    es.actorActivitySummary(req.from(), req.to(), req.siteId(), req.precision());
 
             case TOP_LONGEST_EVENTS -> {
                 int limit = req.limit() == null ? 10 : req.limit();
@@ -88,4 +182,121 @@ public class KpiServiceImpl implements KpiService {
                     es.eventTypePercentageDistribution(req.from(), req.to(), req.siteId());
         };
     }
+
+    private List<KpiBucket> fetchBuckets(KpiId id, KpiRequest req, List<TimeRange> ranges) {
+        AggResponse root = hourly.handles(id)
+                ? hourly.search(id, ranges, req.siteId(), req.interval(), req.precision(), req.percentiles())
+                : es.throughputSearch(ranges, req.siteId(), req.interval());
+        return es.buckets(id, root, req);
+    }
+
+    @Override
+    public Map<KpiId, KpiBatchResultDTO> getKpis(List<KpiId> ids, KpiRequest req) {
+        try {
+            return getKpisAsync(ids, req).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<KpiId, KpiBatchResultDTO>> getKpisAsync(List<KpiId> ids, KpiRequest req) {
+        long start = System.nanoTime();
+        Map<KpiId, KpiBatchResultDTO> out = new EnumMap<>(KpiId.class);
+        // each time-series KPI at its own interval; the _msearch resolves them the same way
+        Map<KpiId, KpiRequest> missing = new EnumMap<>(KpiId.class);
+        for (KpiId id : ids) {
+            KpiRequest r = resolve(id, req);
+            Object rolledUp = rollup.getKpi(id, r);
+            if (rolledUp != null) {
+                out.put(id, KpiBatchResultDTO.ok(rolledUp));
+                continue;
+            }
+            Object cached = cache.get(id, r);
+            if (cached != null) out.put(id, KpiBatchResultDTO.ok(cached));
+            else missing.put(id, r);
+        }
+        if (missing.isEmpty()) {
+            metrics.request(KpiMetrics.BATCH, req, "cache", start);
+            return CompletableFuture.completedFuture(out);
+        }
+
+        // Every missing KPI is shared with identical requests in flight. Those this batch starts are
+        // bucketed KPIs, which go through the bucket cache concurrently so hourly fetches are still
+        // fused, and the rest, which this batch answers with one _msearch.
+        Map<KpiId, CompletableFuture<Object>> pending = new EnumMap<>(KpiId.class);
+        Map<KpiId, CompletableFuture<Object>> started = new EnumMap<>(KpiId.class);
+        missing.forEach((id, r) -> {
+            pending.put(id, shared(id, r, () -> {
+                if (buckets.handles(id)) return CompletableFuture.supplyAsync(() -> query(id, r), virtualThreads);
+                CompletableFuture<Object> f = new CompletableFuture<>();
+                started.put(id, f);
+                return f;
+            }));
+        });
+        List<KpiId> rest = List.copyOf(started.keySet());
+
+        CompletableFuture<Map<KpiId, KpiBatchResultDTO>> searched = rest.isEmpty()
+                ? CompletableFuture.completedFuture(Map.of())
+                : switch (mode) {
+                    case BLOCKING -> {
+                        try {
+                            yield CompletableFuture.completedFuture(es.multiSearch(rest, req));
+                        } catch (RuntimeException e) {
+                            yield CompletableFuture.failedFuture(e);
+                        }
+                    }
+                    case VIRTUAL -> CompletableFuture.supplyAsync(() -> es.multiSearch(rest, req), virtualThreads);
+                    case ASYNC -> es.multiSearchAsync(rest, req);
+                };
+        searched.whenComplete((results, e) -> started.forEach((id, f) -> {
+            KpiBatchResultDTO r = results == null ? null : results.get(id);
+            if (e != null) f.completeExceptionally(e);
+            else if (r == null) f.completeExceptionally(new EntryError("No response returned for KPI"));
+            else if (r.ok()) f.complete(r.data());
+            else f.completeExceptionally(new EntryError(r.error()));
+        }));
+        // the _msearch is only abandoned when nobody, here or in another request, waits for any of it
+        List<CompletableFuture<Object>> own = List.copyOf(started.values());
+        for (CompletableFuture<Object> f : own) {
+            f.whenComplete((r, e) -> {
+                if (own.stream().allMatch(CompletableFuture::isCancelled)) searched.cancel(true);
+            });
+        }
+
+        // a failing KPI only fails its own entry
+        CompletableFuture<Void> settled = CompletableFuture.allOf(pending.values().stream()
+                .map(f -> f.handle((r, e) -> null))
+                .toArray(CompletableFuture[]::new));
+
+        CompletableFuture<Map<KpiId, KpiBatchResultDTO>> combined = searched.thenCombine(settled, (results, ignored) -> {
+            pending.forEach((id, f) -> {
+                try {
+                    Object result = f.join();
+                    metrics.rows(id, result);
+                    out.put(id, KpiBatchResultDTO.ok(result));
+                } catch (CompletionException e) {
+                    out.put(id, KpiBatchResultDTO.error(e.getCause() instanceof EntryError
+                            ? e.getCause().getMessage()
+                            : "Failed " + id + " KPI: " + e.getCause().getMessage()));
+                }
+            });
+            metrics.request(KpiMetrics.BATCH, req, "query", start);
+            return out;
+        });
+        combined.whenComplete((r, e) -> {
+            if (combined.isCancelled()) pending.values().forEach(f -> f.cancel(true));
+        });
+        return combined;
+    }
+
+    // an _msearch entry that failed; its message is already the batch entry's error
+    private static final class EntryError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EntryError(String message) {
+            super(message, null, false, false);
+        }
+    }
 }
@@ -0,0 +1,134 @@
+package com.darion.kpi.kpis;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Shares one in-flight query between concurrent requests for the same normalized key. The first
+// caller (leader) starts the query, callers arriving before it completes (followers) wait on it.
+// The entry is removed as soon as the query completes, so nothing is served once it has finished:
+// unlike the result cache there is no TTL and no staleness beyond the query itself.
+// Each caller gets its own future; cancelling it only detaches that caller. The query itself is
+// cancelled once every caller has gone.
+@Component
+public class KpiSingleFlight {
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<KpiCacheKey, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final Map<KpiId, Counter> leaders = new EnumMap<>(KpiId.class);
+    private final Map<KpiId, Counter> followers = new EnumMap<>(KpiId.class);
+    private final Map<KpiId, Counter> abandoned = new EnumMap<>(KpiId.class);
+
+    public KpiSingleFlight(KpiQueryProperties props, MeterRegistry registry) {
+        this.enabled = props.singleFlight().enabled();
+        for (KpiId id : KpiId.values()) {
+            // coalescing ratio: role=follower / all
+            leaders.put(id, Counter.builder("kpi.query.singleflight.requests").tag("kpi", id.name()).tag("role", "leader")
+                    .description("KPI queries started (leader) or joined while in flight (follower)").register(registry));
+            followers.put(id, Counter.builder("kpi.query.singleflight.requests").tag("kpi", id.name()).tag("role", "follower")
+                    .description("KPI queries started (leader) or joined while in flight (follower)").register(registry));
+            abandoned.put(id, Counter.builder("kpi.query.singleflight.abandoned").tag("kpi", id.name())
+                    .description("In-flight KPI queries cancelled because every caller went away").register(registry));
+        }
+    }
+
+    // query runs at most once per key at a time; it is only called by the leader
+    public CompletableFuture<Object> run(KpiCacheKey key, Supplier<CompletableFuture<Object>> query) {
+        if (!enabled) return query.get();
+
+        while (true) {
+            Flight fresh = new Flight(key);
+            Flight f = inFlight.putIfAbsent(key, fresh);
+            if (f == null) {
+                leaders.get(key.id()).increment();
+                CompletableFuture<Object> mine = fresh.join();
+                fresh.start(query);
+                return mine;
+            }
+            CompletableFuture<Object> mine = f.join();
+            if (mine != null) {
+                followers.get(key.id()).increment();
+                return mine;
+            }
+            // completed or abandoned between lookup and join, start or join the next one
+            inFlight.remove(key, f);
+        }
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    private final class Flight {
+        final KpiCacheKey key;
+        final CompletableFuture<Object> shared = new CompletableFuture<>();
+        volatile CompletableFuture<Object> source;
+        int waiters;
+        boolean closed;
+
+        Flight(KpiCacheKey key) {
+            this.key = key;
+        }
+
+        // null once the flight no longer takes callers
+        synchronized CompletableFuture<Object> join() {
+            if (closed) return null;
+            waiters++;
+            CompletableFuture<Object> mine = new CompletableFuture<>();
+            shared.whenComplete((r, e) -> {
+                if (e != null) mine.completeExceptionally(e);
+                else mine.complete(r);
+            });
+            mine.whenComplete((r, e) -> {
+                if (mine.isCancelled()) leave();
+            });
+            return mine;
+        }
+
+        void start(Supplier<CompletableFuture<Object>> query) {
+            CompletableFuture<Object> s;
+            try {
+                s = query.get();
+            } catch (RuntimeException e) {
+                s = CompletableFuture.failedFuture(e);
+            }
+            source = s;
+            s.whenComplete((r, e) -> {
+                // leave the map before callers see the result: later requests must query again
+                close();
+                inFlight.remove(key, this);
+                if (e != null) shared.completeExceptionally(e);
+                else shared.complete(r);
+            });
+            // every caller may have left while the query was being started
+            if (isClosed() && !s.isDone()) s.cancel(true);
+        }
+
+        private void leave() {
+            synchronized (this) {
+                if (closed || --waiters > 0) return;
+                closed = true;
+            }
+            inFlight.remove(key, this);
+            abandoned.get(key.id()).increment();
+            CompletableFuture<Object> s = source;
+            if (s != null) s.cancel(true);
+            shared.cancel(true);
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+}
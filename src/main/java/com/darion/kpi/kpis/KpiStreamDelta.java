@@ -0,0 +1,7 @@
+package com.darion.kpi.kpis;
+
+import java.util.List;
+
+// A stream update of a time-series KPI: drop the buckets before 'from', then add or replace these
+// buckets by their key
+public record KpiStreamDelta(String from, List<Object> buckets) {}
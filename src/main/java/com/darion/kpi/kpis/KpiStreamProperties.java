@@ -0,0 +1,17 @@
+package com.darion.kpi.kpis;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kpi.stream")
+public record KpiStreamProperties(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("1s") Duration interval,       // how often streams touched by ingest are recomputed
+        @DefaultValue("30s") Duration refresh,       // recomputed this often anyway (events from other instances)
+        @DefaultValue("15s") Duration heartbeat,     // comment sent to idle connections
+        @DefaultValue("30m") Duration timeout,       // connection lifetime; EventSource reconnects on its own
+        @DefaultValue("24h") Duration defaultWindow,
+        @DefaultValue("20000") int maxSubscribers
+) {}
@@ -0,0 +1,409 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.IngestListener;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Live KPIs over Server-Sent Events. Subscribers of the same KPI, window and parameters share one
+// stream: it is recomputed (through KpiService, so the rollup answers whole hours in-process) when
+// ingest touches its site and window, when its window slides by a bucket, and every refresh. Each
+// subscriber first gets a "snapshot" event (the body GET /kpis/{id} returns); afterwards time series
+// get "delta" events holding only the changed buckets, other KPIs a new snapshot.
+//
+// A subscriber only holds a reference to the last result it was sent. Sends run on virtual threads,
+// one per subscriber at most: updates published while a slow client is still being written to are
+// folded into a single delta against what it last received, never queued.
+@Component
+public class KpiStreams implements IngestListener, SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(KpiStreams.class);
+    private static final long HOUR_MS = 3_600_000L;
+    private static final Set<DataWithMediaType> HEARTBEAT = SseEmitter.event().comment("keep-alive").build();
+
+    private final KpiService service;
+    private final KpiRequestNormalizer normalizer;
+    private final KpiIntervals intervals;
+    private final ObjectMapper mapper;
+    private final KpiStreamProperties props;
+    private final ConcurrentHashMap<StreamKey, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running;
+
+    private final Counter computations;
+    private final Counter failures;
+    private final Counter coalesced;
+    private final Counter rejected;
+
+    public KpiStreams(KpiService service, KpiRequestNormalizer normalizer, KpiIntervals intervals, ObjectMapper mapper,
+                      KpiStreamProperties props, MeterRegistry registry) {
+        this.service = service;
+        this.normalizer = normalizer;
+        this.intervals = intervals;
+        this.mapper = mapper;
+        this.props = props;
+
+        Gauge.builder("kpi.stream.subscribers", subscribers, AtomicInteger::get)
+                .description("Open KPI stream connections")
+                .register(registry);
+        Gauge.builder("kpi.stream.streams", streams, Map::size)
+                .description("Distinct KPI streams being computed")
+                .register(registry);
+        this.computations = Counter.builder("kpi.stream.computations")
+                .description("KPI stream recomputations, shared by all subscribers of a stream")
+                .register(registry);
+        this.failures = Counter.builder("kpi.stream.failures")
+                .description("KPI stream recomputations that failed")
+                .register(registry);
+        this.coalesced = Counter.builder("kpi.stream.coalesced")
+                .description("Updates folded into the next send because the subscriber was still being written to")
+                .register(registry);
+        this.rejected = Counter.builder("kpi.stream.rejected")
+                .description("Subscriptions refused at kpi.stream.max-subscribers")
+                .register(registry);
+    }
+
+    // params holds siteId, topN, limit, interval, precision and percentiles; window defaults to
+    // kpi.stream.default-window. 503 when kpi.stream.max-subscribers connections are open.
+    public ResponseEntity<SseEmitter> subscribe(KpiId id, Duration window, KpiRequest params) {
+        if (!props.enabled() || !running) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        if (window == null) window = props.defaultWindow();
+        if (window.isNegative() || window.isZero()) throw new BadKpiRequestException("'window' must be positive");
+
+        // the interval is fixed when subscribing, so the stream keeps its buckets as it slides
+        long now = System.currentTimeMillis();
+        KpiRequest probe = normalizer.normalize(List.of(id),
+                withRange(params, Instant.ofEpochMilli(now - window.toMillis()), Instant.ofEpochMilli(now)));
+        KpiInterval interval = intervals.of(id, probe);
+        StreamKey key = new StreamKey(id, window, new KpiRequest(null, null, probe.siteId(), probe.topN(), probe.limit(),
+                interval, probe.precision(), probe.percentiles()));
+        normalizer.normalize(List.of(id), key.request(now)); // rejects windows too large once aligned
+
+        if (subscribers.incrementAndGet() > props.maxSubscribers()) {
+            subscribers.decrementAndGet();
+            rejected.increment();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", Long.toString(props.refresh().toSeconds())).build();
+        }
+
+        Subscriber sub = new Subscriber(emitter());
+        Stream stream = streams.compute(key, (k, s) -> {
+            if (s == null) s = new Stream(k);
+            s.subscribers.add(sub);
+            return s;
+        });
+        sub.emitter.onCompletion(() -> unsubscribe(stream, sub));
+        sub.emitter.onTimeout(() -> unsubscribe(stream, sub));
+        sub.emitter.onError(e -> unsubscribe(stream, sub));
+
+        if (stream.current == null) recompute(stream, now);
+        else deliver(stream, sub);
+        return ResponseEntity.ok(sub.emitter);
+    }
+
+    private void unsubscribe(Stream stream, Subscriber sub) {
+        if (!stream.subscribers.remove(sub)) return;
+        subscribers.decrementAndGet();
+        streams.computeIfPresent(stream.key, (k, s) -> s.subscribers.isEmpty() ? null : s);
+    }
+
+    // ---------------- computing ----------------
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Stream s : streams.values()) {
+            boolean slid = s.key.fromMs(now) != s.fromMs;
+            if (s.dirty || slid || now - s.computedAt >= props.refresh().toMillis()) recompute(s, now);
+
+            if (now - s.pushedAt >= props.heartbeat().toMillis()) {
+                s.pushedAt = now;
+                for (Subscriber sub : s.subscribers) {
+                    sub.heartbeat = true;
+                    deliver(s, sub);
+                }
+            }
+        }
+    }
+
+    // one computation per stream at a time; ingest during it marks the stream dirty again
+    private void recompute(Stream s, long now) {
+        if (!s.computing.compareAndSet(false, true)) return;
+        s.dirty = false;
+        long fromMs = s.key.fromMs(now);
+        s.fromMs = fromMs;
+        computations.increment();
+
+        CompletableFuture<Object> result;
+        try {
+            result = service.getKpiAsync(s.key.id(), s.key.request(now));
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((r, e) -> {
+            s.computedAt = System.currentTimeMillis();
+            s.computing.set(false);
+            if (e != null) {
+                failures.increment();
+                log.debug("KPI stream {} failed", s.key, e);
+                return;
+            }
+            publish(s, fromMs, r);
+        });
+    }
+
+    private void publish(Stream s, long fromMs, Object result) {
+        Snapshot prev = s.current;
+        if (prev != null && prev.fromMs == fromMs && prev.result.equals(result)) return;
+
+        long version = prev == null ? 1 : prev.version + 1;
+        Snapshot next = new Snapshot(version, fromMs, result, event("snapshot", version, result));
+        if (prev != null && s.bucketed) s.lastDelta = new Delta(prev, next, deltaEvent(prev, next));
+        s.current = next;
+        s.pushedAt = System.currentTimeMillis();
+        for (Subscriber sub : s.subscribers) deliver(s, sub);
+    }
+
+    // ---------------- sending ----------------
+
+    // one per connection
+    SseEmitter emitter() {
+        return new SseEmitter(props.timeout().toMillis());
+    }
+
+    private void deliver(Stream s, Subscriber sub) {
+        if (!sub.sending.compareAndSet(false, true)) {
+            coalesced.increment();
+            return;
+        }
+        senders.execute(() -> drain(s, sub));
+    }
+
+    // Sends until the subscriber has the stream's latest result. Blocks only this virtual thread
+    // when the client reads slowly; whatever is published meanwhile is picked up in one go.
+    private void drain(Stream s, Subscriber sub) {
+        do {
+            try {
+                while (true) {
+                    Snapshot cur = s.current;
+                    if (cur != null && cur != sub.sent) {
+                        sub.emitter.send(payload(s, sub.sent, cur));
+                        sub.sent = cur;
+                    } else if (sub.heartbeat) {
+                        sub.heartbeat = false;
+                        sub.emitter.send(HEARTBEAT);
+                    } else {
+                        break;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                // client gone or emitter completed: keep 'sending' set, nothing is sent to it again
+                unsubscribe(s, sub);
+                sub.emitter.completeWithError(e);
+                return;
+            }
+            sub.sending.set(false);
+            // an update published between the last check and the reset
+        } while ((s.current != sub.sent || sub.heartbeat) && sub.sending.compareAndSet(false, true));
+    }
+
+    private Set<DataWithMediaType> payload(Stream s, Snapshot sent, Snapshot cur) {
+        if (sent == null || !s.bucketed) return cur.event;
+        Delta d = s.lastDelta;
+        if (d != null && d.from == sent && d.to == cur) return d.event;
+        return deltaEvent(sent, cur); // a slow subscriber catching up over several versions
+    }
+
+    private Set<DataWithMediaType> deltaEvent(Snapshot from, Snapshot to) {
+        String first = EsKpiQueryClient.KEY_FORMAT.format(Instant.ofEpochMilli(to.fromMs));
+        return event("delta", to.version, new KpiStreamDelta(first, delta((List<?>) from.result, (List<?>) to.result)));
+    }
+
+    // the buckets of after that are new or differ from the same bucket in before
+    static List<Object> delta(List<?> before, List<?> after) {
+        Map<String, Object> old = new HashMap<>(before.size() * 2);
+        for (Object b : before) old.put(bucketKey(b), b);
+        List<Object> changed = new ArrayList<>();
+        for (Object b : after) {
+            if (!Objects.equals(old.get(bucketKey(b)), b)) changed.add(b);
+        }
+        return changed;
+    }
+
+    static String bucketKey(Object bucket) {
+        return switch (bucket) {
+            case HourlyCountDTO b -> b.hour();
+            case HourlyStackedDTO b -> b.hour();
+            case HourlyErrorRateDTO b -> b.hour();
+            case HourlyDurationStatsDTO b -> b.hour();
+            case HourlyUniqueCountDTO b -> b.hour();
+            case HourlyUniqueSessionsDTO b -> b.hour();
+            default -> throw new IllegalArgumentException("Not a time-series bucket: " + bucket.getClass().getSimpleName());
+        };
+    }
+
+    // serialized once, sent to every subscriber as is
+    private Set<DataWithMediaType> event(String name, long version, Object data) {
+        try {
+            return SseEmitter.event().id(Long.toString(version)).name(name).data(mapper.writeValueAsString(data)).build();
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to serialize KPI stream event", e);
+        }
+    }
+
+    // ---------------- ingest ----------------
+
+    // Marks the streams whose site and window the written events fall in; they are recomputed on
+    // the next tick, however many batches arrive until then.
+    @Override
+    public void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (streams.isEmpty()) return;
+        long latest = Long.MIN_VALUE;
+        Set<String> sites = new HashSet<>();
+        boolean anySite = false;
+        int n = Math.min(batch.size(), results.size());
+        for (int i = 0; i < n; i++) {
+            int status = results.get(i).status();
+            if (status != 200 && status != 201) continue;
+            latest = Math.max(latest, batch.timestampMillis(i));
+            String site = batch.siteId(i);
+            if (site != null) sites.add(site);
+            anySite = true;
+        }
+        if (!anySite) return;
+
+        for (Stream s : streams.values()) {
+            String site = s.key.params().siteId();
+            if (latest >= s.fromMs && (site == null || sites.contains(site))) s.dirty = true;
+        }
+    }
+
+    // ---------------- state ----------------
+
+    // params without from / to, with the interval resolved when the stream was created
+    record StreamKey(KpiId id, Duration window, KpiRequest params) {
+
+        long width() {
+            return params.interval() == null ? HOUR_MS : params.interval().millis();
+        }
+
+        // whole buckets (hours for KPIs without one), so the rollup can serve them and the range
+        // only moves when a bucket starts
+        long fromMs(long nowMs) {
+            return Math.floorDiv(nowMs - window.toMillis(), width()) * width();
+        }
+
+        // through the end of the bucket holding now
+        KpiRequest request(long nowMs) {
+            long toMs = Math.floorDiv(nowMs, width()) * width() + width() - 1;
+            return withRange(params, Instant.ofEpochMilli(fromMs(nowMs)), Instant.ofEpochMilli(toMs));
+        }
+    }
+
+    private static KpiRequest withRange(KpiRequest p, Instant from, Instant to) {
+        return new KpiRequest(from, to, p.siteId(), p.topN(), p.limit(), p.interval(), p.precision(), p.percentiles());
+    }
+
+    private static final class Stream {
+        final StreamKey key;
+        final boolean bucketed;
+        final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean computing = new AtomicBoolean();
+        volatile Snapshot current;
+        volatile Delta lastDelta; // from the previous result to current, shared by subscribers that had it
+        volatile boolean dirty;
+        volatile long fromMs = Long.MIN_VALUE;
+        volatile long computedAt;
+        volatile long pushedAt = System.currentTimeMillis();
+
+        Stream(StreamKey key) {
+            this.key = key;
+            this.bucketed = EsKpiQueryClient.isBucketed(key.id());
+        }
+    }
+
+    private record Snapshot(long version, long fromMs, Object result, Set<DataWithMediaType> event) {}
+
+    private record Delta(Snapshot from, Snapshot to, Set<DataWithMediaType> event) {}
+
+    private static final class Subscriber {
+        final SseEmitter emitter;
+        final AtomicBoolean sending = new AtomicBoolean();
+        volatile Snapshot sent;
+        volatile boolean heartbeat;
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    // ---------------- lifecycle ----------------
+
+    @Override
+    public void start() {
+        if (!props.enabled() || running) return;
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kpi-streams");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = props.interval().toMillis();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                log.warn("KPI stream tick failed", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        running = false;
+        scheduler.shutdownNow();
+        for (Stream s : streams.values()) {
+            for (Subscriber sub : s.subscribers) sub.emitter.complete();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,96 @@
+package com.darion.kpi.kpis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+// Boot's Jackson converter, also recording the serialize phase and response size of KPI
+// endpoints. Being a MappingJackson2HttpMessageConverter bean, it takes the default one's place.
+@Component
+public class MeteredJsonConverter extends MappingJackson2HttpMessageConverter {
+
+    private final KpiMetrics metrics;
+
+    public MeteredJsonConverter(ObjectMapper mapper, KpiMetrics metrics) {
+        super(mapper);
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage)
+            throws IOException, HttpMessageNotWritableException {
+        String kpi = kpi();
+        if (kpi == null) {
+            super.writeInternal(object, type, outputMessage);
+            return;
+        }
+
+        long start = System.nanoTime();
+        CountingOutputStream body = new CountingOutputStream(outputMessage.getBody());
+        super.writeInternal(object, type, new HttpOutputMessage() {
+            @Override
+            public OutputStream getBody() {
+                return body;
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return outputMessage.getHeaders();
+            }
+        });
+        metrics.phase(kpi, "serialize", start);
+        metrics.responseBytes(kpi, body.count);
+    }
+
+    // KPI label of the request being answered, null outside /kpis/{id} and /kpis/_batch
+    private static String kpi() {
+        RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+        if (attrs == null) return null;
+
+        Object pattern = attrs.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if ("/kpis/_batch".equals(pattern)) return KpiMetrics.BATCH;
+        if (!"/kpis/{id}".equals(pattern)) return null;
+
+        Object vars = attrs.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        Object id = vars instanceof Map<?, ?> m ? m.get("id") : null;
+        // only known ids, an arbitrary path segment must not become a tag value
+        try {
+            return id == null ? null : KpiId.valueOf(id.toString()).name();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
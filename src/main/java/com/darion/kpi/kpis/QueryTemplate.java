@@ -0,0 +1,84 @@
+package com.darion.kpi.kpis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A search body compiled once: the constant JSON is kept as UTF-8 byte segments and the per-request
+// values are written into the slots between them. Placeholders in the template text:
+//   {{FILTER}}   the scope's time filter clause
+//   {{SITE}}     ,{"term":{"siteId":...}} when a siteId is given, nothing otherwise
+//   {{SIZE}}     terms size / hits size
+//   {{SKETCH}}   the field percentiles are computed on
+//   {{INTERVAL}} the date_histogram fixed_interval of time-series KPIs
+//   {{PRECISION}} ,"precision_threshold":... for cardinality aggregations when one is given
+//   {{PERCENTS}} the "percents" (and method) of percentiles aggregations
+public final class QueryTemplate {
+
+    public enum Slot { FILTER, SITE, SIZE, SKETCH, INTERVAL, PRECISION, PERCENTS }
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{([A-Z]+)}}");
+    private static final byte[] SITE_TERM = ",{\"term\":{\"siteId\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TERM_END = "\"}}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRECISION_THRESHOLD = ",\"precision_threshold\":".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[][] segments;
+    private final Slot[] slots;
+    private final int constantLength;
+
+    private QueryTemplate(byte[][] segments, Slot[] slots) {
+        this.segments = segments;
+        this.slots = slots;
+        int n = 0;
+        for (byte[] s : segments) n += s.length;
+        this.constantLength = n;
+    }
+
+    public static QueryTemplate compile(String text) {
+        List<byte[]> segments = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        Matcher m = PLACEHOLDER.matcher(text);
+        int last = 0;
+        while (m.find()) {
+            segments.add(text.substring(last, m.start()).getBytes(StandardCharsets.UTF_8));
+            slots.add(Slot.valueOf(m.group(1)));
+            last = m.end();
+        }
+        segments.add(text.substring(last).getBytes(StandardCharsets.UTF_8));
+        return new QueryTemplate(segments.toArray(byte[][]::new), slots.toArray(Slot[]::new));
+    }
+
+    // whether rendered bodies only match the siteId given (when one is)
+    public boolean filtersSite() {
+        for (Slot s : slots) if (s == Slot.SITE) return true;
+        return false;
+    }
+
+    // rendered size for a filter of the given length and a short siteId, to size the output buffer
+    public int sizeHint(int filterLength) {
+        return constantLength + filterLength + 64;
+    }
+
+    public void render(JsonBytes out, String filter, String siteId, int size, String sketch, String interval,
+                       Integer precision, String percents) {
+        for (int i = 0; i < slots.length; i++) {
+            out.write(segments[i]);
+            switch (slots[i]) {
+                case FILTER -> out.writeAscii(filter);
+                case SITE -> {
+                    if (siteId != null && !siteId.isBlank()) out.write(SITE_TERM).writeEscaped(siteId).write(TERM_END);
+                }
+                case SIZE -> out.writeInt(size);
+                case SKETCH -> out.writeAscii(sketch);
+                case INTERVAL -> out.writeAscii(interval);
+                case PRECISION -> {
+                    if (precision != null) out.write(PRECISION_THRESHOLD).writeInt(precision);
+                }
+                case PERCENTS -> out.writeAscii(percents);
+            }
+        }
+        out.write(segments[slots.length]);
+    }
+}
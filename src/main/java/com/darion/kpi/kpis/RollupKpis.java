@@ -0,0 +1,519 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.rollup.CellVisitor;
+import com.darion.kpi.rollup.DurationHistogram;
+import com.darion.kpi.rollup.HllSketch;
+import com.darion.kpi.rollup.HourlyRollup;
+import com.darion.kpi.rollup.RollupCells;
+import com.darion.kpi.rollup.UniqueVisitor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Answers the KPIs that are plain counts per hour / site / event type from the HourlyRollup,
+// without an Elasticsearch call. Results are built to match what the ES queries in
+// EsKpiQueryClient return: same terms sizes and ordering (count desc, then key asc), null
+// keywords left out of terms buckets, hour series trimmed to the first/last non-empty hour.
+//
+// Unique actor / session counts are the estimates of the merged hourly HyperLogLog sketches, served
+// when the sketches are at least as precise as the cardinality aggregation the request asks for.
+// Duration percentiles are read from the merged hourly duration histograms, within
+// kpi.rollup.duration-accuracy of the exact value.
+//
+// getKpi returns null when the KPI needs something the rollup does not keep (single documents,
+// sub-hour buckets, more precise cardinalities) or when the range is not exactly covered.
+@Component
+public class RollupKpis {
+
+    static final Set<KpiId> SERVED = EnumSet.of(
+            KpiId.EVENT_TYPE_BREAKDOWN,
+            KpiId.EVENTS_PER_HOUR,
+            KpiId.EVENTS_PER_HOUR_BY_TYPE,
+            KpiId.ERROR_RATE_PER_HOUR,
+            KpiId.SUCCESS_RATE,
+            KpiId.SITE_VOLUME_AND_SUCCESS,
+            KpiId.SUCCESS_RATE_BY_EVENT_TYPE,
+            KpiId.TOP_EVENT_TYPES,
+            KpiId.ERROR_TYPES_BREAKDOWN,
+            KpiId.PEAK_HOUR,
+            KpiId.LOWEST_SUCCESS_EVENT_TYPE,
+            KpiId.EVENT_TYPE_PERCENTAGE_DISTRIBUTION,
+            KpiId.UNIQUE_ACTORS_PER_HOUR,
+            KpiId.UNIQUE_SESSIONS_PER_HOUR,
+            KpiId.ACTOR_ACTIVITY_SUMMARY,
+            KpiId.DURATION_STATS_PER_HOUR,
+            KpiId.DURATION_STATS_BY_EVENT_TYPE
+    );
+
+    private static final long HOUR_MS = 3_600_000L;
+    // Elasticsearch's cardinality precision_threshold when the request sets none
+    private static final int DEFAULT_PRECISION_THRESHOLD = 3000;
+    // terms sizes used by the matching ES queries
+    private static final int TYPE_TERMS = 25;
+    private static final int SITE_TERMS = 50;
+    private static final char[] KEY_TEMPLATE = "0000-00-00T00:00:00.000Z".toCharArray();
+
+    private final HourlyRollup rollup;
+    private final Map<KpiId, Counter> served = new EnumMap<>(KpiId.class);
+
+    public RollupKpis(HourlyRollup rollup, MeterRegistry registry) {
+        this.rollup = rollup;
+        for (KpiId id : SERVED) {
+            served.put(id, Counter.builder("kpi.rollup.served").tag("kpi", id.name())
+                    .description("KPI requests answered from the hourly rollup").register(registry));
+        }
+    }
+
+    public Object getKpi(KpiId id, KpiRequest req) {
+        if (!SERVED.contains(id)) return null;
+
+        Object result = switch (id) {
+            case EVENTS_PER_HOUR, EVENTS_PER_HOUR_BY_TYPE, ERROR_RATE_PER_HOUR, PEAK_HOUR -> hourly(id, req);
+            case UNIQUE_ACTORS_PER_HOUR, UNIQUE_SESSIONS_PER_HOUR -> uniqueSeries(id, req);
+            case ACTOR_ACTIVITY_SUMMARY -> activitySummary(req);
+            case DURATION_STATS_PER_HOUR, DURATION_STATS_BY_EVENT_TYPE -> durations(id, req);
+            default -> totals(id, req);
+        };
+        if (result != null) served.get(id).increment();
+        return result;
+    }
+
+    // ---------------- hour series ----------------
+
+    private Object hourly(KpiId id, KpiRequest req) {
+        // the rollup only has hours; other intervals go to Elasticsearch
+        if (id != KpiId.PEAK_HOUR && req.interval() != null && req.interval() != KpiInterval.H1) return null;
+        HourScan scan = new HourScan(id == KpiId.EVENTS_PER_HOUR_BY_TYPE ? rollup.eventTypeCodes() : 0);
+        if (!rollup.scan(req.from(), req.to(), req.siteId(), false, scan)) return null;
+        List<Hour> hours = scan.hours;
+
+        return switch (id) {
+            case EVENTS_PER_HOUR -> {
+                List<HourlyCountDTO> out = new ArrayList<>(hours.size());
+                for (Hour h : hours) out.add(new HourlyCountDTO(key(h.start), h.count));
+                yield out;
+            }
+            case ERROR_RATE_PER_HOUR -> {
+                List<HourlyErrorRateDTO> out = new ArrayList<>(hours.size());
+                for (Hour h : hours) out.add(new HourlyErrorRateDTO(key(h.start), h.count, h.failures, rate(h.failures, h.count)));
+                yield out;
+            }
+            case EVENTS_PER_HOUR_BY_TYPE -> {
+                int topN = req.topN() == null ? 5 : Math.max(1, req.topN());
+                int[] ranks = typeRanks();
+                int[] codes = new int[ranks.length];
+                List<HourlyStackedDTO> out = new ArrayList<>(hours.size());
+                for (Hour h : hours) out.add(new HourlyStackedDTO(key(h.start), h.count, stack(h, topN, ranks, codes)));
+                yield out;
+            }
+            case PEAK_HOUR -> {
+                // histogram ordered by _count desc: ties go to the earliest hour
+                Hour peak = null;
+                for (Hour h : hours) if (peak == null || h.count > peak.count) peak = h;
+                yield peak == null ? new PeakHourDTO(null, 0) : new PeakHourDTO(key(peak.start), peak.count);
+            }
+            default -> throw new IllegalArgumentException(id + " is not an hourly rollup KPI");
+        };
+    }
+
+    // Runs once per hour bucket, so it sorts type codes in place (count desc, then name rank) and
+    // only creates DTOs for the slices it returns.
+    private List<DonutSliceDTO> stack(Hour h, int topN, int[] ranks, int[] codes) {
+        long[] counts = h.types;
+        int n = 0;
+        for (int t = 1; t < counts.length; t++) if (counts[t] > 0) codes[n++] = t;
+
+        for (int i = 1; i < n; i++) {
+            int c = codes[i];
+            int j = i - 1;
+            while (j >= 0 && (counts[codes[j]] < counts[c] || (counts[codes[j]] == counts[c] && ranks[codes[j]] > ranks[c]))) {
+                codes[j + 1] = codes[j];
+                j--;
+            }
+            codes[j + 1] = c;
+        }
+
+        List<DonutSliceDTO> trimmed = new ArrayList<>(Math.min(n, topN) + 1);
+        long other = 0;
+        for (int i = 0; i < Math.min(n, TYPE_TERMS); i++) {
+            if (i < topN) trimmed.add(new DonutSliceDTO(rollup.eventType(codes[i]), counts[codes[i]]));
+            else other += counts[codes[i]];
+        }
+        if (other > 0) trimmed.add(new DonutSliceDTO("OTHER", other));
+        return trimmed;
+    }
+
+    // position of every event type code when sorted by name (terms tie-break order)
+    private int[] typeRanks() {
+        int size = rollup.eventTypeCodes();
+        Integer[] byName = new Integer[size - 1];
+        for (int c = 1; c < size; c++) byName[c - 1] = c;
+        Arrays.sort(byName, Comparator.comparing(rollup::eventType));
+
+        int[] ranks = new int[size];
+        for (int i = 0; i < byName.length; i++) ranks[byName[i]] = i;
+        return ranks;
+    }
+
+    private static final class Hour {
+        final long start;
+        long count;
+        long failures;
+        long[] types; // count per event type code, only for the stacked series
+
+        Hour(long start, int typeSlots) {
+            this.start = start;
+            this.types = new long[typeSlots];
+        }
+    }
+
+    private static final class HourScan implements CellVisitor {
+        final int typeSlots; // 0 = per-type counts not needed
+        final List<Hour> hours = new ArrayList<>();
+        Hour last;
+
+        HourScan(int typeSlots) {
+            this.typeSlots = typeSlots;
+        }
+
+        // cells arrive in hour order; hours without cells in between become empty buckets
+        @Override
+        public void visit(long hourStartMs, RollupCells cells, int i) {
+            if (last == null || last.start != hourStartMs) {
+                if (last != null) {
+                    for (long s = last.start + HOUR_MS; s < hourStartMs; s += HOUR_MS) hours.add(new Hour(s, typeSlots));
+                }
+                last = new Hour(hourStartMs, typeSlots);
+                hours.add(last);
+            }
+            last.count += cells.count(i);
+            last.failures += cells.failures(i);
+            int type = cells.type(i);
+            if (typeSlots > 0 && type != 0) {
+                // a type first seen after the scan started
+                if (type >= last.types.length) last.types = Arrays.copyOf(last.types, type + 1);
+                last.types[type] += cells.count(i);
+            }
+        }
+    }
+
+    // ---------------- unique counts ----------------
+
+    private boolean sketchesPreciseEnough(KpiRequest req) {
+        int threshold = req.precision() == null ? DEFAULT_PRECISION_THRESHOLD : req.precision();
+        return HllSketch.precisionFor(threshold) <= rollup.sketchPrecision();
+    }
+
+    private Object uniqueSeries(KpiId id, KpiRequest req) {
+        if (!sketchesPreciseEnough(req)) return null;
+        // hours merge into coarser buckets; finer ones need the events
+        long width = req.interval() == null ? HOUR_MS : req.interval().millis();
+        if (width < HOUR_MS) return null;
+        boolean actors = id == KpiId.UNIQUE_ACTORS_PER_HOUR;
+        UniqueScan scan = new UniqueScan(width, actors);
+        if (!rollup.scanUniques(req.from(), req.to(), req.siteId(), scan)) return null;
+
+        List<Object> out = new ArrayList<>();
+        Long previous = null;
+        for (Map.Entry<Long, HllSketch> b : scan.buckets.entrySet()) {
+            // buckets without events in between are empty, as with min_doc_count 0
+            if (previous != null) {
+                for (long s = previous + width; s < b.getKey(); s += width) out.add(uniqueCount(actors, s, 0));
+            }
+            out.add(uniqueCount(actors, b.getKey(), b.getValue().estimate()));
+            previous = b.getKey();
+        }
+        return out;
+    }
+
+    private static Object uniqueCount(boolean actors, long start, long count) {
+        return actors ? new HourlyUniqueCountDTO(key(start), count) : new HourlyUniqueSessionsDTO(key(start), count);
+    }
+
+    private Object activitySummary(KpiRequest req) {
+        if (!sketchesPreciseEnough(req)) return null;
+        Totals t = new Totals();
+        UniqueScan actors = new UniqueScan(Long.MAX_VALUE, true);
+        UniqueScan sessions = new UniqueScan(Long.MAX_VALUE, false);
+        if (!rollup.scan(req.from(), req.to(), req.siteId(), false, t)) return null;
+        if (!rollup.scanUniques(req.from(), req.to(), req.siteId(), (hourStartMs, a, s) -> {
+            actors.visit(hourStartMs, a, s);
+            sessions.visit(hourStartMs, a, s);
+        })) return null;
+        return new ActivitySummaryDTO(t.count, actors.total(), sessions.total());
+    }
+
+    // merges the hourly actor or session sketches into buckets of width ms starting at the epoch
+    private static final class UniqueScan implements UniqueVisitor {
+        final long width;
+        final boolean actors;
+        final TreeMap<Long, HllSketch> buckets = new TreeMap<>();
+
+        UniqueScan(long width, boolean actors) {
+            this.width = width;
+            this.actors = actors;
+        }
+
+        @Override
+        public void visit(long hourStartMs, HllSketch actorSketch, HllSketch sessionSketch) {
+            HllSketch hour = actors ? actorSketch : sessionSketch;
+            long start = Math.floorDiv(hourStartMs, width) * width;
+            HllSketch bucket = buckets.get(start);
+            // the visited sketches belong to the rollup: copy before merging into them
+            if (bucket == null) buckets.put(start, hour.copy());
+            else bucket.merge(hour);
+        }
+
+        long total() {
+            HllSketch all = null;
+            for (HllSketch s : buckets.values()) {
+                if (all == null) all = s;
+                else all.merge(s);
+            }
+            return all == null ? 0 : all.estimate();
+        }
+    }
+
+    // ---------------- duration stats ----------------
+
+    private Object durations(KpiId id, KpiRequest req) {
+        boolean byType = id == KpiId.DURATION_STATS_BY_EVENT_TYPE;
+        long width = req.interval() == null ? HOUR_MS : req.interval().millis();
+        if (!byType && width < HOUR_MS) return null;
+        DurationScan scan = new DurationScan(byType ? 0 : width);
+        if (!rollup.scan(req.from(), req.to(), req.siteId(), false, scan)) return null;
+        List<Double> percents = req.percentiles() == null ? KpiPercentiles.DEFAULT : req.percentiles();
+
+        if (byType) {
+            List<Map.Entry<Long, Durations>> types = new ArrayList<>(scan.groups.entrySet());
+            types.removeIf(e -> e.getKey() == 0); // no eventType
+            types.sort(Comparator.<Map.Entry<Long, Durations>>comparingLong(e -> e.getValue().count).reversed()
+                    .thenComparing(e -> rollup.eventType(e.getKey().intValue())));
+            List<EventTypeDurationStatsDTO> out = new ArrayList<>();
+            for (Map.Entry<Long, Durations> e : types.subList(0, Math.min(types.size(), TYPE_TERMS))) {
+                Durations d = e.getValue();
+                out.add(new EventTypeDurationStatsDTO(rollup.eventType(e.getKey().intValue()), d.avg(), d.percentile(95.0),
+                        d.percentiles(percents)));
+            }
+            return out;
+        }
+
+        List<HourlyDurationStatsDTO> out = new ArrayList<>();
+        Long previous = null;
+        for (Map.Entry<Long, Durations> b : scan.groups.entrySet()) {
+            // buckets without events in between are empty, as with min_doc_count 0
+            if (previous != null) {
+                for (long s = previous + width; s < b.getKey(); s += width) {
+                    out.add(new HourlyDurationStatsDTO(key(s), 0.0, 0.0, KpiPercentiles.zeros(percents)));
+                }
+            }
+            Durations d = b.getValue();
+            out.add(new HourlyDurationStatsDTO(key(b.getKey()), d.avg(), d.percentile(95.0), d.percentiles(percents)));
+            previous = b.getKey();
+        }
+        return out;
+    }
+
+    // Durations of one bucket (or event type): events, exact sum / min / max and the merged histogram
+    private static final class Durations {
+        long count;
+        long durationCount;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        DurationHistogram histogram;
+
+        double avg() {
+            return durationCount == 0 ? 0.0 : Math.round(sum * 100.0 / durationCount) / 100.0;
+        }
+
+        // clamped to the exact extremes, which only brings it closer; 0.0 without durations, as ES
+        double percentile(double percent) {
+            if (histogram == null || histogram.count() == 0) return 0.0;
+            double v = Math.min(max, Math.max(min, histogram.percentile(percent)));
+            return Math.round(v * 100.0) / 100.0;
+        }
+
+        Map<String, Double> percentiles(List<Double> percents) {
+            Map<String, Double> out = new LinkedHashMap<>();
+            for (double p : percents) out.put(KpiPercentiles.key(p), percentile(p));
+            return out;
+        }
+    }
+
+    // groups cells into buckets of width ms starting at the epoch, or by event type code when width is 0
+    private static final class DurationScan implements CellVisitor {
+        final long width;
+        final TreeMap<Long, Durations> groups = new TreeMap<>();
+
+        DurationScan(long width) {
+            this.width = width;
+        }
+
+        @Override
+        public void visit(long hourStartMs, RollupCells cells, int i) {
+            long key = width == 0 ? cells.type(i) : Math.floorDiv(hourStartMs, width) * width;
+            Durations d = groups.computeIfAbsent(key, k -> new Durations());
+            d.count += cells.count(i);
+            long n = cells.durationCount(i);
+            if (n == 0) return;
+            d.durationCount += n;
+            d.sum += cells.durationSum(i);
+            d.min = Math.min(d.min, cells.durationMin(i));
+            d.max = Math.max(d.max, cells.durationMax(i));
+            DurationHistogram h = cells.durations(i);
+            if (h == null) return;
+            // the visited histograms belong to the rollup: copy before merging into them
+            if (d.histogram == null) d.histogram = h.copy();
+            else d.histogram.merge(h);
+        }
+    }
+
+    // ---------------- totals over the range ----------------
+
+    private Object totals(KpiId id, KpiRequest req) {
+        Totals t = new Totals();
+        boolean perSite = id == KpiId.SITE_VOLUME_AND_SUCCESS;
+        if (!rollup.scan(req.from(), req.to(), req.siteId(), perSite, t)) return null;
+
+        return switch (id) {
+            case SUCCESS_RATE -> new SuccessRateDTO(t.count, t.successes, rate(t.successes, t.count));
+
+            case EVENT_TYPE_BREAKDOWN -> {
+                List<DonutSliceDTO> out = new ArrayList<>();
+                for (int type : top(t.typeCounts, TYPE_TERMS, true)) out.add(new DonutSliceDTO(rollup.eventType(type), t.typeCounts[type]));
+                yield out;
+            }
+            case TOP_EVENT_TYPES -> {
+                int limit = req.limit() == null ? 10 : Math.max(1, req.limit());
+                List<DonutSliceDTO> out = new ArrayList<>();
+                for (int type : top(t.typeCounts, limit, true)) out.add(new DonutSliceDTO(rollup.eventType(type), t.typeCounts[type]));
+                yield out;
+            }
+            case ERROR_TYPES_BREAKDOWN -> {
+                List<DonutSliceDTO> out = new ArrayList<>();
+                for (int type : top(t.typeFailures, TYPE_TERMS, true)) out.add(new DonutSliceDTO(rollup.eventType(type), t.typeFailures[type]));
+                yield out;
+            }
+            case SUCCESS_RATE_BY_EVENT_TYPE -> {
+                List<EventTypeSuccessDTO> out = new ArrayList<>();
+                for (int type : top(t.typeCounts, TYPE_TERMS, true)) {
+                    long total = t.typeCounts[type];
+                    long success = t.typeSuccesses[type];
+                    out.add(new EventTypeSuccessDTO(rollup.eventType(type), total, success, rate(success, total)));
+                }
+                yield out;
+            }
+            case LOWEST_SUCCESS_EVENT_TYPE -> {
+                EventTypeFailureDTO worst = null;
+                for (int type : top(t.typeCounts, TYPE_TERMS, true)) {
+                    long total = t.typeCounts[type];
+                    long success = t.typeSuccesses[type];
+                    EventTypeFailureDTO current = new EventTypeFailureDTO(rollup.eventType(type), total, success, rate(success, total));
+                    if (worst == null || current.successRate() < worst.successRate()) worst = current;
+                }
+                yield worst == null ? new EventTypeFailureDTO(null, 0, 0, 0.0) : worst;
+            }
+            case EVENT_TYPE_PERCENTAGE_DISTRIBUTION -> {
+                List<EventTypePercentageDTO> out = new ArrayList<>();
+                for (int type : top(t.typeCounts, TYPE_TERMS, true)) {
+                    out.add(new EventTypePercentageDTO(rollup.eventType(type), rate(t.typeCounts[type], t.count)));
+                }
+                yield out;
+            }
+            case SITE_VOLUME_AND_SUCCESS -> {
+                List<SiteVolumeSuccessDTO> out = new ArrayList<>();
+                for (int site : top(t.siteCounts, SITE_TERMS, false)) {
+                    long total = t.siteCounts[site];
+                    long success = t.siteSuccesses[site];
+                    out.add(new SiteVolumeSuccessDTO(rollup.siteId(site), total, success, rate(success, total)));
+                }
+                yield out;
+            }
+            default -> throw new IllegalArgumentException(id + " is not a rollup KPI");
+        };
+    }
+
+    // codes of the n largest non-zero counts (code 0 = no value is skipped), count desc then key asc
+    private List<Integer> top(long[] counts, int n, boolean types) {
+        List<Integer> codes = new ArrayList<>();
+        for (int c = 1; c < counts.length; c++) if (counts[c] > 0) codes.add(c);
+
+        Comparator<Integer> byKey = Comparator.comparing(c -> types ? rollup.eventType(c) : rollup.siteId(c));
+        codes.sort(Comparator.<Integer>comparingLong(c -> counts[c]).reversed().thenComparing(byKey));
+        return codes.size() > n ? codes.subList(0, n) : codes;
+    }
+
+    private static final class Totals implements CellVisitor {
+        long count;
+        long successes;
+        long[] typeCounts = new long[0];
+        long[] typeSuccesses = new long[0];
+        long[] typeFailures = new long[0];
+        long[] siteCounts = new long[0];
+        long[] siteSuccesses = new long[0];
+
+        @Override
+        public void visit(long hourStartMs, RollupCells cells, int i) {
+            long c = cells.count(i);
+            long s = cells.successes(i);
+            count += c;
+            successes += s;
+
+            int type = cells.type(i);
+            if (type >= typeCounts.length) {
+                typeCounts = Arrays.copyOf(typeCounts, type + 8);
+                typeSuccesses = Arrays.copyOf(typeSuccesses, type + 8);
+                typeFailures = Arrays.copyOf(typeFailures, type + 8);
+            }
+            typeCounts[type] += c;
+            typeSuccesses[type] += s;
+            typeFailures[type] += cells.failures(i);
+
+            int site = cells.site(i);
+            if (site < 0) return; // all sites merged
+            if (site >= siteCounts.length) {
+                siteCounts = Arrays.copyOf(siteCounts, site + 8);
+                siteSuccesses = Arrays.copyOf(siteSuccesses, site + 8);
+            }
+            siteCounts[site] += c;
+            siteSuccesses[site] += s;
+        }
+    }
+
+    // ---------------- helpers ----------------
+
+    // same text as EsKpiQueryClient.KEY_FORMAT for an hour start, without the formatter's overhead
+    private static String key(long hourStartMs) {
+        long hours = Math.floorDiv(hourStartMs, HOUR_MS);
+        LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(hours, 24));
+        char[] c = KEY_TEMPLATE.clone();
+        digits(c, 0, 4, day.getYear());
+        digits(c, 5, 2, day.getMonthValue());
+        digits(c, 8, 2, day.getDayOfMonth());
+        digits(c, 11, 2, Math.floorMod(hours, 24));
+        return new String(c);
+    }
+
+    private static void digits(char[] c, int off, int len, int v) {
+        for (int i = off + len - 1; i >= off; i--, v /= 10) c[i] = (char) ('0' + v % 10);
+    }
+
+    // percentage rounded to 2 decimals, like the ES parsers
+    private static double rate(long part, long total) {
+        double rate = total == 0 ? 0.0 : (part * 100.0) / total;
+        return Math.round(rate * 100.0) / 100.0;
+    }
+}
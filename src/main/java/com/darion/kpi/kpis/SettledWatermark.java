@@ -0,0 +1,84 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.IngestBatch;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Decides which time spans the KPI caches may treat as immutable.
+//
+// Data older than now - settleAfter is settled. A late event landing in a settled hour keeps that
+// hour unsettled for refreshGrace, so a query racing the Elasticsearch refresh cannot cache a result
+// that is missing the event.
+@Component
+public class SettledWatermark {
+
+    static final long HOUR_MS = 3_600_000L;
+
+    private final long settleAfterMs;
+    private final long refreshGraceMs;
+
+    // hour start -> until when that hour is not settled
+    private final ConcurrentHashMap<Long, Long> recentlyWritten = new ConcurrentHashMap<>();
+
+    public SettledWatermark(KpiQueryProperties props) {
+        this.settleAfterMs = props.cache().settleAfter().toMillis();
+        this.refreshGraceMs = props.cache().refreshGrace().toMillis();
+    }
+
+    public long watermark() {
+        return System.currentTimeMillis() - settleAfterMs;
+    }
+
+    // true if nothing in [fromMs, toMs] can still change
+    public boolean isSettled(long fromMs, long toMs) {
+        long now = System.currentTimeMillis();
+        if (toMs >= now - settleAfterMs) return false;
+        if (recentlyWritten.isEmpty()) return true;
+
+        for (Map.Entry<Long, Long> e : recentlyWritten.entrySet()) {
+            if (e.getValue() < now) {
+                recentlyWritten.remove(e.getKey(), e.getValue());
+                continue;
+            }
+            long hour = e.getKey();
+            if (hour + HOUR_MS > fromMs && hour <= toMs) return false;
+        }
+        return true;
+    }
+
+    // Hours (start millis) that received late events in this batch, with the sites they came from
+    // (null = event without siteId). Null when the batch has no late events, which is the common
+    // case and costs one pass over the timestamp column. Marks those hours as recently written.
+    public Map<Long, Set<String>> lateWrites(IngestBatch batch) {
+        long now = System.currentTimeMillis();
+        long watermark = now - settleAfterMs;
+
+        Map<Long, Set<String>> late = null;
+        for (int i = 0; i < batch.size(); i++) {
+            long ts = batch.timestampMillis(i);
+            if (ts >= watermark) continue;
+            if (late == null) late = new HashMap<>();
+            long hour = Math.floorDiv(ts, HOUR_MS) * HOUR_MS;
+            late.computeIfAbsent(hour, h -> new HashSet<>()).add(batch.siteId(i));
+        }
+        if (late != null) {
+            for (Long hour : late.keySet()) recentlyWritten.merge(hour, now + refreshGraceMs, Math::max);
+        }
+        return late;
+    }
+
+    // whether a late write in one of those hours can change data for [fromMs, toMs] of the given site
+    static boolean touches(Map<Long, Set<String>> late, long fromMs, long toMs, String siteId) {
+        for (Map.Entry<Long, Set<String>> e : late.entrySet()) {
+            long hour = e.getKey();
+            if (hour + HOUR_MS <= fromMs || hour > toMs) continue;
+            if (siteId == null || e.getValue().contains(siteId)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,11 @@
+package com.darion.kpi.kpis;
+
+import java.time.Instant;
+
+// [from, to], both ends inclusive like the timestamp range filters sent to Elasticsearch
+public record TimeRange(Instant from, Instant to) {
+
+    public static TimeRange of(KpiRequest req) {
+        return new TimeRange(req.from(), req.to());
+    }
+}
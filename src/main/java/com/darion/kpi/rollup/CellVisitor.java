@@ -0,0 +1,10 @@
+package com.darion.kpi.rollup;
+
+// Receives the cells matched by HourlyRollup.scan, in ascending hour order (per site, when sites
+// are visited separately). Called under the rollup read lock: read what is needed from cells and
+// return, do not keep a reference.
+@FunctionalInterface
+public interface CellVisitor {
+
+    void visit(long hourStartMs, RollupCells cells, int i);
+}
@@ -0,0 +1,44 @@
+package com.darion.kpi.rollup;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Dense int codes for keyword values. Code 0 is reserved for "no value" (null).
+// New codes are added under the rollup write lock; lookups and decoding are lock-free.
+final class Dictionary {
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private volatile int size = 1;
+
+    // caller holds the rollup write lock
+    int code(String value) {
+        if (value == null) return 0;
+        Integer c = codes.get(value);
+        if (c != null) return c;
+
+        int code = size;
+        String[] v = values;
+        if (code == v.length) v = Arrays.copyOf(v, v.length * 2);
+        v[code] = value;
+        values = v;
+        size = code + 1;
+        codes.put(value, code);
+        return code;
+    }
+
+    // -1 if the value has never been seen
+    int lookup(String value) {
+        if (value == null) return 0;
+        Integer c = codes.get(value);
+        return c == null ? -1 : c;
+    }
+
+    String value(int code) {
+        return values[code];
+    }
+
+    int size() {
+        return size;
+    }
+}
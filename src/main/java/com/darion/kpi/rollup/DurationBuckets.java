@@ -0,0 +1,55 @@
+package com.darion.kpi.rollup;
+
+// Bucket layout of the duration histograms: bucket k >= 0 holds [g^k, g^(k+1)) ms with
+// g = (1 + accuracy) / (1 - accuracy), and bucket -1 holds durations under 1 ms. Every duration is
+// within accuracy (relative) of its bucket's value, so percentiles read from merged histograms are
+// too. The same layout is computed in Elasticsearch by script(), so histograms built from
+// aggregations line up with those built at ingest.
+public final class DurationBuckets {
+
+    public static final int BELOW_ONE = -1;
+
+    private final double accuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    public DurationBuckets(double accuracy) {
+        if (!(accuracy >= 0.001 && accuracy <= 0.1)) {
+            throw new IllegalArgumentException("Duration accuracy must be 0.001..0.1, was " + accuracy);
+        }
+        this.accuracy = accuracy;
+        this.gamma = (1 + accuracy) / (1 - accuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    public double accuracy() {
+        return accuracy;
+    }
+
+    public int index(double durationMs) {
+        return durationMs < 1 ? BELOW_ONE : (int) Math.floor(Math.log(durationMs) / logGamma);
+    }
+
+    // the value reported for durations in bucket k: within accuracy of both bounds
+    public double value(int k) {
+        return k == BELOW_ONE ? 0.0 : 2 * Math.pow(gamma, k + 1) / (gamma + 1);
+    }
+
+    // Painless computing index() for a document; Math.log is java.lang.Math on both sides
+    public String script(String field) {
+        return "double d = doc['" + field + "'].value; d < 1 ? " + BELOW_ONE + " : Math.floor(Math.log(d) / " + logGamma + ")";
+    }
+
+    // sub-aggregation counting a cell's durations per bucket: durations.buckets[].key is the bucket
+    String aggregation(String field) {
+        return "{\"filter\":{\"exists\":{\"field\":\"" + field + "\"}},"
+                + "\"aggs\":{\"buckets\":{\"histogram\":{\"script\":{\"source\":\"" + script(field) + "\"},"
+                + "\"interval\":1,\"min_doc_count\":1}}}}";
+    }
+
+    // composite page size keeping cells x duration buckets under Elasticsearch's search.max_buckets
+    // for durations up to an hour
+    int cellsPerPage(int maxPage) {
+        return Math.max(1, Math.min(maxPage, 60_000 / (index(3_600_000) + 2)));
+    }
+}
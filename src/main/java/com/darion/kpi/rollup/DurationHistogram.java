@@ -0,0 +1,100 @@
+package com.darion.kpi.rollup;
+
+import java.util.Arrays;
+
+// Durations counted per DurationBuckets bucket, kept as sorted (bucket, count) pairs since an
+// hour's cell only touches a few of them. Histograms of the same layout merge by adding counts, so
+// percentiles over any set of hours, sites and event types come from their merged histogram.
+// Not thread-safe: HourlyRollup guards its histograms.
+public final class DurationHistogram {
+
+    private final DurationBuckets layout;
+    private int[] keys = new int[4];
+    private long[] counts = new long[4];
+    private int size;
+    private long total;
+
+    public DurationHistogram(DurationBuckets layout) {
+        this.layout = layout;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public void add(double durationMs) {
+        addBucket(layout.index(durationMs), 1);
+    }
+
+    public void addBucket(int bucket, long count) {
+        if (count <= 0) return;
+        int i = Arrays.binarySearch(keys, 0, size, bucket);
+        if (i < 0) {
+            i = -i - 1;
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            keys[i] = bucket;
+            counts[i] = 0;
+            size++;
+        }
+        counts[i] += count;
+        total += count;
+    }
+
+    public void merge(DurationHistogram other) {
+        if (other.layout != layout) throw new IllegalArgumentException("Cannot merge histograms of different layouts");
+        if (other.size == 0) return;
+        int[] k = new int[size + other.size];
+        long[] c = new long[k.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                k[n] = keys[i];
+                c[n++] = counts[i++];
+            } else if (i == size || other.keys[j] < keys[i]) {
+                k[n] = other.keys[j];
+                c[n++] = other.counts[j++];
+            } else {
+                k[n] = keys[i];
+                c[n++] = counts[i++] + other.counts[j++];
+            }
+        }
+        keys = k;
+        counts = c;
+        size = n;
+        total += other.total;
+    }
+
+    public DurationHistogram copy() {
+        DurationHistogram h = new DurationHistogram(layout);
+        h.keys = Arrays.copyOf(keys, Math.max(size, 1));
+        h.counts = Arrays.copyOf(counts, Math.max(size, 1));
+        h.size = size;
+        h.total = total;
+        return h;
+    }
+
+    // Value at percent (0..100), ranked like Elasticsearch's HDR percentiles: the bucket holding the
+    // round(percent% of count)-th smallest duration. NaN when empty.
+    public double percentile(double percent) {
+        if (total == 0) return Double.NaN;
+        long rank = Math.max(1, (long) (percent / 100 * total + 0.5));
+        long seen = 0;
+        for (int i = 0; i < size; i++) {
+            seen += counts[i];
+            if (seen >= rank) return layout.value(keys[i]);
+        }
+        return layout.value(keys[size - 1]);
+    }
+
+    // approximate heap footprint, for the rollup's size gauge
+    public long bytes() {
+        return 48 + 16 + 4L * keys.length + 16 + 8L * counts.length;
+    }
+}
@@ -0,0 +1,224 @@
+package com.darion.kpi.rollup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// HyperLogLog distinct-count sketch over KeywordHash values, 2^precision registers. Sketches of the
+// same precision merge by taking the larger register, so distinct counts over any set of hours are
+// the estimate of their merged sketches. The estimate is Ertl's improved estimator ("New cardinality
+// estimation algorithms for HyperLogLog sketches", 2017), which needs no empirical bias tables and
+// is accurate from a handful of values up. Standard error is 1.04 / sqrt(2^precision), 0.8% at 14.
+//
+// Few values are kept sparse, as (register, value) pairs in an open-addressing table, until that
+// would take as much room as the dense registers. Not thread-safe: HourlyRollup guards its sketches.
+public final class HllSketch {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private static final byte FORMAT = 1;
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+    private static final double ALPHA_INF = 1 / (2 * Math.log(2));
+
+    private final int p;
+    private byte[] registers;            // dense, null while sparse
+    private int[] entries = new int[8];  // sparse: register << 6 | value, 0 = empty slot
+    private int entryCount;
+
+    public HllSketch(int precision) {
+        this.p = checkPrecision(precision);
+    }
+
+    static int checkPrecision(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Sketch precision must be " + MIN_PRECISION + ".." + MAX_PRECISION);
+        }
+        return precision;
+    }
+
+    // the sketch precision Elasticsearch uses for a cardinality precision_threshold
+    // (HyperLogLogPlusPlus.precisionFromThreshold)
+    public static int precisionFor(long precisionThreshold) {
+        long entries = (long) Math.ceil(precisionThreshold / 0.75);
+        int precision = 64 - Long.numberOfLeadingZeros(entries * Integer.BYTES);
+        return Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision));
+    }
+
+    public int precision() {
+        return p;
+    }
+
+    public boolean isEmpty() {
+        return registers == null && entryCount == 0;
+    }
+
+    public void add(long hash) {
+        int register = (int) (hash >>> (64 - p));
+        long rest = hash << p;
+        int value = rest == 0 ? 64 - p + 1 : Long.numberOfLeadingZeros(rest) + 1;
+        set(register, value);
+    }
+
+    public void merge(HllSketch other) {
+        if (other.p != p) throw new IllegalArgumentException("Cannot merge sketches of precision " + other.p + " into " + p);
+        if (other.registers != null) {
+            if (registers == null) toDense();
+            byte[] r = other.registers;
+            for (int i = 0; i < r.length; i++) if (r[i] > registers[i]) registers[i] = r[i];
+            return;
+        }
+        for (int e : other.entries) if (e != 0) set(e >>> 6, e & 63);
+    }
+
+    public HllSketch copy() {
+        HllSketch c = new HllSketch(p);
+        c.merge(this);
+        return c;
+    }
+
+    public long estimate() {
+        int m = 1 << p;
+        int q = 64 - p;
+        int[] counts = new int[q + 2];
+        if (registers != null) {
+            for (byte r : registers) counts[r]++;
+        } else {
+            counts[0] = m - entryCount;
+            for (int e : entries) if (e != 0) counts[e & 63]++;
+        }
+        if (counts[0] == m) return 0;
+
+        double z = m * tau(1 - (double) counts[q + 1] / m);
+        for (int k = q; k >= 1; k--) z = 0.5 * (z + counts[k]);
+        z += m * sigma((double) counts[0] / m);
+        return Math.round(ALPHA_INF * m * m / z);
+    }
+
+    // approximate heap footprint, for the rollup's size gauge
+    public int bytes() {
+        return 32 + (registers != null ? 16 + registers.length : 16 + entries.length * 4);
+    }
+
+    // ---------------- serialization (rollup sketch documents) ----------------
+
+    // format, precision, layout, then the dense registers or the count and the sparse entries
+    public byte[] toBytes() {
+        if (registers != null) {
+            ByteBuffer b = ByteBuffer.allocate(3 + registers.length);
+            b.put(FORMAT).put((byte) p).put(DENSE).put(registers);
+            return b.array();
+        }
+        // in register order, so equal sketches serialize alike whatever the table layout
+        int[] sorted = new int[entryCount];
+        int n = 0;
+        for (int e : entries) if (e != 0) sorted[n++] = e;
+        Arrays.sort(sorted);
+        ByteBuffer b = ByteBuffer.allocate(7 + 4 * entryCount);
+        b.put(FORMAT).put((byte) p).put(SPARSE).putInt(entryCount);
+        for (int e : sorted) b.putInt(e);
+        return b.array();
+    }
+
+    public static HllSketch fromBytes(byte[] bytes) {
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        if (b.remaining() < 3 || b.get() != FORMAT) throw new IllegalArgumentException("Unknown sketch format");
+        HllSketch s = new HllSketch(b.get());
+        int maxValue = 64 - s.p + 1;
+        byte layout = b.get();
+        if (layout == DENSE) {
+            if (b.remaining() != 1 << s.p) throw new IllegalArgumentException("Truncated sketch");
+            s.registers = new byte[1 << s.p];
+            b.get(s.registers);
+            for (byte r : s.registers) if (r < 0 || r > maxValue) throw new IllegalArgumentException("Corrupt sketch");
+            return s;
+        }
+        if (layout != SPARSE) throw new IllegalArgumentException("Unknown sketch layout " + layout);
+        int n = b.getInt();
+        if (n < 0 || b.remaining() != 4 * n) throw new IllegalArgumentException("Truncated sketch");
+        for (int i = 0; i < n; i++) {
+            int e = b.getInt();
+            if (e >>> 6 >= 1 << s.p || (e & 63) == 0 || (e & 63) > maxValue) throw new IllegalArgumentException("Corrupt sketch");
+            s.set(e >>> 6, e & 63);
+        }
+        return s;
+    }
+
+    // ---------------- registers ----------------
+
+    private void set(int register, int value) {
+        if (registers != null) {
+            if (value > registers[register]) registers[register] = (byte) value;
+            return;
+        }
+        int mask = entries.length - 1;
+        int slot = mix(register) & mask;
+        while (entries[slot] != 0) {
+            if (entries[slot] >>> 6 == register) {
+                if (value > (entries[slot] & 63)) entries[slot] = register << 6 | value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        entries[slot] = register << 6 | value;
+        entryCount++;
+        // at most half full; dense once the table would be as large as the registers
+        if (entryCount * 2 > entries.length) {
+            if (entries.length * 2 * 4 >= 1 << p) toDense();
+            else rehash(entries.length * 2);
+        }
+    }
+
+    private void rehash(int size) {
+        int[] old = entries;
+        entries = new int[size];
+        int mask = size - 1;
+        for (int e : old) {
+            if (e == 0) continue;
+            int slot = mix(e >>> 6) & mask;
+            while (entries[slot] != 0) slot = (slot + 1) & mask;
+            entries[slot] = e;
+        }
+    }
+
+    private void toDense() {
+        byte[] r = new byte[1 << p];
+        for (int e : entries) if (e != 0) r[e >>> 6] = (byte) Math.max(r[e >>> 6], e & 63);
+        registers = r;
+        entries = null;
+        entryCount = 0;
+    }
+
+    private static int mix(int register) {
+        int h = register * 0x9E3779B1;
+        return h ^ (h >>> 16);
+    }
+
+    private static double sigma(double x) {
+        if (x == 1) return Double.POSITIVE_INFINITY;
+        double y = 1;
+        double z = x;
+        double prev;
+        do {
+            x *= x;
+            prev = z;
+            z += x * y;
+            y += y;
+        } while (z != prev);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0 || x == 1) return 0;
+        double y = 1;
+        double z = 1 - x;
+        double prev;
+        do {
+            x = Math.sqrt(x);
+            prev = z;
+            y *= 0.5;
+            z -= Math.pow(1 - x, 2) * y;
+        } while (z != prev);
+        return z / 3;
+    }
+}
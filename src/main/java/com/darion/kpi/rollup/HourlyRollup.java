@@ -0,0 +1,393 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.IngestListener;
+import com.darion.kpi.events.KeywordHash;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Hourly aggregates (count, success, failure, duration count/sum/min/max and a duration histogram)
+// per (hour, siteId, eventType), maintained from the ingest path. Keywords are dictionary-encoded,
+// each hour's cells are held column-wise in primitive arrays (RollupCells). Distinct actorIds and
+// sessionIds are kept as one HyperLogLog sketch each per (hour, siteId) (UniqueTable), which merge
+// into distinct counts over any covered range.
+//
+// The rollup is exact for ranges that start on an hour at or after coveredFrom and end on an hour
+// (inclusive, like the ES range filter) or one millisecond before one. Events landing exactly on
+// an hour boundary are also kept in a separate table so the inclusive end can be answered.
+//
+// Only documents Elasticsearch created (status 201) are counted, which is what ES itself counts.
+// When a _bulk request fails as a whole, ES may still have written it and will answer 200 when it
+// is resent, so the hours of that batch are no longer served from the rollup.
+// Events indexed by other service instances are not seen: with more than one ingesting instance,
+// disable the rollup.
+//
+// History before startup is loaded from Elasticsearch by RollupBootstrap, sketches partly from the
+// sketch documents RollupIndexJob writes. This runs before the
+// web server and the ingest pipeline start, so no events are written while it runs.
+//
+// Final because the constructor registers this with the gauges.
+@Component
+public final class HourlyRollup implements IngestListener, SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(HourlyRollup.class);
+
+    static final long HOUR_MS = 3_600_000L;
+
+    private final RollupProperties props;
+    private final RollupBootstrap bootstrap;
+    private final Clock clock; // start() and eviction read the time from it
+    private final long retentionHours;
+    private final DurationBuckets durationBuckets;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Dictionary sites = new Dictionary();
+    private final Dictionary types = new Dictionary();
+    private final RollupTable all;
+    private final RollupTable atHourStart;
+    private final UniqueTable uniques;
+    private final UniqueTable uniquesAtHourStart;
+
+    // first millisecond the rollup is exact from; nothing is covered until start()
+    private volatile long coveredFrom = Long.MAX_VALUE;
+    private long evictedUpTo; // write lock
+    private final TreeSet<Long> uncertainHours = new TreeSet<>(); // write lock to change, read lock to read
+    private volatile boolean running;
+
+    private final Counter events;
+
+    @Autowired
+    public HourlyRollup(RollupProperties props, RollupBootstrap bootstrap, MeterRegistry registry) {
+        this(props, bootstrap, registry, Clock.systemUTC());
+    }
+
+    public HourlyRollup(RollupProperties props, RollupBootstrap bootstrap, MeterRegistry registry, Clock clock) {
+        this.props = props;
+        this.bootstrap = bootstrap;
+        this.clock = clock;
+        this.retentionHours = Math.max(1, props.retention().toHours());
+        this.durationBuckets = new DurationBuckets(props.durationAccuracy());
+        this.all = new RollupTable(durationBuckets);
+        this.atHourStart = new RollupTable(durationBuckets);
+        this.uniques = new UniqueTable(props.sketchPrecision());
+        this.uniquesAtHourStart = new UniqueTable(props.sketchPrecision());
+
+        this.events = Counter.builder("kpi.rollup.events")
+                .description("Indexed events added to the hourly rollup")
+                .register(registry);
+        Gauge.builder("kpi.rollup.cells", this, HourlyRollup::cellCount)
+                .description("(hour, site, event type) cells held by the hourly rollup")
+                .register(registry);
+        Gauge.builder("kpi.rollup.sketch.bytes", this, HourlyRollup::sketchBytes)
+                .description("Heap held by the hourly rollup's actorId / sessionId sketches")
+                .register(registry);
+        Gauge.builder("kpi.rollup.histogram.bytes", this, HourlyRollup::histogramBytes)
+                .description("Heap held by the hourly rollup's duration histograms")
+                .register(registry);
+    }
+
+    public Instant coveredFrom() {
+        long c = coveredFrom;
+        return c == Long.MAX_VALUE ? null : Instant.ofEpochMilli(c);
+    }
+
+    public String siteId(int code) {
+        return sites.value(code);
+    }
+
+    public String eventType(int code) {
+        return types.value(code);
+    }
+
+    // event type codes are 1..eventTypeCodes()-1
+    public int eventTypeCodes() {
+        return types.size();
+    }
+
+    public int sketchPrecision() {
+        return props.sketchPrecision();
+    }
+
+    public DurationBuckets durationBuckets() {
+        return durationBuckets;
+    }
+
+    // Visits the cells of [from, to], for one site or, without siteId, for all sites merged into
+    // one cell per event type (site code -1) unless perSite asks for every site's own cells.
+    // Returns false, without visiting anything, when the rollup cannot answer that range exactly.
+    public boolean scan(Instant from, Instant to, String siteId, boolean perSite, CellVisitor visitor) {
+        return read(from, to, siteId, (fromHour, endHour, toOnHour, site) -> {
+            all.scan(fromHour, endHour, site, perSite, visitor);
+            if (toOnHour) atHourStart.scan(endHour, endHour + 1, site, perSite, visitor);
+        });
+    }
+
+    // The actorId / sessionId sketches of [from, to], for one site or all sites merged; false, without
+    // visiting anything, when the rollup cannot answer that range exactly.
+    public boolean scanUniques(Instant from, Instant to, String siteId, UniqueVisitor visitor) {
+        return read(from, to, siteId, (fromHour, endHour, toOnHour, site) -> {
+            uniques.scan(fromHour, endHour, site, visitor);
+            if (toOnHour) uniquesAtHourStart.scan(endHour, endHour + 1, site, visitor);
+        });
+    }
+
+    // hours [fromHour, endHour) plus, when to is on an hour, the events exactly on endHour
+    private interface HourRange {
+        void read(long fromHour, long endHour, boolean toOnHour, int site);
+    }
+
+    private boolean read(Instant from, Instant to, String siteId, HourRange range) {
+        long f = from.toEpochMilli();
+        long t = to.toEpochMilli();
+        // sub-millisecond bounds would not line up with the hour buckets
+        if (from.getNano() % 1_000_000 != 0 || to.getNano() % 1_000_000 != 0) return false;
+        boolean toOnHour = Math.floorMod(t, HOUR_MS) == 0;
+        if (Math.floorMod(f, HOUR_MS) != 0 || t < f || !(toOnHour || Math.floorMod(t + 1, HOUR_MS) == 0)) return false;
+
+        lock.readLock().lock();
+        try {
+            if (f < coveredFrom) return false;
+            if (!uncertainHours.subSet(f / HOUR_MS, true, Math.floorDiv(t, HOUR_MS), true).isEmpty()) return false;
+
+            int site = RollupTable.ANY_SITE;
+            if (siteId != null && !siteId.isBlank()) {
+                site = sites.lookup(siteId);
+                if (site < 0) return true; // never seen: nothing matches
+            }
+
+            range.read(f / HOUR_MS, Math.floorDiv(toOnHour ? t : t + 1, HOUR_MS), toOnHour, site);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (!running) return;
+        int n = Math.min(batch.size(), results.size());
+
+        lock.writeLock().lock();
+        try {
+            evictExpired();
+            long from = coveredFrom;
+            int added = 0;
+            for (int i = 0; i < n; i++) {
+                if (results.get(i).status() != 201) continue;
+                long ts = batch.timestampMillis(i);
+                if (ts < from) continue;
+
+                byte success = batch.success(i);
+                long d = batch.durationMs(i);
+                boolean hasDuration = d != IngestBatch.NO_DURATION;
+                int site = sites.code(batch.siteId(i));
+                int type = types.code(batch.eventType(i));
+                add(ts, site, type, 1,
+                        success == IngestBatch.SUCCESS_TRUE ? 1 : 0,
+                        success == IngestBatch.SUCCESS_FALSE ? 1 : 0,
+                        hasDuration ? 1 : 0, hasDuration ? d : 0, d, d, batch.actorHash(i), batch.sessionHash(i));
+                if (hasDuration) addDurations(ts, site, type, durationBuckets.index(d), 1);
+                added++;
+            }
+            events.increment(added);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onUnknown(IngestBatch batch) {
+        if (!running) return;
+        lock.writeLock().lock();
+        try {
+            int before = uncertainHours.size();
+            long from = coveredFrom;
+            for (int i = 0; i < batch.size(); i++) {
+                long ts = batch.timestampMillis(i);
+                if (ts >= from) uncertainHours.add(Math.floorDiv(ts, HOUR_MS));
+            }
+            if (uncertainHours.size() > before) {
+                log.warn("A _bulk request failed as a whole, {} hours are served from Elasticsearch from now on",
+                        uncertainHours.size() - before);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // caller holds the write lock
+    private void add(long ts, int site, int type, long count, long success, long failure,
+                     long durationCount, long durationSum, long durationMin, long durationMax, long actorHash, long sessionHash) {
+        long hour = Math.floorDiv(ts, HOUR_MS);
+        all.add(hour, site, type, count, success, failure, durationCount, durationSum, durationMin, durationMax);
+        uniques.add(hour, site, actorHash, sessionHash);
+        if (Math.floorMod(ts, HOUR_MS) == 0) {
+            atHourStart.add(hour, site, type, count, success, failure, durationCount, durationSum, durationMin, durationMax);
+            uniquesAtHourStart.add(hour, site, actorHash, sessionHash);
+        }
+    }
+
+    // caller holds the write lock
+    private void addDurations(long ts, int site, int type, int bucket, long count) {
+        long hour = Math.floorDiv(ts, HOUR_MS);
+        all.addDurations(hour, site, type, bucket, count);
+        if (Math.floorMod(ts, HOUR_MS) == 0) atHourStart.addDurations(hour, site, type, bucket, count);
+    }
+
+    // one aggregated cell from the bootstrap; hourStartOnly = events exactly on the hour
+    void load(boolean hourStartOnly, long hourStartMs, String siteId, String eventType, long count, long success,
+              long failure, long durationCount, long durationSum, long durationMin, long durationMax) {
+        lock.writeLock().lock();
+        try {
+            RollupTable table = hourStartOnly ? atHourStart : all;
+            long hour = Math.floorDiv(hourStartMs, HOUR_MS);
+            int site = sites.code(siteId);
+            table.add(hour, site, types.code(eventType), count, success,
+                    failure, durationCount, durationSum, durationMin, durationMax);
+            // the hour has events even if none of them has an actorId or sessionId
+            (hourStartOnly ? uniquesAtHourStart : uniques).add(hour, site, KeywordHash.NONE, KeywordHash.NONE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // count durations of one histogram bucket from the bootstrap, for a cell loaded with load()
+    void loadDurations(boolean hourStartOnly, long hourStartMs, String siteId, String eventType, int bucket, long count) {
+        lock.writeLock().lock();
+        try {
+            (hourStartOnly ? atHourStart : all).addDurations(Math.floorDiv(hourStartMs, HOUR_MS), sites.code(siteId),
+                    types.code(eventType), bucket, count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // sketches of one (hour, site) from the bootstrap, merged into what is there; null = no values
+    void loadUniques(boolean hourStartOnly, long hourStartMs, String siteId, HllSketch actors, HllSketch sessions) {
+        lock.writeLock().lock();
+        try {
+            (hourStartOnly ? uniquesAtHourStart : uniques).merge(Math.floorDiv(hourStartMs, HOUR_MS), sites.code(siteId),
+                    actors, sessions);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // caller holds the write lock; runs at most once per hour
+    private void evictExpired() {
+        long keepFrom = Math.floorDiv(clock.millis(), HOUR_MS) - retentionHours;
+        if (keepFrom <= evictedUpTo) return;
+        all.evictBefore(keepFrom);
+        atHourStart.evictBefore(keepFrom);
+        uniques.evictBefore(keepFrom);
+        uniquesAtHourStart.evictBefore(keepFrom);
+        uncertainHours.headSet(keepFrom).clear();
+        evictedUpTo = keepFrom;
+        coveredFrom = Math.max(coveredFrom, keepFrom * HOUR_MS);
+    }
+
+    private double sketchBytes() {
+        lock.readLock().lock();
+        try {
+            return uniques.bytes() + uniquesAtHourStart.bytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private double histogramBytes() {
+        lock.readLock().lock();
+        try {
+            return all.histogramBytes() + atHourStart.histogramBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private double cellCount() {
+        lock.readLock().lock();
+        try {
+            return all.cellCount() + atHourStart.cellCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!props.enabled() || running) return;
+
+        long now = clock.millis();
+        long from = (Math.floorDiv(now, HOUR_MS) - retentionHours) * HOUR_MS;
+        long covered = (Math.floorDiv(now, HOUR_MS) + 1) * HOUR_MS;
+        if (props.bootstrap() && bootstrap != null) {
+            try {
+                long started = System.nanoTime();
+                long cells = bootstrap.load(from, this);
+                covered = from;
+                log.info("Hourly rollup loaded {} cells since {} in {} ms", cells, Instant.ofEpochMilli(from),
+                        (System.nanoTime() - started) / 1_000_000);
+            } catch (Exception e) {
+                log.warn("Hourly rollup bootstrap failed, serving KPIs from it only from {}: {}",
+                        Instant.ofEpochMilli(covered), e.toString());
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            // a failed bootstrap may have loaded part of the history
+            if (covered > from) {
+                all.evictBefore(Math.floorDiv(covered, HOUR_MS));
+                atHourStart.evictBefore(Math.floorDiv(covered, HOUR_MS));
+                uniques.evictBefore(Math.floorDiv(covered, HOUR_MS));
+                uniquesAtHourStart.evictBefore(Math.floorDiv(covered, HOUR_MS));
+            }
+            evictedUpTo = Math.floorDiv(from, HOUR_MS);
+            coveredFrom = covered;
+            running = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void stop() {
+        lock.writeLock().lock();
+        try {
+            // events written while stopped are not seen, a later start() bootstraps again
+            running = false;
+            coveredFrom = Long.MAX_VALUE;
+            uncertainHours.clear();
+            all.clear();
+            atHourStart.clear();
+            uniques.clear();
+            uniquesAtHourStart.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // before the web server and the ingest pipeline (default phase), so the bootstrap sees no writes
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 4096;
+    }
+}
@@ -0,0 +1,162 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.EventIndices;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+
+// Loads the history already in Elasticsearch into an HourlyRollup, one composite aggregation
+// page of (hour, siteId, eventType) buckets at a time, each with its durations counted per
+// DurationBuckets bucket. A second pass only looks at events that sit exactly on an hour boundary.
+//
+// actorId / sessionId sketches come from the sketch documents RollupIndexJob wrote, up to their
+// watermark, which costs one document per (hour, siteId). Later hours, or all of them when the
+// documents are missing or of another precision, are sketched from the raw distinct values.
+@Component
+public class RollupBootstrap {
+
+    private static final int PAGE_SIZE = 1000;
+    private static final int SKETCH_PAGE_SIZE = 100; // dense sketch documents are ~45 KB
+    static final String ON_HOUR_SCRIPT =
+            "doc['timestamp'].size() > 0 && doc['timestamp'].value.toInstant().toEpochMilli() % 3600000L == 0";
+
+    private final RestClient restClient;
+    private final EventIndices indices;
+    private final ObjectMapper mapper;
+
+    public RollupBootstrap(RestClient restClient, EventIndices indices, ObjectMapper mapper) {
+        this.restClient = restClient;
+        this.indices = indices;
+        this.mapper = mapper;
+    }
+
+    // returns the number of cells loaded
+    long load(long fromMs, HourlyRollup rollup) throws IOException {
+        // knows about the pre-daily index, if any, once prepared
+        indices.prepare();
+        // make everything acknowledged before the restart visible to the aggregation
+        restClient.performRequest(new Request("POST", "/" + indices.all() + "/_refresh?ignore_unavailable=true"));
+        long cells = loadPass(fromMs, false, rollup) + loadPass(fromMs, true, rollup);
+
+        long rawFrom = Math.max(fromMs, loadStoredSketches(fromMs, rollup));
+        for (UniqueSketches.Hour h : UniqueSketches.fromRaw(this::search, indices.of(rawFrom, Long.MAX_VALUE), rawFrom, Long.MAX_VALUE,
+                rollup.sketchPrecision(), () -> true)) {
+            load(h, rollup);
+        }
+        return cells;
+    }
+
+    // returns the end of the hours loaded, fromMs when none could be
+    private long loadStoredSketches(long fromMs, HourlyRollup rollup) throws IOException {
+        JsonNode meta = get("/" + UniqueSketches.INDEX + "/_mapping?ignore_unavailable=true")
+                .path(UniqueSketches.INDEX).path("mappings").path("_meta");
+        long watermark = meta.path("watermark").asLong(Long.MIN_VALUE);
+        if (watermark <= fromMs || meta.path("precision").asInt() != rollup.sketchPrecision()) return fromMs;
+
+        restClient.performRequest(new Request("POST", "/" + UniqueSketches.INDEX + "/_refresh"));
+        String after = null;
+        do {
+            JsonNode hits = search(UniqueSketches.INDEX, storedQuery(fromMs, watermark, after)).path("hits").path("hits");
+            for (JsonNode hit : hits) load(UniqueSketches.fromDocument(hit.path("_source")), rollup);
+            after = hits.size() < SKETCH_PAGE_SIZE ? null : hits.get(hits.size() - 1).path("sort").toString();
+        } while (after != null);
+        return watermark;
+    }
+
+    private static void load(UniqueSketches.Hour h, HourlyRollup rollup) {
+        rollup.loadUniques(false, h.hourStartMs, h.siteId, h.actors, h.sessions);
+        if (h.actorsAtHourStart != null || h.sessionsAtHourStart != null) {
+            rollup.loadUniques(true, h.hourStartMs, h.siteId, h.actorsAtHourStart, h.sessionsAtHourStart);
+        }
+    }
+
+    private static String storedQuery(long fromMs, long toMs, String after) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":").append(SKETCH_PAGE_SIZE).append(',');
+        sb.append("\"query\":{\"range\":{\"timestamp\":{\"gte\":\"").append(Instant.ofEpochMilli(fromMs))
+                .append("\",\"lt\":\"").append(Instant.ofEpochMilli(toMs)).append("\"}}},");
+        sb.append("\"sort\":[{\"key\":\"asc\"}]");
+        if (after != null) sb.append(",\"search_after\":").append(after);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private long loadPass(long fromMs, boolean hourStartOnly, HourlyRollup rollup) throws IOException {
+        long cells = 0;
+        String after = null;
+        do {
+            JsonNode agg = search(indices.of(fromMs, Long.MAX_VALUE), buildQuery(fromMs, hourStartOnly, after, rollup.durationBuckets()))
+                    .path("aggregations").path("cells");
+            for (JsonNode b : agg.path("buckets")) {
+                JsonNode key = b.path("key");
+                JsonNode duration = b.path("duration");
+                long durationCount = duration.path("count").asLong(0);
+                long hour = key.path("hour").asLong();
+                String site = key.path("site").isNull() ? null : key.path("site").asText();
+                String type = key.path("type").isNull() ? null : key.path("type").asText();
+                rollup.load(hourStartOnly, hour, site, type,
+                        b.path("doc_count").asLong(0),
+                        b.path("succeeded").path("doc_count").asLong(0),
+                        b.path("failed").path("doc_count").asLong(0),
+                        durationCount,
+                        durationCount == 0 ? 0 : Math.round(duration.path("sum").asDouble(0)),
+                        durationCount == 0 ? 0 : Math.round(duration.path("min").asDouble(0)),
+                        durationCount == 0 ? 0 : Math.round(duration.path("max").asDouble(0)));
+                for (JsonNode d : b.path("durations").path("buckets").path("buckets")) {
+                    rollup.loadDurations(hourStartOnly, hour, site, type, d.path("key").asInt(), d.path("doc_count").asLong());
+                }
+                cells++;
+            }
+            JsonNode afterKey = agg.path("after_key");
+            after = afterKey.isMissingNode() || agg.path("buckets").isEmpty() ? null : afterKey.toString();
+        } while (after != null);
+        return cells;
+    }
+
+    private String buildQuery(long fromMs, boolean hourStartOnly, String after, DurationBuckets durations) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":0,");
+        sb.append("\"query\":{\"bool\":{\"filter\":[");
+        sb.append("{\"range\":{\"timestamp\":{\"gte\":\"").append(Instant.ofEpochMilli(fromMs)).append("\"}}}");
+        if (hourStartOnly) sb.append(",{\"script\":{\"script\":{\"source\":\"").append(ON_HOUR_SCRIPT).append("\"}}}");
+        sb.append("]}},");
+        sb.append("\"aggs\":{\"cells\":{");
+        sb.append("\"composite\":{\"size\":").append(durations.cellsPerPage(PAGE_SIZE)).append(",\"sources\":[");
+        sb.append("{\"hour\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\"}}},");
+        sb.append("{\"site\":{\"terms\":{\"field\":\"siteId\",\"missing_bucket\":true}}},");
+        sb.append("{\"type\":{\"terms\":{\"field\":\"eventType\",\"missing_bucket\":true}}}");
+        sb.append("]");
+        if (after != null) sb.append(",\"after\":").append(after);
+        sb.append("},");
+        sb.append("\"aggs\":{");
+        sb.append("\"succeeded\":{\"filter\":{\"term\":{\"success\":true}}},");
+        sb.append("\"failed\":{\"filter\":{\"term\":{\"success\":false}}},");
+        sb.append("\"duration\":{\"stats\":{\"field\":\"durationMs\"}},");
+        sb.append("\"durations\":").append(durations.aggregation("durationMs"));
+        sb.append("}}}}");
+        return sb.toString();
+    }
+
+    private JsonNode search(String index, String body) throws IOException {
+        Request req = new Request("POST", "/" + index + "/_search?ignore_unavailable=true");
+        req.setJsonEntity(body);
+        return read(restClient.performRequest(req));
+    }
+
+    private JsonNode get(String path) throws IOException {
+        return read(restClient.performRequest(new Request("GET", path)));
+    }
+
+    private JsonNode read(Response resp) throws IOException {
+        try (InputStream is = resp.getEntity().getContent()) {
+            return mapper.readTree(is);
+        }
+    }
+}
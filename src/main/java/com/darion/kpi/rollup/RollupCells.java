@@ -0,0 +1,113 @@
+package com.darion.kpi.rollup;
+
+import java.util.Arrays;
+
+// Aggregates of one hour, one cell per (site, eventType) code pair, stored column-wise.
+// Duration columns only cover events that had a durationMs; their histogram is null until one has.
+public final class RollupCells {
+
+    private int size;
+    private int[] sites = new int[8];
+    private int[] types = new int[8];
+    private long[] counts = new long[8];
+    private long[] successes = new long[8];
+    private long[] failures = new long[8];
+    private long[] durationCounts = new long[8];
+    private long[] durationSums = new long[8];
+    private long[] durationMins = new long[8];
+    private long[] durationMaxs = new long[8];
+    private DurationHistogram[] durations = new DurationHistogram[8];
+
+    // open addressing over (site, type) -> cell + 1, 0 = empty slot
+    private int[] index = new int[16];
+
+    public int size() { return size; }
+    public int site(int i) { return sites[i]; }
+    public int type(int i) { return types[i]; }
+    public long count(int i) { return counts[i]; }
+    public long successes(int i) { return successes[i]; }
+    public long failures(int i) { return failures[i]; }
+    public long durationCount(int i) { return durationCounts[i]; }
+    public long durationSum(int i) { return durationSums[i]; }
+    public long durationMin(int i) { return durationMins[i]; }
+    public long durationMax(int i) { return durationMaxs[i]; }
+    public DurationHistogram durations(int i) { return durations[i]; }
+
+    void add(int site, int type, long count, long success, long failure,
+             long durationCount, long durationSum, long durationMin, long durationMax) {
+        int i = cell(site, type);
+        counts[i] += count;
+        successes[i] += success;
+        failures[i] += failure;
+        if (durationCount > 0) {
+            durationCounts[i] += durationCount;
+            durationSums[i] += durationSum;
+            durationMins[i] = Math.min(durationMins[i], durationMin);
+            durationMaxs[i] = Math.max(durationMaxs[i], durationMax);
+        }
+    }
+
+    void addDurations(int site, int type, int bucket, long count, DurationBuckets layout) {
+        int i = cell(site, type);
+        if (durations[i] == null) durations[i] = new DurationHistogram(layout);
+        durations[i].addBucket(bucket, count);
+    }
+
+    long histogramBytes() {
+        long n = 0;
+        for (int i = 0; i < size; i++) if (durations[i] != null) n += durations[i].bytes();
+        return n;
+    }
+
+    private int cell(int site, int type) {
+        int mask = index.length - 1;
+        int slot = hash(site, type) & mask;
+        while (true) {
+            int c = index[slot] - 1;
+            if (c < 0) break;
+            if (sites[c] == site && types[c] == type) return c;
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == sites.length) grow();
+        int c = size++;
+        sites[c] = site;
+        types[c] = type;
+        durationMins[c] = Long.MAX_VALUE;
+        durationMaxs[c] = Long.MIN_VALUE;
+        if (size * 2 > index.length) rehash();
+        else index[slot] = c + 1;
+        return c;
+    }
+
+    private void grow() {
+        int n = sites.length * 2;
+        sites = Arrays.copyOf(sites, n);
+        types = Arrays.copyOf(types, n);
+        counts = Arrays.copyOf(counts, n);
+        successes = Arrays.copyOf(successes, n);
+        failures = Arrays.copyOf(failures, n);
+        durationCounts = Arrays.copyOf(durationCounts, n);
+        durationSums = Arrays.copyOf(durationSums, n);
+        durationMins = Arrays.copyOf(durationMins, n);
+        durationMaxs = Arrays.copyOf(durationMaxs, n);
+        durations = Arrays.copyOf(durations, n);
+    }
+
+    // keeps the index at most half full; also inserts the cell just appended
+    private void rehash() {
+        int[] next = new int[index.length * 2];
+        int mask = next.length - 1;
+        for (int c = 0; c < size; c++) {
+            int slot = hash(sites[c], types[c]) & mask;
+            while (next[slot] != 0) slot = (slot + 1) & mask;
+            next[slot] = c + 1;
+        }
+        index = next;
+    }
+
+    private static int hash(int site, int type) {
+        int h = site * 0x9E3779B1 + type;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,405 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.EventIndices;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Materializes warehouse_events_hourly from the daily event indices in the background.
+//
+// One rollup document per (hour, siteId, eventType, success) with _doc_count = number of events,
+// durationMs as aggregate_metric_double (min/max/sum/value_count) and durationHistogram, the
+// durations counted per DurationBuckets bucket (the in-process rollup's layout, so percentiles are
+// as accurate as kpi.rollup.duration-accuracy), which percentiles aggregations merge across documents.
+// Because of _doc_count and the success split, the KPI queries run unchanged over both indices.
+//
+// The watermark (end of the materialized hours) lives in the rollup index's mapping _meta, so the
+// job resumes where it left off after a restart. Hours are closed lag after they end and are
+// written chunk by chunk; hours that receive late events are rebuilt on the next run, unless their
+// events are past kpi.event-index.retention (their day was deleted, so the rollup documents are
+// all that is left of them). Document ids are deterministic, so rewriting an hour overwrites its
+// documents.
+//
+// Only late events this instance indexed mark their hour dirty. Late events indexed by other
+// instances are picked up by rebuilding the last kpi.rollup-index.recheck of closed hours on every
+// run; older late events from other instances are not seen.
+//
+// The actorId / sessionId sketches of the same hours (see UniqueSketches) go to a sketch index with
+// their own watermark and precision in its _meta, so HourlyRollup can bootstrap them without
+// reading raw values. They start kpi.rollup.retention back, which is all HourlyRollup loads, and
+// are rebuilt from there when kpi.rollup.sketch-precision changes.
+@Component
+public class RollupIndexJob implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(RollupIndexJob.class);
+
+    private static final long HOUR_MS = RollupIndexState.HOUR_MS;
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+    private static final int PAGE_SIZE = 100;
+
+    private static final String MAPPING = "{\"mappings\":{\"properties\":{"
+            + "\"timestamp\":{\"type\":\"date\"},"
+            + "\"siteId\":{\"type\":\"keyword\"},"
+            + "\"eventType\":{\"type\":\"keyword\"},"
+            + "\"success\":{\"type\":\"boolean\"},"
+            + "\"durationMs\":{\"type\":\"aggregate_metric_double\",\"metrics\":[\"min\",\"max\",\"sum\",\"value_count\"],\"default_metric\":\"sum\"},"
+            + "\"durationHistogram\":{\"type\":\"histogram\"}"
+            + "}}}";
+
+    private final RollupIndexProperties props;
+    private final RollupProperties rollupProps;
+    private final DurationBuckets durationBuckets;
+    private final RollupIndexState state;
+    private final EventIndices eventIndices;
+    private final RestClient restClient;
+    private final ObjectMapper mapper;
+
+    private final Counter documents;
+    private final Counter sketchDocuments;
+    private final Counter failures;
+
+    private boolean prepared; // job thread only
+    private long sketchWatermark; // job thread only
+    private volatile boolean running;
+    private ScheduledExecutorService scheduler;
+
+    public RollupIndexJob(RollupIndexProperties props, RollupProperties rollupProps, RollupIndexState state,
+                          EventIndices eventIndices, RestClient restClient, ObjectMapper mapper, MeterRegistry registry) {
+        this.props = props;
+        this.rollupProps = rollupProps;
+        this.durationBuckets = new DurationBuckets(rollupProps.durationAccuracy());
+        this.state = state;
+        this.eventIndices = eventIndices;
+        this.restClient = restClient;
+        this.mapper = mapper;
+
+        this.documents = Counter.builder("kpi.rollup.index.documents")
+                .description("Rollup documents written to " + RollupIndexState.INDEX)
+                .register(registry);
+        this.sketchDocuments = Counter.builder("kpi.rollup.index.sketch.documents")
+                .description("actorId / sessionId sketch documents written to " + UniqueSketches.INDEX)
+                .register(registry);
+        this.failures = Counter.builder("kpi.rollup.index.failures")
+                .description("Rollup index job runs that failed")
+                .register(registry);
+        Gauge.builder("kpi.rollup.index.lag.seconds", state,
+                        s -> s.isAvailable() ? (System.currentTimeMillis() - s.watermark()) / 1000.0 : Double.NaN)
+                .description("Age of the rollup index watermark")
+                .register(registry);
+    }
+
+    void runOnce() throws IOException {
+        if (!prepared) {
+            if (!prepare()) return;
+            prepared = true;
+        }
+
+        long target = Math.floorDiv(System.currentTimeMillis() - props.lag().toMillis(), HOUR_MS) * HOUR_MS;
+        state.materializing(target);
+        Map<Long, Long> dirty = state.dirtyHours();
+        // everything acknowledged so far becomes visible to the aggregations below
+        restClient.performRequest(new Request("POST", "/" + eventIndices.all() + "/_refresh?ignore_unavailable=true"));
+
+        long retainedFrom = eventIndices.retainedFrom();
+        for (Map.Entry<Long, Long> e : dirty.entrySet()) {
+            if (!running) return;
+            long hour = e.getKey();
+            if (hour >= state.watermark()) continue;
+            if (hour < retainedFrom) {
+                // rebuilding would replace the hour with just its late events
+                state.rebuilt(hour, e.getValue());
+                continue;
+            }
+            materialize(hour, hour + HOUR_MS);
+            if (hour < sketchWatermark) materializeSketches(hour, hour + HOUR_MS);
+            refreshRollup();
+            state.rebuilt(hour, e.getValue());
+        }
+
+        long chunk = Math.max(HOUR_MS, props.chunk().toMillis() / HOUR_MS * HOUR_MS);
+        long recheckFrom = Math.max(state.watermark() - props.recheck().toMillis() / HOUR_MS * HOUR_MS, retainedFrom);
+        for (long from = recheckFrom; from < state.watermark() && running; from += chunk) {
+            long to = Math.min(from + chunk, state.watermark());
+            materialize(from, to);
+            if (from < sketchWatermark) materializeSketches(from, Math.min(to, sketchWatermark));
+            refreshRollup();
+        }
+        for (long from = state.watermark(); from < target && running; from += chunk) {
+            long to = Math.min(from + chunk, target);
+            materialize(from, to);
+            refreshRollup();
+            putWatermark(to);
+            state.advance(to);
+        }
+
+        // sketches follow the rollup over the same closed hours
+        long keepFrom = UniqueSketches.floorHour(System.currentTimeMillis() - rollupProps.retention().toMillis());
+        if (sketchWatermark < keepFrom) sketchWatermark = keepFrom;
+        for (long from = sketchWatermark; from < state.watermark() && running; from += chunk) {
+            long to = Math.min(from + chunk, state.watermark());
+            materializeSketches(from, to);
+            putSketchWatermark(to);
+            sketchWatermark = to;
+        }
+    }
+
+    // creates the rollup index and reads the watermark; false = no data yet
+    private boolean prepare() throws IOException {
+        // the template gives every daily index the durationHistogram alias percentiles read
+        eventIndices.prepare();
+        try {
+            Request create = new Request("PUT", "/" + RollupIndexState.INDEX);
+            create.setJsonEntity(MAPPING);
+            restClient.performRequest(create);
+            log.info("Created rollup index {}", RollupIndexState.INDEX);
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != 400) throw e; // 400 = already exists
+        }
+
+        prepareSketches();
+
+        JsonNode meta = get("/" + RollupIndexState.INDEX + "/_mapping")
+                .path(RollupIndexState.INDEX).path("mappings").path("_meta").path("watermark");
+        if (!meta.isMissingNode()) {
+            state.advance(meta.asLong());
+            log.info("Rollup index resumes at {}", Instant.ofEpochMilli(meta.asLong()));
+            return true;
+        }
+
+        JsonNode min = search(eventIndices.all(), "{\"size\":0,\"aggs\":{\"first\":{\"min\":{\"field\":\"timestamp\"}}}}")
+                .path("aggregations").path("first").path("value");
+        if (min.isMissingNode() || min.isNull()) return false;
+
+        long start = Math.floorDiv(min.asLong(), HOUR_MS) * HOUR_MS;
+        putWatermark(start);
+        state.advance(start);
+        log.info("Rollup index starts at {}", Instant.ofEpochMilli(start));
+        return true;
+    }
+
+    // creates the sketch index and reads its watermark, unless its sketches have another precision
+    private void prepareSketches() throws IOException {
+        try {
+            Request create = new Request("PUT", "/" + UniqueSketches.INDEX);
+            create.setJsonEntity(UniqueSketches.MAPPING);
+            restClient.performRequest(create);
+            log.info("Created sketch index {}", UniqueSketches.INDEX);
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != 400) throw e;
+        }
+
+        JsonNode meta = get("/" + UniqueSketches.INDEX + "/_mapping").path(UniqueSketches.INDEX).path("mappings").path("_meta");
+        if (meta.path("precision").asInt() == rollupProps.sketchPrecision()) {
+            sketchWatermark = meta.path("watermark").asLong(0);
+        } else {
+            // nothing yet, or sketches the rollup cannot merge: start over (runOnce moves up to the retention)
+            sketchWatermark = 0;
+            putSketchWatermark(0);
+        }
+    }
+
+    private void materializeSketches(long fromMs, long toMs) throws IOException {
+        StringBuilder body = new StringBuilder();
+        int docs = 0;
+        for (UniqueSketches.Hour h : UniqueSketches.fromRaw(this::search, eventIndices.of(fromMs, toMs - 1), fromMs, toMs, rollupProps.sketchPrecision(), () -> running)) {
+            body.append("{\"index\":{\"_index\":\"").append(UniqueSketches.INDEX).append("\",\"_id\":")
+                    .append(mapper.writeValueAsString(h.key())).append("}}\n");
+            body.append(mapper.writeValueAsString(UniqueSketches.document(mapper, h))).append('\n');
+            // keep bulk requests to a few MB
+            if (++docs % 100 == 0) {
+                bulk(body.toString());
+                body.setLength(0);
+            }
+        }
+        if (!body.isEmpty()) bulk(body.toString());
+        sketchDocuments.increment(docs);
+    }
+
+    // (re)writes the rollup documents of the hours in [fromMs, toMs)
+    private void materialize(long fromMs, long toMs) throws IOException {
+        String after = null;
+        do {
+            JsonNode agg = search(eventIndices.of(fromMs, toMs - 1), buildQuery(fromMs, toMs, after)).path("aggregations").path("cells");
+            JsonNode buckets = agg.path("buckets");
+            if (!buckets.isEmpty()) bulk(buckets);
+            after = buckets.isEmpty() || agg.path("after_key").isMissingNode() ? null : agg.path("after_key").toString();
+        } while (after != null && running);
+    }
+
+    private String buildQuery(long fromMs, long toMs, String after) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":0,");
+        sb.append("\"query\":{\"bool\":{\"filter\":[");
+        sb.append("{\"range\":{\"timestamp\":{\"gte\":\"").append(Instant.ofEpochMilli(fromMs))
+                .append("\",\"lt\":\"").append(Instant.ofEpochMilli(toMs)).append("\"}}}");
+        sb.append("]}},");
+        sb.append("\"aggs\":{\"cells\":{");
+        sb.append("\"composite\":{\"size\":").append(durationBuckets.cellsPerPage(PAGE_SIZE)).append(",\"sources\":[");
+        sb.append("{\"hour\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\"}}},");
+        sb.append("{\"site\":{\"terms\":{\"field\":\"siteId\",\"missing_bucket\":true}}},");
+        sb.append("{\"type\":{\"terms\":{\"field\":\"eventType\",\"missing_bucket\":true}}},");
+        sb.append("{\"success\":{\"terms\":{\"field\":\"success\",\"missing_bucket\":true}}}");
+        sb.append("]");
+        if (after != null) sb.append(",\"after\":").append(after);
+        sb.append("},");
+        sb.append("\"aggs\":{");
+        sb.append("\"duration\":{\"stats\":{\"field\":\"durationMs\"}},");
+        sb.append("\"durations\":").append(durationBuckets.aggregation("durationMs"));
+        sb.append("}}}}");
+        return sb.toString();
+    }
+
+    private void bulk(JsonNode buckets) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (JsonNode b : buckets) {
+            JsonNode key = b.path("key");
+            long hour = key.path("hour").asLong();
+            JsonNode site = key.path("site");
+            JsonNode type = key.path("type");
+            JsonNode success = key.path("success");
+
+            ObjectNode doc = mapper.createObjectNode();
+            doc.put("timestamp", Instant.ofEpochMilli(hour).toString());
+            if (!site.isNull()) doc.put("siteId", site.asText());
+            if (!type.isNull()) doc.put("eventType", type.asText());
+            // terms on a boolean field key by 1/0 (key_as_string "true"/"false")
+            if (!success.isNull()) doc.put("success", success.asLong() == 1 || success.asText().equals("true"));
+            doc.put("_doc_count", b.path("doc_count").asLong());
+
+            JsonNode stats = b.path("duration");
+            long count = stats.path("count").asLong(0);
+            if (count > 0) {
+                ObjectNode d = doc.putObject("durationMs");
+                d.put("min", stats.path("min").asDouble());
+                d.put("max", stats.path("max").asDouble());
+                d.put("sum", stats.path("sum").asDouble());
+                d.put("value_count", count);
+
+                ObjectNode h = doc.putObject("durationHistogram");
+                ArrayNode values = h.putArray("values");
+                ArrayNode counts = h.putArray("counts");
+                // ascending keys, so values are increasing as the histogram field requires
+                for (JsonNode bucket : b.path("durations").path("buckets").path("buckets")) {
+                    values.add(durationBuckets.value(bucket.path("key").asInt()));
+                    counts.add(bucket.path("doc_count").asLong());
+                }
+            }
+
+            String id = hour + "|" + (site.isNull() ? "" : site.asText()) + "|" + (type.isNull() ? "" : type.asText())
+                    + "|" + (success.isNull() ? "" : success.asText());
+            body.append("{\"index\":{\"_index\":\"").append(RollupIndexState.INDEX).append("\",\"_id\":")
+                    .append(mapper.writeValueAsString(id));
+            // routed like the events, since site-filtered searches over both indices pass the siteId as routing
+            if (!site.isNull() && !site.asText().isEmpty()) {
+                body.append(",\"routing\":").append(mapper.writeValueAsString(site.asText()));
+            }
+            body.append("}}\n");
+            body.append(mapper.writeValueAsString(doc)).append('\n');
+        }
+
+        bulk(body.toString());
+        documents.increment(buckets.size());
+    }
+
+    private void bulk(String body) throws IOException {
+        Request req = new Request("POST", "/_bulk");
+        req.setEntity(new NStringEntity(body, NDJSON));
+        JsonNode resp = read(restClient.performRequest(req));
+        if (resp.path("errors").asBoolean(false)) {
+            throw new IOException("Rollup bulk write failed: " + resp.path("items").path(0).toString());
+        }
+    }
+
+    private void putWatermark(long watermark) throws IOException {
+        Request req = new Request("PUT", "/" + RollupIndexState.INDEX + "/_mapping");
+        req.setJsonEntity("{\"_meta\":{\"watermark\":" + watermark + "}}");
+        restClient.performRequest(req);
+    }
+
+    private void putSketchWatermark(long watermark) throws IOException {
+        Request req = new Request("PUT", "/" + UniqueSketches.INDEX + "/_mapping");
+        req.setJsonEntity("{\"_meta\":{\"watermark\":" + watermark + ",\"precision\":" + rollupProps.sketchPrecision() + "}}");
+        restClient.performRequest(req);
+    }
+
+    private void refreshRollup() throws IOException {
+        restClient.performRequest(new Request("POST", "/" + RollupIndexState.INDEX + "/_refresh"));
+    }
+
+    private JsonNode search(String index, String body) throws IOException {
+        Request req = new Request("POST", "/" + index + "/_search");
+        req.addParameter("ignore_unavailable", "true");
+        req.setJsonEntity(body);
+        return read(restClient.performRequest(req));
+    }
+
+    private JsonNode get(String path) throws IOException {
+        return read(restClient.performRequest(new Request("GET", path)));
+    }
+
+    private JsonNode read(Response resp) throws IOException {
+        try (InputStream is = resp.getEntity().getContent()) {
+            return mapper.readTree(is);
+        }
+    }
+
+    private void runSafely() {
+        try {
+            runOnce();
+        } catch (Exception e) {
+            failures.increment();
+            log.warn("Rollup index job failed, retrying in {}: {}", props.interval(), e.toString());
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!props.enabled() || running) return;
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rollup-index");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runSafely, 10, props.interval().toSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        running = false;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
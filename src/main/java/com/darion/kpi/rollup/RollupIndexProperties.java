@@ -0,0 +1,17 @@
+package com.darion.kpi.rollup;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kpi.rollup-index")
+public record RollupIndexProperties(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("5m") Duration interval,
+        @DefaultValue("10m") Duration lag,
+        @DefaultValue("24h") Duration chunk,
+        @DefaultValue("400d") Duration maxRange,
+        // closed hours rebuilt on every run, for late events other instances indexed; 0 = off
+        @DefaultValue("24h") Duration recheck
+) {}
@@ -0,0 +1,108 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.IngestListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// What the warehouse_events_hourly index can answer. Every hour before the watermark has been
+// materialized by RollupIndexJob, except hours that received late events since: those are dirty
+// and read from raw events until the job has rebuilt them.
+//
+// Late events are only seen when this instance indexed them, the same single-ingest-instance
+// assumption as HourlyRollup.
+@Component
+public class RollupIndexState implements IngestListener {
+
+    public static final String INDEX = "warehouse_events_hourly";
+
+    static final long HOUR_MS = 3_600_000L;
+    private static final long UNSET = Long.MIN_VALUE;
+
+    private final boolean enabled;
+
+    // exclusive end (ms) of the materialized hours, UNSET until the job has read or set it
+    private volatile long watermark = UNSET;
+    // end of the hours the job is materializing right now; writes below it must be redone
+    private volatile long materializing = UNSET;
+
+    // dirty hour start -> sequence of its latest late write
+    private final ConcurrentSkipListMap<Long, Long> dirty = new ConcurrentSkipListMap<>();
+    private final AtomicLong writes = new AtomicLong();
+
+    public RollupIndexState(RollupIndexProperties props) {
+        this.enabled = props.enabled();
+    }
+
+    public boolean isAvailable() {
+        return enabled && watermark != UNSET;
+    }
+
+    // exclusive end (ms) of the materialized hours; only meaningful when isAvailable()
+    public long watermark() {
+        return watermark;
+    }
+
+    // [fromMs, toMs) spans of whole, materialized, clean hours within [fromMs, toMs] (inclusive end,
+    // like the KPI range filters); the rest of the range has to be read from raw events
+    public List<Span> materialized(long fromMs, long toMs) {
+        long w = watermark;
+        if (!enabled || w == UNSET) return List.of();
+
+        long start = Math.floorDiv(fromMs + HOUR_MS - 1, HOUR_MS) * HOUR_MS;
+        long end = Math.min(Math.floorDiv(toMs + 1, HOUR_MS) * HOUR_MS, w);
+        if (start >= end) return List.of();
+
+        List<Span> out = new ArrayList<>();
+        long cur = start;
+        for (long hour : dirty.subMap(start, end).keySet()) {
+            if (hour > cur) out.add(new Span(cur, hour));
+            cur = hour + HOUR_MS;
+        }
+        if (cur < end) out.add(new Span(cur, end));
+        return out;
+    }
+
+    public record Span(long fromMs, long toMs) {}
+
+    // ---------------- job side ----------------
+
+    void materializing(long upTo) {
+        materializing = upTo;
+    }
+
+    void advance(long newWatermark) {
+        watermark = newWatermark;
+    }
+
+    Map<Long, Long> dirtyHours() {
+        return Map.copyOf(dirty);
+    }
+
+    // rebuilt from a read that started after that write; a later write keeps the hour dirty
+    void rebuilt(long hour, long seq) {
+        dirty.remove(hour, seq);
+    }
+
+    @Override
+    public void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results) {
+        if (!enabled) return;
+        long limit = Math.max(watermark, materializing);
+        if (limit == UNSET) return;
+
+        int n = Math.min(batch.size(), results.size());
+        for (int i = 0; i < n; i++) {
+            int status = results.get(i).status();
+            if (status < 200 || status >= 300) continue;
+            long ts = batch.timestampMillis(i);
+            if (ts >= limit) continue;
+            dirty.put(Math.floorDiv(ts, HOUR_MS) * HOUR_MS, writes.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.darion.kpi.rollup;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "kpi.rollup")
+public record RollupProperties(
+        @DefaultValue("false") boolean enabled, // only correct with a single ingesting instance
+        @DefaultValue("35d") Duration retention,
+        @DefaultValue("true") boolean bootstrap,
+        // actorId / sessionId sketches: 2^precision registers, 1.04 / sqrt(2^precision) standard error
+        @DefaultValue("14") int sketchPrecision,
+        // duration histograms: every percentile is within this relative error (see DurationBuckets)
+        @DefaultValue("0.01") double durationAccuracy
+) {}
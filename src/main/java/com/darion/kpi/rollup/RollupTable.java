@@ -0,0 +1,87 @@
+package com.darion.kpi.rollup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Epoch hour -> cells, kept twice: per site (indexed by site code) and with all sites merged into
+// one cell per event type (site ANY_SITE). Queries without a site filter read the merged level,
+// so they touch ~#types cells per hour instead of #sites x #types. Only hours that received
+// events have an entry.
+final class RollupTable {
+
+    static final int ANY_SITE = -1;
+
+    private final DurationBuckets layout;
+    private final List<TreeMap<Long, RollupCells>> bySite = new ArrayList<>();
+    private final TreeMap<Long, RollupCells> merged = new TreeMap<>();
+
+    RollupTable(DurationBuckets layout) {
+        this.layout = layout;
+    }
+
+    void add(long hour, int site, int type, long count, long success, long failure,
+             long durationCount, long durationSum, long durationMin, long durationMax) {
+        while (bySite.size() <= site) bySite.add(new TreeMap<>());
+        bySite.get(site).computeIfAbsent(hour, h -> new RollupCells())
+                .add(site, type, count, success, failure, durationCount, durationSum, durationMin, durationMax);
+        merged.computeIfAbsent(hour, h -> new RollupCells())
+                .add(ANY_SITE, type, count, success, failure, durationCount, durationSum, durationMin, durationMax);
+    }
+
+    // count events of one duration histogram bucket
+    void addDurations(long hour, int site, int type, int bucket, long count) {
+        while (bySite.size() <= site) bySite.add(new TreeMap<>());
+        bySite.get(site).computeIfAbsent(hour, h -> new RollupCells()).addDurations(site, type, bucket, count, layout);
+        merged.computeIfAbsent(hour, h -> new RollupCells()).addDurations(ANY_SITE, type, bucket, count, layout);
+    }
+
+    // Hours in [fromHour, toHour) of one site, of all sites merged, or (perSite) of every site
+    // one after the other.
+    void scan(long fromHour, long toHour, int site, boolean perSite, CellVisitor visitor) {
+        if (site != ANY_SITE) {
+            if (site < bySite.size()) scan(bySite.get(site), fromHour, toHour, visitor);
+        } else if (!perSite) {
+            scan(merged, fromHour, toHour, visitor);
+        } else {
+            for (TreeMap<Long, RollupCells> hours : bySite) scan(hours, fromHour, toHour, visitor);
+        }
+    }
+
+    private static void scan(TreeMap<Long, RollupCells> hours, long fromHour, long toHour, CellVisitor visitor) {
+        for (Map.Entry<Long, RollupCells> e : hours.subMap(fromHour, toHour).entrySet()) {
+            long start = e.getKey() * HourlyRollup.HOUR_MS;
+            RollupCells c = e.getValue();
+            for (int i = 0; i < c.size(); i++) visitor.visit(start, c, i);
+        }
+    }
+
+    void evictBefore(long hour) {
+        for (TreeMap<Long, RollupCells> hours : bySite) hours.headMap(hour).clear();
+        merged.headMap(hour).clear();
+    }
+
+    void clear() {
+        bySite.clear();
+        merged.clear();
+    }
+
+    long histogramBytes() {
+        long n = 0;
+        for (TreeMap<Long, RollupCells> hours : bySite) {
+            for (RollupCells c : hours.values()) n += c.histogramBytes();
+        }
+        for (RollupCells c : merged.values()) n += c.histogramBytes();
+        return n;
+    }
+
+    int cellCount() {
+        int n = 0;
+        for (TreeMap<Long, RollupCells> hours : bySite) {
+            for (RollupCells c : hours.values()) n += c.size();
+        }
+        for (RollupCells c : merged.values()) n += c.size();
+        return n;
+    }
+}
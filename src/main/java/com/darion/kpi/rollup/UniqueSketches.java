@@ -0,0 +1,159 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.KeywordHash;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+// The actorId / sessionId sketches of every (hour, siteId), built from raw events and stored as one
+// document per (hour, siteId) in warehouse_events_sketches. Elasticsearch cannot hand out its own
+// cardinality sketches, so they are built here from the distinct values of each (hour, siteId),
+// paged with composite aggregations: the cost is the number of distinct values, not of events.
+// Events exactly on the hour are also sketched apart, for ranges that end on that hour.
+final class UniqueSketches {
+
+    static final String INDEX = "warehouse_events_sketches";
+
+    // the sketches are only read back from _source
+    static final String MAPPING = "{\"mappings\":{\"properties\":{"
+            + "\"key\":{\"type\":\"keyword\"},"
+            + "\"timestamp\":{\"type\":\"date\"},"
+            + "\"siteId\":{\"type\":\"keyword\"},"
+            + "\"actors\":{\"type\":\"binary\"},"
+            + "\"sessions\":{\"type\":\"binary\"},"
+            + "\"actorsAtHourStart\":{\"type\":\"binary\"},"
+            + "\"sessionsAtHourStart\":{\"type\":\"binary\"}"
+            + "}}}";
+
+    private static final long HOUR_MS = 3_600_000L;
+    private static final int PAGE_SIZE = 1000;
+
+    private UniqueSketches() {}
+
+    interface Search {
+        JsonNode search(String index, String body) throws IOException;
+    }
+
+    // sketches of one (hour, siteId); a null sketch has no values
+    static final class Hour {
+        final long hourStartMs;
+        final String siteId;
+        HllSketch actors;
+        HllSketch sessions;
+        HllSketch actorsAtHourStart;
+        HllSketch sessionsAtHourStart;
+
+        Hour(long hourStartMs, String siteId) {
+            this.hourStartMs = hourStartMs;
+            this.siteId = siteId;
+        }
+
+        // also the document id
+        String key() {
+            return hourStartMs + "|" + (siteId == null ? "" : siteId);
+        }
+    }
+
+    // every (hour, siteId) of [fromMs, toMs) with an actorId or sessionId, in no particular order;
+    // rawIndices are the event indices holding the range (see EventIndices)
+    static Collection<Hour> fromRaw(Search es, String rawIndices, long fromMs, long toMs, int precision,
+                                    BooleanSupplier running)
+            throws IOException {
+        Map<String, Hour> hours = new LinkedHashMap<>();
+        for (String field : new String[]{"actorId", "sessionId"}) {
+            boolean actors = field.equals("actorId");
+            String after = null;
+            do {
+                JsonNode agg = es.search(rawIndices, distinctQuery(field, fromMs, toMs, after)).path("aggregations").path("values");
+                JsonNode buckets = agg.path("buckets");
+                for (JsonNode b : buckets) {
+                    JsonNode key = b.path("key");
+                    long hourStart = key.path("hour").asLong();
+                    String siteId = key.path("site").isNull() ? null : key.path("site").asText();
+                    Hour h = hours.computeIfAbsent(hourStart + "|" + siteId, k -> new Hour(hourStart, siteId));
+                    long hash = KeywordHash.of(key.path("value").asText());
+                    boolean onHour = b.path("on_hour").path("doc_count").asLong(0) > 0;
+                    if (actors) {
+                        h.actors = add(h.actors, hash, precision);
+                        if (onHour) h.actorsAtHourStart = add(h.actorsAtHourStart, hash, precision);
+                    } else {
+                        h.sessions = add(h.sessions, hash, precision);
+                        if (onHour) h.sessionsAtHourStart = add(h.sessionsAtHourStart, hash, precision);
+                    }
+                }
+                after = buckets.isEmpty() || agg.path("after_key").isMissingNode() ? null : agg.path("after_key").toString();
+            } while (after != null && running.getAsBoolean());
+        }
+        return hours.values();
+    }
+
+    // toMs = Long.MAX_VALUE for no upper bound
+    private static String distinctQuery(String field, long fromMs, long toMs, String after) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"size\":0,");
+        sb.append("\"query\":{\"bool\":{\"filter\":[");
+        sb.append("{\"range\":{\"timestamp\":{\"gte\":\"").append(Instant.ofEpochMilli(fromMs)).append('"');
+        if (toMs != Long.MAX_VALUE) sb.append(",\"lt\":\"").append(Instant.ofEpochMilli(toMs)).append('"');
+        sb.append("}}},");
+        sb.append("{\"exists\":{\"field\":\"").append(field).append("\"}}");
+        sb.append("]}},");
+        sb.append("\"aggs\":{\"values\":{");
+        sb.append("\"composite\":{\"size\":").append(PAGE_SIZE).append(",\"sources\":[");
+        sb.append("{\"hour\":{\"date_histogram\":{\"field\":\"timestamp\",\"fixed_interval\":\"1h\"}}},");
+        sb.append("{\"site\":{\"terms\":{\"field\":\"siteId\",\"missing_bucket\":true}}},");
+        sb.append("{\"value\":{\"terms\":{\"field\":\"").append(field).append("\"}}}");
+        sb.append("]");
+        if (after != null) sb.append(",\"after\":").append(after);
+        sb.append("},");
+        sb.append("\"aggs\":{\"on_hour\":{\"filter\":{\"script\":{\"script\":{\"source\":\"")
+                .append(RollupBootstrap.ON_HOUR_SCRIPT).append("\"}}}}}");
+        sb.append("}}}");
+        return sb.toString();
+    }
+
+    private static HllSketch add(HllSketch sketch, long hash, int precision) {
+        if (sketch == null) sketch = new HllSketch(precision);
+        sketch.add(hash);
+        return sketch;
+    }
+
+    // ---------------- sketch documents ----------------
+
+    static ObjectNode document(ObjectMapper mapper, Hour h) {
+        ObjectNode doc = mapper.createObjectNode();
+        doc.put("key", h.key());
+        doc.put("timestamp", Instant.ofEpochMilli(h.hourStartMs).toString());
+        if (h.siteId != null) doc.put("siteId", h.siteId);
+        // binary fields are base64 in _source
+        if (h.actors != null) doc.put("actors", h.actors.toBytes());
+        if (h.sessions != null) doc.put("sessions", h.sessions.toBytes());
+        if (h.actorsAtHourStart != null) doc.put("actorsAtHourStart", h.actorsAtHourStart.toBytes());
+        if (h.sessionsAtHourStart != null) doc.put("sessionsAtHourStart", h.sessionsAtHourStart.toBytes());
+        return doc;
+    }
+
+    static Hour fromDocument(JsonNode source) throws IOException {
+        Hour h = new Hour(Instant.parse(source.path("timestamp").asText()).toEpochMilli(),
+                source.hasNonNull("siteId") ? source.path("siteId").asText() : null);
+        h.actors = sketch(source.get("actors"));
+        h.sessions = sketch(source.get("sessions"));
+        h.actorsAtHourStart = sketch(source.get("actorsAtHourStart"));
+        h.sessionsAtHourStart = sketch(source.get("sessionsAtHourStart"));
+        return h;
+    }
+
+    private static HllSketch sketch(JsonNode base64) throws IOException {
+        return base64 == null || base64.isNull() ? null : HllSketch.fromBytes(base64.binaryValue());
+    }
+
+    static long floorHour(long ms) {
+        return Math.floorDiv(ms, HOUR_MS) * HOUR_MS;
+    }
+}
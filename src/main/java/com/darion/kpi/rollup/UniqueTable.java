@@ -0,0 +1,89 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.KeywordHash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Epoch hour -> actorId and sessionId sketches, per site (indexed by site code) and with all sites
+// merged, like RollupTable. An hour has an entry once it has an event, with or without the values,
+// so hour series cover the same hours as Elasticsearch's histograms.
+final class UniqueTable {
+
+    private final int precision;
+    private final List<TreeMap<Long, Uniques>> bySite = new ArrayList<>();
+    private final TreeMap<Long, Uniques> merged = new TreeMap<>();
+
+    UniqueTable(int precision) {
+        this.precision = HllSketch.checkPrecision(precision);
+    }
+
+    // one event; KeywordHash.NONE for a missing value
+    void add(long hour, int site, long actorHash, long sessionHash) {
+        Uniques s = uniques(bySite(site), hour);
+        Uniques m = uniques(merged, hour);
+        if (actorHash != KeywordHash.NONE) {
+            s.actors.add(actorHash);
+            m.actors.add(actorHash);
+        }
+        if (sessionHash != KeywordHash.NONE) {
+            s.sessions.add(sessionHash);
+            m.sessions.add(sessionHash);
+        }
+    }
+
+    // sketches built elsewhere (bootstrap); null = no values
+    void merge(long hour, int site, HllSketch actors, HllSketch sessions) {
+        Uniques s = uniques(bySite(site), hour);
+        Uniques m = uniques(merged, hour);
+        if (actors != null) {
+            s.actors.merge(actors);
+            m.actors.merge(actors);
+        }
+        if (sessions != null) {
+            s.sessions.merge(sessions);
+            m.sessions.merge(sessions);
+        }
+    }
+
+    // hours in [fromHour, toHour) of one site or of all sites merged
+    void scan(long fromHour, long toHour, int site, UniqueVisitor visitor) {
+        TreeMap<Long, Uniques> hours = site == RollupTable.ANY_SITE ? merged : site < bySite.size() ? bySite.get(site) : null;
+        if (hours == null) return;
+        for (Map.Entry<Long, Uniques> e : hours.subMap(fromHour, toHour).entrySet()) {
+            visitor.visit(e.getKey() * HourlyRollup.HOUR_MS, e.getValue().actors, e.getValue().sessions);
+        }
+    }
+
+    void evictBefore(long hour) {
+        for (TreeMap<Long, Uniques> hours : bySite) hours.headMap(hour).clear();
+        merged.headMap(hour).clear();
+    }
+
+    void clear() {
+        bySite.clear();
+        merged.clear();
+    }
+
+    long bytes() {
+        long n = 0;
+        for (TreeMap<Long, Uniques> hours : bySite) {
+            for (Uniques u : hours.values()) n += u.actors.bytes() + u.sessions.bytes();
+        }
+        for (Uniques u : merged.values()) n += u.actors.bytes() + u.sessions.bytes();
+        return n;
+    }
+
+    private TreeMap<Long, Uniques> bySite(int site) {
+        while (bySite.size() <= site) bySite.add(new TreeMap<>());
+        return bySite.get(site);
+    }
+
+    private Uniques uniques(TreeMap<Long, Uniques> hours, long hour) {
+        return hours.computeIfAbsent(hour, h -> new Uniques(new HllSketch(precision), new HllSketch(precision)));
+    }
+
+    private record Uniques(HllSketch actors, HllSketch sessions) {}
+}
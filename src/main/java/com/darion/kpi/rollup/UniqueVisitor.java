@@ -0,0 +1,10 @@
+package com.darion.kpi.rollup;
+
+// Receives the hourly sketches matched by HourlyRollup.scanUniques, in ascending hour order (for the
+// hour an inclusive range ends on, the sketches of the events exactly on its start). Called under
+// the rollup read lock: merge or estimate the sketches and return, never modify them or keep them.
+@FunctionalInterface
+public interface UniqueVisitor {
+
+    void visit(long hourStartMs, HllSketch actors, HllSketch sessions);
+}
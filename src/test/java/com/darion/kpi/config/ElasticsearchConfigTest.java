@@ -0,0 +1,140 @@
+package com.darion.kpi.config;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.search.RequiredSearch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.autoconfigure.elasticsearch.ElasticsearchRestClientAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElasticsearchConfigTest {
+
+    private final ApplicationContextRunner runner = new ApplicationContextRunner()
+            .withConfiguration(AutoConfigurations.of(ElasticsearchRestClientAutoConfiguration.class))
+            .withUserConfiguration(ElasticsearchConfig.class, Properties.class)
+            .withBean(MeterRegistry.class, SimpleMeterRegistry::new);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<HttpServer> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+        // two nodes that hold every request until release, so connections stay leased
+        for (int i = 0; i < 2; i++) {
+            HttpServer node = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+            node.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            node.createContext("/", exchange -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] bytes = "{}".getBytes();
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream os = exchange.getResponseBody()) { os.write(bytes); }
+                exchange.close();
+            });
+            node.start();
+            nodes.add(node);
+        }
+    }
+
+    @AfterEach
+    void stop() {
+        release.countDown();
+        for (HttpServer node : nodes) node.stop(0);
+    }
+
+    @Test
+    void bindsEveryNodeAndCapsThePoolPerNodeAndInTotal() {
+        runner.withPropertyValues(
+                "spring.elasticsearch.uris=" + uri(0) + "," + uri(1),
+                "kpi.elasticsearch.max-connections-per-route=2",
+                "kpi.elasticsearch.max-connections=3",
+                "kpi.elasticsearch.keep-alive=5s"
+        ).run(context -> {
+            EsTransportProperties props = context.getBean(EsTransportProperties.class);
+            assertEquals(2, props.maxConnectionsPerRoute());
+            assertEquals(3, props.maxConnections());
+            assertEquals(Duration.ofSeconds(5), props.keepAlive());
+
+            RestClient client = context.getBean(RestClient.class);
+            assertEquals(List.of(host(0), host(1)),
+                    client.getNodes().stream().map(Node::getHost).map(HttpHost::toHostString).toList());
+
+            // six requests spread over both nodes: two per node at most, three in total, the rest wait
+            List<Cancellable> calls = new ArrayList<>();
+            for (int i = 0; i < 6; i++) calls.add(client.performRequestAsync(new Request("GET", "/"), IGNORE));
+
+            MeterRegistry registry = context.getBean(MeterRegistry.class);
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while ((connections(registry, "leased") != 3 || connections(registry, "pending") != 3)
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, connections(registry, "leased"));
+            assertEquals(3, connections(registry, "pending"));
+            for (int i = 0; i < 2; i++) {
+                assertTrue(registry.get("kpi.es.pool.connections").tags("host", host(i), "state", "leased").gauge().value() <= 2);
+                assertNotNull(registry.get("kpi.es.pool.connections").tags("host", host(i), "state", "available").gauge());
+                assertNotNull(registry.get("kpi.es.pool.utilization").tag("host", host(i)).gauge());
+                assertNotNull(registry.get("kpi.es.pool.lease.wait").tag("host", host(i)).timer());
+            }
+
+            release.countDown();
+            calls.forEach(Cancellable::cancel);
+        });
+    }
+
+    private static double connections(MeterRegistry registry, String state) {
+        RequiredSearch search = registry.get("kpi.es.pool.connections").tag("state", state);
+        return search.gauges().stream().mapToDouble(Gauge::value).sum();
+    }
+
+    private String host(int i) {
+        return "127.0.0.1:" + nodes.get(i).getAddress().getPort();
+    }
+
+    private String uri(int i) {
+        return "http://" + host(i);
+    }
+
+    private static final ResponseListener IGNORE = new ResponseListener() {
+        @Override
+        public void onSuccess(Response response) {}
+
+        @Override
+        public void onFailure(Exception exception) {}
+    };
+
+    @Configuration(proxyBeanMethods = false)
+    @EnableConfigurationProperties(EsTransportProperties.class)
+    static class Properties {}
+}
@@ -0,0 +1,97 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkIngestServiceTest {
+
+    private static final String[] EVENTS = {
+            "{\"timestamp\":\"2026-01-15T16:00:00Z\",\"eventType\":\"PICK\",\"siteId\":\"PHL1\"}",
+            "{\"timestamp\":\"2026-01-15T16:01:00Z\",\"eventType\":\"PACK\",\"siteId\":\"PHL1\"}",
+            "{\"eventType\":\"PACK\"}",
+            "{\"timestamp\":\"2026-01-15T16:03:00Z\",\"eventType\":\"SHIP\",\"durationMs\":\"slow\"}",
+            "{\"timestamp\":\"2026-01-15T16:04:00Z\",\"eventType\":\"PICK\",\"siteId\":\"EWR2\",\"success\":true}",
+            "{\"timestamp\":\"2026-01-15T16:05:00Z\",\"eventType\":\"LOAD\"}",
+            "{\"timestamp\":\"2026-01-15T16:06:00Z\",\"eventType\":\"PICK\",\"actorId\":\"a1\"}"
+    };
+
+    private final EventDecoder decoder = new EventDecoder(new ObjectMapper());
+
+    @Test
+    void ndjsonAndJsonArraysShipTheSameBulkBody() {
+        Recorder ndjson = new Recorder();
+        BulkIngestResponseDTO fromLines = service(ndjson, 1000, DataSize.ofMegabytes(5))
+                .ingest(stream(String.join("\n", EVENTS) + "\n"));
+        Recorder array = new Recorder();
+        BulkIngestResponseDTO fromArray = service(array, 1000, DataSize.ofMegabytes(5))
+                .ingest(stream("[" + String.join(",\n", EVENTS) + "]"));
+
+        assertEquals(fromLines, fromArray);
+        assertEquals(ndjson.bodies, array.bodies);
+        assertEquals(1, ndjson.bodies.size());
+
+        // undecodable items answer 400 in place, the rest go to _bulk with their own positions
+        assertEquals(7, fromLines.total());
+        assertEquals(5, fromLines.indexed());
+        assertEquals(2, fromLines.failed());
+        assertTrue(fromLines.errors());
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6), fromLines.items().stream().map(BulkItemResultDTO::position).toList());
+        assertEquals(new BulkItemResultDTO(2, null, 400, "'timestamp' is required"), fromLines.items().get(2));
+        assertEquals(new BulkItemResultDTO(3, null, 400, "'durationMs' must be a number"), fromLines.items().get(3));
+        assertEquals(List.of(List.of(0, 1, 4, 5, 6)), ndjson.positions);
+    }
+
+    @Test
+    void batchesAreCutAtMaxActionsAndMaxBytes() {
+        Recorder byActions = new Recorder();
+        service(byActions, 2, DataSize.ofMegabytes(5)).ingest(stream(String.join("\n", EVENTS)));
+        assertEquals(List.of(List.of(0, 1), List.of(4, 5), List.of(6)), byActions.positions);
+
+        // every event's action and source lines pass 100 bytes, so each goes out on its own
+        Recorder byBytes = new Recorder();
+        BulkIngestResponseDTO resp = service(byBytes, 1000, DataSize.ofBytes(100)).ingest(stream(String.join("\n", EVENTS)));
+        assertEquals(5, resp.indexed());
+        assertEquals(List.of(List.of(0), List.of(1), List.of(4), List.of(5), List.of(6)), byBytes.positions);
+        for (String body : byBytes.bodies) assertTrue(body.length() >= 100, body);
+    }
+
+    private BulkIngestService service(EsBulkWriter writer, int maxActions, DataSize maxBytes) {
+        return new BulkIngestService(writer, decoder, new IngestProperties(new IngestProperties.Bulk(maxActions, maxBytes), null, null));
+    }
+
+    private static ByteArrayInputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // acknowledges every item and keeps what each _bulk call carried
+    private static final class Recorder extends EsBulkWriter {
+
+        final List<String> bodies = new ArrayList<>();
+        final List<List<Integer>> positions = new ArrayList<>();
+
+        Recorder() {
+            super(null, null, null, null);
+        }
+
+        @Override
+        public List<BulkItemResultDTO> write(IngestBatch batch) {
+            bodies.add(new String(batch.bodyArray(), 0, batch.bodySize(), StandardCharsets.UTF_8));
+            List<Integer> shipped = new ArrayList<>();
+            List<BulkItemResultDTO> out = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                shipped.add(batch.position(i));
+                out.add(new BulkItemResultDTO(batch.position(i), "e" + batch.position(i), 201, null));
+            }
+            positions.add(shipped);
+            return out;
+        }
+    }
+}
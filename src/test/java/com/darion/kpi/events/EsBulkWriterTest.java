@@ -0,0 +1,136 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EsBulkWriterTest {
+
+    private HttpServer server;
+    private RestClient restClient;
+    private volatile int bulkStatus;
+    private volatile String bulkResponse;
+    private final List<String> bulkBodies = new ArrayList<>();
+    private final List<IngestBatch> unknown = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            int status = 200;
+            String out = "{\"acknowledged\":true}";
+            if (path.equals("/_bulk")) {
+                synchronized (bulkBodies) { bulkBodies.add(new String(body, StandardCharsets.UTF_8)); }
+                status = bulkStatus;
+                out = bulkResponse;
+            } else if (exchange.getRequestMethod().equals("HEAD")) {
+                status = 404; // no legacy index
+            }
+            byte[] bytes = out.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, exchange.getRequestMethod().equals("HEAD") ? -1 : bytes.length);
+            if (!exchange.getRequestMethod().equals("HEAD")) {
+                try (OutputStream os = exchange.getResponseBody()) { os.write(bytes); }
+            }
+            exchange.close();
+        });
+        server.start();
+        restClient = RestClient.builder(new HttpHost("127.0.0.1", server.getAddress().getPort(), "http")).build();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        restClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void mapsEveryItemAndPadsTheOnesElasticsearchLeftOut() {
+        bulkStatus = 200;
+        bulkResponse = """
+                {"took":3,"errors":true,"items":[
+                  {"index":{"_index":"warehouse_events-2026.01.15","_id":"a1","status":201,"result":"created"}},
+                  {"index":{"_index":"warehouse_events-2026.01.15","_id":"a2","status":400,
+                    "error":{"type":"mapper_parsing_exception","reason":"failed to parse field [durationMs]"}}},
+                  {"index":{"_index":"warehouse_events-2026.01.15","status":429,
+                    "error":{"type":"es_rejected_execution_exception"}}}
+                ]}""";
+
+        List<BulkItemResultDTO> out = writer().write(batch(5));
+
+        assertEquals(List.of(
+                new BulkItemResultDTO(10, "a1", 201, null),
+                new BulkItemResultDTO(11, "a2", 400, "failed to parse field [durationMs]"),
+                // no reason in the error: the error object itself is reported
+                new BulkItemResultDTO(12, null, 429, "{\"type\":\"es_rejected_execution_exception\"}"),
+                new BulkItemResultDTO(13, null, 500, "No result returned for item"),
+                new BulkItemResultDTO(14, null, 500, "No result returned for item")), out);
+        assertEquals(10, bulkBodies.get(0).lines().count());
+        assertTrue(unknown.isEmpty());
+    }
+
+    @Test
+    void aRejectedRequestFailsEveryItemWithItsStatus() {
+        bulkStatus = 413;
+        bulkResponse = "{\"error\":{\"type\":\"content_too_long\"},\"status\":413}";
+
+        List<BulkItemResultDTO> out = writer().write(batch(2));
+
+        assertEquals(List.of(10, 11), out.stream().map(BulkItemResultDTO::position).toList());
+        for (BulkItemResultDTO r : out) {
+            assertEquals(413, r.status());
+            assertNull(r.id());
+            assertTrue(r.error().contains("content_too_long"), r.error());
+        }
+        // the outcome of a failed request is unknown to listeners, not "nothing indexed"
+        assertEquals(1, unknown.size());
+    }
+
+    private EsBulkWriter writer() {
+        ObjectMapper mapper = new ObjectMapper();
+        EventIndices indices = new EventIndices(new EventIndexProperties(1, Duration.ofDays(90), Duration.ofHours(1), true),
+                restClient, mapper, new SimpleMeterRegistry());
+        StaticListableBeanFactory listeners = new StaticListableBeanFactory();
+        listeners.addBean("recorder", new IngestListener() {
+            @Override
+            public void onIndexed(IngestBatch batch, List<BulkItemResultDTO> results) {}
+
+            @Override
+            public void onUnknown(IngestBatch batch) {
+                unknown.add(batch);
+            }
+        });
+        return new EsBulkWriter(restClient, indices, mapper, new IngestNotifier(listeners.getBeanProvider(IngestListener.class)));
+    }
+
+    // count events at positions 10, 11, ...
+    private static IngestBatch batch(int count) {
+        IngestBatch batch = new IngestBatch();
+        for (int i = 0; i < count; i++) {
+            WarehouseEvent e = new WarehouseEvent();
+            e.setTimestamp(Instant.parse("2026-01-15T16:00:00Z").plusSeconds(i));
+            e.setSiteId("PHL1");
+            batch.add(e, 10 + i);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,135 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventDecoderTest {
+
+    private final EventDecoder decoder = new EventDecoder(new ObjectMapper());
+
+    @Test
+    void writesBulkBodyStraightFromNdjson() throws Exception {
+        String ndjson = """
+                {"timestamp":"2026-01-15T16:00:00Z","eventType":"PICK","sessionId":"s\\"1","siteId":"PHL1","durationMs":1830,"success":true}
+                {"eventType":"PACK"}
+                {"timestamp":"2026-01-15T17:00:00+01:00","eventType":"PICK","extra":{"a":[1,2]},"siteId":"PHL1"}
+                """;
+
+        IngestBatch batch = new IngestBatch();
+        List<String> errors = new ArrayList<>();
+        try (EventDecoder.Reader reader = decoder.open(stream(ndjson))) {
+            while (reader.next(batch)) {
+                if (reader.error() != null) errors.add(reader.position() + ":" + reader.error());
+            }
+        }
+
+        assertEquals(List.of("1:'timestamp' is required"), errors);
+        assertEquals(2, batch.size());
+        assertEquals(0, batch.position(0));
+        assertEquals(2, batch.position(1));
+        assertSame(batch.eventType(0), batch.eventType(1));
+        assertSame(batch.siteId(0), batch.siteId(1));
+        assertEquals(Instant.parse("2026-01-15T16:00:00Z").toEpochMilli(), batch.timestampMillis(1));
+
+        String body = new String(batch.bodyArray(), 0, batch.bodySize(), StandardCharsets.UTF_8);
+        assertEquals("""
+                {"index":{"_index":"warehouse_events-2026.01.15","routing":"PHL1"}}
+                {"timestamp":"2026-01-15T16:00:00Z","eventType":"PICK","sessionId":"s\\"1","siteId":"PHL1","durationMs":1830,"success":true}
+                {"index":{"_index":"warehouse_events-2026.01.15","routing":"PHL1"}}
+                {"timestamp":"2026-01-15T16:00:00Z","eventType":"PICK","siteId":"PHL1"}
+                """, body);
+    }
+
+    @Test
+    void routesEventsBySiteId() {
+        IngestBatch batch = new IngestBatch();
+        WarehouseEvent routed = new WarehouseEvent();
+        routed.setId("e1");
+        routed.setTimestamp(Instant.parse("2025-12-31T23:59:59.999Z"));
+        routed.setSiteId("PHL\"1");
+        batch.add(routed, 0);
+        WarehouseEvent unrouted = new WarehouseEvent();
+        unrouted.setTimestamp(Instant.parse("2026-01-01T00:00:00Z"));
+        batch.add(unrouted, 1);
+
+        String body = new String(batch.bodyArray(), 0, batch.bodySize(), StandardCharsets.UTF_8);
+        assertEquals("""
+                {"index":{"_index":"warehouse_events-2025.12.31","_id":"e1","routing":"PHL\\"1"}}
+                {"timestamp":"2025-12-31T23:59:59.999Z","eventType":null,"sessionId":null,"actorId":null,"siteId":"PHL\\"1","durationMs":null,"success":null}
+                {"index":{"_index":"warehouse_events-2026.01.01"}}
+                {"timestamp":"2026-01-01T00:00:00Z","eventType":null,"sessionId":null,"actorId":null,"siteId":null,"durationMs":null,"success":null}
+                """, body);
+    }
+
+    @Test
+    void acceptsJsonArrays() throws Exception {
+        IngestBatch batch = new IngestBatch();
+        try (EventDecoder.Reader reader = decoder.open(stream("[{\"timestamp\":\"2026-01-15T16:00:00.5Z\"},{\"timestamp\":\"x\"}]"))) {
+            while (reader.next(batch)) { }
+        }
+        assertEquals(1, batch.size());
+        assertEquals(Instant.parse("2026-01-15T16:00:00.500Z").toEpochMilli(), batch.timestampMillis(0));
+    }
+
+    @Test
+    void truncatedPayloadShipsTheEventsBeforeTheBreak() {
+        List<String> bodies = new ArrayList<>();
+        EsBulkWriter writer = new EsBulkWriter(null, null, null, null) {
+            @Override
+            public List<BulkItemResultDTO> write(IngestBatch batch) {
+                bodies.add(new String(batch.bodyArray(), 0, batch.bodySize(), StandardCharsets.UTF_8));
+                List<BulkItemResultDTO> out = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++) out.add(new BulkItemResultDTO(batch.position(i), "id" + i, 201, null));
+                return out;
+            }
+        };
+        BulkIngestService service = new BulkIngestService(writer, decoder, new IngestProperties(
+                new IngestProperties.Bulk(1000, DataSize.ofMegabytes(5)), null, null));
+
+        BulkIngestResponseDTO resp = service.ingest(stream("""
+                {"timestamp":"2026-01-15T16:00:00Z","eventType":"PICK","siteId":"PHL1"}
+                {"timestamp":"2026-01-15T16:01:00Z","eventType":"PACK"}
+                {"timestamp":"2026-01-15T16:02:00Z","eventType":"PI"""));
+
+        assertEquals(2, resp.indexed());
+        assertEquals(1, resp.failed());
+        BulkItemResultDTO broken = resp.items().get(2);
+        assertEquals(2, broken.position());
+        assertEquals(400, broken.status());
+
+        assertEquals(1, bodies.size());
+        assertEquals("""
+                {"index":{"_index":"warehouse_events-2026.01.15","routing":"PHL1"}}
+                {"timestamp":"2026-01-15T16:00:00Z","eventType":"PICK","siteId":"PHL1"}
+                {"index":{"_index":"warehouse_events-2026.01.15"}}
+                {"timestamp":"2026-01-15T16:01:00Z","eventType":"PACK"}
+                """, bodies.get(0));
+    }
+
+    @Test
+    void fixedFormatParserMatchesInstantParse() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            Instant expected = Instant.ofEpochMilli(random.nextLong(0, 4_102_444_800_000L));
+            String text = random.nextBoolean() ? expected.toString() : expected.truncatedTo(java.time.temporal.ChronoUnit.SECONDS).toString();
+            char[] c = text.toCharArray();
+            assertEquals(Instant.parse(text).toEpochMilli(), IsoInstants.parseEpochMillis(c, 0, c.length), text);
+        }
+        char[] bad = "2026-02-30T00:00:00Z".toCharArray();
+        assertEquals(IsoInstants.NOT_FIXED_FORMAT, IsoInstants.parseEpochMillis(bad, 0, bad.length));
+    }
+
+    private static ByteArrayInputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,48 @@
+package com.darion.kpi.events;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventIndicesTest {
+
+    private final EventIndices indices = new EventIndices(new EventIndexProperties(1, Duration.ofDays(90), Duration.ofHours(1), true),
+            null, new ObjectMapper(), new SimpleMeterRegistry());
+
+    @Test
+    void rangesNameTheDaysTheyOverlap() {
+        assertEquals("warehouse_events-0001.02.03", EventIndices.daily(Instant.parse("0001-02-03T23:59:59.999Z").toEpochMilli()));
+        assertEquals("warehouse_events-2026.01.15,warehouse_events-2026.01.16,warehouse_events-2026.01.17",
+                indices.of(ms("2026-01-15T16:00:00Z"), ms("2026-01-17T00:00:00Z")));
+        assertEquals("warehouse_events-2026.01.15", indices.of(ms("2026-01-15T00:00:00Z"), ms("2026-01-15T23:59:59.999Z")));
+
+        // long or open ranges search the pattern
+        assertEquals(EventIndices.PATTERN, indices.of(ms("2025-01-01T00:00:00Z"), ms("2026-01-01T00:00:00Z")));
+        assertEquals(EventIndices.PATTERN, indices.of(ms("2026-01-15T00:00:00Z"), Long.MAX_VALUE));
+    }
+
+    @Test
+    void dailyNamesReadBackAsTheirDay() {
+        long day = ms("2026-02-28T00:00:00Z");
+        assertEquals(day, EventIndices.dayOf(EventIndices.daily(day + 3_600_000L)));
+        assertEquals(Long.MIN_VALUE, EventIndices.dayOf("warehouse_events-2026.02.30"));
+        assertEquals(Long.MIN_VALUE, EventIndices.dayOf("warehouse_events_hourly"));
+        assertTrue(indices.retainedFrom() <= System.currentTimeMillis() - Duration.ofDays(90).toMillis());
+    }
+
+    @Test
+    void onlySiteFilteredSearchesAreRouted() {
+        assertEquals("PHL1", indices.routing("PHL1"));
+        assertNull(indices.routing(null));
+        assertNull(indices.routing(" "));
+    }
+
+    private static long ms(String instant) {
+        return Instant.parse(instant).toEpochMilli();
+    }
+}
@@ -0,0 +1,76 @@
+package com.darion.kpi.events;
+
+import com.darion.kpi.events.wal.IngestWal;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestPipelineTest {
+
+    @Test
+    void queuedEventsAreRetriedWhileElasticsearchPushesBack() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        List<Integer> shipped = new ArrayList<>();
+        List<String> bodies = new ArrayList<>();
+        AtomicReference<IngestPipeline> self = new AtomicReference<>();
+        EsBulkWriter writer = new EsBulkWriter(null, null, null, null) {
+            @Override
+            public List<BulkItemResultDTO> write(IngestBatch batch) {
+                int call = calls.incrementAndGet();
+                synchronized (bodies) { bodies.add(new String(batch.bodyArray(), 0, batch.bodySize(), StandardCharsets.UTF_8)); }
+                // queued while the first flush is out: must wait until the pushed-back event went through
+                if (call == 1) assertTrue(self.get().submit(event("SSSS")));
+                List<BulkItemResultDTO> out = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    // first flush: one event rejected for good, one pushed back
+                    int status = call > 1 ? 201 : i == 0 ? 400 : i == 1 ? 429 : 201;
+                    if (status == 201) synchronized (shipped) { shipped.add(batch.siteId(i).length()); }
+                    out.add(new BulkItemResultDTO(batch.position(i), null, status, status == 201 ? null : "no"));
+                }
+                return out;
+            }
+        };
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        IngestProperties props = new IngestProperties(null,
+                new IngestProperties.Async(true, 10, 10, Duration.ofMillis(20), Duration.ofSeconds(1)), null);
+        IngestPipeline pipeline = new IngestPipeline(writer, props,
+                new StaticListableBeanFactory().getBeanProvider(IngestWal.class), registry);
+        self.set(pipeline);
+
+        // queued before the flusher starts, so all three go out in the first batch
+        for (int i = 1; i <= 3; i++) assertTrue(pipeline.submit(event("S".repeat(i))));
+        pipeline.start();
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (calls.get() < 3 && System.nanoTime() < deadline) Thread.sleep(10);
+        pipeline.stop();
+
+        // the 400 is dropped, the 429 goes out again on its own, then the queue is drained
+        synchronized (shipped) { assertEquals(List.of(3, 2, 4), shipped); }
+        assertEquals(1.0, registry.get("kpi.ingest.dropped").counter().count());
+
+        // the resend carries the id the event got at submit, so it overwrites if the first one was applied
+        synchronized (bodies) {
+            assertEquals(2, bodies.get(1).lines().count(), bodies.get(1));
+            String resent = bodies.get(1).substring(0, bodies.get(1).indexOf('\n'));
+            assertTrue(resent.contains("\"_id\":\""), resent);
+            assertTrue(bodies.get(0).contains(resent + "\n"), bodies.get(0));
+        }
+    }
+
+    private static WarehouseEvent event(String siteId) {
+        WarehouseEvent e = new WarehouseEvent();
+        e.setTimestamp(Instant.parse("2026-01-15T16:00:00Z"));
+        e.setSiteId(siteId);
+        return e;
+    }
+}
@@ -0,0 +1,92 @@
+package com.darion.kpi.events.wal;
+
+import com.darion.kpi.events.WarehouseEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestWalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysUncommittedEventsAfterReopen() throws Exception {
+        try (IngestWal wal = IngestWal.open(dir, 4096, 1 << 20, false)) {
+            for (int i = 0; i < 100; i++) assertTrue(wal.append(event(i)));
+
+            List<WarehouseEvent> batch = new ArrayList<>();
+            wal.read(40, batch);
+            wal.commit(wal.readPosition());
+        }
+
+        try (IngestWal wal = IngestWal.open(dir, 4096, 1 << 20, false)) {
+            List<WarehouseEvent> replayed = new ArrayList<>();
+            wal.read(1000, replayed);
+
+            assertEquals(60, replayed.size());
+            WarehouseEvent first = replayed.get(0);
+            assertEquals("sess-40", first.getSessionId());
+            assertEquals(Instant.parse("2026-01-15T16:00:40.123Z"), first.getTimestamp());
+            assertEquals(40L, first.getDurationMs());
+            assertEquals(Boolean.TRUE, first.getSuccess());
+            assertNull(replayed.get(1).getSuccess());
+            assertNotNull(first.getId());
+        }
+    }
+
+    @Test
+    void deletesAcknowledgedSegmentsAndKeepsDocumentIdsStable() throws Exception {
+        try (IngestWal wal = IngestWal.open(dir, 1024, 1 << 20, false)) {
+            for (int i = 0; i < 200; i++) wal.append(event(i));
+            assertTrue(wal.segmentCount() > 1);
+
+            List<WarehouseEvent> first = new ArrayList<>();
+            wal.read(10, first);
+            wal.rewind();
+            List<WarehouseEvent> again = new ArrayList<>();
+            wal.read(10, again);
+            assertEquals(first.get(9).getId(), again.get(9).getId());
+
+            List<WarehouseEvent> rest = new ArrayList<>();
+            wal.read(1000, rest);
+            wal.commit(wal.readPosition());
+
+            assertEquals(190, rest.size());
+            assertEquals(1, wal.segmentCount());
+            try (var files = Files.list(dir)) {
+                assertEquals(1, files.filter(p -> p.toString().endsWith(".seg")).count());
+            }
+        }
+    }
+
+    @Test
+    void rejectsAppendsOverTheOutstandingBudget() {
+        try (IngestWal wal = IngestWal.open(dir, 4096, 120, false)) {
+            assertTrue(wal.append(event(1)));
+            assertTrue(wal.append(event(2)));
+            assertFalse(wal.append(event(3)));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private static WarehouseEvent event(int i) {
+        WarehouseEvent e = new WarehouseEvent();
+        e.setTimestamp(Instant.parse("2026-01-15T16:00:00.123Z").plusSeconds(i));
+        e.setEventType("PICK");
+        e.setSessionId("sess-" + i);
+        e.setActorId("user-" + (i % 7));
+        e.setSiteId("PHL1");
+        e.setDurationMs((long) i);
+        e.setSuccess(i % 2 == 0 ? Boolean.TRUE : null);
+        return e;
+    }
+}
@@ -0,0 +1,84 @@
+package com.darion.kpi.kpis;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggResponseTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void readsBucketsSubAggregationsAndHits() throws IOException {
+        String json = """
+                {"took":3,"timed_out":false,"_shards":{"total":1,"successful":1},
+                 "hits":{"total":{"value":42,"relation":"eq"},"max_score":null,"hits":[
+                   {"_index":"warehouse_events","_id":"e1","_score":null,"sort":[900],
+                    "_source":{"timestamp":"2026-01-01T00:00:00Z","eventType":"PICK","siteId":"PHL1","durationMs":900,"success":true,"extra":{"a":[1]}}}]},
+                 "aggregations":{
+                   "per_hour":{"buckets":[
+                     {"key_as_string":"2026-01-01T00:00:00.000Z","key":1767225600000,"doc_count":10,
+                      "errors_only":{"doc_count":2},
+                      "avg_duration":{"value":12.5},
+                      "p95_duration":{"values":{"95.0":40.0}},
+                      "by_type":{"doc_count_error_upper_bound":0,"sum_other_doc_count":0,"buckets":[{"key":"PICK","doc_count":6}]}},
+                     {"key_as_string":"2026-01-01T01:00:00.000Z","key":1767229200000,"doc_count":0,
+                      "errors_only":{"doc_count":0},"avg_duration":{"value":null},"p95_duration":{"values":{"95.0":null}},
+                      "by_type":{"buckets":[]}}]},
+                   "unique_actors":{"value":7}}}
+                """;
+
+        AggResponse r = read(json);
+        assertEquals(42, r.total());
+        assertEquals(3, r.took());
+        assertNull(r.error());
+        assertEquals(List.of(new LongestEventDTO("e1", "2026-01-01T00:00:00Z", "PICK", null, null, "PHL1", 900, true)), r.hits());
+        assertEquals(7.0, r.agg("unique_actors").value(0));
+
+        List<AggResponse.Agg> hours = r.agg("per_hour").buckets();
+        assertEquals(2, hours.size());
+        AggResponse.Agg h0 = hours.get(0);
+        assertEquals(1767225600000L, h0.keyMillis());
+        assertEquals("2026-01-01T00:00:00.000Z", h0.keyAsString());
+        assertEquals(10, h0.docCount());
+        assertEquals(2, h0.agg("errors_only").docCount());
+        assertEquals(12.5, h0.agg("avg_duration").value(0));
+        assertEquals(40.0, h0.agg("p95_duration").percentile("95.0", 0));
+        assertEquals("PICK", h0.agg("by_type").buckets().get(0).key());
+
+        AggResponse.Agg h1 = hours.get(1);
+        assertEquals(0.0, h1.agg("avg_duration").value(0));
+        assertEquals(0.0, h1.agg("p95_duration").percentile("95.0", 0));
+        assertEquals(0, h1.agg("missing").docCount());
+        assertTrue(r.agg("missing").buckets().isEmpty());
+    }
+
+    @Test
+    void readsMultiSearchResponsesInOrder() throws IOException {
+        String json = """
+                {"took":5,"responses":[
+                  {"took":1,"hits":{"total":{"value":0},"hits":[]},"aggregations":{"all_events":{"doc_count":3}},"status":200},
+                  {"error":{"root_cause":[],"type":"search_phase_execution_exception","reason":"all shards failed"},"status":400},
+                  {"took":1,"hits":{"total":5,"hits":[]},"status":200}]}
+                """;
+
+        try (JsonParser p = mapper.createParser(json)) {
+            List<AggResponse> responses = AggResponse.readMulti(p);
+            assertEquals(3, responses.size());
+            assertEquals(3, responses.get(0).agg("all_events").docCount());
+            assertEquals("all shards failed", responses.get(1).error());
+            assertEquals(5, responses.get(2).total());
+        }
+    }
+
+    private AggResponse read(String json) throws IOException {
+        try (JsonParser p = mapper.createParser(json)) {
+            return AggResponse.read(p);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.WarehouseEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BucketedKpiCacheTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    private final KpiQueryProperties props = new KpiQueryProperties(
+            new KpiQueryProperties.Fusion(true, Duration.ofMillis(2)),
+            new KpiQueryProperties.Cache(true, 1000, Duration.ofMinutes(10), Duration.ofHours(24),
+                    Duration.ofSeconds(15), Duration.ofSeconds(5)),
+            new KpiQueryProperties.Buckets(true, 100_000, Duration.ofDays(7)),
+            new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+            new KpiQueryProperties.SingleFlight(true),
+            new KpiQueryProperties.Interval(12, 1000));
+    private final BucketedKpiCache cache = new BucketedKpiCache(props, new SettledWatermark(props), new SimpleMeterRegistry());
+
+    // event timestamps; hours 0-2 and 30-33 of the window are empty
+    private final List<Long> events = new ArrayList<>();
+    private final List<List<TimeRange>> fetches = new ArrayList<>();
+    private final long base = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(Duration.ofDays(3)).toEpochMilli();
+
+    BucketedKpiCacheTest() {
+        for (int h = 3; h < 72; h++) {
+            if (h >= 30 && h < 34) continue;
+            for (int i = 0; i <= h % 5; i++) events.add(base + h * HOUR + i * 600_000L + 1234);
+        }
+    }
+
+    @Test
+    void slidingWindowOnlyFetchesNewTimeAndMatchesFullQuery() {
+        Instant from = Instant.ofEpochMilli(base + 20 * 60_000L);  // not hour aligned
+        Instant to = from.plus(Duration.ofHours(40));
+
+        assertEquals(expected(from, to), get(from, to));
+        assertEquals(1, fetches.size());
+
+        // slide by one minute: the partial head bucket and the tail are queried, the rest is cached
+        Instant from2 = from.plus(Duration.ofMinutes(1));
+        Instant to2 = to.plus(Duration.ofMinutes(1));
+        assertEquals(expected(from2, to2), get(from2, to2));
+        assertEquals(2, fetches.size());
+        List<TimeRange> ranges = fetches.get(1);
+        assertEquals(2, ranges.size());
+        assertEquals(new TimeRange(from2, Instant.ofEpochMilli(base + HOUR)), ranges.get(0));
+        assertEquals(to2, ranges.get(1).to());
+        assertTrue(Duration.between(ranges.get(1).from(), ranges.get(1).to()).compareTo(Duration.ofHours(2)) < 0);
+
+        // window starting inside the empty stretch: leading empty buckets are trimmed like ES does
+        Instant from3 = Instant.ofEpochMilli(base + 31 * HOUR);
+        Instant to3 = Instant.ofEpochMilli(base + 40 * HOUR);
+        assertEquals(expected(from3, to3), get(from3, to3));
+    }
+
+    @Test
+    void lateEventRefetchesItsBucket() {
+        Instant from = Instant.ofEpochMilli(base);
+        Instant to = Instant.ofEpochMilli(base + 10 * HOUR);
+        get(from, to);
+        get(from, to);
+        // 'to' is hour aligned: only the bucket starting exactly at 'to' is partial
+        assertEquals(List.of(new TimeRange(to, to)), fetches.get(1));
+
+        long late = base + 5 * HOUR + 42;
+        events.add(late);
+        IngestBatch batch = new IngestBatch();
+        WarehouseEvent e = new WarehouseEvent();
+        e.setTimestamp(Instant.ofEpochMilli(late));
+        batch.add(e, 0);
+        cache.onIndexed(batch, List.of());
+
+        assertEquals(expected(from, to), get(from, to));
+        assertEquals(List.of(new TimeRange(Instant.ofEpochMilli(base + 5 * HOUR), Instant.ofEpochMilli(base + 6 * HOUR)),
+                new TimeRange(to, to)), fetches.get(2));
+    }
+
+    private List<?> get(Instant from, Instant to) {
+        return cache.get(KpiId.EVENTS_PER_HOUR, new KpiRequest(from, to, null, 5, 10, KpiInterval.H1, null, null), ranges -> {
+            fetches.add(ranges);
+            return histogram(ranges);
+        });
+    }
+
+    // what ES returns for EVENTS_PER_HOUR over the union of ranges (min_doc_count 0, no bounds)
+    private List<KpiBucket> histogram(List<TimeRange> ranges) {
+        TreeMap<Long, Long> counts = new TreeMap<>();
+        for (long ts : events) {
+            for (TimeRange r : ranges) {
+                if (ts >= r.from().toEpochMilli() && ts <= r.to().toEpochMilli()) {
+                    counts.merge(Math.floorDiv(ts, HOUR) * HOUR, 1L, Long::sum);
+                    break;
+                }
+            }
+        }
+        List<KpiBucket> out = new ArrayList<>();
+        if (counts.isEmpty()) return out;
+        for (long b = counts.firstKey(); b <= counts.lastKey(); b += HOUR) {
+            long c = counts.getOrDefault(b, 0L);
+            String key = Instant.ofEpochMilli(b).toString().replace(":00Z", ":00.000Z");
+            out.add(new KpiBucket(b, c, new HourlyCountDTO(key, c)));
+        }
+        return out;
+    }
+
+    private List<?> expected(Instant from, Instant to) {
+        List<Object> out = new ArrayList<>();
+        for (KpiBucket b : histogram(List.of(new TimeRange(from, to)))) out.add(b.value());
+        return out;
+    }
+}
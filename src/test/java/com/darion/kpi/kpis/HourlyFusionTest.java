@@ -0,0 +1,90 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.rollup.RollupProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HourlyFusionTest {
+
+    private static final String[] HOURS = {"2026-01-01T00:00:00.000Z", "2026-01-01T01:00:00.000Z", "2026-01-01T02:00:00.000Z"};
+    private static final long[] COUNTS = {10, 0, 7};
+
+    // each hourly KPI's sub-aggregations per bucket, as Elasticsearch returns them
+    private static final Map<KpiId, String[]> SUB_AGGS = Map.of(
+            KpiId.EVENTS_PER_HOUR, new String[]{"", "", ""},
+            KpiId.EVENTS_PER_HOUR_BY_TYPE, new String[]{
+                    "\"by_type\":{\"buckets\":[{\"key\":\"PICK\",\"doc_count\":6},{\"key\":\"PACK\",\"doc_count\":3},{\"key\":\"SHIP\",\"doc_count\":1}]}",
+                    "\"by_type\":{\"buckets\":[]}",
+                    "\"by_type\":{\"buckets\":[{\"key\":\"PACK\",\"doc_count\":7}]}"},
+            KpiId.ERROR_RATE_PER_HOUR, new String[]{
+                    "\"errors_only\":{\"doc_count\":3}", "\"errors_only\":{\"doc_count\":0}", "\"errors_only\":{\"doc_count\":1}"},
+            KpiId.DURATION_STATS_PER_HOUR, new String[]{
+                    "\"avg_duration\":{\"value\":812.345},\"duration_percentiles\":{\"values\":{\"50.0\":640.0,\"95.0\":2210.5}}",
+                    "\"avg_duration\":{\"value\":null},\"duration_percentiles\":{\"values\":{\"50.0\":null,\"95.0\":null}}",
+                    "\"avg_duration\":{\"value\":90.0},\"duration_percentiles\":{\"values\":{\"50.0\":80.0,\"95.0\":150.25}}"},
+            KpiId.UNIQUE_ACTORS_PER_HOUR, new String[]{
+                    "\"unique_actors\":{\"value\":4}", "\"unique_actors\":{\"value\":0}", "\"unique_actors\":{\"value\":2}"},
+            KpiId.UNIQUE_SESSIONS_PER_HOUR, new String[]{
+                    "\"unique_sessions\":{\"value\":5}", "\"unique_sessions\":{\"value\":0}", "\"unique_sessions\":{\"value\":3}"}
+    );
+
+    // the histogram each KPI's own search body names (see KpiQueryTemplates)
+    private static final Map<KpiId, String> OWN_HISTOGRAM = Map.of(
+            KpiId.EVENTS_PER_HOUR, "events_per_hour",
+            KpiId.EVENTS_PER_HOUR_BY_TYPE, "events_per_hour",
+            KpiId.ERROR_RATE_PER_HOUR, "errors_per_hour",
+            KpiId.DURATION_STATS_PER_HOUR, "duration_per_hour",
+            KpiId.UNIQUE_ACTORS_PER_HOUR, "per_hour",
+            KpiId.UNIQUE_SESSIONS_PER_HOUR, "per_hour"
+    );
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final EsKpiQueryClient client = new EsKpiQueryClient(null, mapper, null, null,
+            new KpiMetrics(new SimpleMeterRegistry()), null, new RollupProperties(false, Duration.ofDays(35), false, 14, 0.01));
+
+    @Test
+    void fusedResponseSplitsIntoWhatEachKpiParsesFromItsOwnSearch() throws IOException {
+        KpiRequest req = new KpiRequest(Instant.parse("2026-01-01T00:00:00Z"), Instant.parse("2026-01-01T03:00:00Z"),
+                null, 1, null, KpiInterval.H1, null, List.of(50.0, 95.0));
+        AggResponse fused = client.hourlyView(read(response("per_hour", List.copyOf(EsKpiQueryClient.HOURLY))));
+
+        for (KpiId id : EsKpiQueryClient.HOURLY) {
+            Object own = client.parse(id, read(response(OWN_HISTOGRAM.get(id), List.of(id))), req);
+            assertEquals(own, client.parseHourly(id, fused, req), id.name());
+            assertEquals(HOURS.length, ((List<?>) own).size(), id.name());
+        }
+    }
+
+    private static String response(String histogram, List<KpiId> ids) {
+        List<String> buckets = new ArrayList<>();
+        for (int h = 0; h < HOURS.length; h++) {
+            StringBuilder b = new StringBuilder("{\"key_as_string\":\"").append(HOURS[h])
+                    .append("\",\"key\":").append(Instant.parse(HOURS[h]).toEpochMilli())
+                    .append(",\"doc_count\":").append(COUNTS[h]);
+            for (KpiId id : ids) {
+                String sub = SUB_AGGS.get(id)[h];
+                if (!sub.isEmpty()) b.append(',').append(sub);
+            }
+            buckets.add(b.append('}').toString());
+        }
+        return "{\"took\":1,\"timed_out\":false,\"hits\":{\"total\":{\"value\":17,\"relation\":\"eq\"},\"hits\":[]},"
+                + "\"aggregations\":{\"" + histogram + "\":{\"buckets\":[" + String.join(",", buckets) + "]}}}";
+    }
+
+    private AggResponse read(String json) throws IOException {
+        try (JsonParser p = mapper.createParser(json)) {
+            return AggResponse.read(p);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.EventIndexProperties;
+import com.darion.kpi.events.EventIndices;
+import com.darion.kpi.rollup.HourlyRollup;
+import com.darion.kpi.rollup.RollupIndexProperties;
+import com.darion.kpi.rollup.RollupIndexState;
+import com.darion.kpi.rollup.RollupProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiBatchTest {
+
+    // recorded _msearch response: the first search answered, the second failed, the third left out
+    private static final String MSEARCH = """
+            {"took":12,"responses":[
+              {"took":4,"timed_out":false,"_shards":{"total":1,"successful":1,"skipped":0,"failed":0},
+               "hits":{"total":{"value":9,"relation":"eq"},"max_score":null,"hits":[]},
+               "aggregations":{"by_event_type":{"doc_count_error_upper_bound":0,"sum_other_doc_count":0,
+                 "buckets":[{"key":"PICK","doc_count":6},{"key":"PACK","doc_count":3}]}},"status":200},
+              {"error":{"root_cause":[{"type":"too_many_buckets_exception","reason":"Trying to create too many buckets"}],
+                "type":"search_phase_execution_exception","reason":"all shards failed"},"status":400}
+            ]}""";
+
+    private static final List<KpiId> IDS = List.of(KpiId.EVENT_TYPE_BREAKDOWN, KpiId.SUCCESS_RATE, KpiId.TOP_ACTORS);
+
+    private final KpiRequest req = new KpiRequest(Instant.parse("2026-01-01T00:00:00Z"), Instant.parse("2026-01-02T00:00:00Z"),
+            "PHL1", null, 10, null, null, null);
+    private final List<String> msearchBodies = new ArrayList<>();
+    private HttpServer server;
+    private RestClient restClient;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.createContext("/_msearch", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            synchronized (msearchBodies) { msearchBodies.add(body); }
+            byte[] bytes = MSEARCH.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bytes); }
+            exchange.close();
+        });
+        server.start();
+        restClient = RestClient.builder(new HttpHost("127.0.0.1", server.getAddress().getPort(), "http")).build();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        restClient.close();
+        server.stop(0);
+    }
+
+    @Test
+    void aFailedOrMissingSubResponseOnlyFailsItsOwnKpi() {
+        Map<KpiId, KpiBatchResultDTO> out = client(props()).multiSearch(IDS, req);
+
+        assertEquals(KpiBatchResultDTO.ok(List.of(new DonutSliceDTO("PICK", 6), new DonutSliceDTO("PACK", 3))),
+                out.get(KpiId.EVENT_TYPE_BREAKDOWN));
+        assertEquals(KpiBatchResultDTO.error("all shards failed"), out.get(KpiId.SUCCESS_RATE));
+        assertEquals(KpiBatchResultDTO.error("No response returned for KPI"), out.get(KpiId.TOP_ACTORS));
+        assertEquals(6, msearchBodies.get(0).lines().count());
+    }
+
+    @Test
+    void batchEndpointReportsEntryErrorsAsIsAndCachesOnlyWhatSucceeded() {
+        KpiQueryProperties props = props();
+        KpiService service = service(client(props), props);
+
+        Map<KpiId, KpiBatchResultDTO> out = service.getKpisAsync(IDS, req).join();
+
+        assertTrue(out.get(KpiId.EVENT_TYPE_BREAKDOWN).ok());
+        // the entry's own error, not wrapped as a failed query
+        assertEquals(KpiBatchResultDTO.error("all shards failed"), out.get(KpiId.SUCCESS_RATE));
+        assertEquals(KpiBatchResultDTO.error("No response returned for KPI"), out.get(KpiId.TOP_ACTORS));
+
+        // the answered KPI comes from the cache now, the two failed ones are searched again
+        service.getKpisAsync(IDS, req).join();
+        assertEquals(2, msearchBodies.size());
+        assertEquals(4, msearchBodies.get(1).lines().count());
+        assertFalse(msearchBodies.get(1).contains("by_event_type"), msearchBodies.get(1));
+    }
+
+    private static KpiQueryProperties props() {
+        return new KpiQueryProperties(
+                new KpiQueryProperties.Fusion(true, Duration.ZERO),
+                new KpiQueryProperties.Cache(true, 1000, Duration.ofMinutes(10), Duration.ofHours(24),
+                        Duration.ofSeconds(15), Duration.ofSeconds(5)),
+                new KpiQueryProperties.Buckets(true, 1000, Duration.ofDays(7)),
+                new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+                new KpiQueryProperties.SingleFlight(true),
+                new KpiQueryProperties.Interval(12, 1000));
+    }
+
+    private EsKpiQueryClient client(KpiQueryProperties props) {
+        ObjectMapper mapper = new ObjectMapper();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EventIndices eventIndices = new EventIndices(new EventIndexProperties(1, Duration.ofDays(90), Duration.ofHours(1), true),
+                restClient, mapper, registry);
+        RollupIndexState rollupIndex = new RollupIndexState(new RollupIndexProperties(false, Duration.ofMinutes(5),
+                Duration.ofMinutes(10), Duration.ofHours(24), Duration.ofDays(400), Duration.ofHours(24)));
+        return new EsKpiQueryClient(restClient, mapper, eventIndices, rollupIndex, new KpiMetrics(registry),
+                new KpiIntervals(props), new RollupProperties(false, Duration.ofDays(35), false, 14, 0.01));
+    }
+
+    private static KpiService service(EsKpiQueryClient es, KpiQueryProperties props) {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SettledWatermark settled = new SettledWatermark(props);
+        // never started: the in-process rollup answers nothing
+        HourlyRollup rollup = new HourlyRollup(new RollupProperties(false, Duration.ofDays(35), false, 14, 0.01), null, registry);
+        return new KpiServiceImpl(es, new HourlyKpiCoalescer(es, props, registry), new KpiResultCache(props, settled, registry),
+                new BucketedKpiCache(props, settled, registry), new RollupKpis(rollup, registry), new KpiSingleFlight(props, registry),
+                new KpiIntervals(props), new KpiMetrics(registry), props);
+    }
+}
@@ -0,0 +1,46 @@
+package com.darion.kpi.kpis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiDownsamplerTest {
+
+    @Test
+    void keepsEndpointsAndSpikesWithinMaxPoints() {
+        // 30 days per minute, flat apart from one spike and one dip
+        List<HourlyCountDTO> minutes = new ArrayList<>();
+        for (int i = 0; i < 43_200; i++) {
+            long count = i == 20_000 ? 500 : i == 30_000 ? 0 : 10;
+            minutes.add(new HourlyCountDTO("m" + i, count));
+        }
+        List<HourlyCountDTO> cached = List.copyOf(minutes);
+
+        @SuppressWarnings("unchecked")
+        List<HourlyCountDTO> points = (List<HourlyCountDTO>) KpiDownsampler.apply(KpiId.THROUGHPUT_PER_MINUTE, cached, 1000);
+
+        assertEquals(1000, points.size());
+        assertEquals("m0", points.get(0).hour());
+        assertEquals("m43199", points.get(999).hour());
+        assertTrue(points.stream().anyMatch(p -> p.count() == 500));
+        assertTrue(points.stream().anyMatch(p -> p.count() == 0));
+        for (int i = 1; i < points.size(); i++) {
+            assertTrue(Integer.parseInt(points.get(i).hour().substring(1)) > Integer.parseInt(points.get(i - 1).hour().substring(1)));
+        }
+        assertEquals(43_200, cached.size());
+    }
+
+    @Test
+    void leavesShortSeriesAndOtherKpisAlone() {
+        List<HourlyCountDTO> hours = List.of(new HourlyCountDTO("h0", 1), new HourlyCountDTO("h1", 2));
+        assertSame(hours, KpiDownsampler.apply(KpiId.EVENTS_PER_HOUR, hours, 1));
+        assertSame(hours, KpiDownsampler.apply(KpiId.EVENTS_PER_HOUR, hours, null));
+
+        List<LeaderboardEntryDTO> top = List.of(new LeaderboardEntryDTO("a", 3), new LeaderboardEntryDTO("b", 2),
+                new LeaderboardEntryDTO("c", 1), new LeaderboardEntryDTO("d", 0));
+        assertSame(top, KpiDownsampler.apply(KpiId.TOP_ACTORS, top, 3));
+    }
+}
@@ -0,0 +1,52 @@
+package com.darion.kpi.kpis;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiIntervalsTest {
+
+    private static final Instant T0 = Instant.parse("2026-03-01T00:00:00Z");
+
+    private final KpiIntervals intervals = new KpiIntervals(new KpiQueryProperties(
+            new KpiQueryProperties.Fusion(true, Duration.ofMillis(2)),
+            new KpiQueryProperties.Cache(true, 1000, Duration.ofMinutes(10), Duration.ofHours(24),
+                    Duration.ofSeconds(15), Duration.ofSeconds(5)),
+            new KpiQueryProperties.Buckets(true, 1000, Duration.ofDays(7)),
+            new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+            new KpiQueryProperties.SingleFlight(true),
+            new KpiQueryProperties.Interval(12, 1000)));
+
+    @Test
+    void autoKeepsTheKpisOwnIntervalUnlessTheBucketCountLeavesTheBounds() {
+        assertEquals(KpiInterval.H1, auto(KpiId.EVENTS_PER_HOUR, Duration.ofDays(1)));
+        assertEquals(KpiInterval.H1, auto(KpiId.EVENTS_PER_HOUR, Duration.ofDays(30)));
+        assertEquals(KpiInterval.H6, auto(KpiId.EVENTS_PER_HOUR, Duration.ofDays(90)));
+        assertEquals(KpiInterval.M5, auto(KpiId.ERROR_RATE_PER_HOUR, Duration.ofHours(2)));
+        assertEquals(KpiInterval.M15, auto(KpiId.ERROR_RATE_PER_HOUR, Duration.ofHours(6)));
+
+        assertEquals(KpiInterval.M1, auto(KpiId.THROUGHPUT_PER_MINUTE, Duration.ofHours(2)));
+        assertEquals(KpiInterval.M5, auto(KpiId.THROUGHPUT_PER_MINUTE, Duration.ofDays(1)));
+        assertEquals(KpiInterval.H1, auto(KpiId.THROUGHPUT_PER_MINUTE, Duration.ofDays(30)));
+
+        assertNull(auto(KpiId.SUCCESS_RATE, Duration.ofDays(30)));
+    }
+
+    @Test
+    void explicitIntervalsAreKeptWithinMaxBuckets() {
+        KpiRequest req = new KpiRequest(T0, T0.plus(Duration.ofDays(1)), null, null, null, KpiInterval.M15, null, null);
+        assertSame(req, intervals.resolve(KpiId.EVENTS_PER_HOUR, req));
+        assertNull(intervals.resolve(KpiId.TOP_ACTORS, req).interval());
+
+        intervals.check(KpiInterval.M1, T0, T0.plus(Duration.ofHours(12)));
+        assertThrows(BadKpiRequestException.class, () -> intervals.check(KpiInterval.M1, T0, T0.plus(Duration.ofDays(30))));
+        assertThrows(BadKpiRequestException.class, () -> KpiInterval.parse("2h"));
+    }
+
+    private KpiInterval auto(KpiId id, Duration range) {
+        return intervals.of(id, new KpiRequest(T0, T0.plus(range), null, null, null, null, null, null));
+    }
+}
@@ -0,0 +1,43 @@
+package com.darion.kpi.kpis;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiMetricsTest {
+
+    private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final KpiMetrics metrics = new KpiMetrics(registry);
+
+    @Test
+    void requestsAreTaggedByKpiSourceRangeAndSite() {
+        metrics.request("TOP_ACTORS", request(T0.plusSeconds(3600), "PHL1"), "query", System.nanoTime());
+        metrics.request("TOP_ACTORS", request(T0.plusSeconds(40 * 86400), " "), "cache", System.nanoTime());
+
+        assertEquals(1, registry.get("kpi.request")
+                .tags("kpi", "TOP_ACTORS", "source", "query", "range", "1h", "site", "true").timer().count());
+        assertEquals(1, registry.get("kpi.request")
+                .tags("kpi", "TOP_ACTORS", "source", "cache", "range", "long", "site", "false").timer().count());
+    }
+
+    @Test
+    void rowsCountCollectionsAndMapsAndMissingTookIsSkipped() {
+        metrics.rows(KpiId.EVENTS_PER_HOUR, List.of(1, 2, 3));
+        metrics.rows(KpiId.SUCCESS_RATE, new Object());
+        metrics.took("PEAK_HOUR", -1);
+
+        assertEquals(3, registry.get("kpi.result.rows").tag("kpi", "EVENTS_PER_HOUR").summary().totalAmount());
+        assertEquals(1, registry.get("kpi.result.rows").tag("kpi", "SUCCESS_RATE").summary().totalAmount());
+        assertNull(registry.find("kpi.es.took").timer());
+    }
+
+    private static KpiRequest request(Instant to, String siteId) {
+        return new KpiRequest(T0, to, siteId, null, null, null, null, null);
+    }
+}
@@ -0,0 +1,77 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.WarehouseEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiResultCacheTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final KpiQueryProperties props = new KpiQueryProperties(
+            new KpiQueryProperties.Fusion(true, Duration.ofMillis(2)),
+            new KpiQueryProperties.Cache(true, 1000, Duration.ofMinutes(10), Duration.ofHours(24),
+                    Duration.ofSeconds(15), Duration.ofSeconds(5)),
+            new KpiQueryProperties.Buckets(true, 1000, Duration.ofDays(7)),
+            new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+            new KpiQueryProperties.SingleFlight(true),
+            new KpiQueryProperties.Interval(12, 1000));
+    private final KpiResultCache cache = new KpiResultCache(props, new SettledWatermark(props), registry);
+
+    private final Instant dayAgo = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(Duration.ofDays(1));
+
+    @Test
+    void onlyRangesEndingBeforeTheWatermarkAreSettled() {
+        KpiRequest settled = request(dayAgo, dayAgo.plus(Duration.ofHours(4)), null);
+        KpiRequest live = request(dayAgo, Instant.now(), null);
+
+        assertTrue(cache.isSettled(new KpiCacheKey(KpiId.EVENTS_PER_HOUR, settled)));
+        assertFalse(cache.isSettled(new KpiCacheKey(KpiId.EVENTS_PER_HOUR, live)));
+    }
+
+    @Test
+    void lateEventInvalidatesCoveringEntriesOfItsSite() {
+        KpiRequest allSites = request(dayAgo, dayAgo.plus(Duration.ofHours(4)), null);
+        KpiRequest phl = request(dayAgo, dayAgo.plus(Duration.ofHours(4)), "PHL1");
+        KpiRequest ewr = request(dayAgo, dayAgo.plus(Duration.ofHours(4)), "EWR2");
+        KpiRequest earlier = request(dayAgo.minus(Duration.ofHours(6)), dayAgo.minus(Duration.ofHours(2)), null);
+        cache.put(KpiId.EVENTS_PER_HOUR, allSites, List.of());
+        cache.put(KpiId.SUCCESS_RATE, phl, new SuccessRateDTO(1, 1, 100.0));
+        cache.put(KpiId.SUCCESS_RATE, ewr, new SuccessRateDTO(1, 1, 100.0));
+        cache.put(KpiId.SUCCESS_RATE, earlier, new SuccessRateDTO(1, 1, 100.0));
+
+        IngestBatch batch = new IngestBatch();
+        batch.add(event(dayAgo.plus(Duration.ofMinutes(90)), "PHL1"), 0);
+        batch.add(event(Instant.now(), "EWR2"), 1); // not late, must not invalidate anything
+        cache.onIndexed(batch, List.of());
+
+        assertNull(cache.get(KpiId.EVENTS_PER_HOUR, allSites));
+        assertNull(cache.get(KpiId.SUCCESS_RATE, phl));
+        assertNotNull(cache.get(KpiId.SUCCESS_RATE, ewr));
+        assertNotNull(cache.get(KpiId.SUCCESS_RATE, earlier));
+
+        // until ES has refreshed, the touched hour is not treated as settled
+        assertFalse(cache.isSettled(new KpiCacheKey(KpiId.SUCCESS_RATE, phl)));
+        assertTrue(cache.isSettled(new KpiCacheKey(KpiId.SUCCESS_RATE, earlier)));
+        assertEquals(2.0, registry.get("kpi.cache.requests").tag("kpi", "SUCCESS_RATE").tag("result", "hit").counter().count());
+    }
+
+    private static KpiRequest request(Instant from, Instant to, String siteId) {
+        return new KpiRequest(from, to, siteId, 5, 10, null, null, null);
+    }
+
+    private static WarehouseEvent event(Instant ts, String siteId) {
+        WarehouseEvent e = new WarehouseEvent();
+        e.setTimestamp(ts);
+        e.setEventType("PICK");
+        e.setSiteId(siteId);
+        return e;
+    }
+}
@@ -0,0 +1,77 @@
+package com.darion.kpi.kpis;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiSingleFlightTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final KpiQueryProperties props = new KpiQueryProperties(
+            new KpiQueryProperties.Fusion(true, Duration.ofMillis(2)),
+            new KpiQueryProperties.Cache(true, 1000, Duration.ofMinutes(10), Duration.ofHours(24),
+                    Duration.ofSeconds(15), Duration.ofSeconds(5)),
+            new KpiQueryProperties.Buckets(true, 1000, Duration.ofDays(7)),
+            new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+            new KpiQueryProperties.SingleFlight(true),
+            new KpiQueryProperties.Interval(12, 1000));
+    private final KpiSingleFlight singleFlight = new KpiSingleFlight(props, registry);
+
+    private final KpiCacheKey key = new KpiCacheKey(KpiId.SUCCESS_RATE,
+            new KpiRequest(Instant.parse("2026-03-01T00:00:00Z"), Instant.parse("2026-03-02T00:00:00Z"), "PHL1", null, null, null, null, null));
+
+    @Test
+    void concurrentCallersShareOneQueryUntilItCompletes() {
+        AtomicInteger queries = new AtomicInteger();
+        CompletableFuture<Object> query = new CompletableFuture<>();
+
+        CompletableFuture<Object> a = singleFlight.run(key, () -> {
+            queries.incrementAndGet();
+            return query;
+        });
+        CompletableFuture<Object> b = singleFlight.run(key, () -> {
+            queries.incrementAndGet();
+            return query;
+        });
+        // one caller leaving does not affect the other
+        b.cancel(true);
+        query.complete("result");
+
+        assertEquals(1, queries.get());
+        assertEquals("result", a.join());
+        assertFalse(query.isCancelled());
+        assertEquals(0, singleFlight.inFlight());
+        assertEquals(1.0, registry.get("kpi.query.singleflight.requests").tag("kpi", "SUCCESS_RATE").tag("role", "follower").counter().count());
+
+        // nothing outlives the query: the next caller queries again
+        singleFlight.run(key, () -> {
+            queries.incrementAndGet();
+            return CompletableFuture.completedFuture("fresh");
+        });
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    void queryIsCancelledWhenEveryCallerLeavesAndFailuresAreNotRetained() {
+        CompletableFuture<Object> query = new CompletableFuture<>();
+        CompletableFuture<Object> a = singleFlight.run(key, () -> query);
+        CompletableFuture<Object> b = singleFlight.run(key, () -> query);
+        a.cancel(true);
+        b.cancel(true);
+
+        assertTrue(query.isCancelled());
+        assertEquals(0, singleFlight.inFlight());
+        assertEquals(1.0, registry.get("kpi.query.singleflight.abandoned").tag("kpi", "SUCCESS_RATE").counter().count());
+
+        CompletableFuture<Object> failed = singleFlight.run(key, () -> CompletableFuture.failedFuture(new RuntimeException("boom")));
+        assertThrows(CompletionException.class, failed::join);
+        assertEquals("ok", singleFlight.run(key, () -> CompletableFuture.completedFuture("ok")).join());
+    }
+}
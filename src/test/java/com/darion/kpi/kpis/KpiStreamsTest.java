@@ -0,0 +1,233 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.rollup.RollupIndexProperties;
+import com.darion.kpi.rollup.RollupIndexState;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiStreamsTest {
+
+    private static final Duration DAY = Duration.ofHours(24);
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final Series service = new Series();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private KpiStreams streams;
+
+    @AfterEach
+    void stop() {
+        release.countDown();
+        if (streams != null) streams.stop();
+    }
+
+    @Test
+    void deltaHoldsNewAndChangedBucketsOnly() {
+        List<HourlyCountDTO> before = List.of(
+                new HourlyCountDTO("2026-03-01T10:00:00.000Z", 5),
+                new HourlyCountDTO("2026-03-01T11:00:00.000Z", 7),
+                new HourlyCountDTO("2026-03-01T12:00:00.000Z", 2));
+        // the window slid by an hour: 10:00 dropped, 12:00 grew, 13:00 started
+        List<HourlyCountDTO> after = List.of(
+                new HourlyCountDTO("2026-03-01T11:00:00.000Z", 7),
+                new HourlyCountDTO("2026-03-01T12:00:00.000Z", 4),
+                new HourlyCountDTO("2026-03-01T13:00:00.000Z", 1));
+
+        assertEquals(List.of(after.get(1), after.get(2)), KpiStreams.delta(before, after));
+        assertEquals(List.of(), KpiStreams.delta(after, after));
+        assertEquals(after, KpiStreams.delta(List.of(), after));
+    }
+
+    @Test
+    void everySeriesBucketHasAKey() {
+        assertEquals("h", KpiStreams.bucketKey(new HourlyErrorRateDTO("h", 1, 0, 0.0)));
+        assertEquals("h", KpiStreams.bucketKey(new HourlyStackedDTO("h", 1, List.of())));
+        assertEquals("h", KpiStreams.bucketKey(new HourlyDurationStatsDTO("h", 1, 1, KpiPercentiles.zeros(null))));
+        assertThrows(IllegalArgumentException.class, () -> KpiStreams.bucketKey(new SuccessRateDTO(1, 1, 100.0)));
+    }
+
+    @Test
+    void subscribersOfTheSameStreamShareOneComputation() {
+        streams = streams(Duration.ofHours(1), Duration.ofHours(1), 100, -1);
+
+        List<Recorder> phl = List.of(subscribe("PHL1"), subscribe("PHL1"), subscribe("PHL1"), subscribe("PHL1"));
+        Recorder ewr = subscribe("EWR2");
+
+        assertEquals(2, service.calls.get());
+        assertEquals(2.0, registry.get("kpi.stream.computations").counter().count());
+        assertEquals(2.0, registry.get("kpi.stream.streams").gauge().value());
+        assertEquals(5.0, registry.get("kpi.stream.subscribers").gauge().value());
+
+        // every subscriber gets the stream's snapshot, serialized once
+        for (Recorder r : phl) await(() -> r.sent.size() == 1);
+        await(() -> ewr.sent.size() == 1);
+        for (Recorder r : phl) assertSame(phl.get(0).sent.get(0), r.sent.get(0));
+        assertTrue(phl.get(0).text(0).contains("event:snapshot"), phl.get(0).text(0));
+    }
+
+    @Test
+    void updatesForASlowSubscriberAreFoldedIntoOneDelta() {
+        // every tick recomputes; the series changes until service.last
+        streams = streams(Duration.ofMillis(10), Duration.ofMillis(1), 100, 1);
+        Recorder fast = subscribe("PHL1");
+        Recorder slow = subscribe("PHL1");
+        await(() -> fast.sent.size() == 1 && slow.sent.size() == 1);
+
+        // the slow client stalls on its second event while versions 2..5 are published
+        service.last = 5;
+        await(() -> fast.sent.size() > 1 && fast.text(fast.sent.size() - 1).contains("id:5\n"));
+        assertTrue(registry.get("kpi.stream.coalesced").counter().count() >= 1);
+        release.countDown();
+        await(() -> slow.sent.size() == 3);
+
+        assertTrue(slow.text(0).contains("event:snapshot"), slow.text(0));
+        assertTrue(slow.text(1).contains("id:2\nevent:delta"), slow.text(1));
+        // one delta from version 2 straight to 5: only the last bucket changed
+        String caughtUp = slow.text(2);
+        assertTrue(caughtUp.contains("id:5\nevent:delta"), caughtUp);
+        assertTrue(caughtUp.contains("{\"hour\":\"2026-03-01T12:00:00.000Z\",\"count\":5}"), caughtUp);
+        assertFalse(caughtUp.contains("11:00"), caughtUp);
+        for (int i = 1; i < fast.sent.size(); i++) assertTrue(fast.text(i).contains("event:delta"), fast.text(i));
+    }
+
+    @Test
+    void subscriptionsBeyondMaxSubscribersAre503() {
+        streams = streams(Duration.ofHours(1), Duration.ofSeconds(30), 2, -1);
+        subscribe("PHL1");
+        subscribe("EWR2");
+
+        ResponseEntity<SseEmitter> refused = streams.subscribe(KpiId.EVENTS_PER_HOUR, DAY, params("PHL1"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, refused.getStatusCode());
+        assertEquals("30", refused.getHeaders().getFirst("Retry-After"));
+        assertEquals(1.0, registry.get("kpi.stream.rejected").counter().count());
+        assertEquals(2.0, registry.get("kpi.stream.subscribers").gauge().value());
+    }
+
+    // blockAt: index of the send that waits for release, -1 for none
+    private KpiStreams streams(Duration interval, Duration refresh, int maxSubscribers, int blockAt) {
+        KpiQueryProperties query = new KpiQueryProperties(
+                new KpiQueryProperties.Fusion(true, Duration.ZERO),
+                new KpiQueryProperties.Cache(true, 1000, Duration.ofMinutes(10), Duration.ofHours(24),
+                        Duration.ofSeconds(15), Duration.ofSeconds(5)),
+                new KpiQueryProperties.Buckets(true, 1000, Duration.ofDays(7)),
+                new KpiQueryProperties.Execution(KpiQueryProperties.Execution.Mode.ASYNC),
+                new KpiQueryProperties.SingleFlight(true),
+                new KpiQueryProperties.Interval(12, 1000));
+        KpiIntervals intervals = new KpiIntervals(query);
+        RollupIndexProperties rollupIndex = new RollupIndexProperties(false, Duration.ofMinutes(5), Duration.ofMinutes(10),
+                Duration.ofHours(24), Duration.ofDays(400), Duration.ofHours(24));
+        KpiStreamProperties props = new KpiStreamProperties(true, interval, refresh, Duration.ofHours(1), Duration.ofMinutes(30),
+                DAY, maxSubscribers);
+        AtomicInteger subscribers = new AtomicInteger();
+        KpiStreams out = new KpiStreams(service, new KpiRequestNormalizer(new RollupIndexState(rollupIndex), rollupIndex, intervals),
+                intervals, new ObjectMapper(), props, registry) {
+            @Override
+            SseEmitter emitter() {
+                // the second subscriber of the slow test is the one that stalls
+                return new Recorder(subscribers.incrementAndGet() == 2 ? blockAt : -1, release);
+            }
+        };
+        out.start();
+        return out;
+    }
+
+    private Recorder subscribe(String siteId) {
+        ResponseEntity<SseEmitter> resp = streams.subscribe(KpiId.EVENTS_PER_HOUR, DAY, params(siteId));
+        assertEquals(HttpStatus.OK, resp.getStatusCode());
+        return (Recorder) resp.getBody();
+    }
+
+    private static KpiRequest params(String siteId) {
+        return new KpiRequest(null, null, siteId, null, null, null, null, null);
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.onSpinWait();
+        }
+    }
+
+    // three hours of counts; the last one steps up by one per computation until it reaches last
+    private static final class Series implements KpiService {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger value = new AtomicInteger();
+        volatile int last = 1;
+
+        @Override
+        public CompletableFuture<Object> getKpiAsync(KpiId id, KpiRequest req) {
+            calls.incrementAndGet();
+            int v = value.updateAndGet(n -> Math.min(n + 1, last));
+            return CompletableFuture.completedFuture(List.of(
+                    new HourlyCountDTO("2026-03-01T10:00:00.000Z", 3),
+                    new HourlyCountDTO("2026-03-01T11:00:00.000Z", 4),
+                    new HourlyCountDTO("2026-03-01T12:00:00.000Z", v)));
+        }
+
+        @Override
+        public Object getKpi(KpiId id, KpiRequest req) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<KpiId, KpiBatchResultDTO> getKpis(List<KpiId> ids, KpiRequest req) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Map<KpiId, KpiBatchResultDTO>> getKpisAsync(List<KpiId> ids, KpiRequest req) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // keeps what was sent; the send at blockAt waits for release like a client that stopped reading
+    private static final class Recorder extends SseEmitter {
+
+        final List<Set<DataWithMediaType>> sent = new CopyOnWriteArrayList<>();
+        private final int blockAt;
+        private final CountDownLatch release;
+
+        Recorder(int blockAt, CountDownLatch release) {
+            this.blockAt = blockAt;
+            this.release = release;
+        }
+
+        // not synchronized like the real one: a virtual thread waiting inside a monitor pins its carrier
+        @Override
+        public void send(Set<DataWithMediaType> items) throws IOException {
+            if (sent.size() == blockAt) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            sent.add(items);
+        }
+
+        String text(int i) {
+            return sent.get(i).stream().map(d -> String.valueOf(d.getData())).collect(Collectors.joining());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.darion.kpi.kpis;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryTemplateTest {
+
+    private static final String FILTER = "{\"range\":{\"timestamp\":{\"gte\":\"2026-01-01T00:00:00Z\",\"lte\":\"2026-01-02T00:00:00Z\"}}}";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void fillsSlotsAndEscapesTheSiteId() {
+        QueryTemplate t = QueryTemplate.compile("{\"filter\":[{{FILTER}}{{SITE}}],\"size\":{{SIZE}},\"field\":\"{{SKETCH}}\"}");
+
+        JsonBytes out = new JsonBytes(8);
+        t.render(out, "{\"match_all\":{}}", "PHL\"1\\é\n", 7, "durationMs", "1h", null, null);
+        assertEquals("{\"filter\":[{\"match_all\":{}},{\"term\":{\"siteId\":\"PHL\\\"1\\\\é\\n\"}}],\"size\":7,\"field\":\"durationMs\"}",
+                out.toString());
+
+        for (String blank : new String[]{null, " "}) {
+            out = new JsonBytes(8);
+            t.render(out, "{}", blank, 0, "x", "1h", null, null);
+            assertEquals("{\"filter\":[{}],\"size\":0,\"field\":\"x\"}", out.toString());
+        }
+    }
+
+    @Test
+    void everyKpiRendersValidJson() throws IOException {
+        for (KpiId id : KpiId.values()) {
+            JsonBytes out = new JsonBytes(64);
+            KpiQueryTemplates.of(id).render(out, FILTER, "PHL1", 5, "durationHistogram", "1h", 3000, "\"percents\":[95.0]");
+            JsonNode body = mapper.readTree(out.toByteArray());
+            JsonNode filter = body.path("query").path("bool").path("filter");
+            assertEquals("2026-01-01T00:00:00Z", filter.get(0).path("range").path("timestamp").path("gte").asText(), id.name());
+            assertEquals("PHL1", filter.get(filter.size() - 1).path("term").path("siteId").asText(), id.name());
+            assertFalse(out.toString().contains("{{"), id.name());
+            assertEquals(EsKpiQueryClient.countsUnique(id), out.toString().contains("\"precision_threshold\":3000"), id.name());
+        }
+
+        JsonBytes out = new JsonBytes(64);
+        KpiQueryTemplates.hourly(List.of(KpiId.DURATION_STATS_PER_HOUR, KpiId.EVENTS_PER_HOUR_BY_TYPE))
+                .render(out, FILTER, null, 0, "durationMs", "15m", null,
+                        "\"percents\":[50.0,95.0],\"hdr\":{\"number_of_significant_value_digits\":2}");
+        JsonNode perHour = mapper.readTree(out.toByteArray()).path("aggs").path("per_hour");
+        assertEquals("15m", perHour.path("date_histogram").path("fixed_interval").asText());
+        JsonNode sub = perHour.path("aggs");
+        JsonNode percentiles = sub.path("duration_percentiles").path("percentiles");
+        assertEquals("durationMs", percentiles.path("field").asText());
+        assertEquals(50.0, percentiles.path("percents").get(0).asDouble());
+        assertEquals(2, percentiles.path("hdr").path("number_of_significant_value_digits").asInt());
+        assertTrue(sub.has("by_type"));
+    }
+}
@@ -0,0 +1,199 @@
+package com.darion.kpi.kpis;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.WarehouseEvent;
+import com.darion.kpi.rollup.HourlyRollup;
+import com.darion.kpi.rollup.RollupProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RollupKpisTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    // fixed, so the hours the tests use never cross midnight or retention whenever they run
+    private final Clock clock = Clock.fixed(Instant.parse("2026-01-15T09:20:00Z"), ZoneOffset.UTC);
+    private final HourlyRollup rollup = new HourlyRollup(new RollupProperties(true, Duration.ofDays(35), false, 14, 0.01), null,
+            registry, clock);
+    private final RollupKpis kpis = new RollupKpis(rollup, registry);
+
+    // without a bootstrap the rollup is exact from the first full hour after start()
+    private final Instant h = Instant.parse("2026-01-15T10:00:00Z");
+
+    @BeforeEach
+    void start() {
+        rollup.start();
+        assertEquals(h, rollup.coveredFrom());
+    }
+
+    @Test
+    void hourSeriesMatchEsHistogramSemantics() {
+        index(List.of(
+                event(h.plus(Duration.ofMinutes(10)), "PICK", "PHL1", true),
+                event(h.plus(Duration.ofMinutes(20)), "PACK", "PHL1", false),
+                event(h.plus(Duration.ofMinutes(30)), "PACK", "EWR2", true),
+                event(h.plus(Duration.ofHours(2)), "PICK", "PHL1", true),
+                event(h.plus(Duration.ofHours(3)), "PICK", "PHL1", false)), 201);
+
+        // inclusive end: the event exactly on h+3h gets its own bucket, h+1h is an empty bucket
+        KpiRequest inclusive = request(h, h.plus(Duration.ofHours(3)), null);
+        assertEquals(List.of(
+                new HourlyCountDTO(EsKpiQueryClient.KEY_FORMAT.format(h), 3),
+                new HourlyCountDTO(EsKpiQueryClient.KEY_FORMAT.format(h.plus(Duration.ofHours(1))), 0),
+                new HourlyCountDTO(EsKpiQueryClient.KEY_FORMAT.format(h.plus(Duration.ofHours(2))), 1),
+                new HourlyCountDTO(EsKpiQueryClient.KEY_FORMAT.format(h.plus(Duration.ofHours(3))), 1)),
+                kpis.getKpi(KpiId.EVENTS_PER_HOUR, inclusive));
+
+        KpiRequest phl = new KpiRequest(h, h.plus(Duration.ofHours(3)).minusMillis(1), "PHL1", 1, null, null, null, null);
+        List<?> stacked = (List<?>) kpis.getKpi(KpiId.EVENTS_PER_HOUR_BY_TYPE, phl);
+        assertEquals(3, stacked.size());
+        // PACK and PICK tie at 1: key order decides which one is in the top 1
+        assertEquals(new HourlyStackedDTO(EsKpiQueryClient.KEY_FORMAT.format(h), 2,
+                List.of(new DonutSliceDTO("PACK", 1), new DonutSliceDTO("OTHER", 1))), stacked.get(0));
+
+        assertEquals(new PeakHourDTO(EsKpiQueryClient.KEY_FORMAT.format(h), 3), kpis.getKpi(KpiId.PEAK_HOUR, inclusive));
+        assertEquals(new SuccessRateDTO(5, 3, 60.0), kpis.getKpi(KpiId.SUCCESS_RATE, inclusive));
+        assertEquals(List.of(new DonutSliceDTO("PACK", 1), new DonutSliceDTO("PICK", 1)),
+                kpis.getKpi(KpiId.ERROR_TYPES_BREAKDOWN, inclusive));
+    }
+
+    @Test
+    void fallsBackWhenTheRangeIsNotExactlyCovered() {
+        index(List.of(event(h.plus(Duration.ofMinutes(5)), "PICK", "PHL1", true)), 201);
+        index(List.of(event(h.plus(Duration.ofMinutes(5)), "PICK", "PHL1", true)), 200); // overwrite, not a new doc
+
+        KpiRequest covered = request(h, h.plus(Duration.ofHours(1)).minusMillis(1), null);
+        assertEquals(new SuccessRateDTO(1, 1, 100.0), kpis.getKpi(KpiId.SUCCESS_RATE, covered));
+
+        assertNull(kpis.getKpi(KpiId.SUCCESS_RATE, request(h.minus(Duration.ofHours(1)), h, null)));
+        assertNull(kpis.getKpi(KpiId.SUCCESS_RATE, request(h.plusSeconds(1), h.plus(Duration.ofHours(1)), null)));
+        assertNull(kpis.getKpi(KpiId.SUCCESS_RATE, request(h, h.plusSeconds(90), null)));
+        // sketches less precise than the requested precision_threshold
+        KpiRequest precise = new KpiRequest(covered.from(), covered.to(), null, null, null, null, 40_000, null);
+        assertNull(kpis.getKpi(KpiId.UNIQUE_ACTORS_PER_HOUR, precise));
+        assertNull(kpis.getKpi(KpiId.TOP_ACTORS, covered));
+    }
+
+    @Test
+    void hoursOfABatchWithUnknownOutcomeFallBack() {
+        index(List.of(event(h.plus(Duration.ofMinutes(5)), "PICK", "PHL1", true)), 201);
+        // timed out _bulk: Elasticsearch may have written it, a resend answers 200 and is not counted
+        IngestBatch lost = new IngestBatch();
+        lost.add(event(h.plus(Duration.ofMinutes(70)), "PICK", "PHL1", true), 0);
+        rollup.onUnknown(lost);
+        index(List.of(event(h.plus(Duration.ofMinutes(70)), "PICK", "PHL1", true)), 200);
+
+        assertEquals(new SuccessRateDTO(1, 1, 100.0),
+                kpis.getKpi(KpiId.SUCCESS_RATE, request(h, h.plus(Duration.ofHours(1)).minusMillis(1), null)));
+        assertNull(kpis.getKpi(KpiId.SUCCESS_RATE, request(h, h.plus(Duration.ofHours(2)).minusMillis(1), null)));
+        // an inclusive end on the uncertain hour needs it too
+        assertNull(kpis.getKpi(KpiId.SUCCESS_RATE, request(h, h.plus(Duration.ofHours(1)), null)));
+    }
+
+    @Test
+    void uniqueCountsMergeHourlySketches() {
+        List<WarehouseEvent> events = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            // actors 0..199 in the first hour, 100..299 two hours later; sessions never repeat
+            Instant ts = h.plus(Duration.ofMinutes(i < 150 ? 1 : 121));
+            events.add(event(ts, "PICK", "PHL1", true, "actor-" + (i < 150 ? i : i - 50), "session-" + i));
+        }
+        events.add(event(h.plus(Duration.ofMinutes(200)), "PICK", "EWR2", true, "actor-0", null));
+        index(events, 201);
+
+        KpiRequest range = request(h, h.plus(Duration.ofHours(4)).minusMillis(1), null);
+        List<?> hours = (List<?>) kpis.getKpi(KpiId.UNIQUE_ACTORS_PER_HOUR, range);
+        assertEquals(4, hours.size());
+        HourlyUniqueCountDTO first = (HourlyUniqueCountDTO) hours.get(0);
+        assertEquals(EsKpiQueryClient.KEY_FORMAT.format(h), first.hour());
+        assertEquals(150, first.uniqueCount(), 150 * 0.02);
+        assertEquals(new HourlyUniqueCountDTO(EsKpiQueryClient.KEY_FORMAT.format(h.plus(Duration.ofHours(1))), 0), hours.get(1));
+        assertEquals(new HourlyUniqueCountDTO(EsKpiQueryClient.KEY_FORMAT.format(h.plus(Duration.ofHours(3))), 1), hours.get(3));
+
+        ActivitySummaryDTO summary = (ActivitySummaryDTO) kpis.getKpi(KpiId.ACTOR_ACTIVITY_SUMMARY, range);
+        assertEquals(301, summary.totalEvents());
+        assertEquals(250, summary.uniqueActors(), 250 * 0.02);
+        assertEquals(300, summary.uniqueSessions(), 300 * 0.02);
+
+        // a 1d bucket merges the hours; one site's sketches only count that site
+        KpiRequest daily = new KpiRequest(range.from(), range.to(), "EWR2", null, null, KpiInterval.D1, null, null);
+        List<?> ewr = (List<?>) kpis.getKpi(KpiId.UNIQUE_SESSIONS_PER_HOUR, daily);
+        long day = Math.floorDiv(h.plus(Duration.ofMinutes(200)).toEpochMilli(), 86_400_000L) * 86_400_000L;
+        assertEquals(List.of(new HourlyUniqueSessionsDTO(EsKpiQueryClient.KEY_FORMAT.format(Instant.ofEpochMilli(day)), 0)), ewr);
+    }
+
+    @Test
+    void durationPercentilesComeFromMergedHourlyHistograms() {
+        List<WarehouseEvent> events = new ArrayList<>();
+        // 1..1000 ms over two hours of the same day and two sites; one event without a duration
+        for (int i = 1; i <= 1000; i++) {
+            WarehouseEvent e = event(h.plus(Duration.ofMinutes(i % 120)), i % 2 == 0 ? "PICK" : "PACK", i % 3 == 0 ? "PHL1" : "EWR2", true);
+            e.setDurationMs((long) i);
+            events.add(e);
+        }
+        WarehouseEvent noDuration = event(h.plus(Duration.ofMinutes(5)), "LOAD", "PHL1", true);
+        noDuration.setDurationMs(null);
+        events.add(noDuration);
+        index(events, 201);
+
+        KpiRequest req = new KpiRequest(h, h.plus(Duration.ofHours(2)).minusMillis(1), null, null, null, KpiInterval.D1,
+                null, List.of(50.0, 99.9));
+        List<?> series = (List<?>) kpis.getKpi(KpiId.DURATION_STATS_PER_HOUR, req);
+        assertEquals(1, series.size());
+        HourlyDurationStatsDTO all = (HourlyDurationStatsDTO) series.get(0);
+        assertEquals(500.5, all.avgDurationMs());
+        assertEquals(950, all.p95DurationMs(), 950 * 0.01);
+        assertEquals(List.of("50.0", "99.9"), List.copyOf(all.percentiles().keySet()));
+        assertEquals(500, all.percentiles().get("50.0"), 500 * 0.01);
+        assertEquals(999, all.percentiles().get("99.9"), 999 * 0.01);
+
+        List<?> byType = (List<?>) kpis.getKpi(KpiId.DURATION_STATS_BY_EVENT_TYPE, request(req.from(), req.to(), null));
+        assertEquals(List.of("PACK", "PICK", "LOAD"), byType.stream().map(d -> ((EventTypeDurationStatsDTO) d).eventType()).toList());
+        EventTypeDurationStatsDTO load = (EventTypeDurationStatsDTO) byType.get(2);
+        assertEquals(new EventTypeDurationStatsDTO("LOAD", 0.0, 0.0, KpiPercentiles.zeros(null)), load);
+
+        // finer than an hour needs the events
+        assertNull(kpis.getKpi(KpiId.DURATION_STATS_PER_HOUR,
+                new KpiRequest(req.from(), req.to(), null, null, null, KpiInterval.M15, null, null)));
+    }
+
+    private void index(List<WarehouseEvent> events, int status) {
+        IngestBatch batch = new IngestBatch();
+        List<BulkItemResultDTO> results = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            batch.add(events.get(i), i);
+            results.add(new BulkItemResultDTO(i, "id" + i, status, null));
+        }
+        rollup.onIndexed(batch, results);
+    }
+
+    private static KpiRequest request(Instant from, Instant to, String siteId) {
+        return new KpiRequest(from, to, siteId, null, null, null, null, null);
+    }
+
+    private static WarehouseEvent event(Instant ts, String type, String siteId, boolean success) {
+        return event(ts, type, siteId, success, null, null);
+    }
+
+    private static WarehouseEvent event(Instant ts, String type, String siteId, boolean success, String actorId, String sessionId) {
+        WarehouseEvent e = new WarehouseEvent();
+        e.setActorId(actorId);
+        e.setSessionId(sessionId);
+        e.setTimestamp(ts);
+        e.setEventType(type);
+        e.setSiteId(siteId);
+        e.setSuccess(success);
+        e.setDurationMs(100L);
+        return e;
+    }
+}
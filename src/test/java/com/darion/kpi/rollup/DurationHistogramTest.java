@@ -0,0 +1,40 @@
+package com.darion.kpi.rollup;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DurationHistogramTest {
+
+    private final DurationBuckets layout = new DurationBuckets(0.01);
+
+    @Test
+    void bucketValuesAreWithinTheAccuracy() {
+        for (double d = 1; d < 10_000_000; d *= 1.37) {
+            double v = layout.value(layout.index(d));
+            assertEquals(d, v, d * 0.01 + 1e-9, "d=" + d);
+        }
+        assertEquals(DurationBuckets.BELOW_ONE, layout.index(0.4));
+        assertEquals(0.0, layout.value(DurationBuckets.BELOW_ONE));
+        assertThrows(IllegalArgumentException.class, () -> new DurationBuckets(0.5));
+    }
+
+    @Test
+    void percentilesOfMergedHistograms() {
+        DurationHistogram a = new DurationHistogram(layout);
+        DurationHistogram b = new DurationHistogram(layout);
+        for (int i = 1; i <= 10_000; i++) (i % 3 == 0 ? a : b).add(i);
+
+        DurationHistogram merged = a.copy();
+        merged.merge(b);
+        assertEquals(10_000, merged.count());
+        assertEquals(3_333, a.count());
+        for (double p : new double[]{1, 50, 90, 99, 99.9}) {
+            assertEquals(p * 100, merged.percentile(p), p * 100 * 0.01, "p" + p);
+        }
+        assertEquals(10_000, merged.percentile(100), 100);
+        assertTrue(Double.isNaN(new DurationHistogram(layout).percentile(50)));
+
+        assertThrows(IllegalArgumentException.class, () -> a.merge(new DurationHistogram(new DurationBuckets(0.01))));
+    }
+}
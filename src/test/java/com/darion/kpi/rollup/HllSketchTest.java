@@ -0,0 +1,60 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.KeywordHash;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HllSketchTest {
+
+    @Test
+    void estimatesWithinTheStandardError() {
+        for (int n : new int[]{10, 1_000, 100_000}) {
+            HllSketch s = new HllSketch(14);
+            for (int i = 0; i < n; i++) s.add(KeywordHash.of("actor-" + i));
+            // twice the standard error at 14 is 1.6%
+            assertEquals(n, s.estimate(), Math.max(1, n * 0.02), "n=" + n);
+        }
+        assertEquals(0, new HllSketch(14).estimate());
+    }
+
+    @Test
+    void mergeIsTheSketchOfTheUnion() {
+        HllSketch a = new HllSketch(12);
+        HllSketch b = new HllSketch(12);
+        HllSketch union = new HllSketch(12);
+        for (int i = 0; i < 20_000; i++) {
+            long hash = KeywordHash.of("session-" + i);
+            (i < 12_000 ? a : b).add(hash);
+            if (i >= 8_000 && i < 12_000) b.add(hash); // overlap
+            union.add(hash);
+        }
+        HllSketch merged = a.copy();
+        merged.merge(b);
+        assertArrayEquals(union.toBytes(), merged.toBytes());
+        assertNotEquals(a.estimate(), merged.estimate());
+
+        assertThrows(IllegalArgumentException.class, () -> a.merge(new HllSketch(14)));
+    }
+
+    @Test
+    void roundTripsSparseAndDense() {
+        HllSketch s = new HllSketch(14);
+        for (int n : new int[]{50, 50_000}) {
+            for (int i = 0; i < n; i++) s.add(KeywordHash.of("v" + i));
+            byte[] bytes = s.toBytes();
+            HllSketch read = HllSketch.fromBytes(bytes);
+            assertEquals(s.estimate(), read.estimate(), "n=" + n);
+            assertArrayEquals(bytes, read.toBytes(), "n=" + n);
+        }
+        assertTrue(HllSketch.fromBytes(new HllSketch(14).toBytes()).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> HllSketch.fromBytes(new byte[]{1, 14, 0, 0}));
+    }
+
+    @Test
+    void precisionMatchesElasticsearchThresholds() {
+        assertEquals(14, HllSketch.precisionFor(3000));
+        assertEquals(18, HllSketch.precisionFor(40_000));
+        assertEquals(HllSketch.MIN_PRECISION, HllSketch.precisionFor(0));
+    }
+}
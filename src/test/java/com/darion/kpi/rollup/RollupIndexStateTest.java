@@ -0,0 +1,68 @@
+package com.darion.kpi.rollup;
+
+import com.darion.kpi.events.BulkItemResultDTO;
+import com.darion.kpi.events.IngestBatch;
+import com.darion.kpi.events.WarehouseEvent;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RollupIndexStateTest {
+
+    private static final long H = RollupIndexState.HOUR_MS;
+    private static final long T0 = Instant.parse("2026-01-01T00:00:00Z").toEpochMilli();
+
+    private final RollupIndexState state = new RollupIndexState(
+            new RollupIndexProperties(true, Duration.ofMinutes(5), Duration.ofMinutes(10), Duration.ofHours(24), Duration.ofDays(400), Duration.ofHours(24)));
+
+    @Test
+    void onlyWholeMaterializedHoursAreServed() {
+        assertFalse(state.isAvailable());
+        assertEquals(List.of(), state.materialized(T0, T0 + 10 * H));
+
+        state.advance(T0 + 5 * H);
+        // inclusive end one millisecond before an hour covers that hour; the watermark caps the span
+        assertEquals(List.of(new RollupIndexState.Span(T0 + H, T0 + 3 * H)), state.materialized(T0 + 1, T0 + 3 * H - 1));
+        assertEquals(List.of(new RollupIndexState.Span(T0, T0 + 5 * H)), state.materialized(T0, T0 + 10 * H));
+        assertEquals(List.of(), state.materialized(T0 + 10, T0 + H + 10));
+    }
+
+    @Test
+    void lateEventsKeepTheirHourOnRawEventsUntilRebuilt() {
+        state.materializing(T0 + 5 * H);
+        state.advance(T0 + 3 * H);
+
+        index(T0 + H + 60_000, 201);   // late: hour 1
+        index(T0 + 4 * H, 201);        // being materialized: hour 4
+        index(T0 + 2 * H, 409);        // rejected: not dirty
+        index(T0 + 6 * H, 201);        // not materialized yet
+
+        Map<Long, Long> dirty = state.dirtyHours();
+        assertEquals(List.of(T0 + H, T0 + 4 * H), dirty.keySet().stream().sorted().toList());
+        assertEquals(List.of(new RollupIndexState.Span(T0, T0 + H), new RollupIndexState.Span(T0 + 2 * H, T0 + 3 * H)),
+                state.materialized(T0, T0 + 3 * H - 1));
+
+        // a write after the job's snapshot keeps the hour dirty
+        index(T0 + H, 201);
+        state.rebuilt(T0 + H, dirty.get(T0 + H));
+        assertTrue(state.dirtyHours().containsKey(T0 + H));
+
+        state.rebuilt(T0 + H, state.dirtyHours().get(T0 + H));
+        assertEquals(List.of(new RollupIndexState.Span(T0, T0 + 3 * H)), state.materialized(T0, T0 + 3 * H - 1));
+    }
+
+    private void index(long ts, int status) {
+        WarehouseEvent e = new WarehouseEvent();
+        e.setTimestamp(Instant.ofEpochMilli(ts));
+        e.setEventType("PICK");
+        e.setSiteId("PHL1");
+        IngestBatch batch = new IngestBatch();
+        batch.add(e, 0);
+        state.onIndexed(batch, List.of(new BulkItemResultDTO(0, "id", status, null)));
+    }
+}